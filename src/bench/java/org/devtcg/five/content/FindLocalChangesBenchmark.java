@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.content;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.MetaSyncAdapter;
+import org.devtcg.five.meta.dao.SyntheticLibrary;
+import org.devtcg.five.persistence.SyncableProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying the songs feed into a temporary provider, as done for every feed
+ * request which isn't answered from the high-water mark. A full sync copies
+ * the whole library, an incremental one the newest 1% of songs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class FindLocalChangesBenchmark
+{
+	@Param({ "10000", "100000", "1000000" })
+	public int songs;
+
+	@Param({ "full", "incremental" })
+	public String sync;
+
+	private MetaProvider mProvider;
+	private AbstractTableMerger mMerger;
+	private FeedQuery mQuery;
+	private long mModifiedSince;
+
+	private SyncableProvider mClientDiffs;
+
+	@Setup(Level.Trial)
+	public void setUpLibrary() throws SQLException
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		SyntheticLibrary.populate(mProvider, songs);
+
+		mMerger = new MetaSyncAdapter(mProvider).getMerger("songs");
+		mQuery = FeedQuery.parse(null);
+
+		if (sync.equals("full"))
+			mModifiedSince = 0;
+		else
+			mModifiedSince = songs - songs / 100;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownLibrary() throws SQLException
+	{
+		mProvider.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpClientDiffs()
+	{
+		mClientDiffs = MetaProvider.getTemporaryInstance();
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownClientDiffs() throws SQLException
+	{
+		mClientDiffs.close();
+	}
+
+	@Benchmark
+	public SyncableProvider findLocalChanges() throws SQLException
+	{
+		mMerger.findLocalChanges(mClientDiffs, mModifiedSince, Long.MAX_VALUE, mQuery);
+		return mClientDiffs;
+	}
+}
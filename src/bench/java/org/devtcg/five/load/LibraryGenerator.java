@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.load;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes a made up music library to disk for load testing: a directory per
+ * artist and album, holding short silent MP3s with ID3v2.3 tags and a
+ * folder.jpg. The files are small, but are parsed by the crawler exactly
+ * as real ones would be. Run manually:
+ *
+ * <pre>
+ * java -cp ... org.devtcg.five.load.LibraryGenerator directory [artists] [albums-per-artist] [songs-per-album] [frames-per-song]
+ * </pre>
+ */
+public class LibraryGenerator
+{
+	/** MPEG-1 layer III, 128kbps, 44.1kHz, no CRC, no padding, stereo. */
+	private static final byte[] FRAME_HEADER = { (byte)0xff, (byte)0xfb, (byte)0x90, (byte)0x00 };
+
+	/** 144 * bitrate / sample rate, rounded down. */
+	private static final int FRAME_SIZE = 417;
+
+	/** Roughly 26ms per frame. */
+	private static final int DEFAULT_FRAMES = 40;
+
+	private final File mRoot;
+	private final byte[] mAudio;
+
+	public LibraryGenerator(File root, int framesPerSong)
+	{
+		mRoot = root;
+
+		/*
+		 * A frame with all zero side info and main data decodes to silence,
+		 * so the same frame can be repeated for the whole song.
+		 */
+		mAudio = new byte[FRAME_SIZE * framesPerSong];
+		for (int i = 0; i < framesPerSong; i++)
+			System.arraycopy(FRAME_HEADER, 0, mAudio, i * FRAME_SIZE, FRAME_HEADER.length);
+	}
+
+	/**
+	 * Append an ID3v2.3 text frame, encoded as ISO-8859-1.
+	 */
+	private static void writeTextFrame(ByteArrayOutputStream out, String id, String value)
+		throws IOException
+	{
+		byte[] text = value.getBytes("ISO-8859-1");
+		int size = text.length + 1;
+
+		out.write(id.getBytes("ISO-8859-1"));
+		out.write(size >>> 24);
+		out.write(size >>> 16);
+		out.write(size >>> 8);
+		out.write(size);
+
+		/* Flags, then the text encoding. */
+		out.write(0);
+		out.write(0);
+		out.write(0);
+
+		out.write(text);
+	}
+
+	static byte[] buildTag(String artist, String album, String title, int track,
+		int trackCount) throws IOException
+	{
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		writeTextFrame(frames, "TPE1", artist);
+		writeTextFrame(frames, "TALB", album);
+		writeTextFrame(frames, "TIT2", title);
+		writeTextFrame(frames, "TRCK", track + "/" + trackCount);
+
+		int size = frames.size();
+
+		ByteArrayOutputStream tag = new ByteArrayOutputStream(size + 10);
+		tag.write(new byte[] { 'I', 'D', '3', 3, 0, 0 });
+
+		/* Tag size, excluding this header, as a "syncsafe" integer. */
+		tag.write((size >>> 21) & 0x7f);
+		tag.write((size >>> 14) & 0x7f);
+		tag.write((size >>> 7) & 0x7f);
+		tag.write(size & 0x7f);
+
+		frames.writeTo(tag);
+
+		return tag.toByteArray();
+	}
+
+	private static byte[] buildArtwork(int seed) throws IOException
+	{
+		BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = image.createGraphics();
+		/* A different hue per album, so that no two covers are the same. */
+		Color color = new Color(Color.HSBtoRGB((seed % 360) / 360f, 0.6f, 0.8f));
+		g.setPaint(new GradientPaint(0, 0, color, 300, 300, Color.DARK_GRAY));
+		g.fillRect(0, 0, 300, 300);
+		g.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	private static void writeFile(File file, byte[]... parts) throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			for (byte[] part : parts)
+				out.write(part);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static File makeDirectory(File parent, String name) throws IOException
+	{
+		File dir = new File(parent, name);
+		if (dir.isDirectory() == false && dir.mkdirs() == false)
+			throw new IOException("Cannot create " + dir);
+
+		return dir;
+	}
+
+	/**
+	 * Every fifth artist is named "The ...", as many real ones are.
+	 */
+	static String getArtistName(int artist)
+	{
+		String name = String.format("Artist %05d", artist);
+		return (artist % 5 == 0) ? "The " + name : name;
+	}
+
+	/**
+	 * @return Number of songs written.
+	 */
+	public int generate(int artists, int albumsPerArtist, int songsPerAlbum)
+		throws IOException
+	{
+		int songs = 0;
+
+		for (int i = 0; i < artists; i++)
+		{
+			String artist = getArtistName(i);
+			File artistDir = makeDirectory(mRoot, artist);
+
+			for (int j = 0; j < albumsPerArtist; j++)
+			{
+				String album = String.format("Album %05d-%02d", i, j);
+				File albumDir = makeDirectory(artistDir, album);
+
+				writeFile(new File(albumDir, "folder.jpg"), buildArtwork(i * albumsPerArtist + j));
+
+				for (int k = 1; k <= songsPerAlbum; k++)
+				{
+					String title = String.format("Song %02d of %s", k, album);
+					byte[] tag = buildTag(artist, album, title, k, songsPerAlbum);
+
+					writeFile(new File(albumDir, String.format("%02d - %s.mp3", k, title)),
+						tag, mAudio);
+					songs++;
+				}
+			}
+		}
+
+		return songs;
+	}
+
+	private static int intArgument(String[] args, int index, int defaultValue)
+	{
+		if (args.length > index)
+			return Integer.parseInt(args[index]);
+		else
+			return defaultValue;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: LibraryGenerator directory [artists] " +
+				"[albums-per-artist] [songs-per-album] [frames-per-song]");
+			System.exit(1);
+		}
+
+		File root = new File(args[0]);
+		int artists = intArgument(args, 1, 100);
+		int albumsPerArtist = intArgument(args, 2, 5);
+		int songsPerAlbum = intArgument(args, 3, 10);
+		int frames = intArgument(args, 4, DEFAULT_FRAMES);
+
+		long start = System.currentTimeMillis();
+
+		LibraryGenerator generator = new LibraryGenerator(root, frames);
+		int songs = generator.generate(artists, albumsPerArtist, songsPerAlbum);
+
+		System.out.println("Wrote " + songs + " songs to " + root + " in " +
+			(System.currentTimeMillis() - start) + " ms");
+	}
+}
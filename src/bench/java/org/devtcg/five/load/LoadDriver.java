@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.devtcg.five.meta.MetaSyncAdapter;
+import org.devtcg.five.meta.data.Protos;
+import org.devtcg.five.util.HttpUtils;
+import org.devtcg.five.util.LongArrayList;
+
+/**
+ * Drives a running server with simulated clients, each on its own thread
+ * and connection, then reports throughput and latency percentiles per
+ * request type. Run manually:
+ *
+ * <pre>
+ * java -cp ... org.devtcg.five.load.LoadDriver host:port [clients] [seconds] [password]
+ * </pre>
+ *
+ * Each client repeatedly runs a sync session as the phone client would:
+ * check the server version, sync the feeds (all at once or one by one, at
+ * random, and from scratch only the first time), then fetch album artwork
+ * and play a few songs, one of them from the middle as if seeking.
+ */
+public class LoadDriver
+{
+	private static final String USER = "fiveuser";
+
+	private static final int SONGS_PER_SESSION = 2;
+	private static final int IMAGES_PER_SESSION = 3;
+
+	private final String mBaseUrl;
+	private final String mAuthorization;
+
+	/**
+	 * Latencies and sizes of the responses to one type of request, as seen
+	 * by one client.
+	 */
+	private static class Stats
+	{
+		public final LongArrayList latencies = new LongArrayList();
+		public long bytes;
+		public int errors;
+
+		public void add(Stats other)
+		{
+			for (int i = 0; i < other.latencies.size(); i++)
+				latencies.add(other.latencies.get(i));
+
+			bytes += other.bytes;
+			errors += other.errors;
+		}
+	}
+
+	private class Client extends Thread
+	{
+		private final HttpClient mClient = HttpUtils.newHttpClient();
+		private final Random mRandom;
+		private final String mClientId;
+		private final long mDeadline;
+
+		private final Map<String, Stats> mStats = new LinkedHashMap<String, Stats>();
+
+		/** Ids (and sizes) of the songs and albums synced so far. */
+		private final LongArrayList mSongs = new LongArrayList();
+		private final LongArrayList mSongSizes = new LongArrayList();
+		private final LongArrayList mAlbums = new LongArrayList();
+
+		/** Last X-Last-Modified for all feeds at once, and for each feed. */
+		private long mAllFeedsModified;
+		private final long[] mFeedModified = new long[MetaSyncAdapter.FEED_NAMES.length];
+
+		public Client(int n, long deadline)
+		{
+			super("LoadDriver-" + n);
+			mRandom = new Random(n);
+			mClientId = "load-" + n;
+			mDeadline = deadline;
+		}
+
+		private Stats getStats(String name)
+		{
+			Stats stats = mStats.get(name);
+			if (stats == null)
+			{
+				stats = new Stats();
+				mStats.put(name, stats);
+			}
+			return stats;
+		}
+
+		/**
+		 * @return The response body, or null if the request failed.
+		 */
+		private byte[] get(String name, String path, long modifiedSince, String range,
+			long[] lastModified)
+		{
+			Stats stats = getStats(name);
+
+			HttpGet request = new HttpGet(mBaseUrl + path);
+			request.setHeader("Authorization", mAuthorization);
+			request.setHeader("X-Five-Client-Id", mClientId);
+			if (modifiedSince >= 0)
+				request.setHeader("X-Modified-Since", String.valueOf(modifiedSince));
+			if (range != null)
+				request.setHeader("Range", range);
+
+			long start = System.nanoTime();
+			try {
+				HttpResponse response = mClient.execute(request);
+				byte[] body = readEntity(response.getEntity());
+				stats.latencies.add(System.nanoTime() - start);
+				stats.bytes += body.length;
+
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200 && status != 206)
+				{
+					stats.errors++;
+					return null;
+				}
+
+				if (lastModified != null)
+				{
+					Header header = response.getLastHeader("X-Last-Modified");
+					if (header != null)
+						lastModified[0] = Long.parseLong(header.getValue());
+				}
+
+				return body;
+			} catch (IOException e) {
+				request.abort();
+				stats.latencies.add(System.nanoTime() - start);
+				stats.errors++;
+				return null;
+			}
+		}
+
+		private byte[] readEntity(HttpEntity entity) throws IOException
+		{
+			if (entity == null)
+				return new byte[0];
+
+			InputStream in = entity.getContent();
+			try {
+				byte[] buf = new byte[8192];
+				int length = 0;
+				int n;
+				while ((n = in.read(buf, length, buf.length - length)) >= 0)
+				{
+					length += n;
+					if (length == buf.length)
+						buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				return Arrays.copyOf(buf, length);
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Collect the ids of new songs and albums from one feed's deletes
+		 * and entries. Deletes are ignored; the odd 404 for a deleted song
+		 * is harmless here.
+		 */
+		private void readFeed(ByteBuffer buf) throws IOException
+		{
+			int deletes = buf.getInt();
+			buf.position(buf.position() + deletes * 8);
+
+			int entries = buf.getInt();
+			for (int i = 0; i < entries; i++)
+			{
+				byte[] entry = new byte[buf.getInt()];
+				buf.get(entry);
+
+				Protos.Record record = Protos.Record.parseFrom(entry);
+				if (record.hasSong())
+				{
+					mSongs.add(record.getSong().getId());
+					mSongSizes.add(record.getSong().getFilesize());
+				}
+				else if (record.hasAlbum())
+					mAlbums.add(record.getAlbum().getId());
+			}
+		}
+
+		private void syncAllFeeds() throws IOException
+		{
+			long[] lastModified = new long[] { mAllFeedsModified };
+			byte[] body = get("feeds/all", "/feeds/all", mAllFeedsModified, null, lastModified);
+			if (body == null)
+				return;
+
+			ByteBuffer buf = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+			int sections = buf.getInt();
+			for (int i = 0; i < sections; i++)
+			{
+				/* Skip the feed name and its own high-water mark. */
+				int nameLength = buf.getInt();
+				buf.position(buf.position() + nameLength + 8);
+				readFeed(buf);
+			}
+
+			mAllFeedsModified = lastModified[0];
+		}
+
+		private void syncEachFeed() throws IOException
+		{
+			String[] names = MetaSyncAdapter.FEED_NAMES;
+			for (int i = 0; i < names.length; i++)
+			{
+				long[] lastModified = new long[] { mFeedModified[i] };
+				byte[] body = get("feeds/" + names[i], "/feeds/" + names[i], mFeedModified[i],
+					null, lastModified);
+				if (body == null)
+					continue;
+
+				readFeed(ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN));
+
+				/* An empty response leaves the time at 0; keep ours. */
+				if (lastModified[0] > mFeedModified[i])
+					mFeedModified[i] = lastModified[0];
+			}
+		}
+
+		private long pick(LongArrayList ids)
+		{
+			return ids.get(mRandom.nextInt(ids.size()));
+		}
+
+		private void playSong(boolean seek)
+		{
+			int i = mRandom.nextInt(mSongs.size());
+			String path = "/songs/" + mSongs.get(i);
+
+			if (seek == false)
+				get("songs", path, -1, null, null);
+			else
+				get("songs (range)", path, -1, "bytes=" + (mSongSizes.get(i) / 2) + "-", null);
+		}
+
+		private void runSession() throws IOException
+		{
+			get("info", "/info", -1, null, null);
+
+			if (mRandom.nextBoolean())
+				syncAllFeeds();
+			else
+				syncEachFeed();
+
+			if (mAlbums.isEmpty() == false)
+			{
+				for (int i = 0; i < IMAGES_PER_SESSION; i++)
+					get("image", "/image/albums/64x64/" + pick(mAlbums), -1, null, null);
+			}
+
+			if (mSongs.isEmpty() == false)
+			{
+				for (int i = 0; i < SONGS_PER_SESSION; i++)
+					playSong(i > 0);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				while (System.currentTimeMillis() < mDeadline)
+					runSession();
+			} catch (IOException e) {
+				System.err.println(getName() + ": " + e);
+			} finally {
+				mClient.getConnectionManager().shutdown();
+			}
+		}
+
+		public Map<String, Stats> getStats()
+		{
+			return mStats;
+		}
+	}
+
+	public LoadDriver(String hostAndPort, String password)
+	{
+		mBaseUrl = "http://" + hostAndPort;
+
+		try {
+			mAuthorization = "Basic " + base64((USER + ":" + password).getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final char[] BASE64_ALPHABET =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static String base64(byte[] data)
+	{
+		StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+
+		for (int i = 0; i < data.length; i += 3)
+		{
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length)
+				b |= (data[i + 1] & 0xff) << 8;
+			if (i + 2 < data.length)
+				b |= data[i + 2] & 0xff;
+
+			out.append(BASE64_ALPHABET[(b >>> 18) & 0x3f]);
+			out.append(BASE64_ALPHABET[(b >>> 12) & 0x3f]);
+			out.append(i + 1 < data.length ? BASE64_ALPHABET[(b >>> 6) & 0x3f] : '=');
+			out.append(i + 2 < data.length ? BASE64_ALPHABET[b & 0x3f] : '=');
+		}
+
+		return out.toString();
+	}
+
+	private static double percentileMillis(long[] sorted, double percentile)
+	{
+		int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1000000.0;
+	}
+
+	private static void report(Map<String, Stats> totals, long elapsedMillis)
+	{
+		double seconds = elapsedMillis / 1000.0;
+
+		System.out.println(String.format("%-22s %8s %6s %9s %9s %8s %8s %8s %8s %8s",
+			"request", "count", "errors", "req/s", "KB/s", "p50 ms", "p90 ms", "p99 ms",
+			"p99.9 ms", "max ms"));
+
+		for (Map.Entry<String, Stats> entry : totals.entrySet())
+		{
+			Stats stats = entry.getValue();
+			long[] sorted = stats.latencies.toArray();
+			if (sorted.length == 0)
+				continue;
+
+			Arrays.sort(sorted);
+
+			System.out.println(String.format("%-22s %8d %6d %9.1f %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f",
+				entry.getKey(), sorted.length, stats.errors, sorted.length / seconds,
+				stats.bytes / 1024.0 / seconds,
+				percentileMillis(sorted, 50), percentileMillis(sorted, 90),
+				percentileMillis(sorted, 99), percentileMillis(sorted, 99.9),
+				sorted[sorted.length - 1] / 1000000.0));
+		}
+	}
+
+	public void run(int clients, int seconds) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		long deadline = start + seconds * 1000L;
+
+		ArrayList<Client> threads = new ArrayList<Client>(clients);
+		for (int i = 0; i < clients; i++)
+		{
+			Client client = new Client(i, deadline);
+			threads.add(client);
+			client.start();
+		}
+
+		Map<String, Stats> totals = new LinkedHashMap<String, Stats>();
+		Stats all = new Stats();
+
+		for (Client client : threads)
+		{
+			client.join();
+
+			for (Map.Entry<String, Stats> entry : client.getStats().entrySet())
+			{
+				Stats total = totals.get(entry.getKey());
+				if (total == null)
+				{
+					total = new Stats();
+					totals.put(entry.getKey(), total);
+				}
+				total.add(entry.getValue());
+				all.add(entry.getValue());
+			}
+		}
+
+		totals.put("all", all);
+
+		report(totals, System.currentTimeMillis() - start);
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: LoadDriver host:port [clients] [seconds] [password]");
+			System.exit(1);
+		}
+
+		int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+		String password = (args.length > 3) ? args[3] : "";
+
+		new LoadDriver(args[0], password).run(clients, seconds);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.persistence.DatabaseUtils;
+import org.devtcg.five.persistence.InsertHelper;
+import org.devtcg.five.util.StringUtils;
+
+/**
+ * Fills a provider with a made up library for benchmarks. Rows are written
+ * directly, bypassing the DAOs' sync clock, so that a library of a million
+ * songs takes seconds rather than minutes to build. Each table's rows get
+ * sync times 1, 2, 3, ... in insertion order, so that the newest
+ * <code>n</code> songs are those with a sync time greater than
+ * <code>songs - n</code>.
+ */
+public class SyntheticLibrary
+{
+	public static final int SONGS_PER_ALBUM = 10;
+	public static final int ALBUMS_PER_ARTIST = 5;
+
+	private SyntheticLibrary() {}
+
+	public static void populate(MetaProvider provider, int songs) throws SQLException
+	{
+		Connection conn = provider.getConnection().getWrappedConnection();
+
+		int albums = (songs + SONGS_PER_ALBUM - 1) / SONGS_PER_ALBUM;
+		int artists = (albums + ALBUMS_PER_ARTIST - 1) / ALBUMS_PER_ARTIST;
+
+		DatabaseUtils.beginTransaction(conn);
+		try {
+			InsertHelper artistHelper = new InsertHelper(conn, provider.getArtistDAO().getTable());
+			for (int i = 0; i < artists; i++)
+			{
+				String name = "Artist " + i;
+
+				artistHelper.prepareForInsert();
+				artistHelper.bind(ArtistDAO.Columns._ID, i);
+				artistHelper.bind(ArtistDAO.Columns._SYNC_TIME, (long)i + 1);
+				artistHelper.bind(ArtistDAO.Columns.NAME, name);
+				artistHelper.bind(ArtistDAO.Columns.NAME_MATCH, StringUtils.getNameMatch(name));
+				artistHelper.bind(ArtistDAO.Columns.DISCOVERY_DATE, (long)i + 1);
+				artistHelper.execute();
+			}
+			artistHelper.close();
+
+			InsertHelper albumHelper = new InsertHelper(conn, provider.getAlbumDAO().getTable());
+			for (int i = 0; i < albums; i++)
+			{
+				String name = "Album " + i;
+
+				albumHelper.prepareForInsert();
+				albumHelper.bind(AlbumDAO.Columns._ID, i);
+				albumHelper.bind(AlbumDAO.Columns._SYNC_TIME, (long)i + 1);
+				albumHelper.bind(AlbumDAO.Columns.ARTIST_ID, i / ALBUMS_PER_ARTIST);
+				albumHelper.bind(AlbumDAO.Columns.NAME, name);
+				albumHelper.bind(AlbumDAO.Columns.NAME_MATCH, StringUtils.getNameMatch(name));
+				albumHelper.bind(AlbumDAO.Columns.DISCOVERY_DATE, (long)i + 1);
+				albumHelper.execute();
+			}
+			albumHelper.close();
+
+			InsertHelper songHelper = new InsertHelper(conn, provider.getSongDAO().getTable());
+			for (int i = 0; i < songs; i++)
+			{
+				int album = i / SONGS_PER_ALBUM;
+
+				songHelper.prepareForInsert();
+				songHelper.bind(SongDAO.Columns._ID, i);
+				songHelper.bind(SongDAO.Columns._SYNC_TIME, (long)i + 1);
+				songHelper.bind(SongDAO.Columns.FILENAME, "/music/" + album + "/" + i + ".mp3");
+				songHelper.bind(SongDAO.Columns.MIME_TYPE, "audio/mpeg");
+				songHelper.bind(SongDAO.Columns.MTIME, (long)i + 1);
+				songHelper.bind(SongDAO.Columns.BITRATE, 192);
+				songHelper.bind(SongDAO.Columns.FILESIZE, 5000000L);
+				songHelper.bind(SongDAO.Columns.LENGTH, 210);
+				songHelper.bind(SongDAO.Columns.TITLE, "Song " + i);
+				songHelper.bind(SongDAO.Columns.TRACK, i % SONGS_PER_ALBUM + 1);
+				songHelper.bind(SongDAO.Columns.ARTIST_ID, album / ALBUMS_PER_ARTIST);
+				songHelper.bind(SongDAO.Columns.ALBUM_ID, album);
+				songHelper.execute();
+			}
+			songHelper.close();
+
+			DatabaseUtils.setTransactionSuccessful(conn);
+		} finally {
+			DatabaseUtils.endTransaction(conn);
+		}
+	}
+}
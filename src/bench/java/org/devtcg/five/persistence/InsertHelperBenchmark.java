@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.dao.SyntheticLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Row throughput of {@link InsertHelper} against the songs table, the
+ * widest the crawler writes. Inserts add new songs and replaces rewrite
+ * the songs of a 10k song library in turn, as a rescan of changed files
+ * would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InsertHelperBenchmark
+{
+	private static final int LIBRARY_SIZE = 10000;
+
+	private MetaProvider mProvider;
+	private InsertHelper mHelper;
+	private String mTable;
+
+	private long mNextId;
+	private long mNextReplaceId;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		SyntheticLibrary.populate(mProvider, LIBRARY_SIZE);
+
+		Connection conn = mProvider.getConnection().getWrappedConnection();
+		mTable = mProvider.getSongDAO().getTable();
+		mHelper = new InsertHelper(conn, mTable);
+		mNextId = LIBRARY_SIZE;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException
+	{
+		mHelper.close();
+		mProvider.close();
+	}
+
+	private void bindSong(long id) throws SQLException
+	{
+		mHelper.bind("_sync_time", id + 1);
+		mHelper.bind("filename", "/music/bench/" + id + ".mp3");
+		mHelper.bind("mime_type", "audio/mpeg");
+		mHelper.bind("mtime", id + 1);
+		mHelper.bind("bitrate", 192);
+		mHelper.bind("filesize", 5000000L);
+		mHelper.bind("length", 210);
+		mHelper.bind("title", "Song " + id);
+		mHelper.bind("track", 1);
+		mHelper.bind("artist_id", 0);
+		mHelper.bind("album_id", 0);
+		mHelper.bind("_id", id);
+	}
+
+	@Benchmark
+	public void insert() throws SQLException
+	{
+		mHelper.prepareForInsert();
+		bindSong(mNextId++);
+		mHelper.execute();
+	}
+
+	@Benchmark
+	public void replace() throws SQLException
+	{
+		mHelper.prepareForReplace();
+		bindSong(mNextReplaceId);
+		mHelper.execute();
+
+		mNextReplaceId = (mNextReplaceId + 1) % LIBRARY_SIZE;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.FeedQuery;
+import org.devtcg.five.content.SyncableEntryDAO;
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.MetaSyncAdapter;
+import org.devtcg.five.meta.dao.SyntheticLibrary;
+import org.devtcg.five.persistence.DatabaseUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing a feed response body with {@link HttpServer.EntryDAOEntity}, which
+ * encodes each row straight from its columns with writeEntryTo (through
+ * RecordEncoder for the tables that send the most rows). The rows are
+ * collected once up front, so only the encoding is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FeedSerializationBenchmark
+{
+	@Param({ "songs", "albums", "artists" })
+	public String feed;
+
+	/** All optional fields, or none (an empty field mask). */
+	@Param({ "all", "none" })
+	public String fields;
+
+	private MetaProvider mProvider;
+	private RetainedProvider mClientDiffs;
+	private AbstractTableMerger mMerger;
+	private FeedQuery mQuery;
+	private int mCount;
+
+	/**
+	 * The entity closes its provider once written, which would discard the
+	 * rows we want to write again on the next invocation.
+	 */
+	private static class RetainedProvider extends MetaProvider
+	{
+		public RetainedProvider()
+		{
+			super(null);
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		public void release() throws SQLException
+		{
+			super.close();
+		}
+	}
+
+	/** Discards the response body, but keeps the JIT from doing the same. */
+	private static class BlackholeOutputStream extends OutputStream
+	{
+		private final Blackhole mBlackhole;
+
+		public BlackholeOutputStream(Blackhole blackhole)
+		{
+			mBlackhole = blackhole;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			mBlackhole.consume(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			mBlackhole.consume(b);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		SyntheticLibrary.populate(mProvider, 10000);
+
+		mMerger = new MetaSyncAdapter(mProvider).getMerger(feed);
+		mQuery = FeedQuery.parse(fields.equals("none") ? FeedQuery.FIELDS + "=" : null);
+
+		mClientDiffs = new RetainedProvider();
+		mMerger.findLocalChanges(mClientDiffs, 0, Long.MAX_VALUE, mQuery);
+
+		mCount = DatabaseUtils.integerForQuery(mClientDiffs.getConnection().getWrappedConnection(),
+			0, "SELECT COUNT(*) FROM " + mMerger.getTableName(), (String[])null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException
+	{
+		mClientDiffs.release();
+		mProvider.close();
+	}
+
+	@Benchmark
+	public void writeFeed(Blackhole blackhole) throws SQLException, IOException
+	{
+		SyncableEntryDAO entryDAO = mMerger.getEntryDAO(mClientDiffs, mQuery);
+		SyncableEntryDAO deletedEntryDAO = mMerger.getDeletedEntryDAO(mClientDiffs);
+
+		HttpServer.EntryDAOEntity entity = new HttpServer.EntryDAOEntity(mClientDiffs,
+			entryDAO, mCount, deletedEntryDAO, 0);
+		entity.writeTo(new BlackholeOutputStream(blackhole));
+	}
+}
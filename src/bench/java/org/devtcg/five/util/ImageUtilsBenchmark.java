@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling album artwork to the sizes clients request, from the JPEG bytes
+ * stored by ImageDAO through to the re-encoded thumbnail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Djava.awt.headless=true" })
+public class ImageUtilsBenchmark
+{
+	/** Typical Last.fm artwork is 300 pixels on a side, some scans are larger. */
+	@Param({ "300", "1000" })
+	public int sourceSize;
+
+	@Param({ "64", "128" })
+	public int targetSize;
+
+	private byte[] mImage;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		/* Not square, so that the crop is exercised as well. */
+		BufferedImage image = new BufferedImage(sourceSize, sourceSize * 9 / 10,
+			BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, sourceSize, sourceSize, Color.BLUE));
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		mImage = out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] getScaledInstance()
+	{
+		return ImageUtils.getScaledInstance(mImage, targetSize, targetSize);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package org.devtcg.five.util;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and walking a playlist-sized list of song ids with a
+ * LinkedList&lt;Long&gt; versus a LongArrayList. The difference is mostly in
+ * allocation, so run with the GC profiler:
+ *
+ * <pre>
+ * ant bench -Dbench.args="-prof gc LongArrayListBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LongArrayListBenchmark
+{
+	@Param({ "100", "5000" })
+	public int entries;
+
+	@Benchmark
+	public long linkedList()
+	{
+		List<Long> songs = new LinkedList<Long>();
+
+		/* Ids large enough to defeat the Long.valueOf cache, as real ones are. */
+		for (int i = 0; i < entries; i++)
+			songs.add(1000L + i);
+
+		long sum = 0;
+		for (long id: songs)
+			sum += id;
+
+		return sum;
+	}
+
+	@Benchmark
+	public long longArrayList()
+	{
+		LongArrayList songs = new LongArrayList();
+
+		for (int i = 0; i < entries; i++)
+			songs.add(1000L + i);
+
+		long sum = 0;
+		long[] ids = songs.getArray();
+		for (int i = 0; i < songs.size(); i++)
+			sum += ids[i];
+
+		return sum;
+	}
+}
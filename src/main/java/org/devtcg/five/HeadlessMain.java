@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.devtcg.five.persistence.Configuration;
+import org.devtcg.five.util.IOUtils;
+
+/**
+ * Runs the server as a daemon, without loading any of SWT. Settings are
+ * taken from the command line, or from a properties file using the same
+ * names:
+ * <pre>
+ * five-server --headless [--config=FILE] [--library_path=DIR]
+ *     [--password_file=FILE] [--port=PORT] [--use_upnp=true|false]
+ *     [--rescan_interval=MSEC] [--startup_delay=MSEC]
+ * </pre>
+ * A library path and password are required the first time, in place of the
+ * setup wizard. Anything given later replaces what is stored.
+ * <p>
+ * The password should be given with <code>password_file</code>, naming a
+ * file whose first line is the password, or as <code>password</code> in
+ * the config file, with either file readable only by the server's user.
+ * <code>--password=SECRET</code> is also accepted, but leaves the password
+ * visible to every user of the machine through ps and /proc.
+ */
+public class HeadlessMain
+{
+	private static final Log LOG = LogFactory.getLog(HeadlessMain.class);
+
+	public static final String OPTION = "--headless";
+
+	private static final String CONFIG = "config";
+	private static final String STARTUP_DELAY = "startup_delay";
+	private static final String PASSWORD_FILE = "password_file";
+
+	/**
+	 * Default time to hold off the first scan and UPnP setup so that the
+	 * server can answer its first clients with the machine to itself.
+	 */
+	private static final long DEFAULT_STARTUP_DELAY = 10000;
+
+	private static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+		Configuration.Keys.LIBRARY_PATH, Configuration.Keys.PASSWORD, PASSWORD_FILE,
+		Configuration.Keys.PORT, Configuration.Keys.USE_UPNP, Configuration.Keys.RESCAN_INTERVAL,
+		STARTUP_DELAY));
+
+	public static void main(String[] args) throws SQLException
+	{
+		long startupDelay = DEFAULT_STARTUP_DELAY;
+
+		try {
+			Map<String, String> options = parseOptions(args);
+			applyOptions(options);
+
+			if (options.containsKey(STARTUP_DELAY))
+				startupDelay = parseLong(STARTUP_DELAY, options.get(STARTUP_DELAY));
+		} catch (IllegalArgumentException e) {
+			System.err.println("five-server: " + e.getMessage());
+			System.err.println("Usage: five-server " + OPTION + " [--config=FILE] [--NAME=VALUE...]");
+			System.err.println("  where NAME is one of " + KEYS);
+			System.exit(2);
+			return;
+		}
+
+		try {
+			Main.startServices(startupDelay);
+
+			if (LOG.isInfoEnabled())
+			{
+				LOG.info("Serving on port " + Main.mServer.getLocalPort() + ", " +
+					ManagementFactory.getRuntimeMXBean().getUptime() + " msec after startup");
+			}
+
+			Main.mServer.join();
+		} catch (InterruptedException e) {
+			/* Shutting down. */
+		} finally {
+			Main.stopServices();
+		}
+	}
+
+	/**
+	 * @return Value of each option, with those on the command line taking
+	 *   precedence over the config file. A password file is read in place,
+	 *   and its contents returned as the password.
+	 */
+	/* package */ static Map<String, String> parseOptions(String[] args)
+	{
+		HashMap<String, String> options = new HashMap<String, String>();
+
+		for (String arg : args)
+		{
+			if (arg.equals(OPTION))
+				continue;
+
+			int equals = arg.indexOf('=');
+			if (arg.startsWith("--") == false || equals < 0)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+
+			String name = arg.substring(2, equals);
+			if (name.equals(CONFIG) == false && KEYS.contains(name) == false)
+				throw new IllegalArgumentException("Unknown option: " + name);
+
+			putOption(options, name, arg.substring(equals + 1));
+		}
+
+		String configFile = options.remove(CONFIG);
+		if (configFile != null)
+		{
+			Properties config = loadProperties(new File(configFile));
+
+			for (String name : config.stringPropertyNames())
+			{
+				if (KEYS.contains(name) == false)
+				{
+					throw new IllegalArgumentException("Unknown option in " +
+						configFile + ": " + name);
+				}
+
+				String key = name.equals(PASSWORD_FILE) ? Configuration.Keys.PASSWORD : name;
+				if (options.containsKey(key) == false)
+					putOption(options, name, config.getProperty(name).trim());
+			}
+		}
+
+		return options;
+	}
+
+	private static void putOption(Map<String, String> options, String name, String value)
+	{
+		if (name.equals(PASSWORD_FILE))
+			options.put(Configuration.Keys.PASSWORD, readPassword(new File(value)));
+		else
+			options.put(name, value);
+	}
+
+	/**
+	 * @return First line of the file, without its line terminator.
+	 */
+	private static String readPassword(File file)
+	{
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+
+			String password = reader.readLine();
+			return (password != null) ? password : "";
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can't read " + file + ": " + e.getMessage());
+		} finally {
+			IOUtils.closeQuietlyNullSafe(reader);
+		}
+	}
+
+	private static Properties loadProperties(File file)
+	{
+		Properties properties = new Properties();
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can't read " + file + ": " + e.getMessage());
+		} finally {
+			IOUtils.closeQuietlyNullSafe(in);
+		}
+
+		return properties;
+	}
+
+	private static long parseLong(String name, String value)
+	{
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number: " + value);
+		}
+	}
+
+	private static boolean parseBoolean(String name, String value)
+	{
+		if (value.equalsIgnoreCase("true"))
+			return true;
+		else if (value.equalsIgnoreCase("false"))
+			return false;
+		else
+			throw new IllegalArgumentException(name + " must be true or false: " + value);
+	}
+
+	private static String parseLibraryPath(String value)
+	{
+		File path = new File(value);
+		if (path.isDirectory() == false)
+			throw new IllegalArgumentException("Not a directory: " + value);
+
+		return path.getAbsolutePath();
+	}
+
+	/**
+	 * Stores the settings given. Every value is checked before any is
+	 * stored, so a mistake leaves the configuration as it was.
+	 */
+	private static void applyOptions(Map<String, String> options) throws SQLException
+	{
+		Configuration config = Configuration.getInstance();
+
+		String libraryPath = options.get(Configuration.Keys.LIBRARY_PATH);
+		if (libraryPath != null)
+			libraryPath = parseLibraryPath(libraryPath);
+
+		String password = options.get(Configuration.Keys.PASSWORD);
+		if (password != null && password.length() == 0)
+			throw new IllegalArgumentException("password must not be empty");
+
+		String useUPnPValue = options.get(Configuration.Keys.USE_UPNP);
+		Boolean useUPnP = (useUPnPValue == null) ? null :
+			parseBoolean(Configuration.Keys.USE_UPNP, useUPnPValue);
+
+		String portValue = options.get(Configuration.Keys.PORT);
+		Long port = (portValue == null) ? null :
+			parseLong(Configuration.Keys.PORT, portValue);
+		if (port != null && (port <= 0 || port > 65535))
+			throw new IllegalArgumentException("Invalid port: " + portValue);
+
+		String rescanIntervalValue = options.get(Configuration.Keys.RESCAN_INTERVAL);
+		Long rescanInterval = (rescanIntervalValue == null) ? null :
+			parseLong(Configuration.Keys.RESCAN_INTERVAL, rescanIntervalValue);
+
+		if (config.isFirstTime())
+		{
+			if (libraryPath == null || password == null)
+			{
+				throw new IllegalArgumentException(Configuration.Keys.LIBRARY_PATH + " and " +
+					Configuration.Keys.PASSWORD + " are required on the first run");
+			}
+
+			config.initFirstTime(libraryPath, password, useUPnP == null || useUPnP);
+		}
+		else
+		{
+			List<String> paths = Collections.singletonList(libraryPath);
+			if (libraryPath != null && config.getLibraryPaths().equals(paths) == false)
+				config.setLibraryPaths(paths);
+
+			if (password != null && Configuration.sha1Hash(password).equals(
+					config.getHashedPassword()) == false)
+				config.setPassword(password);
+
+			if (useUPnP != null && useUPnP != config.useUPnP())
+				config.setUseUPnP(useUPnP);
+		}
+
+		if (port != null && port != config.getServerPort())
+			config.setServerPort(port.intValue());
+
+		if (rescanInterval != null && rescanInterval != config.getRescanInterval())
+			config.setRescanInterval(rescanInterval);
+	}
+}
@@ -14,16 +14,22 @@
 
 package org.devtcg.five;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.devtcg.five.meta.FileCrawler;
+import org.devtcg.five.meta.MetaFetcher;
+import org.devtcg.five.meta.MetaProvider;
 import org.devtcg.five.persistence.Configuration;
+import org.devtcg.five.server.AccessLog;
 import org.devtcg.five.server.HttpServer;
 import org.devtcg.five.server.UPnPService;
 import org.devtcg.five.ui.Docklet;
 import org.devtcg.five.ui.Setup;
+import org.devtcg.five.util.AbstractTimer;
 import org.eclipse.swt.SWTError;
 import org.eclipse.swt.widgets.Display;
 
@@ -37,20 +43,25 @@ public class Main {
 	public static FileCrawler mCrawler;
 	public static Docklet mDocklet;
 
+	/**
+	 * Time allowed for responses and the scan in progress to finish when
+	 * shutting down, before they are cut off.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
+	private static boolean sStopped;
+
 	public static void main(String[] args) throws SQLException
 	{
+		if (args.length > 0 && args[0].equals(HeadlessMain.OPTION))
+		{
+			HeadlessMain.main(args);
+			return;
+		}
+
 		Configuration config = Configuration.getInstance();
 
-		try {
-			mDisplay = new Display();
-			Display.setAppName("five");
-		} catch (SWTError e) {
-			if (LOG.isDebugEnabled())
-				LOG.debug("Fatal display exception", e);
-
-			if (LOG.isWarnEnabled())
-				LOG.warn("Failed to initialize display, falling back to text-based UI.");
-		}
+		mDisplay = DisplayFactory.newDisplay();
 
 		try {
 			if (config.isFirstTime())
@@ -67,36 +78,162 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Kept out of Main itself, as verifying a method which catches SWTError
+	 * would load SWT even when running headless.
+	 */
+	private static class DisplayFactory
+	{
+		public static Display newDisplay()
+		{
+			try {
+				Display display = new Display();
+				Display.setAppName("five");
+				return display;
+			} catch (SWTError e) {
+				if (LOG.isDebugEnabled())
+					LOG.debug("Fatal display exception", e);
+
+				if (LOG.isWarnEnabled())
+					LOG.warn("Failed to initialize display, falling back to text-based UI.");
+
+				return null;
+			}
+		}
+	}
+
 	public static void startServices()
+	{
+		startServices(0);
+	}
+
+	/**
+	 * @param backgroundDelay Time in milliseconds to hold off the first scan
+	 *   and UPnP setup, which would otherwise compete with the first clients
+	 *   for the disk and the network.
+	 */
+	public static void startServices(long backgroundDelay)
 	{
 		Configuration config = Configuration.getInstance();
 
 		try {
+			AccessLog accessLog = new AccessLog(new File(Configuration.getStoragePath(), "logs"));
+			accessLog.start();
+
 			mServer = new HttpServer(config.getServerPort());
+			mServer.setAccessLog(accessLog);
 			mServer.start();
 
-			if (config.useUPnP())
-				UPnPService.getInstance().enableUPnP();
+			/* Lets a SIGTERM shut down as cleanly as quitting does. */
+			Runtime.getRuntime().addShutdownHook(new Thread("ShutdownHook") {
+				public void run() {
+					stopServices();
+				}
+			});
+
+			config.addListener(mConfigurationListener);
+
+			MetaFetcher.getInstance().start();
 
 			mCrawler = FileCrawler.getInstance();
 			mCrawler.setListener(mCrawlerListener);
-			mCrawler.startScan();
-			mCrawler.updateRescanInterval();
+
+			if (backgroundDelay <= 0)
+				mStartBackgroundServices.run();
+			else
+			{
+				if (LOG.isInfoEnabled())
+					LOG.info("Delaying first scan by " + backgroundDelay + " msec");
+
+				AbstractTimer.newInstance("StartupTimer", mDisplay)
+					.schedule(mStartBackgroundServices, backgroundDelay);
+			}
 		} catch (Exception e) {
 			/* TODO */
 			throw new RuntimeException(e);
 		}
 	}
 
-	private static void stopServices()
+	private static final Runnable mStartBackgroundServices = new Runnable()
 	{
+		public void run()
+		{
+			try {
+				if (Configuration.getInstance().useUPnP())
+					UPnPService.getInstance().enableUPnP();
+
+				mCrawler.startScan();
+				mCrawler.updateRescanInterval();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	/**
+	 * Stops every service, letting work in progress finish (within
+	 * SHUTDOWN_TIMEOUT each) so that clients and the databases are left
+	 * consistent. Safe to call more than once, and from any thread.
+	 */
+	/* package */ static synchronized void stopServices()
+	{
+		if (sStopped == true)
+			return;
+
+		sStopped = true;
+
+		if (mServer != null)
+			mServer.startDraining();
+
+		/* Releases any clients still waiting on /changes. */
+		MetaProvider.getInstance().getChangeNotifier().shutdown();
+
 		if (mServer != null)
-			mServer.shutdown();
+			mServer.shutdown(SHUTDOWN_TIMEOUT);
+
+		if (mCrawler != null)
+			mCrawler.stop(SHUTDOWN_TIMEOUT);
+
+		MetaFetcher.getInstance().stop();
 
-		if (mCrawler != null && mCrawler.isActive() == true)
-			mCrawler.stopAbruptly();
+		try {
+			MetaProvider.getInstance().close();
+			Configuration.getInstance().close();
+		} catch (SQLException e) {
+			if (LOG.isErrorEnabled())
+				LOG.error("Error closing databases", e);
+		}
 	}
 
+	/**
+	 * Applies changes made to the server settings while running.
+	 */
+	private static final Configuration.Listener mConfigurationListener = new Configuration.Listener()
+	{
+		public void onConfigurationChanged(Configuration.Snapshot oldConfig,
+			Configuration.Snapshot newConfig)
+		{
+			if (oldConfig.hasChanged(newConfig, Configuration.Keys.USE_UPNP) == true)
+			{
+				if (newConfig.useUPnP() == true)
+					UPnPService.getInstance().enableUPnP();
+				else
+					UPnPService.getInstance().disableUPnP();
+			}
+
+			if (oldConfig.hasChanged(newConfig, Configuration.Keys.PORT) == true)
+			{
+				int port = newConfig.getServerPort();
+				try {
+					mServer.rebind(port);
+				} catch (IOException e) {
+					if (LOG.isWarnEnabled())
+						LOG.warn("Failed to bind to port " + port, e);
+				}
+			}
+		}
+	};
+
 	private static final FileCrawler.Listener mCrawlerListener = new FileCrawler.Listener()
 	{
 		private static final int TOOLTIP_UPDATE_INTERVAL = 1000;
@@ -107,7 +244,8 @@ public class Main {
 			if (LOG.isInfoEnabled())
 				LOG.info("File crawler finished, canceled=" + canceled);
 
-			mDocklet.setToolTipText("Five server is ready.");
+			if (mDocklet != null)
+				mDocklet.setToolTipText("Five server is ready.");
 		}
 
 		public void onProgress(int scannedSoFar)
@@ -125,6 +263,10 @@ public class Main {
 
 		private void update(int scannedSoFar)
 		{
+			/* Running headless. */
+			if (mDocklet == null)
+				return;
+
 			if (System.currentTimeMillis() - mLastUpdateTime >= TOOLTIP_UPDATE_INTERVAL)
 			{
 				mDocklet.setToolTipText("Scanning music collection (" +
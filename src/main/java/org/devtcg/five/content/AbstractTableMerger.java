@@ -14,13 +14,19 @@
 
 package org.devtcg.five.content;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.devtcg.five.content.SyncableEntryDAO;
+import org.devtcg.five.persistence.ChangeNotifier;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.LongArrayList;
 
 /**
  * This code and design is largely based on Android's AbstractTableMerger, so
@@ -33,6 +39,10 @@ public abstract class AbstractTableMerger
 	private final String mTable;
 	private final String mDeletesTable;
 
+	/** Column names of each table, in order, as needed by field masks. */
+	private static final HashMap<String, String[]> sColumnNames =
+		new HashMap<String, String[]>();
+
 	public interface SyncableColumns
 	{
 		/** Autoincrement id. */
@@ -65,6 +75,99 @@ public abstract class AbstractTableMerger
 		return mDeletesTable;
 	}
 
+	/**
+	 * @return Content type of the entries in this feed.
+	 */
+	public abstract String getContentType();
+
+	/**
+	 * @return Latest sync time of any row written to or deleted from this
+	 *         feed's table. Held in memory by the provider's
+	 *         {@link ChangeNotifier}, so after the first call for a table
+	 *         this does not touch the database.
+	 */
+	public long getHighWaterMark() throws SQLException
+	{
+		ChangeNotifier notifier = mDb.getChangeNotifier();
+
+		long mark = notifier.getSyncTime(mTable);
+		if (mDeletesTable != null)
+			mark = Math.max(mark, notifier.getSyncTime(mDeletesTable));
+
+		return mark;
+	}
+
+	/**
+	 * An optional message field and the column it is read from. When a
+	 * client leaves the field out of its field mask, <code>maskedValue</code>
+	 * is selected in place of the column.
+	 */
+	public static class OptionalColumn
+	{
+		public final String field;
+		public final String column;
+		public final String maskedValue;
+
+		public OptionalColumn(String field, String column)
+		{
+			this(field, column, "NULL");
+		}
+
+		/**
+		 * @param maskedValue SQL literal to use for NOT NULL columns.
+		 */
+		public OptionalColumn(String field, String column, String maskedValue)
+		{
+			this.field = field;
+			this.column = column;
+			this.maskedValue = maskedValue;
+		}
+	}
+
+	/**
+	 * A column of this feed's table holding the id of a row in another
+	 * feed's table.
+	 */
+	public static class Reference
+	{
+		public final String column;
+		public final String table;
+
+		public Reference(String column, String table)
+		{
+			this.column = column;
+			this.table = table;
+		}
+	}
+
+	/**
+	 * @return Rows of other feeds that the rows of this feed refer to, or
+	 *         null if there are none.
+	 */
+	public Reference[] getReferences()
+	{
+		return null;
+	}
+
+	/**
+	 * @return Optional fields of the messages in this feed, or null if they
+	 *         cannot be masked.
+	 */
+	protected OptionalColumn[] getOptionalColumns()
+	{
+		return null;
+	}
+
+	/**
+	 * @return SQL condition on the main table which selects the rows
+	 *         matching a {@link FeedQuery} predicate, or null if this feed
+	 *         does not support the predicate.
+	 */
+	protected String getPredicateSelection(String predicate, long id)
+	{
+		return null;
+	}
+
 //	public void merge(SyncableProvider serverDiffs, SyncableProvider clientDiffs)
 //		throws SQLException
 //	{
@@ -291,6 +394,67 @@ public abstract class AbstractTableMerger
 		}
 	}
 
+	private String[] getColumnNames() throws SQLException
+	{
+		synchronized (sColumnNames) {
+			String[] columns = sColumnNames.get(mTable);
+			if (columns != null)
+				return columns;
+		}
+
+		ResultSet set = DatabaseUtils.executeForResult(mDb.getConnection().getWrappedConnection(),
+				"SELECT * FROM " + mTable + " WHERE 1 = 0", (String[])null);
+
+		try {
+			ResultSetMetaData meta = set.getMetaData();
+			String[] columns = new String[meta.getColumnCount()];
+			for (int i = 0; i < columns.length; i++)
+				columns[i] = meta.getColumnName(i + 1);
+
+			synchronized (sColumnNames) {
+				sColumnNames.put(mTable, columns);
+			}
+
+			return columns;
+		} finally {
+			set.close();
+		}
+	}
+
+	/**
+	 * Builds the select list for the main table. Masked columns keep their
+	 * position, as {@link #copyRows} copies by index.
+	 */
+	private String getProjection(FeedQuery query) throws SQLException
+	{
+		OptionalColumn[] optional = getOptionalColumns();
+		if (query.hasFieldMask() == false || optional == null)
+			return "*";
+
+		StringBuilder projection = new StringBuilder();
+
+		for (String column : getColumnNames())
+		{
+			if (projection.length() > 0)
+				projection.append(", ");
+
+			String value = column;
+			for (OptionalColumn entry : optional)
+			{
+				if (entry.column.equalsIgnoreCase(column) &&
+						query.includesField(entry.field) == false)
+				{
+					value = entry.maskedValue;
+					break;
+				}
+			}
+
+			projection.append(value);
+		}
+
+		return projection.toString();
+	}
+
 	/**
 	 * Collect all local changes since the supplied last modified timestamp,
 	 * storing the rows in <code>clientDiffs</code>. Includes both deleted
@@ -299,20 +463,178 @@ public abstract class AbstractTableMerger
 	public void findLocalChanges(SyncableProvider clientDiffs, long lastModified)
 		throws SQLException
 	{
+		findLocalChanges(clientDiffs, lastModified, FeedQuery.parse(null));
+	}
+
+	/**
+	 * Like {@link #findLocalChanges(SyncableProvider, long)}, but copies only
+	 * the rows matching the query's predicates and skips reading the columns
+	 * of masked fields.
+	 * <p>
+	 * Predicates are not applied to deletes, as deleted rows no longer
+	 * carry the columns to filter on. Clients ignore deletes of rows they
+	 * never received.
+	 *
+	 * @throws IllegalArgumentException If the query has a predicate this
+	 *             feed does not support.
+	 */
+	public void findLocalChanges(SyncableProvider clientDiffs, long lastModified,
+		FeedQuery query) throws SQLException
+	{
+		findLocalChanges(clientDiffs, lastModified, Long.MAX_VALUE, query);
+	}
+
+	/**
+	 * Like {@link #findLocalChanges(SyncableProvider, long, FeedQuery)}, but
+	 * ignores rows written after <code>horizon</code>. Rows are updated in
+	 * place, so a row which is skipped may be one that a collected row
+	 * refers to; see {@link #findMissingReferences}.
+	 */
+	public void findLocalChanges(SyncableProvider clientDiffs, long lastModified,
+		long horizon, FeedQuery query) throws SQLException
+	{
+		String horizonSelection = "";
+		if (horizon != Long.MAX_VALUE)
+			horizonSelection = " AND " + SyncableColumns._SYNC_TIME + " <= " + horizon;
+
+		String selection = getSelection(lastModified, query) + horizonSelection;
+
 		if (mDeletesTable != null && lastModified > 0)
 		{
 			/* Find all local deletes the other side hasn't seen before. */
 			copyRows(clientDiffs, mDeletesTable,
 					DatabaseUtils.executeForResult(mDb.getConnection().getWrappedConnection(),
 					"SELECT * FROM " + mDeletesTable + " WHERE " + SyncableColumns._SYNC_TIME + " > " +
-							lastModified, (String[])null));
+							lastModified + horizonSelection, (String[])null));
 		}
 
 		/* Find all local inserts or updates the other side hasn't seen before. */
 		copyRows(clientDiffs, mTable,
 				DatabaseUtils.executeForResult(mDb.getConnection().getWrappedConnection(),
-				"SELECT * FROM " + mTable + " WHERE " + SyncableColumns._SYNC_TIME + " > " +
-						lastModified, (String[])null));
+				"SELECT " + getProjection(query) + " FROM " + mTable + " WHERE " +
+						selection, (String[])null));
+	}
+
+	/**
+	 * @return Ids referred to through <code>reference</code> by rows of this
+	 *         feed in <code>clientDiffs</code>, but missing from the table
+	 *         referred to in <code>clientDiffs</code>.
+	 */
+	public LongArrayList findMissingReferences(SyncableProvider clientDiffs,
+		Reference reference) throws SQLException
+	{
+		LongArrayList ids = new LongArrayList();
+
+		ResultSet set = DatabaseUtils.executeForResult(clientDiffs.getConnection().getWrappedConnection(),
+			"SELECT DISTINCT c." + reference.column + " FROM " + mTable + " c" +
+			" LEFT JOIN " + reference.table + " p ON c." + reference.column +
+				" = p." + SyncableColumns._ID +
+			" WHERE c." + reference.column + " IS NOT NULL AND p." +
+				SyncableColumns._ID + " IS NULL", (String[])null);
+		try {
+			while (set.next())
+				ids.add(set.getLong(1));
+		} finally {
+			set.close();
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @return Current sync time of a row of this feed, or -1 if there is no
+	 *         such row.
+	 */
+	public long getSyncTime(long id) throws SQLException
+	{
+		return DatabaseUtils.longForQuery(mDb.getConnection().getWrappedConnection(), -1,
+			"SELECT " + SyncableColumns._SYNC_TIME + " FROM " + mTable +
+				" WHERE " + SyncableColumns._ID + " = ?", String.valueOf(id));
+	}
+
+	/**
+	 * Copy the current version of a single row into <code>clientDiffs</code>,
+	 * whatever its sync time.
+	 */
+	public void copyRow(SyncableProvider clientDiffs, long id, FeedQuery query)
+		throws SQLException
+	{
+		copyRows(clientDiffs, mTable,
+				DatabaseUtils.executeForResult(mDb.getConnection().getWrappedConnection(),
+				"SELECT " + getProjection(query) + " FROM " + mTable + " WHERE " +
+						SyncableColumns._ID + " = ?", String.valueOf(id)));
+	}
+
+	/**
+	 * Remove the rows of this feed in <code>clientDiffs</code> which refer
+	 * to <code>id</code> through <code>reference</code>.
+	 *
+	 * @return Ids of the rows removed.
+	 */
+	public LongArrayList removeReferencing(SyncableProvider clientDiffs, Reference reference,
+		long id) throws SQLException
+	{
+		Connection conn = clientDiffs.getConnection().getWrappedConnection();
+		LongArrayList ids = new LongArrayList();
+
+		ResultSet set = DatabaseUtils.executeForResult(conn,
+			"SELECT " + SyncableColumns._ID + " FROM " + mTable +
+				" WHERE " + reference.column + " = ?", String.valueOf(id));
+		try {
+			while (set.next())
+				ids.add(set.getLong(1));
+		} finally {
+			set.close();
+		}
+
+		DatabaseUtils.execute(conn, "DELETE FROM " + mTable +
+			" WHERE " + reference.column + " = ?", String.valueOf(id));
+
+		return ids;
+	}
+
+	/**
+	 * Check that this feed supports every predicate of the query.
+	 *
+	 * @throws IllegalArgumentException If it does not.
+	 */
+	public void checkQuery(FeedQuery query)
+	{
+		getSelection(0, query);
+	}
+
+	private String getSelection(long lastModified, FeedQuery query)
+	{
+		StringBuilder selection = new StringBuilder();
+		selection.append(SyncableColumns._SYNC_TIME).append(" > ").append(lastModified);
+
+		for (Map.Entry<String, Long> predicate : query.getPredicates().entrySet())
+		{
+			String condition = getPredicateSelection(predicate.getKey(),
+				predicate.getValue());
+
+			if (condition == null)
+			{
+				throw new IllegalArgumentException("Unsupported predicate for " +
+					mTable + ": " + predicate.getKey());
+			}
+
+			selection.append(" AND (").append(condition).append(')');
+		}
+
+		return selection.toString();
+	}
+
+	/**
+	 * Same as {@link #getEntryDAO(SyncableProvider)}, but the entries written
+	 * include only the optional fields requested by <code>query</code>.
+	 */
+	public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs, FeedQuery query)
+			throws SQLException
+	{
+		SyncableEntryDAO dao = getEntryDAO(clientDiffs);
+		dao.setFieldMask(query);
+		return dao;
 	}
 
 	public abstract SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs)
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.content;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optional restrictions on a feed, parsed from the query string of a feed
+ * request. For example:
+ *
+ * <pre>
+ * /feeds/songs?fields=length,track&amp;artist_id=12
+ * </pre>
+ *
+ * The <code>fields</code> parameter names the optional message fields (as
+ * named in Protos.proto) the client wants; required fields are always sent.
+ * Every other parameter is a predicate which must name an id, and which the
+ * feed's {@link AbstractTableMerger} must support. A feed restricted by a
+ * predicate is always sent from scratch, whatever X-Modified-Since says,
+ * as rows which have left the filter can't be reported as deleted.
+ */
+public class FeedQuery
+{
+	public static final String FIELDS = "fields";
+
+	public static final String ARTIST_ID = "artist_id";
+	public static final String ALBUM_ID = "album_id";
+	public static final String PLAYLIST_ID = "playlist_id";
+
+	/** Requested optional fields, or null for all of them. */
+	private final Set<String> mFields;
+
+	private final Map<String, Long> mPredicates;
+
+	private FeedQuery(Set<String> fields, Map<String, Long> predicates)
+	{
+		mFields = fields;
+		mPredicates = predicates;
+	}
+
+	/**
+	 * @param query Query string, without the leading '?'. May be null.
+	 * @throws IllegalArgumentException If the query string is malformed.
+	 */
+	public static FeedQuery parse(String query)
+	{
+		Set<String> fields = null;
+		Map<String, Long> predicates = new LinkedHashMap<String, Long>();
+
+		if (query != null && query.length() > 0)
+		{
+			for (String param : query.split("&"))
+			{
+				if (param.length() == 0)
+					continue;
+
+				String[] pair = param.split("=", 2);
+				String name = decode(pair[0]);
+				String value = (pair.length > 1) ? decode(pair[1]) : "";
+
+				if (name.equals(FIELDS))
+				{
+					if (fields == null)
+						fields = new HashSet<String>();
+
+					for (String field : value.split(","))
+					{
+						if (field.length() > 0)
+							fields.add(field);
+					}
+				}
+				else
+				{
+					try {
+						predicates.put(name, Long.valueOf(value));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid value for " +
+							name + ": " + value);
+					}
+				}
+			}
+		}
+
+		return new FeedQuery(fields, predicates);
+	}
+
+	private static String decode(String value)
+	{
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return True if the optional field should be sent.
+	 */
+	public boolean includesField(String field)
+	{
+		return mFields == null || mFields.contains(field);
+	}
+
+	/**
+	 * @return True if the client restricted the optional fields.
+	 */
+	public boolean hasFieldMask()
+	{
+		return mFields != null;
+	}
+
+	/**
+	 * @return Predicate names mapped to the id each must match, in the order
+	 *         given by the client.
+	 */
+	public Map<String, Long> getPredicates()
+	{
+		return Collections.unmodifiableMap(mPredicates);
+	}
+
+	public boolean isEmpty()
+	{
+		return mFields == null && mPredicates.isEmpty();
+	}
+}
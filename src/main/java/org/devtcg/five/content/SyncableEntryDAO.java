@@ -14,10 +14,13 @@
 
 package org.devtcg.five.content;
 
+import java.io.IOException;
 import java.sql.SQLException;
 
 import org.devtcg.five.meta.data.Protos;
 
+import com.google.protobuf.CodedOutputStream;
+
 public interface SyncableEntryDAO
 {
 	public void close() throws SQLException;
@@ -25,4 +28,16 @@ public interface SyncableEntryDAO
 	public boolean moveToNext() throws SQLException;
 	public long getId() throws SQLException;
 	public Protos.Record getEntry() throws SQLException;
+
+	/**
+	 * Omit optional fields not requested by <code>query</code> from the
+	 * entries returned by {@link #getEntry} and {@link #writeEntryTo}.
+	 */
+	public void setFieldMask(FeedQuery query);
+
+	/**
+	 * Write the current row as it would be returned by {@link #getEntry},
+	 * preceded by its serialized size as a little-endian 32-bit integer.
+	 */
+	public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException;
 }
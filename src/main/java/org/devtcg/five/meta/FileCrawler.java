@@ -16,15 +16,16 @@ package org.devtcg.five.meta;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,13 +34,17 @@ import org.devtcg.five.meta.dao.AlbumDAO;
 import org.devtcg.five.meta.dao.ArtistDAO;
 import org.devtcg.five.meta.dao.PlaylistDAO;
 import org.devtcg.five.meta.dao.SongDAO;
+import org.devtcg.five.meta.dao.SongIndex;
+import org.devtcg.five.meta.dao.SyncClientDAO;
 import org.devtcg.five.meta.dao.PlaylistDAO.Playlist;
-import org.devtcg.five.meta.dao.PlaylistDAO.PlaylistEntryDAO;
 import org.devtcg.five.persistence.Configuration;
 import org.devtcg.five.util.AbstractTimer;
-import org.devtcg.five.util.CancelableExecutor;
+import org.devtcg.five.util.AudioFormatSniffer;
 import org.devtcg.five.util.CancelableThread;
 import org.devtcg.five.util.FileUtils;
+import org.devtcg.five.util.IOUtils;
+import org.devtcg.five.util.LongArrayList;
+import org.devtcg.five.util.Metrics;
 import org.devtcg.five.util.StringUtils;
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
@@ -47,6 +52,7 @@ import org.jaudiotagger.audio.AudioHeader;
 import org.jaudiotagger.audio.exceptions.CannotReadException;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
 
 public class FileCrawler
 {
@@ -54,8 +60,43 @@ public class FileCrawler
 
 	private static FileCrawler INSTANCE;
 
+	/**
+	 * Parsed tags are kept in this file (in the storage path) so that they
+	 * survive the database being rebuilt.
+	 */
+	private static final String TAG_CACHE_NAME = "tagcache.dat";
+
+	/** Extensions of files which are never songs and need not be opened. */
+	private static final String[] IGNORED_EXTENSIONS = {
+		"jpg", "jpeg", "png", "gif", "bmp", "txt", "nfo", "cue", "log",
+		"sfv", "md5", "accurip", "db", "ini", "pdf", "url",
+	};
+
+	/**
+	 * Image files commonly stored alongside songs which hold the album
+	 * artwork, in order of preference.
+	 */
+	private static final String[] SIDECAR_ARTWORK_NAMES = {
+		"folder.jpg", "cover.jpg", "front.jpg", "album.jpg",
+		"folder.png", "cover.png", "front.png",
+	};
+
+	private static final Metrics.Counter FILES = Metrics.getInstance().counter(
+		"crawler_files_total", "Songs and playlists found by the crawler");
+	private static final Metrics.Gauge FILES_PER_SECOND = Metrics.getInstance().gauge(
+		"crawler_files_per_second", "Rate at which the current or last scan found files");
+	private static final Metrics.Counter PARSE_FAILURES = Metrics.getInstance().counter(
+		"crawler_parse_failures_total", "Songs and playlists which could not be read");
+	private static final Metrics.Gauge SCAN_PROGRESS = Metrics.getInstance().gauge(
+		"crawler_scan_files", "Files found so far by the current or last scan");
+	private static final Metrics.Gauge LAST_SCAN_DURATION = Metrics.getInstance().gauge(
+		"crawler_last_scan_duration_seconds", "Time taken by the last scan to complete");
+
 	private CrawlerThread mThread;
-	private List<String> mPaths;
+
+	/** Set by {@link #stop}, after which no more scans are started. */
+	private boolean mStopped;
+	private volatile List<String> mPaths;
 
 	private Listener mListener;
 
@@ -71,13 +112,34 @@ public class FileCrawler
 
 	private FileCrawler()
 	{
+		Configuration config = Configuration.getInstance();
+
 		try {
-			setPaths(Configuration.getInstance().getLibraryPaths());
+			setPaths(config.getLibraryPaths());
+
+			/* So that the library is reported before the first scan starts. */
+			MetaProvider.getInstance().countLibrary();
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
+
+		config.addListener(mConfigurationListener);
 	}
 
+	private final Configuration.Listener mConfigurationListener = new Configuration.Listener()
+	{
+		public void onConfigurationChanged(Configuration.Snapshot oldConfig,
+			Configuration.Snapshot newConfig)
+		{
+			/* Picked up by the next scan. */
+			if (oldConfig.hasChanged(newConfig, Configuration.Keys.LIBRARY_PATH) == true)
+				setPaths(newConfig.getLibraryPaths());
+
+			if (oldConfig.hasChanged(newConfig, Configuration.Keys.RESCAN_INTERVAL) == true)
+				updateRescanInterval(newConfig.getRescanInterval());
+		}
+	};
+
 	public static synchronized FileCrawler getInstance()
 	{
 		if (INSTANCE == null)
@@ -98,8 +160,11 @@ public class FileCrawler
 
 	public void updateRescanInterval() throws SQLException
 	{
-		long rescanInterval = Configuration.getInstance().getRescanInterval();
+		updateRescanInterval(Configuration.getInstance().getRescanInterval());
+	}
 
+	private void updateRescanInterval(long rescanInterval)
+	{
 		if (LOG.isInfoEnabled())
 			LOG.info("Updating rescan interval to " + rescanInterval + " msec");
 
@@ -135,21 +200,60 @@ public class FileCrawler
 
 	public synchronized void startScan()
 	{
-		if (mThread == null)
+		if (mThread == null && mStopped == false)
 		{
 			mThread = new CrawlerThread(MetaProvider.getInstance());
 			mThread.start();
 		}
 	}
 
-	public synchronized void stopAbruptly()
+	public void stopAbruptly()
 	{
-		if (mThread != null)
+		CrawlerThread thread;
+
+		/*
+		 * Not held while waiting, as the thread needs the lock to clear
+		 * mThread as it finishes.
+		 */
+		synchronized(this) {
+			thread = mThread;
+		}
+
+		if (thread != null)
+			thread.requestCancelAndWait();
+	}
+
+	/**
+	 * Stop for good, letting a scan in progress finish the file it is on
+	 * (or the deletes it is applying) so that the library and tag cache are
+	 * left consistent for the next scan to pick up from. Falls back to
+	 * {@link #stopAbruptly} if that takes longer than <code>timeout</code>
+	 * milliseconds.
+	 */
+	public void stop(long timeout)
+	{
+		CrawlerThread thread;
+
+		synchronized(this) {
+			mStopped = true;
+			thread = mThread;
+		}
+
+		if (thread == null)
+			return;
+
+		thread.requestStop();
+
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {}
+
+		if (thread.isAlive() == true)
 		{
-			mThread.requestCancelAndWait();
+			if (LOG.isWarnEnabled())
+				LOG.warn("Timed out waiting for scan to stop, canceling");
 
-			/* Should have been set to null by the thread itself. */
-			assert mThread == null;
+			thread.requestCancelAndWait();
 		}
 	}
 
@@ -160,25 +264,35 @@ public class FileCrawler
 
 	private class CrawlerThread extends CancelableThread
 	{
+		private final MetaProvider mProvider;
+
+		private int mFilesScanned = 0;
+		private long mScanStart;
+
+		/** Last directory searched for sidecar artwork, and the result. */
+		private File mSidecarDirectory;
+		private File mSidecarArtwork;
+
 		/**
-		 * Maximum number of Last.fm request tasks that can be queued before
-		 * offers become blocking. This keeps memory usage reasonable for large
-		 * collections and also helps to throttle the disk scanner to not hammer
-		 * quite so hard.
+		 * Last album checked for artwork, and whether it has any, which saves
+		 * a query per song as songs of an album are usually scanned together.
 		 */
-		private static final int MAX_NETWORK_TASK_QUEUE_SIZE = 10;
+		private long mLastArtworkAlbum = -1;
+		private boolean mLastAlbumHasArtwork;
+
+		private final TagCache mTagCache;
+
+		private final AudioFormatSniffer mSniffer = new AudioFormatSniffer();
 
 		/**
-		 * Used to execute network tasks which will collect extra meta data
-		 * than is available on the filesystem. Currently uses both MusicBrainz
-		 * and Last.fm.
+		 * Like {@link #hasCanceled}, but without interrupting the thread,
+		 * which could otherwise abort a database write.
 		 */
-		private final CancelableExecutor mNetworkMetaExecutor =
-			new CancelableExecutor(new LinkedBlockingQueue<FutureTask<?>>(MAX_NETWORK_TASK_QUEUE_SIZE));
+		private volatile boolean mStopRequested;
 
-		private final MetaProvider mProvider;
-
-		private int mFilesScanned = 0;
+		/** Tag of the song currently being handled, if it was parsed. */
+		private Tag mLastTag;
+		private File mLastTagFile;
 
 		public CrawlerThread(MetaProvider provider)
 		{
@@ -186,6 +300,17 @@ public class FileCrawler
 			setPriority(Thread.MIN_PRIORITY);
 
 			mProvider = provider;
+			mTagCache = new TagCache(new File(Configuration.getStoragePath(), TAG_CACHE_NAME));
+		}
+
+		public void requestStop()
+		{
+			mStopRequested = true;
+		}
+
+		private boolean isStopping()
+		{
+			return mStopRequested == true || hasCanceled() == true;
 		}
 
 		private boolean isPlaylist(File file, String ext)
@@ -199,43 +324,34 @@ public class FileCrawler
 			if (ext.equalsIgnoreCase("m3u") == true)
 				return true;
 
+			if (ext.equalsIgnoreCase("m3u8") == true)
+				return true;
+
 			return false;
 		}
 
-		private boolean isSong(File file, String ext)
+		/**
+		 * Quickly rule out files which are common in music collections but
+		 * are definitely not songs, without opening them.
+		 */
+		private boolean isIgnoredExtension(String ext)
 		{
-			/* TODO: Inspect the file, do not rely on file extension. */
 			if (ext == null)
 				return false;
 
-			if (ext.equalsIgnoreCase("mp3") == true)
-				return true;
-
-			if (ext.equalsIgnoreCase("mp4") == true)
-				return true;
-
-			if (ext.equalsIgnoreCase("m4a") == true)
-				return true;
-
-			if (ext.equalsIgnoreCase("m4p") == true)
-				return true;
-
-//			if (ext.equalsIgnoreCase("ogg") == true)
-//				return true;
-//
-//			if (ext.equalsIgnoreCase("wma") == true)
-//				return true;
-//
-//			if (ext.equalsIgnoreCase("flac") == true)
-//				return true;
+			for (String ignored : IGNORED_EXTENSIONS)
+			{
+				if (ext.equalsIgnoreCase(ignored) == true)
+					return true;
+			}
 
 			return false;
 		}
 
-		private long processPlaylistSong(PlaylistEntryDAO existing, Playlist playlistBuf,
-			File entry) throws SQLException
+		private long processPlaylistSong(Playlist playlistBuf, File entry)
+			throws SQLException
 		{
-			if (entry.exists() == false || isSong(entry, FileUtils.getExtension(entry)) == false)
+			if (entry.exists() == false)
 				return -1;
 
 			/*
@@ -246,38 +362,91 @@ public class FileCrawler
 			if (songId == -1)
 				return -1;
 
-			/*
-			 * Try to detect if an existing playlist has any songs deleted or
-			 * changed positions. This will trigger an updated sync time which
-			 * will then communicate the entire new playlist to the client on
-			 * sync.
-			 */
-			if (existing != null && playlistBuf.hasChanges == false)
-			{
-				long songAtPos = mProvider.getPlaylistSongDAO().getSongAtPosition(existing.getId(),
-					playlistBuf.songs.size());
-				if (songAtPos != songId)
-					playlistBuf.hasChanges = true;
-			}
-
 			playlistBuf.songs.add(songId);
 
 			return songId;
 		}
 
+		/**
+		 * Resolve a playlist entry, which may be a file: URL, an absolute
+		 * path, or a path relative to the playlist itself.
+		 */
+		private File resolvePlaylistEntry(File playlist, String path)
+		{
+			try {
+				URL entryUrl = new URL(URLDecoder.decode(path, "UTF-8"));
+				return new File(entryUrl.getFile());
+			} catch (MalformedURLException e) {
+			} catch (UnsupportedEncodingException e) {
+			} catch (IllegalArgumentException e) {
+				/* Thrown by URLDecoder for stray '%' characters in plain paths. */
+			}
+
+			/* Playlists written on Windows. */
+			if (File.separatorChar == '/')
+				path = path.replace('\\', '/');
+
+			File entry = new File(path);
+			if (entry.isAbsolute() == false)
+				entry = new File(playlist.getAbsoluteFile().getParent(), path);
+
+			return entry;
+		}
+
+		/**
+		 * Store the playlist entries collected in <code>playlistBuf</code>,
+		 * changing only what differs from the playlist's existing contents.
+		 */
+		private long commitPlaylist(File file, Playlist playlistBuf)
+			throws SQLException
+		{
+			PlaylistDAO.PlaylistEntryDAO existingPlaylist =
+				mProvider.getPlaylistDAO().getPlaylist(file.getAbsolutePath());
+
+			long id;
+			try {
+				/*
+				 * Couldn't parse any of the playlist entries, or it contained
+				 * none. If the playlist existed but was empty we will simply
+				 * leave it marked and clean it up after the crawler finishes.
+				 * If it never existed and this file is a new file with nothing
+				 * in it, just ignore it completely.
+				 */
+				if (playlistBuf.songs.isEmpty())
+					return -1;
+
+				if (existingPlaylist == null)
+				{
+					id = mProvider.getPlaylistDAO().insert(file.getAbsolutePath(),
+						FileUtils.removeExtension(file.getName()), System.currentTimeMillis());
+				}
+				else
+				{
+					id = existingPlaylist.getId();
+					mProvider.getPlaylistDAO().unmark(id);
+				}
+			} finally {
+				if (existingPlaylist != null)
+					existingPlaylist.close();
+			}
+
+			mProvider.getPlaylistSongDAO().replaceSongs(id, playlistBuf.songs);
+
+			return id;
+		}
+
 		private long handlePlaylistPls(File file) throws SQLException
 		{
+			BufferedReader reader = null;
+
 			try {
-				BufferedReader reader = new BufferedReader(new FileReader(file), 1024);
+				reader = new BufferedReader(new FileReader(file), 1024);
 
 				/* Sanity check. */
 				String firstLine = reader.readLine();
 				if (firstLine == null || firstLine.trim().equalsIgnoreCase("[playlist]") == false)
 					return -1;
 
-				PlaylistDAO.PlaylistEntryDAO existingPlaylist =
-					mProvider.getPlaylistDAO().getPlaylist(file.getAbsolutePath());
-
 				/*
 				 * Temporary container used to buffer all playlist entries in
 				 * order to effectively detect changes before we commit to the
@@ -297,64 +466,59 @@ public class FileCrawler
 						if (keyPair.length < 2)
 							continue;
 
-						File entry;
-						try {
-							URL entryUrl = new URL(URLDecoder.decode(keyPair[1], "UTF-8"));
-							entry = new File(entryUrl.getFile());
-						} catch (MalformedURLException e) {
-							entry = new File(keyPair[1]);
-							if (!entry.isAbsolute()) {
-								entry = new File(file.getAbsoluteFile().getParent(), keyPair[1]);
-							}
-						}
-						System.out.println("entry=" + entry);
-						processPlaylistSong(existingPlaylist, playlistBuf, entry);
+						processPlaylistSong(playlistBuf,
+							resolvePlaylistEntry(file, keyPair[1]));
 					}
 				}
 
-				/*
-				 * Couldn't parse any of the playlist entries, or it contained
-				 * none. If the playlist existed but was empty we will simply
-				 * leave it unmarked and clean it up after the crawler finishes.
-				 * If it never existed and this file is a new file with nothing
-				 * in it, just ignore it completely.
-				 */
-				if (playlistBuf.songs.isEmpty())
-					return -1;
+				return commitPlaylist(file, playlistBuf);
+			} catch (IOException e) {
+				return -1;
+			} finally {
+				IOUtils.closeQuietlyNullSafe(reader);
+			}
+		}
 
-				long id;
-				if (existingPlaylist == null)
-				{
-					id = mProvider.getPlaylistDAO().insert(file.getAbsolutePath(),
-						FileUtils.removeExtension(file.getName()), System.currentTimeMillis());
-				}
-				else
-				{
-					id = existingPlaylist.getId();
-					mProvider.getPlaylistDAO().unmark(id);
-				}
+		/**
+		 * Handles both plain and extended M3U. Directives and comments (lines
+		 * beginning with '#') are ignored, every other line names a song.
+		 */
+		private long handlePlaylistM3u(File file, String charset) throws SQLException
+		{
+			BufferedReader reader = null;
+
+			try {
+				reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), charset), 1024);
 
-				if (existingPlaylist == null || playlistBuf.hasChanges)
+				PlaylistDAO.Playlist playlistBuf =
+					mProvider.getPlaylistDAO().newPlaylist();
+
+				String line;
+				boolean firstLine = true;
+				while ((line = reader.readLine()) != null)
 				{
-					if (existingPlaylist != null)
-						mProvider.getPlaylistSongDAO().deleteByPlaylist(id);
+					/* Strip the byte order mark some editors insist on. */
+					if (firstLine == true && line.length() > 0 && line.charAt(0) == '\uFEFF')
+						line = line.substring(1);
+					firstLine = false;
 
-					int pos = 0;
-					for (long songId: playlistBuf.songs)
-						mProvider.getPlaylistSongDAO().insert(id, pos++, songId);
+					line = line.trim();
+
+					if (line.length() == 0 || line.charAt(0) == '#')
+						continue;
+
+					processPlaylistSong(playlistBuf, resolvePlaylistEntry(file, line));
 				}
 
-				return id;
+				return commitPlaylist(file, playlistBuf);
 			} catch (IOException e) {
 				return -1;
+			} finally {
+				IOUtils.closeQuietlyNullSafe(reader);
 			}
 		}
 
-		private long handlePlaylistM3u(File file) throws SQLException
-		{
-			return -1;
-		}
-
 		private long handleFilePlaylist(File file) throws SQLException
 		{
 			String ext = FileUtils.getExtension(file);
@@ -363,14 +527,19 @@ public class FileCrawler
 
 			if (ext != null)
 			{
+				/* M3U predates Unicode; M3U8 is the UTF-8 variant. */
 				if (ext.equalsIgnoreCase("m3u") == true)
-					id = handlePlaylistM3u(file);
+					id = handlePlaylistM3u(file, "ISO-8859-1");
+				else if (ext.equalsIgnoreCase("m3u8") == true)
+					id = handlePlaylistM3u(file, "UTF-8");
 				else if (ext.equalsIgnoreCase("pls") == true)
 					id = handlePlaylistPls(file);
 			}
 
 			if (id == -1)
 			{
+				PARSE_FAILURES.increment();
+
 				if (LOG.isWarnEnabled())
 					LOG.warn("Can't handle playlist file " + file.getAbsolutePath());
 			}
@@ -407,6 +576,17 @@ public class FileCrawler
 			}
 		}
 
+		/**
+		 * Network lookups (Last.fm) are queued persistently and carried out by
+		 * {@link MetaFetcher} so that they are neither lost nor allowed to
+		 * stall the scan.
+		 */
+		private void queueMetaLookup(String table, long id) throws SQLException
+		{
+			mProvider.getMetaJobDAO().enqueue(table, id);
+			MetaFetcher.getInstance().wakeUp();
+		}
+
 		private long getArtistId(String artist) throws SQLException
 		{
 			String nameMatch = StringUtils.getNameMatch(artist);
@@ -417,8 +597,7 @@ public class FileCrawler
 			if (artistEntry == null)
 			{
 				long id = mProvider.getArtistDAO().insert(artist);
-				mNetworkMetaExecutor.execute(new LastfmArtistPhotoTask(mProvider,
-					id, artist).getTask());
+				queueMetaLookup(mProvider.getArtistDAO().getTable(), id);
 				return id;
 			}
 
@@ -429,7 +608,12 @@ public class FileCrawler
 			}
 		}
 
-		private long getAlbumId(long artistId, String album) throws SQLException
+		/**
+		 * Look up or create the album, also storing any artwork found
+		 * locally alongside <code>file</code>.
+		 */
+		private long getAlbumId(long artistId, String album, File file,
+			boolean hasEmbeddedArtwork) throws SQLException
 		{
 			String nameMatch = StringUtils.getNameMatch(album);
 
@@ -438,93 +622,248 @@ public class FileCrawler
 
 			if (albumEntry == null)
 			{
-				ArtistDAO.ArtistEntryDAO artistEntry =
-					mProvider.getArtistDAO().getArtist(artistId);
 				long id = mProvider.getAlbumDAO().insert(artistId, album);
-				mNetworkMetaExecutor.execute(new LastfmAlbumArtworkTask(mProvider,
-					id, artistEntry.getName(), album).getTask());
+
+				/*
+				 * Check for local artwork before queueing the Last.fm lookup,
+				 * which will then skip downloading any.
+				 */
+				handleLocalArtwork(id, file, hasEmbeddedArtwork);
+				queueMetaLookup(mProvider.getAlbumDAO().getTable(), id);
 				return id;
 			}
 
+			long id;
 			try {
-				return albumEntry.getId();
+				id = albumEntry.getId();
 			} finally {
 				albumEntry.close();
 			}
+
+			handleLocalArtwork(id, file, hasEmbeddedArtwork);
+			return id;
 		}
 
-		private long handleFileSong(File file) throws SQLException
+		private File findSidecarArtwork(File directory)
 		{
-			SongDAO.SongEntryDAO existingEntry =
-				mProvider.getSongDAO().getSong(file.getAbsolutePath());
+			if (directory == null)
+				return null;
 
-			/* Typical case; no data needs to be updated. */
-			try {
-				if (existingEntry != null &&
-					existingEntry.getMtime() == file.lastModified())
-				{
-					mProvider.getSongDAO().unmark(existingEntry.getId());
-					return existingEntry.getId();
-				}
-				else
+			if (directory.equals(mSidecarDirectory) == true)
+				return mSidecarArtwork;
+
+			mSidecarDirectory = directory;
+			mSidecarArtwork = null;
+
+			String[] names = directory.list();
+			if (names == null)
+				return null;
+
+			int bestRank = SIDECAR_ARTWORK_NAMES.length;
+
+			for (String name : names)
+			{
+				for (int i = 0; i < bestRank; i++)
 				{
-					/*
-					 * This file is either new or has been updated since the last time
-					 * we scanned.  Re-parse.
-					 */
-					return handleFileNewOrUpdatedSong(file, existingEntry);
+					if (name.equalsIgnoreCase(SIDECAR_ARTWORK_NAMES[i]) == true)
+					{
+						mSidecarArtwork = new File(directory, name);
+						bestRank = i;
+						break;
+					}
 				}
-			} finally {
-				if (existingEntry != null)
-					existingEntry.close();
 			}
+
+			return mSidecarArtwork;
 		}
 
-		private long handleFileNewOrUpdatedSong(File file, SongDAO.SongEntryDAO existingEntry)
-			throws SQLException
+		/**
+		 * Access the embedded artwork, parsing the file again only if its tags
+		 * were served from the tag cache.
+		 */
+		private Artwork getEmbeddedArtwork(File file)
 		{
 			try {
-				AudioFile audioFile = AudioFileIO.read(file);
-				Tag tag = audioFile.getTag();
-				AudioHeader header = audioFile.getAudioHeader();
+				Tag tag = mLastTag;
+				if (tag == null || file.equals(mLastTagFile) == false)
+					tag = AudioFileIO.read(file).getTag();
 
-				String artist = stringTagValue(tag.getFirst(FieldKey.ARTIST), "ARTIST : ", "<Unknown>");
-				String album = stringTagValue(tag.getFirst(FieldKey.ALBUM), "ALBUM : ", "<Unknown>");
-				String title = stringTagValue(tag.getFirst(FieldKey.TITLE), "TITLE : ", null);
-				long bitrate = header.getBitRateAsNumber();
-				int length = header.getTrackLength();
+				return tag.getFirstArtwork();
+			} catch (Exception e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn(file + ": unable to read artwork: " + e);
+
+				return null;
+			}
+		}
+
+		/**
+		 * Stores embedded artwork from the tag, or failing that an image file
+		 * such as folder.jpg from the song's directory, as the album artwork.
+		 * Nothing is done if the album already has artwork.
+		 */
+		private void handleLocalArtwork(long albumId, File file,
+			boolean hasEmbeddedArtwork) throws SQLException
+		{
+			String table = mProvider.getAlbumDAO().getTable();
+
+			if (albumId != mLastArtworkAlbum)
+			{
+				mLastArtworkAlbum = albumId;
+				mLastAlbumHasArtwork = mProvider.getImageDAO().hasImage(table, albumId);
+			}
+
+			/* Albums without artwork still take it from any of their songs. */
+			if (mLastAlbumHasArtwork == true)
+				return;
+
+			byte[] data = null;
+
+			if (hasEmbeddedArtwork == true)
+			{
+				Artwork artwork = getEmbeddedArtwork(file);
+				if (artwork != null && artwork.isLinked() == false)
+					data = artwork.getBinaryData();
+			}
+
+			if (data == null || data.length == 0)
+			{
+				File sidecar = findSidecarArtwork(file.getParentFile());
+				if (sidecar == null)
+					return;
 
-				/*
-				 * Hmm, this library appears to have very unusual bugs when
-				 * reading TRACK tags. Any exception the library throws here is
-				 * ignored.
-				 */
-				int track;
 				try {
-					track = intTagValue(tag.getFirst(FieldKey.TRACK), -1);
-				} catch (Exception e) {
-					track = -1;
+					data = FileUtils.readFileToByteArray(sidecar);
+				} catch (IOException e) {
+					if (LOG.isWarnEnabled())
+						LOG.warn("Unable to read " + sidecar + ": " + e);
+					return;
 				}
+			}
+
+			try {
+				mProvider.getImageDAO().insert(table, albumId, data);
+				mLastAlbumHasArtwork = true;
+			} catch (IOException e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn(file + ": unable to decode artwork: " + e);
+			}
+		}
+
+		private long handleFileSong(File file) throws SQLException
+		{
+			SongIndex index = mProvider.getSongDAO().getIndex();
+			long existingId = index.getId(file.getAbsolutePath());
 
-				/* Title is actually the only property we strictly require. */
-				if (title == null)
-					throw new CannotReadException("No title property set");
+			/* Typical case; no data needs to be updated. */
+			if (existingId >= 0 && index.getMtime(existingId) == file.lastModified())
+			{
+				mTagCache.touch(file);
+				mProvider.getSongDAO().unmark(existingId);
+				return existingId;
+			}
+			else
+			{
+				/*
+				 * This file is either new or has been updated since the last time
+				 * we scanned.  Re-parse.
+				 */
+				return handleFileNewOrUpdatedSong(file, existingId);
+			}
+		}
+
+		/**
+		 * Parse the song's tags using jaudiotagger and record the result in
+		 * the tag cache.
+		 */
+		private TagCache.Entry readTags(File file, String mimeType) throws Exception
+		{
+			AudioFile audioFile = AudioFileIO.read(file);
+			Tag tag = audioFile.getTag();
+			AudioHeader header = audioFile.getAudioHeader();
 
-				long artistId = getArtistId(artist);
-				long albumId = getAlbumId(artistId, album);
+			String artist = stringTagValue(tag.getFirst(FieldKey.ARTIST), "ARTIST : ", "<Unknown>");
+			String album = stringTagValue(tag.getFirst(FieldKey.ALBUM), "ALBUM : ", "<Unknown>");
+			String title = stringTagValue(tag.getFirst(FieldKey.TITLE), "TITLE : ", null);
+			long bitrate = header.getBitRateAsNumber();
+			int length = header.getTrackLength();
+
+			/*
+			 * Hmm, this library appears to have very unusual bugs when
+			 * reading TRACK tags. Any exception the library throws here is
+			 * ignored.
+			 */
+			int track;
+			try {
+				track = intTagValue(tag.getFirst(FieldKey.TRACK), -1);
+			} catch (Exception e) {
+				track = -1;
+			}
+
+			/* Title is actually the only property we strictly require. */
+			if (title == null)
+				throw new CannotReadException("No title property set");
+
+			TagCache.Entry tags = new TagCache.Entry(file.length(),
+				file.lastModified(), mimeType, artist, album, title, bitrate,
+				length, track, tag.getFirstArtwork() != null);
+
+			mTagCache.put(file, tags);
+
+			/* Saves parsing the file again if the album needs artwork. */
+			mLastTag = tag;
+			mLastTagFile = file;
+
+			return tags;
+		}
+
+		/**
+		 * @param existingId Id of the song previously stored for this file,
+		 *   or -1 if it is new.
+		 */
+		private long handleFileNewOrUpdatedSong(File file, long existingId)
+			throws SQLException
+		{
+			try {
+				TagCache.Entry tags = mTagCache.get(file);
+				if (tags == null)
+				{
+					/* Avoids handing jaudiotagger files it can't possibly parse. */
+					String mimeType = mSniffer.sniff(file);
+					if (mimeType == null)
+					{
+						/* Remembered so that it isn't read again until it changes. */
+						mTagCache.put(file, TagCache.Entry.newNotSong(file.length(),
+							file.lastModified()));
+						return -1;
+					}
+
+					tags = readTags(file, mimeType);
+				}
+				else if (tags.isSong() == false)
+					return -1;
+
+				long artistId = getArtistId(tags.artist);
+				long albumId = getAlbumId(artistId, tags.album, file, tags.hasArtwork);
 
 				SongDAO.Song song = mProvider.getSongDAO().newSong(file,
-					artistId, albumId, title, bitrate, length, track);
+					tags.mimeType, artistId, albumId, tags.title, tags.bitrate,
+					tags.length, tags.track);
 
-				if (existingEntry != null)
-					return mProvider.getSongDAO().update(existingEntry.getId(), song);
+				if (existingId >= 0)
+					return mProvider.getSongDAO().update(existingId, song);
 				else
 					return mProvider.getSongDAO().insert(song);
 			} catch (Exception e) {
+				PARSE_FAILURES.increment();
+
 				if (LOG.isWarnEnabled())
 					LOG.warn(file + ": unable to parse song: " + e, e);
 
 				return -1;
+			} finally {
+				mLastTag = null;
+				mLastTagFile = null;
 			}
 		}
 
@@ -534,7 +873,7 @@ public class FileCrawler
 
 			if (isPlaylist(file, ext) == true)
 				return handleFilePlaylist(file) != -1;
-			else if (isSong(file, ext) == true)
+			else if (isIgnoredExtension(ext) == false)
 				return handleFileSong(file) != -1;
 
 			return false;
@@ -552,7 +891,7 @@ public class FileCrawler
 
 			for (File file : files)
 			{
-				if (hasCanceled() == true)
+				if (isStopping() == true)
 					return;
 
 				if (file.isDirectory() == true)
@@ -562,6 +901,7 @@ public class FileCrawler
 					if (handleFile(file))
 					{
 						mFilesScanned++;
+						onFileScanned();
 
 						if (mListener != null)
 							mListener.onProgress(mFilesScanned);
@@ -570,6 +910,16 @@ public class FileCrawler
 			}
 		}
 
+		private void onFileScanned()
+		{
+			FILES.increment();
+			SCAN_PROGRESS.set(mFilesScanned);
+
+			long elapsed = System.nanoTime() - mScanStart;
+			if (elapsed > 0)
+				FILES_PER_SECOND.set(mFilesScanned * 1000000000L / elapsed);
+		}
+
 		private void markAll() throws SQLException
 		{
 			mProvider.getSongDAO().markAll();
@@ -578,59 +928,139 @@ public class FileCrawler
 
 		private void deleteAllMarked() throws SQLException
 		{
+			/*
+			 * Ids are collected up front so that the deletes, each of which
+			 * also logs a tombstone, can be applied in one batch per table
+			 * without holding a result set open against the same table.
+			 */
+			LongArrayList ids = new LongArrayList();
+
 			PlaylistDAO.PlaylistEntryDAO markedPlaylists = mProvider.getPlaylistDAO().getMarked();
-			while (markedPlaylists.moveToNext())
-			{
-				if (LOG.isDebugEnabled())
-					LOG.debug("Detected removal of " + markedPlaylists.getFilename());
+			try {
+				while (markedPlaylists.moveToNext())
+				{
+					if (LOG.isDebugEnabled())
+						LOG.debug("Detected removal of " + markedPlaylists.getFilename());
 
-				long playlistId = markedPlaylists.getId();
-				mProvider.getPlaylistSongDAO().deleteByPlaylist(playlistId);
-				mProvider.getPlaylistDAO().delete(playlistId);
+					ids.add(markedPlaylists.getId());
+				}
+			} finally {
+				markedPlaylists.close();
 			}
 
+			for (int i = 0; i < ids.size(); i++)
+				mProvider.getPlaylistSongDAO().deleteByPlaylist(ids.get(i));
+			mProvider.getPlaylistDAO().delete(ids);
+			ids.clear();
+
 			SongDAO.SongEntryDAO markedSongs = mProvider.getSongDAO().getMarked();
-			while (markedSongs.moveToNext())
-			{
-				if (LOG.isDebugEnabled())
-					LOG.debug("Detected removal of " + markedSongs.getFilename());
+			try {
+				while (markedSongs.moveToNext())
+				{
+					if (LOG.isDebugEnabled())
+						LOG.debug("Detected removal of " + markedSongs.getFilename());
 
-				mProvider.getSongDAO().delete(markedSongs.getId());
+					ids.add(markedSongs.getId());
+				}
+			} finally {
+				markedSongs.close();
 			}
 
+			mProvider.getSongDAO().delete(ids);
+			ids.clear();
+
 			AlbumDAO.AlbumEntryDAO emptyAlbums = mProvider.getAlbumDAO().getEmptyAlbums();
-			while (emptyAlbums.moveToNext())
-			{
-				if (LOG.isDebugEnabled())
-					LOG.debug("No songs left in album " + emptyAlbums.getId() + " (" + emptyAlbums.getName() + "), deleting");
+			try {
+				while (emptyAlbums.moveToNext())
+				{
+					if (LOG.isDebugEnabled())
+						LOG.debug("No songs left in album " + emptyAlbums.getId() + " (" + emptyAlbums.getName() + "), deleting");
 
-				mProvider.getAlbumDAO().delete(emptyAlbums.getId());
+					ids.add(emptyAlbums.getId());
+				}
+			} finally {
+				emptyAlbums.close();
 			}
 
+			mProvider.getAlbumDAO().delete(ids);
+			ids.clear();
+
 			ArtistDAO.ArtistEntryDAO emptyArtists = mProvider.getArtistDAO().getEmptyArtists();
-			while (emptyArtists.moveToNext())
+			try {
+				while (emptyArtists.moveToNext())
+				{
+					if (LOG.isDebugEnabled())
+						LOG.debug("No albums or songs left for artist " + emptyArtists.getId() + " (" + emptyArtists.getName() + "), deleting");
+
+					ids.add(emptyArtists.getId());
+				}
+			} finally {
+				emptyArtists.close();
+			}
+
+			mProvider.getArtistDAO().delete(ids);
+		}
+
+		/**
+		 * Purge deletes older than the configured retention, except those
+		 * which a recently seen client hasn't confirmed yet. Clients which
+		 * haven't been seen in that time will be told to sync from scratch
+		 * if they come back.
+		 */
+		private void compactDeletes() throws SQLException
+		{
+			long now = System.currentTimeMillis();
+			long cutoff = now - Configuration.getInstance().getTombstoneRetention();
+
+			SyncClientDAO clients = mProvider.getSyncClientDAO();
+			MetaSyncAdapter adapter = (MetaSyncAdapter)mProvider.getSyncAdapter();
+
+			for (String feed : MetaSyncAdapter.FEED_NAMES)
 			{
-				if (LOG.isDebugEnabled())
-					LOG.debug("No albums or songs left for artist " + emptyArtists.getId() + " (" + emptyArtists.getName() + "), deleting");
+				String deletedTable = adapter.getMerger(feed).getDeletesTableName();
+				long through = Math.min(cutoff, clients.getOldestConfirmed(feed, cutoff));
 
-				mProvider.getArtistDAO().delete(emptyArtists.getId());
+				int count = clients.compact(deletedTable, through);
+				if (count > 0 && LOG.isInfoEnabled())
+					LOG.info("Purged " + count + " deletes from " + deletedTable);
 			}
 		}
 
 		private void crawlImpl() throws SQLException
 		{
-			/* Mark all entries with a 1:1 mapping on disk. */
-			markAll();
+			mScanStart = System.nanoTime();
+			FILES_PER_SECOND.set(0);
+			SCAN_PROGRESS.set(0);
+
+			mProvider.countLibrary();
 
-			for (String path : mPaths)
-				traverse(new File(path));
+			mTagCache.open();
+
+			/* Set only once every file has been visited without error. */
+			boolean completed = false;
+
+			try {
+				/* Mark all entries with a 1:1 mapping on disk. */
+				markAll();
+
+				for (String path : mPaths)
+					traverse(new File(path));
+
+				/* Delete every entry that hasn't been unmarked during traversal. */
+				if (!isStopping())
+				{
+					deleteAllMarked();
+					compactDeletes();
+					completed = true;
+				}
+			} finally {
+				mTagCache.close(completed);
+			}
 
-			/* Delete every entry that hasn't been unmarked during traversal. */
-			if (!hasCanceled())
-				deleteAllMarked();
+			mProvider.countLibrary();
 
-			/* Will work whether we were canceled or not. */
-			mNetworkMetaExecutor.shutdownAndWait();
+			if (completed)
+				LAST_SCAN_DURATION.set(System.nanoTime() - mScanStart);
 		}
 
 		public void run()
@@ -641,15 +1071,15 @@ public class FileCrawler
 			try {
 				crawlImpl();
 			} catch (SQLException e) {
-				/* TODO */
-				e.printStackTrace();
+				if (LOG.isErrorEnabled())
+					LOG.error("Scan failed", e);
 			} finally {
 				synchronized (FileCrawler.this) {
 					mThread = null;
 				}
 
 				if (mListener != null)
-					mListener.onFinished(hasCanceled());
+					mListener.onFinished(isStopping());
 			}
 		}
 
@@ -657,7 +1087,6 @@ public class FileCrawler
 		protected void onRequestCancel()
 		{
 			interrupt();
-			mNetworkMetaExecutor.requestCancel();
 		}
 	}
 }
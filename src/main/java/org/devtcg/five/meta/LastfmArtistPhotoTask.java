@@ -20,20 +20,15 @@ import java.net.URLEncoder;
 import java.sql.SQLException;
 
 import org.devtcg.five.util.ImageUtils;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 public class LastfmArtistPhotoTask extends LastfmMetaTask
 {
 	private final String mArtist;
-	private final ArtistHandler mXmlHandler;
 
 	public LastfmArtistPhotoTask(MetaProvider provider, long id, String artist)
 	{
 		super(provider, id);
 		mArtist = artist;
-		mXmlHandler = new ArtistHandler(new ArtistData());
 	}
 
 	@Override
@@ -48,143 +43,29 @@ public class LastfmArtistPhotoTask extends LastfmMetaTask
 	}
 
 	@Override
-	protected DefaultHandler getContentHandler()
+	protected String getResponseElement()
 	{
-		return mXmlHandler;
+		return "artist";
 	}
 
 	@Override
-	protected void onPostParse()
+	protected void onPostParse(LastfmResponse response) throws SQLException, IOException
 	{
-		ArtistData data = mXmlHandler.data;
-
+		/*
+		 * Download errors are allowed to propagate so that the whole lookup
+		 * will be tried again later.
+		 */
 		byte[] imageData = null;
+		if (response.imageUrl != null)
+			imageData = downloadImage(response.imageUrl);
 
-		if (data.imageUrl != null)
-		{
-			try {
-				imageData = downloadImage(data.imageUrl);
-			} catch (IOException e) {
-				if (LOG.isWarnEnabled())
-					LOG.warn("Failed to download artist photo at " + data.imageUrl);
-			}
-		}
-
-		if (getTask().isCancelled())
+		if (isCancelled())
 			return;
 
-		try {
-			if (data.mbid != null)
-				mProvider.getArtistDAO().updateMbid(mId, data.mbid);
-
-			if (imageData != null)
-				mProvider.getImageDAO().insert(mProvider.getArtistDAO().getTable(), mId, imageData);
-		} catch (SQLException e) {
-		} catch (IOException e) {
-		}
-	}
-
-	private static class ArtistData
-	{
-		public String mbid;
-		public String name;
-		public String imageUrl;
-	}
-
-	private class ArtistHandler extends DefaultHandler
-	{
-		private boolean doneParsing;
-		private boolean inLfmOk;
-		private boolean inArtist;
-		private boolean inName;
-		private boolean inMbid;
-		private boolean inImage;
-
-		public final ArtistData data;
+		if (response.mbid != null)
+			mProvider.getArtistDAO().updateMbid(mId, response.mbid);
 
-		public ArtistHandler(ArtistData data)
-		{
-			this.data = data;
-		}
-
-		@Override
-		public void startElement(String uri, String localName, String qName, Attributes attrs)
-			throws SAXException
-		{
-			if (doneParsing == true)
-				return;
-
-			if (inLfmOk == false)
-			{
-				if (qName.equals("lfm"))
-				{
-					if ("ok".equals(attrs.getValue("status")) == false)
-						throw new SAXException("Last.fm status not OK");
-				}
-
-				inLfmOk = true;
-			}
-			else if (inArtist == false)
-			{
-				if (qName.equals("artist"))
-					inArtist = true;
-			}
-			else
-			{
-				if (inName == false && qName.equals("name"))
-					inName = true;
-				else if (inMbid == false && qName.equals("mbid"))
-					inMbid = true;
-				else if (inImage == false && qName.equals("image"))
-					inImage = true;
-				else if (qName.equals("stats") || qName.equals("tags") || qName.equals("similar"))
-					doneParsing = true;
-			}
-		}
-
-		@Override
-		public void endElement(String uri, String localName, String qName) throws SAXException
-		{
-			if (doneParsing == true)
-				return;
-
-			if (inLfmOk == true)
-			{
-				if (inArtist == true)
-				{
-					if (inName == true && qName.equals("name"))
-						inName = false;
-					else if (inMbid == true && qName.equals("mbid"))
-						inMbid = false;
-					else if (inImage == true && qName.equals("image"))
-						inImage = false;
-					else if (qName.equals("artist"))
-						inArtist = false;
-				}
-
-				if (qName.equals("lfm"))
-					inLfmOk = false;
-			}
-		}
-
-		@Override
-		public void characters(char[] ch, int start, int length) throws SAXException
-		{
-			if (doneParsing == true)
-				return;
-
-			if (inLfmOk == true)
-			{
-				if (inArtist == true)
-				{
-					if (inName == true)
-						/* Don't care I guess... */;
-					else if (inMbid == true)
-						data.mbid = new String(ch, start, length);
-					else if (inImage == true)
-						data.imageUrl = new String(ch, start, length);
-				}
-			}
-		}
+		if (imageData != null)
+			mProvider.getImageDAO().insert(mProvider.getArtistDAO().getTable(), mId, imageData);
 	}
 }
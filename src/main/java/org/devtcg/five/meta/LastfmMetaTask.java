@@ -14,11 +14,15 @@
 
 package org.devtcg.five.meta;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
+import java.sql.SQLException;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,14 +31,18 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.devtcg.five.persistence.Configuration;
+import org.devtcg.five.util.HttpResponseCache;
 import org.devtcg.five.util.HttpUtils;
 import org.devtcg.five.util.IOUtils;
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
-import org.xml.sax.helpers.XMLReaderFactory;
+import org.devtcg.five.util.Metrics;
 
-public abstract class LastfmMetaTask implements Callable<Object>
+/**
+ * Synchronous Last.fm lookup for a single artist or album. Tasks are driven by
+ * {@link MetaFetcher}, which decides whether a failed lookup is retried based
+ * on the exception thrown from {@link #run}.
+ */
+public abstract class LastfmMetaTask
 {
 	protected static final Log LOG = LogFactory.getLog(LastfmMetaTask.class);
 
@@ -43,104 +51,329 @@ public abstract class LastfmMetaTask implements Callable<Object>
 
 	protected static final HttpClient mClient = HttpUtils.newHttpClient();
 
+	/**
+	 * Responses are cached on disk so that rebuilding the database does not
+	 * require downloading everything from Last.fm all over again.
+	 */
+	private static final long MAX_CACHE_SIZE = 64 * 1024 * 1024;
+	protected static final long METHOD_CACHE_TTL = 30L * 24 * 60 * 60 * 1000;
+	protected static final long IMAGE_CACHE_TTL = 90L * 24 * 60 * 60 * 1000;
+
+	private static HttpResponseCache mCache;
+
+	/* Requests answered from the cache aren't counted. */
+	private static final Metrics.Counter REQUESTS = Metrics.getInstance().counter(
+		"lastfm_requests_total", "Requests made to Last.fm");
+	private static final Metrics.Counter ERRORS = Metrics.getInstance().counter(
+		"lastfm_errors_total", "Requests to Last.fm which failed or were refused");
+	private static final Metrics.Histogram REQUEST_DURATION = Metrics.getInstance().histogram(
+		"lastfm_request_duration_seconds", "Time taken by requests to Last.fm, including the body");
+
 	protected static final int THUMB_WIDTH = 64;
 	protected static final int THUMB_HEIGHT = 64;
 
 	protected final MetaProvider mProvider;
-	private final FutureTask<?> mTask;
 	protected final long mId;
-	protected DefaultHandler mXmlHandler;
+
+	private volatile boolean mCanceled;
+	private volatile HttpGet mRequest;
 
 	public LastfmMetaTask(MetaProvider provider, long id)
 	{
 		mProvider = provider;
-		mTask = new FutureTask<Object>(this);
 		mId = id;
 	}
 
-	public FutureTask<?> getTask()
+	/**
+	 * Abort the task, including any request currently in flight.
+	 */
+	public void cancel()
+	{
+		mCanceled = true;
+
+		HttpGet request = mRequest;
+		if (request != null)
+			request.abort();
+	}
+
+	public boolean isCancelled()
 	{
-		return mTask;
+		return mCanceled;
 	}
 
-	public Object call() throws Exception
+	public static synchronized HttpResponseCache getResponseCache()
 	{
-		try {
-			run();
-		} catch (Exception e) {
-			if (LOG.isWarnEnabled())
-				LOG.warn("Error accessing Last.fm", e);
+		if (mCache == null)
+		{
+			mCache = new HttpResponseCache(new File(Configuration.getStoragePath(),
+				"cache" + File.separator + "lastfm"), MAX_CACHE_SIZE);
 		}
-		return null;
+
+		return mCache;
+	}
+
+	/**
+	 * Replace the response cache used by all tasks. Primarily useful to
+	 * supply a cache seeded with recorded responses for testing.
+	 */
+	public static synchronized void setResponseCache(HttpResponseCache cache)
+	{
+		mCache = cache;
 	}
 
 	protected abstract String getMethodUrl();
 
-	protected abstract DefaultHandler getContentHandler();
+	/**
+	 * Name of the element in the response holding the result, for example
+	 * "artist".
+	 */
+	protected abstract String getResponseElement();
 
-	protected abstract void onPostParse();
+	protected abstract void onPostParse(LastfmResponse response)
+		throws SQLException, IOException;
 
-	public void run() throws Exception
+	private HttpGet newRequest(String url)
 	{
-		System.out.println("Accessing " + getMethodUrl());
-		HttpGet request = new HttpGet(getMethodUrl());
+		HttpGet request = new HttpGet(url);
 
-		HttpResponse response = mClient.execute(request);
+		mRequest = request;
+		if (mCanceled)
+			request.abort();
 
-		if (mTask.isCancelled())
-			return;
+		return request;
+	}
+
+	/**
+	 * Executes the request, returning null if the server replied with a
+	 * permanent error. Server-side errors are considered transient and
+	 * reported as an IOException.
+	 */
+	private HttpResponse execute(HttpGet request) throws IOException
+	{
+		HttpResponse response = mClient.execute(request);
 
-		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+		int status = response.getStatusLine().getStatusCode();
+		if (status != HttpStatus.SC_OK)
 		{
-			if (LOG.isWarnEnabled())
-				LOG.warn(getMethodUrl() + " replied " + response.getStatusLine());
 			response.getEntity().consumeContent();
-			return;
+
+			if (status >= 500)
+				throw new IOException(request.getURI() + " replied " + response.getStatusLine());
+
+			if (LOG.isWarnEnabled())
+				LOG.warn(request.getURI() + " replied " + response.getStatusLine());
+
+			return null;
 		}
 
-		HttpEntity entity = response.getEntity();
-		InputStream in = entity.getContent();
+		return response;
+	}
+
+	/**
+	 * Retrieve the body at <code>url</code>, consulting the response cache
+	 * first. Returns null if the server replied with a permanent error.
+	 */
+	protected byte[] fetch(String url, long ttl) throws IOException
+	{
+		HttpResponseCache cache = getResponseCache();
+
+		byte[] data = cache.get(url);
+		if (data != null)
+			return data;
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("Fetching " + url);
+
+		HttpGet request = newRequest(url);
+		InputStream in = null;
+
+		REQUESTS.increment();
+		long start = System.nanoTime();
+		boolean success = false;
 
 		try {
-			XMLReader reader = XMLReaderFactory.createXMLReader();
-			reader.setContentHandler(getContentHandler());
-			reader.parse(new InputSource(in));
+			HttpResponse response = execute(request);
+
+			if (response == null)
+				return null;
+
+			HttpEntity entity = response.getEntity();
+
+			long length = entity.getContentLength();
+			ByteArrayOutputStream out =
+				new ByteArrayOutputStream(length > 0 ? (int)length : 4096);
+
+			in = entity.getContent();
+			IOUtils.copyStream(in, out);
+
+			data = out.toByteArray();
+			success = true;
 		} finally {
 			IOUtils.closeQuietlyNullSafe(in);
+			mRequest = null;
+
+			onRequestFinished(start, success);
 		}
 
-		if (mTask.isCancelled())
-			return;
+		putCache(url, data, ttl);
 
-		onPostParse();
+		return data;
 	}
 
-	protected byte[] downloadImage(String url) throws IOException
+	private static void onRequestFinished(long start, boolean success)
 	{
-		System.out.println("Fetching " + url);
-		HttpGet request = new HttpGet(url);
+		REQUEST_DURATION.recordSince(start);
 
-		HttpResponse response = mClient.execute(request);
+		if (success == false)
+			ERRORS.increment();
+	}
 
-		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
-		{
+	private static void putCache(String url, byte[] data, long ttl)
+	{
+		try {
+			getResponseCache().put(url, data, ttl);
+		} catch (IOException e) {
 			if (LOG.isWarnEnabled())
-				LOG.warn(url + " replied " + response.getStatusLine());
-			response.getEntity().consumeContent();
-			return null;
+				LOG.warn("Unable to cache response for " + url + ": " + e);
 		}
+	}
+
+	/**
+	 * Parse the method response straight off the wire. Once the parser has
+	 * what it needs the request is aborted rather than reading the remainder
+	 * of the document. Only the portion actually read is cached, which is
+	 * sufficient to reproduce the same result later.
+	 */
+	private LastfmResponse fetchResponse(String url) throws IOException, XMLStreamException
+	{
+		HttpResponseCache cache = getResponseCache();
 
-		HttpEntity entity = response.getEntity();
+		byte[] data = cache.get(url);
+		if (data != null)
+			return LastfmResponse.parse(new ByteArrayInputStream(data), getResponseElement());
 
-		ByteArrayOutputStream out =
-			new ByteArrayOutputStream((int)entity.getContentLength());
-		InputStream in = entity.getContent();
+		if (LOG.isDebugEnabled())
+			LOG.debug("Accessing " + url);
+
+		HttpGet request = newRequest(url);
+		RecordingInputStream in = null;
+
+		REQUESTS.increment();
+		long start = System.nanoTime();
+		boolean success = false;
 
 		try {
-			IOUtils.copyStream(in, out);
-			return out.toByteArray();
+			HttpResponse response = execute(request);
+
+			if (response == null)
+				return null;
+
+			in = new RecordingInputStream(response.getEntity().getContent());
+			LastfmResponse result = LastfmResponse.parse(in, getResponseElement());
+
+			putCache(url, in.getRecorded(), METHOD_CACHE_TTL);
+			success = true;
+
+			return result;
 		} finally {
-			IOUtils.closeQuietlyNullSafe(in);
+			if (in != null)
+			{
+				/*
+				 * Closing the entity stream would otherwise consume the rest
+				 * of the response in order to reuse the connection.
+				 */
+				if (in.isEof() == false)
+					request.abort();
+
+				IOUtils.closeQuietly(in);
+			}
+
+			mRequest = null;
+
+			onRequestFinished(start, success);
+		}
+	}
+
+	/**
+	 * Perform the lookup synchronously. Network and database errors are
+	 * thrown as IOException and SQLException respectively and are worth
+	 * trying again later. Any other exception (such as Last.fm reporting that
+	 * it does not know the artist) is final.
+	 */
+	public void run() throws Exception
+	{
+		LastfmResponse response = fetchResponse(getMethodUrl());
+
+		if (response == null || mCanceled)
+			return;
+
+		onPostParse(response);
+	}
+
+	protected byte[] downloadImage(String url) throws IOException
+	{
+		return fetch(url, IMAGE_CACHE_TTL);
+	}
+
+	/**
+	 * Keeps a copy of everything read through this stream.
+	 */
+	private static class RecordingInputStream extends FilterInputStream
+	{
+		private final ByteArrayOutputStream mRecorded = new ByteArrayOutputStream(4096);
+		private boolean mEof;
+
+		public RecordingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+
+			if (b == -1)
+				mEof = true;
+			else
+				mRecorded.write(b);
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+
+			if (n == -1)
+				mEof = true;
+			else
+				mRecorded.write(b, off, n);
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			throw new IOException("skip not supported");
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		public boolean isEof()
+		{
+			return mEof;
+		}
+
+		public byte[] getRecorded()
+		{
+			return mRecorded.toByteArray();
 		}
 	}
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Fields of interest from an artist.getInfo or album.getInfo response.
+ * Parsing stops as soon as these fields have been read, leaving the rest of
+ * the document (biography, tags, tracks, etc) unread.
+ */
+public class LastfmResponse
+{
+	/**
+	 * Shared by all tasks. Stream readers themselves are single-use, but
+	 * locating and configuring the factory is comparatively expensive.
+	 */
+	private static final XMLInputFactory FACTORY;
+
+	static {
+		FACTORY = XMLInputFactory.newInstance();
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	/**
+	 * Image sizes in increasing order of preference. The largest size,
+	 * "mega", is the unscaled original, which can be several megabytes and so
+	 * is preferred only over the tiny sizes.
+	 */
+	private static final String[] IMAGE_SIZES = {
+		"small", "medium", "mega", "large", "extralarge"
+	};
+
+	/**
+	 * Last.fm error codes which say nothing about the request itself:
+	 * service offline, temporary error and rate limit exceeded.
+	 */
+	private static final String[] TRANSIENT_ERRORS = { "11", "16", "29" };
+
+	public String name;
+	public String mbid;
+	public String imageUrl;
+
+	private LastfmResponse() {}
+
+	/**
+	 * @return Preference for an image of the given size, or -1 if the size
+	 *   is not one we know, so that it loses to any size we do.
+	 */
+	static int getImageRank(String size)
+	{
+		if (size != null)
+		{
+			for (int i = IMAGE_SIZES.length - 1; i >= 0; i--)
+			{
+				if (IMAGE_SIZES[i].equals(size))
+					return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Parse a Last.fm response document.
+	 *
+	 * @param element Name of the element holding the result (such as
+	 *            "artist" or "album").
+	 * @throws IOException If reading the stream failed, or Last.fm reported
+	 *             an error that is worth trying again later.
+	 * @throws XMLStreamException If the document is malformed or Last.fm
+	 *             reported any other error.
+	 */
+	public static LastfmResponse parse(InputStream in, String element)
+		throws IOException, XMLStreamException
+	{
+		try {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+
+			try {
+				return parse(reader, element);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			/* The parser reports errors reading the stream as its own. */
+			if (e.getNestedException() instanceof IOException)
+				throw (IOException)e.getNestedException();
+			else if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+
+			throw e;
+		}
+	}
+
+	private static boolean isTransientError(String code)
+	{
+		for (String transientCode : TRANSIENT_ERRORS)
+		{
+			if (transientCode.equals(code))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static LastfmResponse parse(XMLStreamReader reader, String element)
+		throws IOException, XMLStreamException
+	{
+		reader.nextTag();
+		reader.require(XMLStreamConstants.START_ELEMENT, null, "lfm");
+
+		if ("ok".equals(reader.getAttributeValue(null, "status")) == false)
+		{
+			String code = null;
+			String error = null;
+			if (reader.nextTag() == XMLStreamConstants.START_ELEMENT &&
+					reader.getLocalName().equals("error"))
+			{
+				code = reader.getAttributeValue(null, "code");
+				error = reader.getElementText().trim();
+			}
+
+			if (isTransientError(code) == true)
+				throw new IOException("Last.fm temporarily failed (" + code + "): " + error);
+
+			throw new XMLStreamException("Last.fm status not OK: " + error);
+		}
+
+		reader.nextTag();
+		reader.require(XMLStreamConstants.START_ELEMENT, null, element);
+
+		LastfmResponse response = new LastfmResponse();
+
+		/* An image of unknown size is still taken if it is the only one. */
+		int imageRank = Integer.MIN_VALUE;
+		boolean seenImage = false;
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+		{
+			String name = reader.getLocalName();
+
+			if (name.equals("image"))
+			{
+				seenImage = true;
+
+				int rank = getImageRank(reader.getAttributeValue(null, "size"));
+				String url = reader.getElementText().trim();
+
+				if (rank > imageRank && url.length() > 0)
+				{
+					response.imageUrl = url;
+					imageRank = rank;
+				}
+			}
+			else if (seenImage == true)
+			{
+				/*
+				 * The images are the last field we care about, everything
+				 * following is much larger and of no use to us.
+				 */
+				break;
+			}
+			else if (name.equals("name"))
+				response.name = reader.getElementText().trim();
+			else if (name.equals("mbid"))
+			{
+				String mbid = reader.getElementText().trim();
+				response.mbid = (mbid.length() > 0) ? mbid : null;
+			}
+			else
+				skipElement(reader);
+		}
+
+		return response;
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+
+		while (depth > 0)
+		{
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.devtcg.five.meta.dao.AlbumDAO;
+import org.devtcg.five.meta.dao.ArtistDAO;
+import org.devtcg.five.meta.dao.MetaJobDAO;
+import org.devtcg.five.util.CancelableThread;
+
+/**
+ * Drains the persistent queue of meta data lookups maintained by
+ * {@link MetaJobDAO}. Lookups which fail for transient reasons (network
+ * errors, Last.fm being down) are retried with exponential backoff, including
+ * across restarts.
+ */
+public class MetaFetcher
+{
+	private static final Log LOG = LogFactory.getLog(MetaFetcher.class);
+
+	private static MetaFetcher INSTANCE;
+
+	/** Delay before the first retry; doubled on each subsequent failure. */
+	private static final long MIN_RETRY_DELAY = 60 * 1000;
+
+	private static final long MAX_RETRY_DELAY = 24 * 60 * 60 * 1000;
+
+	/** Give up on a job after this many consecutive transient failures. */
+	private static final int MAX_ATTEMPTS = 10;
+
+	private FetcherThread mThread;
+
+	private MetaFetcher() {}
+
+	public static synchronized MetaFetcher getInstance()
+	{
+		if (INSTANCE == null)
+			INSTANCE = new MetaFetcher();
+
+		return INSTANCE;
+	}
+
+	public synchronized void start()
+	{
+		if (mThread != null)
+			return;
+
+		mThread = new FetcherThread(MetaProvider.getInstance());
+		mThread.start();
+	}
+
+	public void stop()
+	{
+		FetcherThread thread;
+
+		synchronized (this) {
+			thread = mThread;
+			mThread = null;
+		}
+
+		if (thread != null)
+			thread.requestCancelAndWait();
+	}
+
+	/**
+	 * Notify the fetcher that new jobs have been queued.
+	 */
+	public synchronized void wakeUp()
+	{
+		if (mThread != null)
+			mThread.wakeUp();
+	}
+
+	static long getRetryDelay(int attempts)
+	{
+		if (attempts >= 32)
+			return MAX_RETRY_DELAY;
+
+		return Math.min(MIN_RETRY_DELAY << attempts, MAX_RETRY_DELAY);
+	}
+
+	private static class FetcherThread extends CancelableThread
+	{
+		private final MetaProvider mProvider;
+
+		private final Object mLock = new Object();
+		private boolean mWakeUp;
+
+		private LastfmMetaTask mCurrentTask;
+
+		public FetcherThread(MetaProvider provider)
+		{
+			setName("MetaFetcher");
+			setPriority(Thread.MIN_PRIORITY);
+
+			mProvider = provider;
+		}
+
+		public void wakeUp()
+		{
+			synchronized (mLock) {
+				mWakeUp = true;
+				mLock.notify();
+			}
+		}
+
+		private LastfmMetaTask newTask(MetaJobDAO.MetaJobEntryDAO job)
+			throws SQLException
+		{
+			String table = job.getTable();
+			long id = job.getTableId();
+
+			if (table.equals(mProvider.getArtistDAO().getTable()))
+			{
+				ArtistDAO.ArtistEntryDAO artist = mProvider.getArtistDAO().getArtist(id);
+				if (artist == null)
+					return null;
+
+				try {
+					return new LastfmArtistPhotoTask(mProvider, id, artist.getName());
+				} finally {
+					artist.close();
+				}
+			}
+			else if (table.equals(mProvider.getAlbumDAO().getTable()))
+			{
+				AlbumDAO.AlbumEntryDAO album = mProvider.getAlbumDAO().getAlbum(id);
+				if (album == null)
+					return null;
+
+				try {
+					ArtistDAO.ArtistEntryDAO artist =
+						mProvider.getArtistDAO().getArtist(album.getArtistId());
+					if (artist == null)
+						return null;
+
+					try {
+						return new LastfmAlbumArtworkTask(mProvider, id,
+							artist.getName(), album.getName());
+					} finally {
+						artist.close();
+					}
+				} finally {
+					album.close();
+				}
+			}
+			else
+			{
+				if (LOG.isWarnEnabled())
+					LOG.warn("Unknown meta job table: " + table);
+
+				return null;
+			}
+		}
+
+		private void runJob(MetaJobDAO.MetaJobEntryDAO job) throws SQLException
+		{
+			MetaJobDAO jobDAO = mProvider.getMetaJobDAO();
+
+			long jobId = job.getId();
+			int attempts = job.getAttempts();
+
+			LastfmMetaTask task = newTask(job);
+
+			/* The row this job was meant to enrich is gone. */
+			if (task == null)
+			{
+				jobDAO.delete(jobId);
+				return;
+			}
+
+			synchronized (this) {
+				if (hasCanceled())
+					return;
+
+				mCurrentTask = task;
+			}
+
+			try {
+				task.run();
+			} catch (Exception e) {
+				if (hasCanceled())
+					return;
+
+				if ((e instanceof IOException || e instanceof SQLException) &&
+						attempts + 1 < MAX_ATTEMPTS)
+				{
+					long delay = getRetryDelay(attempts);
+
+					if (LOG.isInfoEnabled())
+						LOG.info("Lookup failed for " + job + ", retrying in " + (delay / 1000) + "s: " + e);
+
+					jobDAO.retryLater(jobId, attempts + 1,
+						System.currentTimeMillis() + delay);
+					return;
+				}
+
+				if (LOG.isWarnEnabled())
+					LOG.warn("Giving up on " + job, e);
+			} finally {
+				synchronized (this) {
+					mCurrentTask = null;
+				}
+			}
+
+			/* Canceled lookups stay in the queue to be resumed next time. */
+			if (!hasCanceled())
+				jobDAO.delete(jobId);
+		}
+
+		/**
+		 * Blocks until the next job is due, new jobs are queued, or the thread
+		 * is canceled.
+		 */
+		private void waitForJobs() throws SQLException, InterruptedException
+		{
+			long next = mProvider.getMetaJobDAO().getNextAttemptTime();
+
+			synchronized (mLock) {
+				if (mWakeUp == false)
+				{
+					if (next == -1)
+						mLock.wait();
+					else
+					{
+						long delay = next - System.currentTimeMillis();
+						if (delay > 0)
+							mLock.wait(delay);
+					}
+				}
+
+				mWakeUp = false;
+			}
+		}
+
+		public void run()
+		{
+			MetaJobDAO jobDAO = mProvider.getMetaJobDAO();
+
+			try {
+				jobDAO.countPending();
+
+				while (!hasCanceled())
+				{
+					MetaJobDAO.MetaJobEntryDAO job =
+						jobDAO.getNextJob(System.currentTimeMillis());
+
+					if (job == null)
+					{
+						waitForJobs();
+						continue;
+					}
+
+					try {
+						runJob(job);
+					} finally {
+						job.close();
+					}
+				}
+			} catch (InterruptedException e) {
+			} catch (SQLException e) {
+				if (LOG.isErrorEnabled())
+					LOG.error("Meta fetcher stopped unexpectedly", e);
+			}
+		}
+
+		@Override
+		protected void onRequestCancel()
+		{
+			synchronized (this) {
+				if (mCurrentTask != null)
+					mCurrentTask.cancel();
+			}
+
+			wakeUp();
+		}
+	}
+}
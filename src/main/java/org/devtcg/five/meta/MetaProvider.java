@@ -18,32 +18,41 @@ import java.sql.Connection;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.SyncAdapter;
+import org.devtcg.five.meta.dao.AbstractDAO;
 import org.devtcg.five.meta.dao.AlbumDAO;
 import org.devtcg.five.meta.dao.ArtistDAO;
 import org.devtcg.five.meta.dao.ImageDAO;
+import org.devtcg.five.meta.dao.MetaJobDAO;
 import org.devtcg.five.meta.dao.PlaylistDAO;
 import org.devtcg.five.meta.dao.PlaylistSongDAO;
 import org.devtcg.five.meta.dao.SongDAO;
+import org.devtcg.five.meta.dao.SyncClientDAO;
 import org.devtcg.five.persistence.DatabaseOpenHelper;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.LockableConnection;
 import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.Metrics;
 
 public class MetaProvider extends SyncableProvider
 {
 	private final DatabaseOpenHelper mHelper;
 
 	private static final String DB_NAME = "meta";
-	private static final int DB_VERSION = 16;
+	private static final int DB_VERSION = 19;
 
 	private static final MetaProvider INSTANCE = new MetaProvider(DB_NAME);
 
+	private static final String LIBRARY_ROWS = "library_rows";
+	private static final String LIBRARY_ROWS_HELP = "Rows in each feed, as of the last count";
+
 	private ArtistDAO mArtistDAO;
 	private AlbumDAO mAlbumDAO;
 	private SongDAO mSongDAO;
 	private PlaylistDAO mPlaylistDAO;
 	private PlaylistSongDAO mPlaylistSongDAO;
 	private ImageDAO mImageDAO;
+	private MetaJobDAO mMetaJobDAO;
+	private SyncClientDAO mSyncClientDAO;
 
 	protected MetaProvider(String name)
 	{
@@ -108,6 +117,22 @@ public class MetaProvider extends SyncableProvider
 		return mImageDAO;
 	}
 
+	public synchronized MetaJobDAO getMetaJobDAO()
+	{
+		if (mMetaJobDAO == null)
+			mMetaJobDAO = new MetaJobDAO(this);
+
+		return mMetaJobDAO;
+	}
+
+	public synchronized SyncClientDAO getSyncClientDAO()
+	{
+		if (mSyncClientDAO == null)
+			mSyncClientDAO = new SyncClientDAO(this);
+
+		return mSyncClientDAO;
+	}
+
 	private class OpenHelper extends DatabaseOpenHelper
 	{
 		public OpenHelper(String name, int version)
@@ -126,6 +151,8 @@ public class MetaProvider extends SyncableProvider
 			getPlaylistDAO().createTables(conn);
 			getPlaylistSongDAO().createTables(conn);
 			getImageDAO().createTables(conn);
+			getMetaJobDAO().createTables(conn);
+			getSyncClientDAO().createTables(conn);
 		}
 
 		private void onDrop(Connection conn) throws SQLException
@@ -136,6 +163,8 @@ public class MetaProvider extends SyncableProvider
 			getPlaylistDAO().dropTables(conn);
 			getPlaylistSongDAO().dropTables(conn);
 			getImageDAO().dropTables(conn);
+			getMetaJobDAO().dropTables(conn);
+			getSyncClientDAO().dropTables(conn);
 		}
 
 		@Override
@@ -145,6 +174,37 @@ public class MetaProvider extends SyncableProvider
 			onDrop(conn);
 			onCreate(conn);
 		}
+
+		@Override
+		public void onOpen(Connection conn) throws SQLException
+		{
+			/* Temporary databases shouldn't overwrite the real library's counts. */
+			if (isTemporary() == false)
+				countLibrary(conn);
+		}
+	}
+
+	/**
+	 * Count the rows of every feed into gauges, so that they can be
+	 * reported without querying the database for each request.
+	 */
+	public void countLibrary() throws SQLException
+	{
+		countLibrary(getConnection().getWrappedConnection());
+	}
+
+	private void countLibrary(Connection conn) throws SQLException
+	{
+		MetaSyncAdapter adapter = (MetaSyncAdapter)getSyncAdapter();
+
+		for (String feed : MetaSyncAdapter.FEED_NAMES)
+		{
+			int count = DatabaseUtils.integerForQuery(conn, 0,
+				"SELECT COUNT(*) FROM " + adapter.getMerger(feed).getTableName());
+
+			Metrics.getInstance().gauge(LIBRARY_ROWS, LIBRARY_ROWS_HELP,
+				"feed", feed).set(count);
+		}
 	}
 
 	@Override
@@ -153,10 +213,30 @@ public class MetaProvider extends SyncableProvider
 		return mHelper.getConnection();
 	}
 
+	@Override
+	protected long getLatestSyncTime() throws SQLException
+	{
+		AbstractDAO[] daos = new AbstractDAO[] { getArtistDAO(), getAlbumDAO(),
+			getSongDAO(), getPlaylistDAO(), getPlaylistSongDAO() };
+
+		String[] tables = new String[daos.length * 2];
+		for (int i = 0; i < daos.length; i++)
+		{
+			tables[i * 2] = daos[i].getTable();
+			tables[i * 2 + 1] = daos[i].getDeletedTable();
+		}
+
+		return getChangeNotifier().getSyncTime(tables);
+	}
+
 	@Override
 	public void close() throws SQLException
 	{
-		mHelper.close();
+		try {
+			getSyncClientDAO().flush();
+		} finally {
+			mHelper.close();
+		}
 	}
 
 	@Override
@@ -14,11 +14,23 @@
 
 package org.devtcg.five.meta;
 
+import java.sql.SQLException;
+import java.util.HashSet;
+
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncAdapter;
+import org.devtcg.five.content.AbstractTableMerger.Reference;
+import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.LongArrayList;
 
 public class MetaSyncAdapter extends SyncAdapter<MetaProvider>
 {
+	/** Names of all feeds, as accepted by {@link #getMerger}. */
+	public static final String[] FEED_NAMES = {
+		"artists", "albums", "songs", "playlists", "playlistSongs"
+	};
+
 	public MetaSyncAdapter(MetaProvider provider)
 	{
 		super(provider);
@@ -39,4 +51,84 @@ public class MetaSyncAdapter extends SyncAdapter<MetaProvider>
 
 		return null;
 	}
+
+	/**
+	 * Make every row collected into <code>clientDiffs</code> refer only to
+	 * rows the client will have once it has applied them. Rows are updated
+	 * in place, so a row read up to <code>horizon</code> may refer to one
+	 * which has since been updated or deleted, and was therefore skipped.
+	 * Such a row is copied in at its current version if it still exists;
+	 * otherwise the rows referring to it are left out, to be sent once they
+	 * have been changed in turn.
+	 *
+	 * @param mergers Merger of each feed, in the order of
+	 *            {@link #FEED_NAMES}, whose changes have been collected.
+	 * @param since Time each feed was collected from.
+	 */
+	public static void resolveReferences(SyncableProvider clientDiffs,
+		AbstractTableMerger[] mergers, long[] since, long horizon, FeedQuery query)
+		throws SQLException
+	{
+		/* Never copied back in, lest a row and its dependents go round forever. */
+		HashSet<String> removed = new HashSet<String>();
+
+		boolean changed;
+		do {
+			changed = false;
+
+			/* Dependents first, so that rows copied in are checked in turn. */
+			for (int i = mergers.length - 1; i >= 0; i--)
+			{
+				Reference[] references = mergers[i].getReferences();
+				if (references == null)
+					continue;
+
+				for (Reference reference : references)
+				{
+					int parentIndex = indexOfTable(mergers, reference.table);
+					AbstractTableMerger parent = mergers[parentIndex];
+
+					LongArrayList missing = mergers[i].findMissingReferences(clientDiffs,
+						reference);
+
+					for (int j = 0; j < missing.size(); j++)
+					{
+						long id = missing.get(j);
+
+						long syncTime = -1;
+						if (removed.contains(reference.table + ':' + id) == false)
+							syncTime = parent.getSyncTime(id);
+
+						/* The client has it already. */
+						if (syncTime >= 0 && syncTime <= since[parentIndex])
+							continue;
+
+						if (syncTime > horizon)
+							parent.copyRow(clientDiffs, id, query);
+						else
+						{
+							LongArrayList ids = mergers[i].removeReferencing(clientDiffs,
+								reference, id);
+
+							for (int k = 0; k < ids.size(); k++)
+								removed.add(mergers[i].getTableName() + ':' + ids.get(k));
+						}
+
+						changed = true;
+					}
+				}
+			}
+		} while (changed == true);
+	}
+
+	private static int indexOfTable(AbstractTableMerger[] mergers, String table)
+	{
+		for (int i = 0; i < mergers.length; i++)
+		{
+			if (mergers[i].getTableName().equals(table))
+				return i;
+		}
+
+		throw new IllegalArgumentException("No feed for table " + table);
+	}
 }
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.devtcg.five.util.IOUtils;
+
+/**
+ * Append-only file of previously parsed song tags, keyed by path and
+ * validated against the file's size and modification time. Files found not
+ * to be songs are recorded too, so that they aren't read on every scan. It
+ * lives outside of the database so that a schema upgrade (which drops every
+ * table) can be followed by a rescan that doesn't need to parse any
+ * unchanged file again.
+ * <p>
+ * Each record supersedes any earlier record for the same path. The file is
+ * rewritten without the superseded records once they make up a large enough
+ * fraction of it.
+ */
+public class TagCache
+{
+	private static final Log LOG = LogFactory.getLog(TagCache.class);
+
+	private static final int MAGIC = 0x46544332; /* FTC2 */
+
+	/**
+	 * Compact when the file holds this many times more records than there
+	 * are live entries.
+	 */
+	private static final int COMPACT_RATIO = 2;
+
+	private final File mFile;
+
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	/** Number of records in the file, including superseded ones. */
+	private int mRecordCount;
+
+	private DataOutputStream mOut;
+
+	public static class Entry
+	{
+		final long size;
+		final long mtime;
+
+		public final String mimeType;
+		public final String artist;
+		public final String album;
+		public final String title;
+		public final long bitrate;
+		public final int length;
+		public final int track;
+
+		/** Whether the tag holds embedded artwork. */
+		public final boolean hasArtwork;
+
+		/** Set if this entry was looked up during the current scan. */
+		boolean seen;
+
+		public Entry(long size, long mtime, String mimeType, String artist,
+			String album, String title, long bitrate, int length, int track,
+			boolean hasArtwork)
+		{
+			this.size = size;
+			this.mtime = mtime;
+			this.mimeType = mimeType;
+			this.artist = artist;
+			this.album = album;
+			this.title = title;
+			this.bitrate = bitrate;
+			this.length = length;
+			this.track = track;
+			this.hasArtwork = hasArtwork;
+		}
+
+		/**
+		 * @return An entry recording that the file is not a song, which
+		 *   {@link #isSong} reports.
+		 */
+		public static Entry newNotSong(long size, long mtime)
+		{
+			return new Entry(size, mtime, null, null, null, null, 0, 0, 0, false);
+		}
+
+		public boolean isSong()
+		{
+			return mimeType != null;
+		}
+
+		private static Entry readFrom(DataInputStream in) throws IOException
+		{
+			Entry entry = new Entry(in.readLong(), in.readLong(), in.readUTF(),
+				in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(),
+				in.readInt(), in.readInt(), in.readBoolean());
+
+			/* Written with empty strings in place of the null fields. */
+			if (entry.mimeType.length() == 0)
+				return newNotSong(entry.size, entry.mtime);
+
+			return entry;
+		}
+
+		private static String emptyIfNull(String value)
+		{
+			return (value != null) ? value : "";
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.writeUTF(emptyIfNull(mimeType));
+			out.writeUTF(emptyIfNull(artist));
+			out.writeUTF(emptyIfNull(album));
+			out.writeUTF(emptyIfNull(title));
+			out.writeLong(bitrate);
+			out.writeInt(length);
+			out.writeInt(track);
+			out.writeBoolean(hasArtwork);
+		}
+	}
+
+	public TagCache(File file)
+	{
+		mFile = file;
+	}
+
+	/**
+	 * Read all records from disk and prepare to append new ones.
+	 */
+	public synchronized void open()
+	{
+		mEntries.clear();
+		mRecordCount = 0;
+
+		boolean valid = load();
+
+		try {
+			if (valid == false)
+				rewrite();
+			else
+			{
+				mOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(mFile, true)));
+			}
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled())
+				LOG.warn("Unable to open tag cache " + mFile + ": " + e);
+		}
+	}
+
+	/**
+	 * @return False if the file is missing or damaged and must be rewritten.
+	 */
+	private boolean load()
+	{
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+
+		try {
+			if (in.readInt() != MAGIC)
+				return false;
+
+			while (true)
+			{
+				String path;
+				try {
+					path = in.readUTF();
+				} catch (EOFException e) {
+					return true;
+				}
+
+				mEntries.put(path, Entry.readFrom(in));
+				mRecordCount++;
+			}
+		} catch (IOException e) {
+			/*
+			 * Most likely a partial record written just before a crash. Keep
+			 * what we have read so far.
+			 */
+			if (LOG.isWarnEnabled())
+				LOG.warn("Tag cache " + mFile + " is damaged, rewriting: " + e);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Replace the file with one holding exactly the live entries.
+	 */
+	private void rewrite() throws IOException
+	{
+		if (mOut != null)
+		{
+			IOUtils.closeQuietly(mOut);
+			mOut = null;
+		}
+
+		File temp = new File(mFile.getPath() + ".tmp");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temp)));
+
+		try {
+			out.writeInt(MAGIC);
+
+			for (Map.Entry<String, Entry> entry : mEntries.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				entry.getValue().writeTo(out);
+			}
+		} finally {
+			out.close();
+		}
+
+		mFile.delete();
+		if (temp.renameTo(mFile) == false)
+			throw new IOException("Unable to rename " + temp + " to " + mFile);
+
+		mRecordCount = mEntries.size();
+
+		mOut = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(mFile, true)));
+	}
+
+	/**
+	 * Look up the cached tags for a file.
+	 *
+	 * @return The cached tags, or null if the file is not in the cache or has
+	 *         changed since it was cached.
+	 */
+	public synchronized Entry get(File file)
+	{
+		Entry entry = mEntries.get(file.getAbsolutePath());
+		if (entry == null)
+			return null;
+
+		if (entry.size != file.length() || entry.mtime != file.lastModified())
+			return null;
+
+		entry.seen = true;
+		return entry;
+	}
+
+	/**
+	 * Note that a file is still present in the library, without needing its
+	 * tags. Entries not seen during a scan are dropped by {@link #close}.
+	 */
+	public synchronized void touch(File file)
+	{
+		Entry entry = mEntries.get(file.getAbsolutePath());
+		if (entry != null)
+			entry.seen = true;
+	}
+
+	public synchronized void put(File file, Entry entry)
+	{
+		String path = file.getAbsolutePath();
+
+		entry.seen = true;
+		mEntries.put(path, entry);
+
+		if (mOut == null)
+			return;
+
+		try {
+			mOut.writeUTF(path);
+			entry.writeTo(mOut);
+			mRecordCount++;
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled())
+				LOG.warn("Unable to write to tag cache " + mFile + ": " + e);
+			IOUtils.closeQuietly(mOut);
+			mOut = null;
+		}
+	}
+
+	/**
+	 * Flush pending writes and release the file. Compacts the file if it has
+	 * accumulated enough superseded records.
+	 *
+	 * @param complete True if every file in the library was visited since
+	 *            {@link #open}, in which case entries for files which were
+	 *            not seen are discarded.
+	 */
+	public synchronized void close(boolean complete)
+	{
+		if (complete == true)
+		{
+			Iterator<Entry> i = mEntries.values().iterator();
+			while (i.hasNext())
+			{
+				if (i.next().seen == false)
+					i.remove();
+			}
+		}
+
+		try {
+			if (mRecordCount > mEntries.size() * COMPACT_RATIO)
+				rewrite();
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled())
+				LOG.warn("Unable to compact tag cache " + mFile + ": " + e);
+		}
+
+		if (mOut != null)
+		{
+			IOUtils.closeQuietly(mOut);
+			mOut = null;
+		}
+
+		mEntries.clear();
+	}
+
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+}
@@ -14,17 +14,23 @@
 
 package org.devtcg.five.meta.dao;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.content.AbstractTableMerger.SyncableColumns;
+import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.DeleteHelper;
 import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.LongArrayList;
+
+import com.google.protobuf.CodedOutputStream;
 
 public abstract class AbstractDAO
 {
@@ -96,11 +102,33 @@ public abstract class AbstractDAO
 		{
 			mDeleter = new DeleteHelper(mProvider.getConnection().getWrappedConnection(),
 					getTable(), getDeletedTable());
+			mDeleter.setChangeNotifier(mProvider.getChangeNotifier());
+			mDeleter.setSyncClock(mProvider.getSyncClock());
 		}
 
 		return mDeleter;
 	}
 
+	/**
+	 * Take a sync time for a write to this DAO's table. Every method which
+	 * sets _sync_time must do so, and must pass the time to
+	 * {@link #endWrite} once the write is complete (or has failed).
+	 */
+	protected long beginWrite() throws SQLException
+	{
+		return mProvider.getSyncClock().acquire();
+	}
+
+	/**
+	 * Release the sync time taken by {@link #beginWrite}, and publish the
+	 * write to clients waiting for changes.
+	 */
+	protected void endWrite(long syncTime) throws SQLException
+	{
+		mProvider.getSyncClock().release(syncTime);
+		mProvider.getChangeNotifier().notifyChange(getTable(), syncTime);
+	}
+
 	/**
 	 * Utility for constructing queries that involve multiple tables.
 	 */
@@ -119,21 +147,54 @@ public abstract class AbstractDAO
 		getDeleteHelper().delete(id);
 	}
 
-	protected void updateColumn(long id, String column, String value) throws SQLException
+	/**
+	 * Delete all of the given rows in a single transaction.
+	 */
+	public void delete(LongArrayList ids) throws SQLException
+	{
+		getDeleteHelper().delete(ids.getArray(), 0, ids.size());
+	}
+
+	/**
+	 * Collect the ids from every row of <code>entries</code>, closing it
+	 * afterwards. Useful to avoid modifying a table while iterating over it.
+	 */
+	protected static LongArrayList collectIds(SyncableEntryDAO entries) throws SQLException
 	{
-		long now = System.currentTimeMillis();
+		LongArrayList ids = new LongArrayList();
+
+		try {
+			while (entries.moveToNext())
+				ids.add(entries.getId());
+		} finally {
+			entries.close();
+		}
 
-		DatabaseUtils.execute(mProvider.getConnection().getWrappedConnection(),
-				"UPDATE " + getTable() + " SET " +
-				column + " = ?, " +
-				BaseColumns._SYNC_TIME + " = ? " +
-				"WHERE " + BaseColumns._ID + " = ?", value, String.valueOf(now), String.valueOf(id));
+		return ids;
+	}
+
+	protected void updateColumn(long id, String column, String value) throws SQLException
+	{
+		long now = beginWrite();
+		try {
+			DatabaseUtils.execute(mProvider.getConnection().getWrappedConnection(),
+					"UPDATE " + getTable() + " SET " +
+					column + " = ?, " +
+					BaseColumns._SYNC_TIME + " = ? " +
+					"WHERE " + BaseColumns._ID + " = ?", value, String.valueOf(now), String.valueOf(id));
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	protected static abstract class AbstractSyncableEntryDAO implements SyncableEntryDAO
 	{
 		protected final ResultSet mSet;
 
+		private RecordEncoder mEncoder;
+
+		private FeedQuery mFieldMask;
+
 		protected static ResultSet getResultSet(SyncableProvider provider, String table)
 			throws SQLException
 		{
@@ -159,6 +220,42 @@ public abstract class AbstractDAO
 			return mSet.next();
 		}
 
+		public void setFieldMask(FeedQuery query)
+		{
+			mFieldMask = query;
+		}
+
+		/**
+		 * @return True if the optional field should be included in entries.
+		 */
+		protected boolean includesField(String field)
+		{
+			return mFieldMask == null || mFieldMask.includesField(field);
+		}
+
+		/**
+		 * @return Encoder to be reused for every row of this result set.
+		 */
+		RecordEncoder getEncoder()
+		{
+			if (mEncoder == null)
+				mEncoder = new RecordEncoder();
+
+			return mEncoder;
+		}
+
+		/**
+		 * Falls back to serializing {@link #getEntry}. Subclasses which are
+		 * sent in bulk should override this to encode the columns directly
+		 * using {@link #getEncoder}.
+		 */
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			Protos.Record entry = getEntry();
+			out.writeRawLittleEndian32(entry.getSerializedSize());
+			entry.writeTo(out);
+		}
+
 		protected static abstract class Creator<T extends AbstractSyncableEntryDAO>
 		{
 			public T newInstance(ResultSet set) throws SQLException
@@ -14,12 +14,16 @@
 
 package org.devtcg.five.meta.dao;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.AbstractTableMerger.OptionalColumn;
+import org.devtcg.five.content.AbstractTableMerger.Reference;
 import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.meta.data.Protos.Record;
@@ -29,6 +33,8 @@ import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
 import org.devtcg.five.util.StringUtils;
 
+import com.google.protobuf.CodedOutputStream;
+
 public class AlbumDAO extends AbstractDAO
 {
 	static final String TABLE = "albums";
@@ -131,14 +137,18 @@ public class AlbumDAO extends AbstractDAO
 
 		helper.prepareForInsert();
 
-		long now = System.currentTimeMillis();
-		helper.bind(Columns._SYNC_TIME, now);
-		helper.bind(Columns.ARTIST_ID, artistId);
-		helper.bind(Columns.NAME, name);
-		helper.bind(Columns.NAME_MATCH, StringUtils.getNameMatch(name));
-		helper.bind(Columns.DISCOVERY_DATE, now);
-
-		return helper.insert();
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			helper.bind(Columns.ARTIST_ID, artistId);
+			helper.bind(Columns.NAME, name);
+			helper.bind(Columns.NAME_MATCH, StringUtils.getNameMatch(name));
+			helper.bind(Columns.DISCOVERY_DATE, now);
+
+			return helper.insert();
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	public void updateMbid(long id, String mbid) throws SQLException
@@ -170,6 +180,18 @@ public class AlbumDAO extends AbstractDAO
 		private final int mColumnDiscoveryDate;
 		private final int mColumnReleaseDate;
 
+		/* Optional fields, as named in Protos.proto. */
+		static final String FIELD_MBID = "mbid";
+
+		public static final String CONTENT_TYPE = "application/vnd.five.album";
+
+		private static final int TYPE = Protos.Record.Type.ALBUM.getNumber();
+		private static final int TAG_ID = RecordEncoder.varintTag(1);
+		private static final int TAG_SYNC_TIME = RecordEncoder.varintTag(2);
+		private static final int TAG_ARTIST_ID = RecordEncoder.varintTag(3);
+		private static final int TAG_MBID = RecordEncoder.stringTag(4);
+		private static final int TAG_NAME = RecordEncoder.stringTag(5);
+
 		private static final Creator<AlbumEntryDAO> CREATOR = new Creator<AlbumEntryDAO>()
 		{
 			@Override
@@ -237,7 +259,7 @@ public class AlbumDAO extends AbstractDAO
 
 		public String getContentType()
 		{
-			return "application/vnd.five.album";
+			return CONTENT_TYPE;
 		}
 
 		public Record getEntry() throws SQLException
@@ -247,7 +269,7 @@ public class AlbumDAO extends AbstractDAO
 			builder.setSyncTime(getSyncTime());
 			builder.setArtistId(getArtistId());
 			String mbid = getMbid();
-			if (mbid != null)
+			if (mbid != null && includesField(FIELD_MBID))
 				builder.setMbid(getMbid());
 			builder.setName(getName());
 
@@ -256,6 +278,21 @@ public class AlbumDAO extends AbstractDAO
 				.setAlbum(builder.build()).build();
 		}
 
+		@Override
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			RecordEncoder encoder = getEncoder();
+			encoder.begin();
+			encoder.addVarint(TAG_ID, getId());
+			encoder.addVarint(TAG_SYNC_TIME, getSyncTime());
+			encoder.addVarint(TAG_ARTIST_ID, getArtistId());
+			String mbid = getMbid();
+			if (mbid != null && includesField(FIELD_MBID))
+				encoder.addString(TAG_MBID, mbid);
+			encoder.addString(TAG_NAME, getName());
+			encoder.writeTo(out, TYPE);
+		}
+
 		public String toString()
 		{
 			try {
@@ -266,6 +303,14 @@ public class AlbumDAO extends AbstractDAO
 		}
 	}
 
+	private static final OptionalColumn[] OPTIONAL_COLUMNS = {
+		new OptionalColumn(AlbumEntryDAO.FIELD_MBID, Columns.MBID),
+	};
+
+	private static final Reference[] REFERENCES = {
+		new Reference(Columns.ARTIST_ID, ArtistDAO.TABLE),
+	};
+
 	public class TableMerger extends AbstractTableMerger
 	{
 		public TableMerger()
@@ -273,6 +318,35 @@ public class AlbumDAO extends AbstractDAO
 			super((SyncableProvider)getProvider(), TABLE, DELETED_TABLE);
 		}
 
+		@Override
+		protected OptionalColumn[] getOptionalColumns()
+		{
+			return OPTIONAL_COLUMNS;
+		}
+
+		@Override
+		public Reference[] getReferences()
+		{
+			return REFERENCES;
+		}
+
+		@Override
+		protected String getPredicateSelection(String predicate, long id)
+		{
+			if (predicate.equals(FeedQuery.ARTIST_ID))
+				return Columns.ARTIST_ID + " = " + id;
+			else if (predicate.equals(FeedQuery.ALBUM_ID))
+				return Columns._ID + " = " + id;
+
+			return null;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return AlbumEntryDAO.CONTENT_TYPE;
+		}
+
 		@Override
 		public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs) throws SQLException
 		{
@@ -14,12 +14,15 @@
 
 package org.devtcg.five.meta.dao;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.AbstractTableMerger.OptionalColumn;
 import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.persistence.DatabaseUtils;
@@ -28,9 +31,11 @@ import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
 import org.devtcg.five.util.StringUtils;
 
+import com.google.protobuf.CodedOutputStream;
+
 public class ArtistDAO extends AbstractDAO
 {
-	private static final String TABLE = "artists";
+	static final String TABLE = "artists";
 	private static final String DELETED_TABLE = "artists_deleted";
 
 	public interface Columns extends BaseColumns
@@ -122,13 +127,17 @@ public class ArtistDAO extends AbstractDAO
 
 		helper.prepareForInsert();
 
-		long now = System.currentTimeMillis();
-		helper.bind(Columns._SYNC_TIME, now);
-		helper.bind(Columns.NAME, name);
-		helper.bind(Columns.NAME_MATCH, StringUtils.getNameMatch(name));
-		helper.bind(Columns.DISCOVERY_DATE, now);
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			helper.bind(Columns.NAME, name);
+			helper.bind(Columns.NAME_MATCH, StringUtils.getNameMatch(name));
+			helper.bind(Columns.DISCOVERY_DATE, now);
 
-		return helper.insert();
+			return helper.insert();
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	public void updateMbid(long id, String mbid) throws SQLException
@@ -156,6 +165,19 @@ public class ArtistDAO extends AbstractDAO
 		private final int mColumnNameMatch;
 		private final int mColumnDiscoveryDate;
 
+		/* Optional fields, as named in Protos.proto. */
+		static final String FIELD_MBID = "mbid";
+		static final String FIELD_DISCOVERY_DATE = "discoveryDate";
+
+		public static final String CONTENT_TYPE = "application/vnd.five.artist";
+
+		private static final int TYPE = Protos.Record.Type.ARTIST.getNumber();
+		private static final int TAG_ID = RecordEncoder.varintTag(1);
+		private static final int TAG_SYNC_TIME = RecordEncoder.varintTag(2);
+		private static final int TAG_MBID = RecordEncoder.stringTag(3);
+		private static final int TAG_NAME = RecordEncoder.stringTag(4);
+		private static final int TAG_DISCOVERY_DATE = RecordEncoder.varintTag(5);
+
 		private static final Creator<ArtistEntryDAO> CREATOR = new Creator<ArtistEntryDAO>()
 		{
 			@Override
@@ -221,7 +243,7 @@ public class ArtistDAO extends AbstractDAO
 
 		public String getContentType()
 		{
-			return "application/vnd.five.artist";
+			return CONTENT_TYPE;
 		}
 
 		public Protos.Record getEntry() throws SQLException
@@ -230,16 +252,33 @@ public class ArtistDAO extends AbstractDAO
 			builder.setId(getId());
 			builder.setSyncTime(getSyncTime());
 			String mbid = getMbid();
-			if (mbid != null)
+			if (mbid != null && includesField(FIELD_MBID))
 				builder.setMbid(getMbid());
 			builder.setName(getName());
-			builder.setDiscoveryDate(getDiscoveryDate());
+			if (includesField(FIELD_DISCOVERY_DATE))
+				builder.setDiscoveryDate(getDiscoveryDate());
 
 			return Protos.Record.newBuilder()
 				.setType(Protos.Record.Type.ARTIST)
 				.setArtist(builder.build()).build();
 		}
 
+		@Override
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			RecordEncoder encoder = getEncoder();
+			encoder.begin();
+			encoder.addVarint(TAG_ID, getId());
+			encoder.addVarint(TAG_SYNC_TIME, getSyncTime());
+			String mbid = getMbid();
+			if (mbid != null && includesField(FIELD_MBID))
+				encoder.addString(TAG_MBID, mbid);
+			encoder.addString(TAG_NAME, getName());
+			if (includesField(FIELD_DISCOVERY_DATE))
+				encoder.addVarint(TAG_DISCOVERY_DATE, getDiscoveryDate());
+			encoder.writeTo(out, TYPE);
+		}
+
 		public String toString()
 		{
 			try {
@@ -250,6 +289,11 @@ public class ArtistDAO extends AbstractDAO
 		}
 	}
 
+	private static final OptionalColumn[] OPTIONAL_COLUMNS = {
+		new OptionalColumn(ArtistEntryDAO.FIELD_MBID, Columns.MBID),
+		new OptionalColumn(ArtistEntryDAO.FIELD_DISCOVERY_DATE, Columns.DISCOVERY_DATE),
+	};
+
 	public class TableMerger extends AbstractTableMerger
 	{
 		public TableMerger()
@@ -257,6 +301,27 @@ public class ArtistDAO extends AbstractDAO
 			super((SyncableProvider)getProvider(), TABLE, DELETED_TABLE);
 		}
 
+		@Override
+		protected OptionalColumn[] getOptionalColumns()
+		{
+			return OPTIONAL_COLUMNS;
+		}
+
+		@Override
+		protected String getPredicateSelection(String predicate, long id)
+		{
+			if (predicate.equals(FeedQuery.ARTIST_ID))
+				return Columns._ID + " = " + id;
+
+			return null;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return ArtistEntryDAO.CONTENT_TYPE;
+		}
+
 		@Override
 		public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs) throws SQLException
 		{
@@ -17,6 +17,8 @@ package org.devtcg.five.meta.dao;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -30,11 +32,22 @@ import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
 import org.devtcg.five.util.ImageUtils;
+import org.devtcg.five.util.Metrics;
+import org.devtcg.five.util.StringUtils;
 
 public class ImageDAO extends AbstractDAO
 {
 	private static final String TABLE = "images";
 
+	/*
+	 * Scaled images are kept alongside the originals, so the table acts as a
+	 * cache of every size requested.
+	 */
+	private static final Metrics.Counter SCALED_HITS = Metrics.getInstance().counter(
+		"image_cache_hits_total", "Image requests answered with an image of that size");
+	private static final Metrics.Counter SCALED_MISSES = Metrics.getInstance().counter(
+		"image_cache_misses_total", "Image requests which had to be scaled, or had no image");
+
 	public interface Columns extends BaseColumns
 	{
 		/** Whether this row refers to an artist photo or album artwork. */
@@ -45,6 +58,9 @@ public class ImageDAO extends AbstractDAO
 		public static final String HEIGHT = "height";
 
 		public static final String DATA = "data";
+
+		/** SHA-1 of the image data, used to avoid storing duplicates. */
+		public static final String HASH = "hash";
 	}
 
 	public ImageDAO(Provider provider)
@@ -75,11 +91,15 @@ public class ImageDAO extends AbstractDAO
 			Columns.TABLE_ID + " INTEGER NOT NULL, " +
 			Columns.WIDTH + " INTEGER NOT NULL, " +
 			Columns.HEIGHT + " INTEGER NOT NULL, " +
-			Columns.DATA + " BINARY NOT NULL " +
+			Columns.DATA + " BINARY NOT NULL, " +
+			Columns.HASH + " VARCHAR " +
 		")");
 		DatabaseUtils.execute(conn, "CREATE INDEX " +
 			"idx_" + Columns.TABLE + " ON " + TABLE +
 			" (" + Columns.TABLE + ", " + Columns.TABLE_ID + ")");
+		DatabaseUtils.execute(conn, "CREATE INDEX " +
+			"idx_" + Columns.HASH + " ON " + TABLE +
+			" (" + Columns.HASH + ")");
 	}
 
 	@Override
@@ -138,7 +158,12 @@ public class ImageDAO extends AbstractDAO
 	{
 		ImageEntryDAO exactMatch = getImageAtSize(table, tableId, width, height);
 		if (exactMatch != null)
+		{
+			SCALED_HITS.increment();
 			return exactMatch;
+		}
+
+		SCALED_MISSES.increment();
 
 		ImageEntryDAO largestAvailable = getLargestImage(table, tableId);
 		if (largestAvailable == null)
@@ -161,13 +186,70 @@ public class ImageDAO extends AbstractDAO
 		}
 	}
 
+	/**
+	 * Tests whether any image exists for the given row.
+	 */
+	public boolean hasImage(String table, long tableId) throws SQLException
+	{
+		return DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			-1, "SELECT " + Columns._ID + " FROM " + TABLE + " WHERE " +
+				Columns.TABLE + " = ? AND " + Columns.TABLE_ID + " = ? LIMIT 1",
+			table, String.valueOf(tableId)) != -1;
+	}
+
+	private long getImageIdByHash(String table, long tableId, String hash)
+		throws SQLException
+	{
+		return DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			-1, "SELECT " + Columns._ID + " FROM " + TABLE + " WHERE " +
+				Columns.HASH + " = ? AND " + Columns.TABLE + " = ? AND " +
+				Columns.TABLE_ID + " = ? LIMIT 1",
+			hash, table, String.valueOf(tableId));
+	}
+
+	private static String getHash(byte[] data)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return StringUtils.byteArrayToHexString(md.digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Insert an image in its original size. If an identical image already
+	 * exists for this row, no new row is inserted and the existing id is
+	 * returned.
+	 *
+	 * @throws IOException If the image data could not be decoded.
+	 */
 	public long insert(String table, long tableId, byte[] data) throws SQLException, IOException
 	{
+		String hash = getHash(data);
+
+		long existingId = getImageIdByHash(table, tableId, hash);
+		if (existingId != -1)
+			return existingId;
+
 		BufferedImage buf = ImageIO.read(new ByteArrayInputStream(data));
-		return insert(table, tableId, buf.getWidth(), buf.getHeight(), data);
+		if (buf == null)
+			throw new IOException("Unsupported image format");
+
+		return insert(table, tableId, buf.getWidth(), buf.getHeight(), data, hash);
 	}
 
 	public long insert(String table, long tableId, int width, int height, byte[] data) throws SQLException
+	{
+		return insert(table, tableId, width, height, data, getHash(data));
+	}
+
+	/*
+	 * Synchronized because the insert helper is shared, and scaled images are
+	 * inserted from whichever server thread first requests that size.
+	 */
+	private synchronized long insert(String table, long tableId, int width, int height,
+		byte[] data, String hash) throws SQLException
 	{
 		InsertHelper helper = getInsertHelper();
 
@@ -180,6 +262,7 @@ public class ImageDAO extends AbstractDAO
 		helper.bind(Columns.WIDTH, width);
 		helper.bind(Columns.HEIGHT, height);
 		helper.bind(Columns.DATA, data);
+		helper.bind(Columns.HASH, hash);
 
 		return helper.insert();
 	}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.meta.data.Protos;
+import org.devtcg.five.persistence.DatabaseUtils;
+import org.devtcg.five.persistence.InsertHelper;
+import org.devtcg.five.persistence.Provider;
+import org.devtcg.five.util.Metrics;
+
+/**
+ * Persistent queue of pending meta data lookups (artist photos, album
+ * artwork, etc). Rows survive restarts and canceled scans so that network
+ * enrichment eventually completes without requiring the files to be scanned
+ * again.
+ */
+public class MetaJobDAO extends AbstractDAO
+{
+	private static final String TABLE = "meta_jobs";
+
+	/**
+	 * Kept up to date as jobs come and go, so that the depth of the queue
+	 * can be reported without a query. Seeded by {@link #countPending}.
+	 */
+	private static final Metrics.Gauge PENDING = Metrics.getInstance().gauge(
+		"meta_jobs_pending", "Metadata lookups queued by the crawler and not yet completed");
+
+	public interface Columns extends BaseColumns
+	{
+		/** Table of the row this job is meant to enrich (artists or albums). */
+		public static final String TABLE = "target_table";
+		public static final String TABLE_ID = "target_id";
+
+		/** Number of failed attempts so far. */
+		public static final String ATTEMPTS = "attempts";
+
+		/** Earliest time at which this job should be attempted (again). */
+		public static final String NEXT_ATTEMPT = "next_attempt";
+	}
+
+	public MetaJobDAO(Provider provider)
+	{
+		super(provider);
+	}
+
+	@Override
+	public String getTable()
+	{
+		return TABLE;
+	}
+
+	@Override
+	public String getDeletedTable()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void createTables(Connection conn) throws SQLException
+	{
+		DatabaseUtils.execute(conn, "CREATE TABLE " + TABLE + " (" +
+			Columns._ID + " INTEGER IDENTITY, " +
+			Columns.TABLE + " VARCHAR NOT NULL, " +
+			Columns.TABLE_ID + " INTEGER NOT NULL, " +
+			Columns.ATTEMPTS + " INTEGER DEFAULT 0 NOT NULL, " +
+			Columns.NEXT_ATTEMPT + " BIGINT NOT NULL " +
+		")");
+		DatabaseUtils.execute(conn, "CREATE UNIQUE INDEX " +
+			"idx_job_" + Columns.TABLE + " ON " + TABLE +
+			" (" + Columns.TABLE + ", " + Columns.TABLE_ID + ")");
+		DatabaseUtils.execute(conn, "CREATE INDEX " +
+			"idx_job_" + Columns.NEXT_ATTEMPT + " ON " + TABLE +
+			" (" + Columns.NEXT_ATTEMPT + ")");
+	}
+
+	@Override
+	public void dropTables(Connection conn) throws SQLException
+	{
+		DatabaseUtils.execute(conn, "DROP TABLE IF EXISTS " + TABLE);
+	}
+
+	/**
+	 * Queue a lookup for the given row. Does nothing if a job for this row is
+	 * already pending.
+	 */
+	public synchronized void enqueue(String table, long tableId) throws SQLException
+	{
+		long existing = DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			-1, "SELECT " + Columns._ID + " FROM " + TABLE + " WHERE " +
+				Columns.TABLE + " = ? AND " + Columns.TABLE_ID + " = ?",
+			table, String.valueOf(tableId));
+
+		if (existing != -1)
+			return;
+
+		InsertHelper helper = getInsertHelper();
+
+		helper.prepareForInsert();
+		helper.bind(Columns.TABLE, table);
+		helper.bind(Columns.TABLE_ID, tableId);
+		helper.bind(Columns.ATTEMPTS, 0);
+		helper.bind(Columns.NEXT_ATTEMPT, System.currentTimeMillis());
+		helper.insert();
+
+		PENDING.increment();
+	}
+
+	/**
+	 * Returns the job which is most overdue as of <code>now</code>, or null if
+	 * no jobs are ready to run.
+	 */
+	public MetaJobEntryDAO getNextJob(long now) throws SQLException
+	{
+		ResultSet set = DatabaseUtils.executeForResult(mProvider.getConnection().getWrappedConnection(),
+			"SELECT * FROM " + TABLE + " WHERE " + Columns.NEXT_ATTEMPT + " <= ? " +
+			"ORDER BY " + Columns.NEXT_ATTEMPT + " LIMIT 1",
+			String.valueOf(now));
+
+		return MetaJobEntryDAO.newInstance(set);
+	}
+
+	/**
+	 * Returns the time at which the next job is scheduled to run, or -1 if
+	 * the queue is empty.
+	 */
+	public long getNextAttemptTime() throws SQLException
+	{
+		return DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			-1, "SELECT MIN(" + Columns.NEXT_ATTEMPT + ") FROM " + TABLE);
+	}
+
+	public int getCount() throws SQLException
+	{
+		return DatabaseUtils.integerForQuery(mProvider.getConnection().getWrappedConnection(),
+			0, "SELECT COUNT(*) FROM " + TABLE);
+	}
+
+	/**
+	 * Count the jobs left over from a previous run into the
+	 * "meta_jobs_pending" gauge. Called once, before jobs are processed.
+	 */
+	public synchronized void countPending() throws SQLException
+	{
+		PENDING.set(getCount());
+	}
+
+	public void retryLater(long id, int attempts, long nextAttempt) throws SQLException
+	{
+		DatabaseUtils.execute(mProvider.getConnection().getWrappedConnection(),
+			"UPDATE " + TABLE + " SET " +
+			Columns.ATTEMPTS + " = ?, " +
+			Columns.NEXT_ATTEMPT + " = ? " +
+			"WHERE " + Columns._ID + " = ?",
+			String.valueOf(attempts), String.valueOf(nextAttempt), String.valueOf(id));
+	}
+
+	/**
+	 * Jobs are not synchronized with clients, so no deleted log is kept.
+	 */
+	@Override
+	public void delete(long id) throws SQLException
+	{
+		int rows = DatabaseUtils.update(mProvider.getConnection().getWrappedConnection(),
+			"DELETE FROM " + TABLE + " WHERE " + Columns._ID + " = ?",
+			String.valueOf(id));
+
+		if (rows > 0)
+			PENDING.decrement();
+	}
+
+	public static class MetaJobEntryDAO extends AbstractSyncableEntryDAO
+	{
+		private final int mColumnId;
+		private final int mColumnTable;
+		private final int mColumnTableId;
+		private final int mColumnAttempts;
+		private final int mColumnNextAttempt;
+
+		private static final Creator<MetaJobEntryDAO> CREATOR = new Creator<MetaJobEntryDAO>()
+		{
+			@Override
+			public MetaJobEntryDAO init(ResultSet set) throws SQLException
+			{
+				return new MetaJobEntryDAO(set);
+			}
+		};
+
+		public static MetaJobEntryDAO newInstance(ResultSet set) throws SQLException
+		{
+			return CREATOR.newInstance(set);
+		}
+
+		private MetaJobEntryDAO(ResultSet set) throws SQLException
+		{
+			super(set);
+
+			ColumnsMap map = ColumnsMap.fromResultSet(set);
+
+			mColumnId = map.getColumnIndex(Columns._ID);
+			mColumnTable = map.getColumnIndex(Columns.TABLE);
+			mColumnTableId = map.getColumnIndex(Columns.TABLE_ID);
+			mColumnAttempts = map.getColumnIndex(Columns.ATTEMPTS);
+			mColumnNextAttempt = map.getColumnIndex(Columns.NEXT_ATTEMPT);
+		}
+
+		public long getId() throws SQLException
+		{
+			return mSet.getLong(mColumnId);
+		}
+
+		public String getTable() throws SQLException
+		{
+			return mSet.getString(mColumnTable);
+		}
+
+		public long getTableId() throws SQLException
+		{
+			return mSet.getLong(mColumnTableId);
+		}
+
+		public int getAttempts() throws SQLException
+		{
+			return mSet.getInt(mColumnAttempts);
+		}
+
+		public long getNextAttempt() throws SQLException
+		{
+			return mSet.getLong(mColumnNextAttempt);
+		}
+
+		public String getContentType()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public Protos.Record getEntry() throws SQLException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public String toString()
+		{
+			try {
+				return "{id=" + getId() + ", table=" + getTable() + ", tableId=" + getTableId() + ", attempts=" + getAttempts() + "}";
+			} catch (SQLException e) {
+				return super.toString();
+			}
+		}
+	}
+}
@@ -14,24 +14,28 @@
 
 package org.devtcg.five.meta.dao;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.AbstractTableMerger.OptionalColumn;
 import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.LongArrayList;
+
+import com.google.protobuf.CodedOutputStream;
 
 public class PlaylistDAO extends AbstractDAO
 {
-	private static final String TABLE = "playlists";
+	static final String TABLE = "playlists";
 	private static final String DELETED_TABLE = "playlists_deleted";
 
 	public interface Columns extends BaseColumns
@@ -111,14 +115,18 @@ public class PlaylistDAO extends AbstractDAO
 
 		helper.prepareForInsert();
 
-		long now = System.currentTimeMillis();
-		helper.bind(Columns._SYNC_TIME, now);
-		helper.bind(Columns.FILENAME, filename);
-		helper.bind(Columns.NAME, name);
-		helper.bind(Columns.CREATED_DATE, createdDate);
-		helper.bind(Columns.MARK, 0);
-
-		return helper.insert();
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			helper.bind(Columns.FILENAME, filename);
+			helper.bind(Columns.NAME, name);
+			helper.bind(Columns.CREATED_DATE, createdDate);
+			helper.bind(Columns.MARK, 0);
+
+			return helper.insert();
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	public void markAll() throws SQLException
@@ -143,8 +151,7 @@ public class PlaylistDAO extends AbstractDAO
 	{
 		public long _id;
 		public String filename;
-		public boolean hasChanges;
-		public final List<Long> songs = new LinkedList<Long>();
+		public final LongArrayList songs = new LongArrayList();
 
 		private Playlist() {}
 	}
@@ -157,6 +164,17 @@ public class PlaylistDAO extends AbstractDAO
 		private final int mColumnCreatedDate;
 		private final int mColumnFilename;
 
+		/* Optional fields, as named in Protos.proto. */
+		static final String FIELD_CREATED_DATE = "createdDate";
+
+		public static final String CONTENT_TYPE = "application/vnd.five.playlist";
+
+		private static final int TYPE = Protos.Record.Type.PLAYLIST.getNumber();
+		private static final int TAG_ID = RecordEncoder.varintTag(1);
+		private static final int TAG_SYNC_TIME = RecordEncoder.varintTag(2);
+		private static final int TAG_CREATED_DATE = RecordEncoder.varintTag(3);
+		private static final int TAG_NAME = RecordEncoder.stringTag(4);
+
 		private static final Creator<PlaylistEntryDAO> CREATOR = new Creator<PlaylistEntryDAO>()
 		{
 			@Override
@@ -216,7 +234,7 @@ public class PlaylistDAO extends AbstractDAO
 
 		public String getContentType()
 		{
-			return "application/vnd.five.playlist";
+			return CONTENT_TYPE;
 		}
 
 		public Protos.Record getEntry() throws SQLException
@@ -225,13 +243,27 @@ public class PlaylistDAO extends AbstractDAO
 			builder.setId(getId());
 			builder.setSyncTime(getSyncTime());
 			builder.setName(getName());
-			builder.setCreatedDate(getCreatedDate());
+			if (includesField(FIELD_CREATED_DATE))
+				builder.setCreatedDate(getCreatedDate());
 
 			return Protos.Record.newBuilder()
 				.setType(Protos.Record.Type.PLAYLIST)
 				.setPlaylist(builder.build()).build();
 		}
 
+		@Override
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			RecordEncoder encoder = getEncoder();
+			encoder.begin();
+			encoder.addVarint(TAG_ID, getId());
+			encoder.addVarint(TAG_SYNC_TIME, getSyncTime());
+			if (includesField(FIELD_CREATED_DATE))
+				encoder.addVarint(TAG_CREATED_DATE, getCreatedDate());
+			encoder.addString(TAG_NAME, getName());
+			encoder.writeTo(out, TYPE);
+		}
+
 		public String toString()
 		{
 			try {
@@ -242,6 +274,10 @@ public class PlaylistDAO extends AbstractDAO
 		}
 	}
 
+	private static final OptionalColumn[] OPTIONAL_COLUMNS = {
+		new OptionalColumn(PlaylistEntryDAO.FIELD_CREATED_DATE, Columns.CREATED_DATE),
+	};
+
 	public class TableMerger extends AbstractTableMerger
 	{
 		public TableMerger()
@@ -249,6 +285,27 @@ public class PlaylistDAO extends AbstractDAO
 			super((SyncableProvider)getProvider(), TABLE, DELETED_TABLE);
 		}
 
+		@Override
+		protected OptionalColumn[] getOptionalColumns()
+		{
+			return OPTIONAL_COLUMNS;
+		}
+
+		@Override
+		protected String getPredicateSelection(String predicate, long id)
+		{
+			if (predicate.equals(FeedQuery.PLAYLIST_ID))
+				return Columns._ID + " = " + id;
+
+			return null;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return PlaylistEntryDAO.CONTENT_TYPE;
+		}
+
 		@Override
 		public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs) throws SQLException
 		{
@@ -14,22 +14,29 @@
 
 package org.devtcg.five.meta.dao;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.AbstractTableMerger.Reference;
 import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
+import org.devtcg.five.util.LongArrayList;
+
+import com.google.protobuf.CodedOutputStream;
 
 public class PlaylistSongDAO extends AbstractDAO
 {
-	private static final String TABLE = "playlist_songs";
+	static final String TABLE = "playlist_songs";
 	private static final String DELETED_TABLE = "playlist_songs_deleted";
 
 	public interface Columns extends BaseColumns
@@ -99,9 +106,169 @@ public class PlaylistSongDAO extends AbstractDAO
 
 	public void deleteByPlaylist(long playlistId) throws SQLException
 	{
-		PlaylistSongEntryDAO songs = getSongsByPlaylist(playlistId);
-		while (songs.moveToNext())
-			delete(songs.getId());
+		delete(collectIds(getSongsByPlaylist(playlistId)));
+	}
+
+	/**
+	 * Replace the songs in a playlist with <code>songs</code>, in order. The
+	 * existing songs are loaded in a single query and compared position by
+	 * position so that only rows whose song actually changed are updated;
+	 * rows past the new end are deleted and new rows are appended. The
+	 * updates, deletes and inserts are each sent as one batch, and all
+	 * changes are made in one transaction.
+	 *
+	 * @return True if the playlist was changed.
+	 */
+	public boolean replaceSongs(long playlistId, LongArrayList songs)
+		throws SQLException
+	{
+		long[] songIds = songs.getArray();
+		int count = songs.size();
+
+		Connection conn = mProvider.getConnection().getWrappedConnection();
+
+		ResultSet set = DatabaseUtils.executeForResult(conn,
+			"SELECT " + Columns._ID + ", " + Columns.POSITION + ", " + Columns.SONG_ID +
+			" FROM " + TABLE + " WHERE " + Columns.PLAYLIST_ID + " = ?" +
+			" ORDER BY " + Columns.POSITION,
+			String.valueOf(playlistId));
+
+		LongArrayList rows = new LongArrayList(count);
+		LongArrayList oldSongs = new LongArrayList(count);
+
+		/* Set if positions are not exactly 0 through oldCount - 1. */
+		boolean irregular = false;
+
+		try {
+			while (set.next())
+			{
+				if (set.getInt(2) != rows.size())
+					irregular = true;
+
+				rows.add(set.getLong(1));
+				oldSongs.add(set.getLong(3));
+			}
+		} finally {
+			set.close();
+		}
+
+		long[] rowIds = rows.getArray();
+		long[] oldSongIds = oldSongs.getArray();
+		int oldCount = rows.size();
+
+		/* Start over if the existing rows can't be matched up by position. */
+		if (irregular == true)
+		{
+			/*
+			 * Held until the transaction ends, so that readers see none of the
+			 * changes until they can see all of them.
+			 */
+			long now = beginWrite();
+			try {
+				DatabaseUtils.beginTransaction(conn);
+				try {
+					getDeleteHelper().delete(rowIds, 0, oldCount);
+					insertBatch(conn, playlistId, songIds, 0, count, now);
+
+					DatabaseUtils.setTransactionSuccessful(conn);
+				} finally {
+					DatabaseUtils.endTransaction(conn);
+				}
+			} finally {
+				endWrite(now);
+			}
+
+			return true;
+		}
+
+		int common = Math.min(count, oldCount);
+
+		int changedCount = 0;
+		for (int i = 0; i < common; i++)
+		{
+			if (oldSongIds[i] != songIds[i])
+				changedCount++;
+		}
+
+		if (changedCount == 0 && count == oldCount)
+			return false;
+
+		long now = beginWrite();
+		try {
+			DatabaseUtils.beginTransaction(conn);
+			try {
+				if (changedCount > 0)
+				{
+					PreparedStatement update = conn.prepareStatement(
+						"UPDATE " + TABLE + " SET " +
+						Columns.SONG_ID + " = ?, " +
+						Columns._SYNC_TIME + " = ? " +
+						"WHERE " + Columns._ID + " = ?");
+
+					try {
+						for (int i = 0; i < common; i++)
+						{
+							if (oldSongIds[i] == songIds[i])
+								continue;
+
+							update.setLong(1, songIds[i]);
+							update.setLong(2, now);
+							update.setLong(3, rowIds[i]);
+							update.addBatch();
+						}
+
+						update.executeBatch();
+					} finally {
+						update.close();
+					}
+				}
+
+				if (oldCount > count)
+					getDeleteHelper().delete(rowIds, count, oldCount - count);
+
+				if (count > oldCount)
+					insertBatch(conn, playlistId, songIds, oldCount, count, now);
+
+				DatabaseUtils.setTransactionSuccessful(conn);
+			} finally {
+				DatabaseUtils.endTransaction(conn);
+			}
+		} finally {
+			endWrite(now);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Insert the songs from <code>start</code> up to <code>end</code> at
+	 * their own positions as one batch, as part of a write already begun at
+	 * <code>now</code>.
+	 */
+	private static void insertBatch(Connection conn, long playlistId, long[] songIds,
+		int start, int end, long now) throws SQLException
+	{
+		PreparedStatement insert = conn.prepareStatement(
+			"INSERT INTO " + TABLE + " (" +
+			Columns._SYNC_TIME + ", " +
+			Columns.PLAYLIST_ID + ", " +
+			Columns.POSITION + ", " +
+			Columns.SONG_ID + ") VALUES (?, ?, ?, ?)");
+
+		try {
+			for (int i = start; i < end; i++)
+			{
+				insert.setLong(1, now);
+				insert.setLong(2, playlistId);
+				insert.setInt(3, i);
+				insert.setLong(4, songIds[i]);
+				insert.addBatch();
+			}
+
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
 	}
 
 	public long insert(long playlistId, int position, long songId) throws SQLException
@@ -110,13 +277,17 @@ public class PlaylistSongDAO extends AbstractDAO
 
 		helper.prepareForInsert();
 
-		long now = System.currentTimeMillis();
-		helper.bind(Columns._SYNC_TIME, now);
-		helper.bind(Columns.PLAYLIST_ID, playlistId);
-		helper.bind(Columns.POSITION, position);
-		helper.bind(Columns.SONG_ID, songId);
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			helper.bind(Columns.PLAYLIST_ID, playlistId);
+			helper.bind(Columns.POSITION, position);
+			helper.bind(Columns.SONG_ID, songId);
 
-		return helper.insert();
+			return helper.insert();
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	public static class PlaylistSongEntryDAO extends AbstractSyncableEntryDAO
@@ -127,6 +298,15 @@ public class PlaylistSongDAO extends AbstractDAO
 		private final int mColumnPosition;
 		private final int mColumnSongId;
 
+		public static final String CONTENT_TYPE = "application/vnd.five.playlistsong";
+
+		private static final int TYPE = Protos.Record.Type.PLAYLIST_SONG.getNumber();
+		private static final int TAG_ID = RecordEncoder.varintTag(1);
+		private static final int TAG_SYNC_TIME = RecordEncoder.varintTag(2);
+		private static final int TAG_PLAYLIST_ID = RecordEncoder.varintTag(3);
+		private static final int TAG_POSITION = RecordEncoder.varintTag(4);
+		private static final int TAG_SONG_ID = RecordEncoder.varintTag(5);
+
 		private static final Creator<PlaylistSongEntryDAO> CREATOR = new Creator<PlaylistSongEntryDAO>()
 		{
 			@Override
@@ -186,7 +366,7 @@ public class PlaylistSongDAO extends AbstractDAO
 
 		public String getContentType()
 		{
-			return "application/vnd.five.playlistsong";
+			return CONTENT_TYPE;
 		}
 
 		public Protos.Record getEntry() throws SQLException
@@ -203,6 +383,19 @@ public class PlaylistSongDAO extends AbstractDAO
 				.setPlaylistSong(builder.build()).build();
 		}
 
+		@Override
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			RecordEncoder encoder = getEncoder();
+			encoder.begin();
+			encoder.addVarint(TAG_ID, getId());
+			encoder.addVarint(TAG_SYNC_TIME, getSyncTime());
+			encoder.addVarint(TAG_PLAYLIST_ID, getPlaylistId());
+			encoder.addVarint(TAG_POSITION, getPosition());
+			encoder.addVarint(TAG_SONG_ID, getSongId());
+			encoder.writeTo(out, TYPE);
+		}
+
 		public String toString()
 		{
 			try {
@@ -213,6 +406,11 @@ public class PlaylistSongDAO extends AbstractDAO
 		}
 	}
 
+	private static final Reference[] REFERENCES = {
+		new Reference(Columns.PLAYLIST_ID, PlaylistDAO.TABLE),
+		new Reference(Columns.SONG_ID, SongDAO.TABLE),
+	};
+
 	public class TableMerger extends AbstractTableMerger
 	{
 		public TableMerger()
@@ -220,6 +418,27 @@ public class PlaylistSongDAO extends AbstractDAO
 			super((SyncableProvider)getProvider(), TABLE, DELETED_TABLE);
 		}
 
+		@Override
+		public Reference[] getReferences()
+		{
+			return REFERENCES;
+		}
+
+		@Override
+		protected String getPredicateSelection(String predicate, long id)
+		{
+			if (predicate.equals(FeedQuery.PLAYLIST_ID))
+				return Columns.PLAYLIST_ID + " = " + id;
+
+			return null;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return PlaylistSongEntryDAO.CONTENT_TYPE;
+		}
+
 		@Override
 		public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs) throws SQLException
 		{
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Writes {@link org.devtcg.five.meta.data.Protos.Record} messages straight
+ * from column values, without building the intermediate message objects.
+ * Fields are staged with {@link #addVarint} and {@link #addString} (in field
+ * number order, as the generated code would write them) and then written
+ * out with {@link #writeTo}.
+ * <p>
+ * Strings are encoded to UTF-8 once, into a buffer which is reused from row
+ * to row, so encoding a row does not allocate once the buffers have grown
+ * to fit the largest row. Instances are therefore not thread-safe.
+ */
+final class RecordEncoder
+{
+	/* Wire types, as defined by the protocol buffer encoding. */
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+	/* Record.type is field 1, followed by one field per type. */
+	private static final int TAG_RECORD_TYPE = varintTag(1);
+
+	private static final int MAX_FIELDS = 16;
+
+	private final int[] mTags = new int[MAX_FIELDS];
+
+	/** Varint value, or offset into mBuffer for strings. */
+	private final long[] mValues = new long[MAX_FIELDS];
+
+	/** Length in mBuffer for strings, -1 for varints. */
+	private final int[] mLengths = new int[MAX_FIELDS];
+
+	private int mFieldCount;
+
+	private byte[] mBuffer = new byte[256];
+	private int mBufferLength;
+
+	/** Encoded size of the staged fields. */
+	private int mMessageSize;
+
+	public static int varintTag(int field)
+	{
+		return (field << 3) | WIRETYPE_VARINT;
+	}
+
+	public static int stringTag(int field)
+	{
+		return (field << 3) | WIRETYPE_LENGTH_DELIMITED;
+	}
+
+	/**
+	 * Discard the fields of the previous row.
+	 */
+	public void begin()
+	{
+		mFieldCount = 0;
+		mBufferLength = 0;
+		mMessageSize = 0;
+	}
+
+	/**
+	 * Stage an int32, int64, or enum field. Negative int32 values must be
+	 * sign extended, which widening to long already does.
+	 */
+	public void addVarint(int tag, long value)
+	{
+		int i = mFieldCount++;
+		mTags[i] = tag;
+		mValues[i] = value;
+		mLengths[i] = -1;
+
+		mMessageSize += CodedOutputStream.computeRawVarint32Size(tag) +
+			CodedOutputStream.computeRawVarint64Size(value);
+	}
+
+	public void addString(int tag, String value)
+	{
+		int offset = mBufferLength;
+		encodeUtf8(value);
+		int length = mBufferLength - offset;
+
+		int i = mFieldCount++;
+		mTags[i] = tag;
+		mValues[i] = offset;
+		mLengths[i] = length;
+
+		mMessageSize += CodedOutputStream.computeRawVarint32Size(tag) +
+			CodedOutputStream.computeRawVarint32Size(length) + length;
+	}
+
+	/**
+	 * Equivalent to <code>String.getBytes("UTF-8")</code>, including the
+	 * substitution of '?' for unpaired surrogates, so that the output matches
+	 * that of the generated code exactly.
+	 */
+	private void encodeUtf8(String value)
+	{
+		int n = value.length();
+
+		/* Worst case is 3 bytes for every char. */
+		ensureCapacity(mBufferLength + n * 3);
+
+		byte[] b = mBuffer;
+		int pos = mBufferLength;
+
+		for (int i = 0; i < n; i++)
+		{
+			char c = value.charAt(i);
+
+			if (c < 0x80)
+				b[pos++] = (byte)c;
+			else if (c < 0x800)
+			{
+				b[pos++] = (byte)(0xc0 | (c >> 6));
+				b[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+			else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE)
+			{
+				b[pos++] = (byte)(0xe0 | (c >> 12));
+				b[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				b[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < n &&
+					Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				b[pos++] = (byte)(0xf0 | (cp >> 18));
+				b[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				b[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				b[pos++] = (byte)(0x80 | (cp & 0x3f));
+			}
+			else
+				b[pos++] = '?';
+		}
+
+		mBufferLength = pos;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > mBuffer.length)
+		{
+			byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+			System.arraycopy(mBuffer, 0, buffer, 0, mBufferLength);
+			mBuffer = buffer;
+		}
+	}
+
+	/**
+	 * @return Size of the Record message holding the staged fields.
+	 */
+	public int getRecordSize(int type)
+	{
+		int messageTag = stringTag(type + 1);
+
+		return CodedOutputStream.computeRawVarint32Size(TAG_RECORD_TYPE) +
+			CodedOutputStream.computeRawVarint32Size(type) +
+			CodedOutputStream.computeRawVarint32Size(messageTag) +
+			CodedOutputStream.computeRawVarint32Size(mMessageSize) + mMessageSize;
+	}
+
+	/**
+	 * Write a Record of the given type holding the staged fields, preceded by
+	 * its size as a little-endian 32-bit integer.
+	 *
+	 * @param type Record.Type number. The staged fields become the Record
+	 *            field following the type field, which is how Protos.proto
+	 *            numbers them.
+	 */
+	public void writeTo(CodedOutputStream out, int type) throws IOException
+	{
+		out.writeRawLittleEndian32(getRecordSize(type));
+
+		out.writeRawVarint32(TAG_RECORD_TYPE);
+		out.writeRawVarint32(type);
+		out.writeRawVarint32(stringTag(type + 1));
+		out.writeRawVarint32(mMessageSize);
+
+		for (int i = 0; i < mFieldCount; i++)
+		{
+			out.writeRawVarint32(mTags[i]);
+
+			int length = mLengths[i];
+			if (length < 0)
+				out.writeRawVarint64(mValues[i]);
+			else
+			{
+				out.writeRawVarint32(length);
+				out.writeRawBytes(mBuffer, (int)mValues[i], length);
+			}
+		}
+	}
+}
@@ -15,12 +15,16 @@
 package org.devtcg.five.meta.dao;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.AbstractTableMerger.OptionalColumn;
+import org.devtcg.five.content.AbstractTableMerger.Reference;
 import org.devtcg.five.content.ColumnsMap;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.meta.data.Protos;
 import org.devtcg.five.meta.data.Protos.Record;
@@ -28,7 +32,9 @@ import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.InsertHelper;
 import org.devtcg.five.persistence.Provider;
 import org.devtcg.five.persistence.SyncableProvider;
-import org.devtcg.five.util.FileUtils;
+import org.devtcg.five.util.LongArrayList;
+
+import com.google.protobuf.CodedOutputStream;
 
 public class SongDAO extends AbstractDAO
 {
@@ -71,11 +77,62 @@ public class SongDAO extends AbstractDAO
 		public static final String MARK = "mark";
 	}
 
+	private static final String INDEX_QUERY = "SELECT " + Columns._ID + ", " +
+		Columns.FILENAME + ", " + Columns.MIME_TYPE + ", " + Columns.MTIME + ", " +
+		Columns.FILESIZE + " FROM " + TABLE;
+
+	private SongIndex mIndex;
+
 	public SongDAO(Provider provider)
 	{
 		super(provider);
 	}
 
+	/**
+	 * @return Index of every song, read from the table on first use and kept
+	 *   current by this DAO's writes from then on.
+	 */
+	public synchronized SongIndex getIndex() throws SQLException
+	{
+		if (mIndex == null)
+		{
+			SongIndex index = new SongIndex();
+
+			ResultSet set = DatabaseUtils.executeForResult(
+				mProvider.getConnection().getWrappedConnection(), INDEX_QUERY);
+			try {
+				while (set.next())
+				{
+					index.put(set.getLong(1), set.getString(2), set.getString(3),
+						set.getLong(4), set.getLong(5));
+				}
+			} finally {
+				set.close();
+			}
+
+			mIndex = index;
+		}
+
+		return mIndex;
+	}
+
+	/*
+	 * Called once the row is written. Should the index be loading meanwhile,
+	 * this waits for it to finish; replaying a write it already saw is
+	 * harmless.
+	 */
+	private synchronized void updateIndex(long id, Song song)
+	{
+		if (mIndex != null)
+			mIndex.put(id, song.filename, song.mimeType, song.mtime, song.filesize);
+	}
+
+	private synchronized void removeFromIndex(long id)
+	{
+		if (mIndex != null)
+			mIndex.remove(id);
+	}
+
 	@Override
 	public String getTable()
 	{
@@ -178,10 +235,19 @@ public class SongDAO extends AbstractDAO
 		InsertHelper helper = getInsertHelper();
 
 		helper.prepareForInsert();
-		helper.bind(Columns._SYNC_TIME, System.currentTimeMillis());
-		helper.bind(Columns._SYNC_ID, existingId);
-		copySongToInsertHelper(helper, song);
-		return helper.insert();
+
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			helper.bind(Columns._SYNC_ID, existingId);
+			copySongToInsertHelper(helper, song);
+
+			long id = helper.insert();
+			updateIndex(id, song);
+			return id;
+		} finally {
+			endWrite(now);
+		}
 	}
 
 	public long update(long _id, Song song) throws SQLException
@@ -190,15 +256,38 @@ public class SongDAO extends AbstractDAO
 
 		helper.prepareForReplace();
 		helper.bind(Columns._ID, _id);
-		helper.bind(Columns._SYNC_TIME, System.currentTimeMillis());
-		copySongToInsertHelper(helper, song);
-		helper.execute();
+
+		long now = beginWrite();
+		try {
+			helper.bind(Columns._SYNC_TIME, now);
+			copySongToInsertHelper(helper, song);
+			helper.execute();
+			updateIndex(_id, song);
+		} finally {
+			endWrite(now);
+		}
 
 		return _id;
 	}
 
-	public Song newSong(File file, long artistId, long albumId, String title,
-		long bitrate, long length, int track)
+	@Override
+	public void delete(long id) throws SQLException
+	{
+		super.delete(id);
+		removeFromIndex(id);
+	}
+
+	@Override
+	public void delete(LongArrayList ids) throws SQLException
+	{
+		super.delete(ids);
+
+		for (int i = 0; i < ids.size(); i++)
+			removeFromIndex(ids.get(i));
+	}
+
+	public Song newSong(File file, String mimeType, long artistId, long albumId,
+		String title, long bitrate, long length, int track)
 	{
 		Song song = new Song();
 
@@ -206,7 +295,7 @@ public class SongDAO extends AbstractDAO
 		song.filename = file.getAbsolutePath();
 		song.mark = false;
 		song.filesize = file.length();
-		song.mimeType = FileUtils.getMimeType(file);
+		song.mimeType = mimeType;
 
 		song.artistId = artistId;
 		song.albumId = albumId;
@@ -251,6 +340,30 @@ public class SongDAO extends AbstractDAO
 		private final int mColumnMimeType;
 		private final int mColumnLength;
 		private final int mColumnTrack;
+		private final int mColumnFilesize;
+
+		/* Optional fields, as named in Protos.proto. */
+		static final String FIELD_MBID = "mbid";
+		static final String FIELD_MIME_TYPE = "mimeType";
+		static final String FIELD_BITRATE = "bitrate";
+		static final String FIELD_FILESIZE = "filesize";
+		static final String FIELD_LENGTH = "length";
+		static final String FIELD_TRACK = "track";
+
+		public static final String CONTENT_TYPE = "application/vnd.five.song";
+
+		private static final int TYPE = Protos.Record.Type.SONG.getNumber();
+		private static final int TAG_ID = RecordEncoder.varintTag(1);
+		private static final int TAG_SYNC_TIME = RecordEncoder.varintTag(2);
+		private static final int TAG_ARTIST_ID = RecordEncoder.varintTag(3);
+		private static final int TAG_ALBUM_ID = RecordEncoder.varintTag(4);
+		private static final int TAG_MBID = RecordEncoder.stringTag(5);
+		private static final int TAG_MIME_TYPE = RecordEncoder.stringTag(6);
+		private static final int TAG_BITRATE = RecordEncoder.varintTag(7);
+		private static final int TAG_FILESIZE = RecordEncoder.varintTag(8);
+		private static final int TAG_LENGTH = RecordEncoder.varintTag(9);
+		private static final int TAG_TITLE = RecordEncoder.stringTag(10);
+		private static final int TAG_TRACK = RecordEncoder.varintTag(11);
 
 		private static final Creator<SongEntryDAO> CREATOR = new Creator<SongEntryDAO>()
 		{
@@ -289,6 +402,7 @@ public class SongDAO extends AbstractDAO
 			mColumnMimeType = map.getColumnIndex(Columns.MIME_TYPE);
 			mColumnLength = map.getColumnIndex(Columns.LENGTH);
 			mColumnTrack = map.getColumnIndex(Columns.TRACK);
+			mColumnFilesize = map.getColumnIndex(Columns.FILESIZE);
 		}
 
 		public long getId() throws SQLException
@@ -351,9 +465,17 @@ public class SongDAO extends AbstractDAO
 			return mSet.getInt(mColumnTrack);
 		}
 
+		/**
+		 * @return File size as of the last scan.
+		 */
+		public long getFilesize() throws SQLException
+		{
+			return mSet.getLong(mColumnFilesize);
+		}
+
 		public String getContentType()
 		{
-			return "application/vnd.five.song";
+			return CONTENT_TYPE;
 		}
 
 		public Record getEntry() throws SQLException
@@ -364,22 +486,53 @@ public class SongDAO extends AbstractDAO
 			builder.setArtistId(getArtistId());
 			builder.setAlbumId(getAlbumId());
 			String mbid = getMbid();
-			if (mbid != null)
+			if (mbid != null && includesField(FIELD_MBID))
 				builder.setMbid(getMbid());
 			String mimeType = getMimeType();
-			if (mimeType != null)
+			if (mimeType != null && includesField(FIELD_MIME_TYPE))
 				builder.setMimeType(mimeType);
-			builder.setBitrate(getBitrate());
-			builder.setFilesize(new File(getFilename()).length());
-			builder.setLength(getLength());
+			if (includesField(FIELD_BITRATE))
+				builder.setBitrate(getBitrate());
+			if (includesField(FIELD_FILESIZE))
+				builder.setFilesize(getFilesize());
+			if (includesField(FIELD_LENGTH))
+				builder.setLength(getLength());
 			builder.setTitle(getTitle());
-			builder.setTrack(getTrack());
+			if (includesField(FIELD_TRACK))
+				builder.setTrack(getTrack());
 
 			return Protos.Record.newBuilder()
 				.setType(Protos.Record.Type.SONG)
 				.setSong(builder.build()).build();
 		}
 
+		@Override
+		public void writeEntryTo(CodedOutputStream out) throws IOException, SQLException
+		{
+			RecordEncoder encoder = getEncoder();
+			encoder.begin();
+			encoder.addVarint(TAG_ID, getId());
+			encoder.addVarint(TAG_SYNC_TIME, getSyncTime());
+			encoder.addVarint(TAG_ARTIST_ID, getArtistId());
+			encoder.addVarint(TAG_ALBUM_ID, getAlbumId());
+			String mbid = getMbid();
+			if (mbid != null && includesField(FIELD_MBID))
+				encoder.addString(TAG_MBID, mbid);
+			String mimeType = getMimeType();
+			if (mimeType != null && includesField(FIELD_MIME_TYPE))
+				encoder.addString(TAG_MIME_TYPE, mimeType);
+			if (includesField(FIELD_BITRATE))
+				encoder.addVarint(TAG_BITRATE, getBitrate());
+			if (includesField(FIELD_FILESIZE))
+				encoder.addVarint(TAG_FILESIZE, getFilesize());
+			if (includesField(FIELD_LENGTH))
+				encoder.addVarint(TAG_LENGTH, getLength());
+			encoder.addString(TAG_TITLE, getTitle());
+			if (includesField(FIELD_TRACK))
+				encoder.addVarint(TAG_TRACK, getTrack());
+			encoder.writeTo(out, TYPE);
+		}
+
 		public String toString()
 		{
 			try {
@@ -390,6 +543,20 @@ public class SongDAO extends AbstractDAO
 		}
 	}
 
+	private static final OptionalColumn[] OPTIONAL_COLUMNS = {
+		new OptionalColumn(SongEntryDAO.FIELD_MBID, Columns.MBID),
+		new OptionalColumn(SongEntryDAO.FIELD_MIME_TYPE, Columns.MIME_TYPE),
+		new OptionalColumn(SongEntryDAO.FIELD_BITRATE, Columns.BITRATE),
+		new OptionalColumn(SongEntryDAO.FIELD_FILESIZE, Columns.FILESIZE, "0"),
+		new OptionalColumn(SongEntryDAO.FIELD_LENGTH, Columns.LENGTH),
+		new OptionalColumn(SongEntryDAO.FIELD_TRACK, Columns.TRACK),
+	};
+
+	private static final Reference[] REFERENCES = {
+		new Reference(Columns.ARTIST_ID, ArtistDAO.TABLE),
+		new Reference(Columns.ALBUM_ID, AlbumDAO.TABLE),
+	};
+
 	public class TableMerger extends AbstractTableMerger
 	{
 		public TableMerger()
@@ -397,6 +564,41 @@ public class SongDAO extends AbstractDAO
 			super((SyncableProvider)getProvider(), TABLE, DELETED_TABLE);
 		}
 
+		@Override
+		protected OptionalColumn[] getOptionalColumns()
+		{
+			return OPTIONAL_COLUMNS;
+		}
+
+		@Override
+		public Reference[] getReferences()
+		{
+			return REFERENCES;
+		}
+
+		@Override
+		protected String getPredicateSelection(String predicate, long id)
+		{
+			if (predicate.equals(FeedQuery.ARTIST_ID))
+				return Columns.ARTIST_ID + " = " + id;
+			else if (predicate.equals(FeedQuery.ALBUM_ID))
+				return Columns.ALBUM_ID + " = " + id;
+			else if (predicate.equals(FeedQuery.PLAYLIST_ID))
+			{
+				return Columns._ID + " IN (SELECT " + PlaylistSongDAO.Columns.SONG_ID +
+					" FROM " + PlaylistSongDAO.TABLE + " WHERE " +
+					PlaylistSongDAO.Columns.PLAYLIST_ID + " = " + id + ")";
+			}
+
+			return null;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return SongEntryDAO.CONTENT_TYPE;
+		}
+
 		@Override
 		public SyncableEntryDAO getEntryDAO(SyncableProvider clientDiffs) throws SQLException
 		{
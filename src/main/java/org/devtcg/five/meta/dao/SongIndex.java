@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import org.devtcg.five.util.LongIntHashMap;
+
+/**
+ * In-memory copy of what is needed to serve a song, or to tell whether its
+ * file has changed since the last scan: filename, MIME type, mtime and
+ * size, by id and by filename. {@link SongDAO} keeps it current as it
+ * writes, so lookups never touch the database.
+ * <p>
+ * Each song is four longs in one array, and filenames are UTF-8 in one
+ * shared byte array, so a song costs under 100 bytes plus its filename and
+ * a large library adds no objects for the collector to trace. Space left by
+ * deleted or renamed songs is reclaimed once it outweighs the live records.
+ */
+public class SongIndex
+{
+	/* Layout of a record in mRecords. */
+	private static final int ID = 0;
+	private static final int MTIME = 1;
+	private static final int FILESIZE = 2;
+
+	/**
+	 * Filename's offset in mNames (high 32 bits), its length in bytes (next
+	 * 16 bits) and the index of its MIME type in mMimeTypes (low 16 bits).
+	 * Set to DEAD once the record has been replaced or removed.
+	 */
+	private static final int NAME = 3;
+
+	private static final int RECORD_SIZE = 4;
+
+	private static final long DEAD = -1;
+
+	private static final int MAX_NAME_LENGTH = 0xffff;
+	private static final int MAX_MIME_TYPES = 0x10000;
+
+	private static final int INITIAL_RECORDS = 64;
+
+	private long[] mRecords;
+	private int[] mNameHashes;
+	private int mRecordCount;
+	private int mDeadCount;
+
+	private byte[] mNames;
+	private int mNamesSize;
+
+	/** Distinct MIME types seen, as there are only ever a handful. */
+	private final ArrayList<String> mMimeTypes = new ArrayList<String>();
+
+	private final LongIntHashMap mById = new LongIntHashMap();
+
+	/** Record index plus one, by filename hash with linear probing; 0 is free. */
+	private int[] mByName;
+
+	public static class Entry
+	{
+		public final long id;
+		public final String filename;
+		public final String mimeType;
+		public final long mtime;
+		public final long filesize;
+
+		private Entry(long id, String filename, String mimeType, long mtime, long filesize)
+		{
+			this.id = id;
+			this.filename = filename;
+			this.mimeType = mimeType;
+			this.mtime = mtime;
+			this.filesize = filesize;
+		}
+	}
+
+	public SongIndex()
+	{
+		reset(INITIAL_RECORDS, INITIAL_RECORDS * 64);
+	}
+
+	private void reset(int records, int nameBytes)
+	{
+		mRecords = new long[records * RECORD_SIZE];
+		mNameHashes = new int[records];
+		mRecordCount = 0;
+		mDeadCount = 0;
+
+		mNames = new byte[nameBytes];
+		mNamesSize = 0;
+
+		mById.clear();
+		mByName = new int[tableSizeFor(records)];
+	}
+
+	private static int tableSizeFor(int records)
+	{
+		int size = 16;
+		while (size < records * 2)
+			size <<= 1;
+
+		return size;
+	}
+
+	private static byte[] encode(String filename)
+	{
+		try {
+			return filename.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int slotFor(int hash, int mask)
+	{
+		/* String hashes of similar paths differ mostly in their low bits. */
+		int h = hash * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private int getNameOffset(int record)
+	{
+		return (int)(mRecords[record * RECORD_SIZE + NAME] >>> 32);
+	}
+
+	private int getNameLength(int record)
+	{
+		return (int)(mRecords[record * RECORD_SIZE + NAME] >>> 16) & MAX_NAME_LENGTH;
+	}
+
+	private String getMimeType(int record)
+	{
+		int index = (int)mRecords[record * RECORD_SIZE + NAME] & 0xffff;
+		return mMimeTypes.get(index);
+	}
+
+	private int getMimeTypeIndex(String mimeType)
+	{
+		int index = mMimeTypes.indexOf(mimeType);
+		if (index >= 0)
+			return index;
+
+		if (mMimeTypes.size() == MAX_MIME_TYPES)
+			throw new IllegalStateException("Too many distinct MIME types");
+
+		mMimeTypes.add(mimeType);
+		return mMimeTypes.size() - 1;
+	}
+
+	private boolean nameEquals(int record, byte[] name)
+	{
+		int length = getNameLength(record);
+		if (length != name.length)
+			return false;
+
+		int offset = getNameOffset(record);
+		for (int i = 0; i < length; i++)
+		{
+			if (mNames[offset + i] != name[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Index of the live record for this filename, or -1.
+	 */
+	private int findByName(String filename, byte[] name)
+	{
+		int hash = filename.hashCode();
+		int mask = mByName.length - 1;
+
+		for (int i = slotFor(hash, mask); mByName[i] != 0; i = (i + 1) & mask)
+		{
+			int record = mByName[i] - 1;
+			if (mNameHashes[record] == hash && nameEquals(record, name))
+				return record;
+		}
+
+		return -1;
+	}
+
+	private void insertByName(int record)
+	{
+		int mask = mByName.length - 1;
+
+		int i = slotFor(mNameHashes[record], mask);
+		while (mByName[i] != 0)
+			i = (i + 1) & mask;
+
+		mByName[i] = record + 1;
+	}
+
+	private void removeByName(int record)
+	{
+		int mask = mByName.length - 1;
+
+		int gap = slotFor(mNameHashes[record], mask);
+		while (mByName[gap] != record + 1)
+			gap = (gap + 1) & mask;
+
+		/* Same backward shift as LongIntHashMap.remove. */
+		for (int i = (gap + 1) & mask; mByName[i] != 0; i = (i + 1) & mask)
+		{
+			int home = slotFor(mNameHashes[mByName[i] - 1], mask);
+
+			if (((i - home) & mask) >= ((i - gap) & mask))
+			{
+				mByName[gap] = mByName[i];
+				gap = i;
+			}
+		}
+
+		mByName[gap] = 0;
+	}
+
+	private void kill(int record)
+	{
+		removeByName(record);
+		mById.remove(mRecords[record * RECORD_SIZE + ID]);
+		mRecords[record * RECORD_SIZE + NAME] = DEAD;
+		mDeadCount++;
+	}
+
+	private void append(long id, long mtime, long filesize, byte[] name, int nameOffset,
+		int nameLength, int mimeType, int hash)
+	{
+		if (mRecordCount == mNameHashes.length)
+		{
+			long[] records = new long[mRecords.length * 2];
+			System.arraycopy(mRecords, 0, records, 0, mRecords.length);
+			mRecords = records;
+
+			int[] hashes = new int[mNameHashes.length * 2];
+			System.arraycopy(mNameHashes, 0, hashes, 0, mNameHashes.length);
+			mNameHashes = hashes;
+		}
+
+		if (mNamesSize + nameLength > mNames.length)
+		{
+			byte[] names = new byte[Math.max(mNames.length * 2, mNamesSize + nameLength)];
+			System.arraycopy(mNames, 0, names, 0, mNamesSize);
+			mNames = names;
+		}
+
+		int record = mRecordCount++;
+		int base = record * RECORD_SIZE;
+
+		System.arraycopy(name, nameOffset, mNames, mNamesSize, nameLength);
+
+		mRecords[base + ID] = id;
+		mRecords[base + MTIME] = mtime;
+		mRecords[base + FILESIZE] = filesize;
+		mRecords[base + NAME] = ((long)mNamesSize << 32) | ((long)nameLength << 16) | mimeType;
+		mNameHashes[record] = hash;
+		mNamesSize += nameLength;
+
+		/* Dead records count too, which only errs towards a sparser table. */
+		if (mRecordCount * 2 > mByName.length)
+		{
+			mByName = new int[mByName.length * 2];
+			for (int i = 0; i < mRecordCount; i++)
+			{
+				if (mRecords[i * RECORD_SIZE + NAME] != DEAD)
+					insertByName(i);
+			}
+		}
+		else
+		{
+			insertByName(record);
+		}
+
+		mById.put(id, record);
+	}
+
+	private void compactIfWasteful()
+	{
+		if (mDeadCount > INITIAL_RECORDS && mDeadCount * 2 > mRecordCount)
+			compact();
+	}
+
+	/**
+	 * Copy the live records into fresh arrays, dropping the dead ones and
+	 * the names they held.
+	 */
+	private void compact()
+	{
+		long[] records = mRecords;
+		int[] hashes = mNameHashes;
+		byte[] names = mNames;
+		int count = mRecordCount;
+
+		int live = count - mDeadCount;
+		reset(Math.max(INITIAL_RECORDS, live * 2), Math.max(INITIAL_RECORDS * 64, mNamesSize));
+
+		for (int i = 0; i < count; i++)
+		{
+			int base = i * RECORD_SIZE;
+			long packed = records[base + NAME];
+			if (packed == DEAD)
+				continue;
+
+			append(records[base + ID], records[base + MTIME], records[base + FILESIZE],
+				names, (int)(packed >>> 32), (int)(packed >>> 16) & MAX_NAME_LENGTH,
+				(int)packed & 0xffff, hashes[i]);
+		}
+	}
+
+	/**
+	 * Add or replace the song with the given id. Any other song recorded
+	 * with the same filename is dropped, as filenames are unique.
+	 */
+	public synchronized void put(long id, String filename, String mimeType, long mtime,
+		long filesize)
+	{
+		byte[] name = encode(filename);
+		if (name.length > MAX_NAME_LENGTH)
+			throw new IllegalArgumentException("Filename too long: " + filename);
+
+		int existing = mById.get(id);
+		if (existing >= 0)
+			kill(existing);
+
+		existing = findByName(filename, name);
+		if (existing >= 0)
+			kill(existing);
+
+		append(id, mtime, filesize, name, 0, name.length, getMimeTypeIndex(mimeType),
+			filename.hashCode());
+
+		compactIfWasteful();
+	}
+
+	public synchronized void remove(long id)
+	{
+		int record = mById.get(id);
+		if (record >= 0)
+		{
+			kill(record);
+			compactIfWasteful();
+		}
+	}
+
+	/**
+	 * @return The song with the given id, or null if there is none.
+	 */
+	public synchronized Entry get(long id)
+	{
+		int record = mById.get(id);
+		if (record < 0)
+			return null;
+
+		int base = record * RECORD_SIZE;
+
+		String filename;
+		try {
+			filename = new String(mNames, getNameOffset(record), getNameLength(record), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		return new Entry(id, filename, getMimeType(record), mRecords[base + MTIME],
+			mRecords[base + FILESIZE]);
+	}
+
+	/**
+	 * @return Id of the song stored at <code>filename</code>, or -1 if there
+	 *   is none.
+	 */
+	public synchronized long getId(String filename)
+	{
+		int record = findByName(filename, encode(filename));
+		return (record >= 0) ? mRecords[record * RECORD_SIZE + ID] : -1;
+	}
+
+	/**
+	 * @return Modification time of the song's file as of its last scan, or
+	 *   -1 if there is no song with this id.
+	 */
+	public synchronized long getMtime(long id)
+	{
+		int record = mById.get(id);
+		return (record >= 0) ? mRecords[record * RECORD_SIZE + MTIME] : -1;
+	}
+
+	public synchronized int size()
+	{
+		return mById.size();
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.devtcg.five.persistence.DatabaseUtils;
+import org.devtcg.five.persistence.Provider;
+
+/**
+ * Bookkeeping for purging old rows from the deleted tables. Records, for
+ * each client which identifies itself, the sync time it last confirmed
+ * having for each feed, and for each deleted table the latest sync time
+ * purged from it. A client asking for changes since before that time may
+ * have missed deletes and must sync the feed from scratch.
+ * <p>
+ * Confirmations arrive with nearly every feed request, so they are kept in
+ * memory and only written to the table when they are next needed, by
+ * {@link #getOldestConfirmed}, or when the provider is closed. Losing them
+ * in a crash only means that deletes may be purged which a client hasn't
+ * confirmed, and that client is then told to sync from scratch.
+ */
+public class SyncClientDAO extends AbstractDAO
+{
+	private static final String TABLE = "sync_clients";
+	private static final String COMPACTIONS_TABLE = "sync_compactions";
+
+	public interface Columns extends BaseColumns
+	{
+		/** Opaque id chosen by the client. */
+		public static final String CLIENT_ID = "client_id";
+
+		/** Feed name, as in the request path. */
+		public static final String FEED = "feed";
+
+		/** Sync time through which the client has all changes to the feed. */
+		public static final String CONFIRMED = "confirmed";
+
+		/** Time of the client's last request for the feed. */
+		public static final String LAST_SEEN = "last_seen";
+	}
+
+	public interface CompactionColumns
+	{
+		public static final String DELETED_TABLE = "deleted_table";
+
+		/** Latest sync time of any row purged from the deleted table. */
+		public static final String COMPACTED_THROUGH = "compacted_through";
+	}
+
+	/**
+	 * Cache of {@link CompactionColumns#COMPACTED_THROUGH}, which is checked
+	 * on every feed request.
+	 */
+	private HashMap<String, Long> mCompactedThrough;
+
+	/** Held while writing confirmations, without blocking feed requests. */
+	private final Object mFlushLock = new Object();
+
+	/** Confirmations not yet written, by client id and feed. */
+	private final ConcurrentHashMap<String, Confirmation> mPending =
+		new ConcurrentHashMap<String, Confirmation>();
+
+	private static class Confirmation
+	{
+		final String clientId;
+		final String feed;
+		final long confirmed;
+		final long lastSeen;
+
+		public Confirmation(String clientId, String feed, long confirmed, long lastSeen)
+		{
+			this.clientId = clientId;
+			this.feed = feed;
+			this.confirmed = confirmed;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	public SyncClientDAO(Provider provider)
+	{
+		super(provider);
+	}
+
+	@Override
+	public String getTable()
+	{
+		return TABLE;
+	}
+
+	@Override
+	public String getDeletedTable()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void createTables(Connection conn) throws SQLException
+	{
+		DatabaseUtils.execute(conn, "CREATE TABLE " + TABLE + " (" +
+			Columns._ID + " INTEGER IDENTITY, " +
+			Columns.CLIENT_ID + " VARCHAR NOT NULL, " +
+			Columns.FEED + " VARCHAR NOT NULL, " +
+			Columns.CONFIRMED + " BIGINT NOT NULL, " +
+			Columns.LAST_SEEN + " BIGINT NOT NULL, " +
+			"UNIQUE (" + Columns.CLIENT_ID + ", " + Columns.FEED + ") " +
+		")");
+		DatabaseUtils.execute(conn, "CREATE TABLE " + COMPACTIONS_TABLE + " (" +
+			CompactionColumns.DELETED_TABLE + " VARCHAR PRIMARY KEY, " +
+			CompactionColumns.COMPACTED_THROUGH + " BIGINT NOT NULL " +
+		")");
+	}
+
+	@Override
+	public void dropTables(Connection conn) throws SQLException
+	{
+		DatabaseUtils.execute(conn, "DROP TABLE IF EXISTS " + TABLE);
+		DatabaseUtils.execute(conn, "DROP TABLE IF EXISTS " + COMPACTIONS_TABLE);
+	}
+
+	/**
+	 * Record that <code>clientId</code> has all changes to <code>feed</code>
+	 * through <code>confirmed</code>, as of <code>now</code>. Never touches
+	 * the database.
+	 */
+	public void confirm(String clientId, String feed, long confirmed, long now)
+	{
+		mPending.put(clientId + '\n' + feed,
+			new Confirmation(clientId, feed, confirmed, now));
+	}
+
+	/**
+	 * Write out the confirmations recorded since the last call.
+	 */
+	public void flush() throws SQLException
+	{
+		if (mPending.isEmpty())
+			return;
+
+		Connection conn = mProvider.getConnection().getWrappedConnection();
+
+		synchronized (mFlushLock) {
+			for (Map.Entry<String, Confirmation> entry : mPending.entrySet())
+			{
+				Confirmation c = entry.getValue();
+
+				int rows = DatabaseUtils.update(conn, "UPDATE " + TABLE + " SET " +
+						Columns.CONFIRMED + " = ?, " + Columns.LAST_SEEN + " = ? " +
+						"WHERE " + Columns.CLIENT_ID + " = ? AND " + Columns.FEED + " = ?",
+					String.valueOf(c.confirmed), String.valueOf(c.lastSeen), c.clientId, c.feed);
+
+				if (rows == 0)
+				{
+					DatabaseUtils.execute(conn, "INSERT INTO " + TABLE + " (" +
+							Columns.CLIENT_ID + ", " + Columns.FEED + ", " +
+							Columns.CONFIRMED + ", " + Columns.LAST_SEEN + ") VALUES (?, ?, ?, ?)",
+						c.clientId, c.feed, String.valueOf(c.confirmed), String.valueOf(c.lastSeen));
+				}
+
+				/* Kept if the client confirmed again while this one was written. */
+				mPending.remove(entry.getKey(), c);
+			}
+		}
+	}
+
+	/**
+	 * @return The oldest sync time confirmed for <code>feed</code> by any
+	 *         client seen at or after <code>seenSince</code>, or
+	 *         Long.MAX_VALUE if there are none.
+	 */
+	public long getOldestConfirmed(String feed, long seenSince) throws SQLException
+	{
+		flush();
+
+		return DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			Long.MAX_VALUE, "SELECT MIN(" + Columns.CONFIRMED + ") FROM " + TABLE +
+				" WHERE " + Columns.FEED + " = ? AND " + Columns.LAST_SEEN + " >= ?",
+			feed, String.valueOf(seenSince));
+	}
+
+	private HashMap<String, Long> getCompactedThroughMap() throws SQLException
+	{
+		if (mCompactedThrough == null)
+		{
+			HashMap<String, Long> map = new HashMap<String, Long>();
+
+			ResultSet set = DatabaseUtils.executeForResult(mProvider.getConnection().getWrappedConnection(),
+				"SELECT " + CompactionColumns.DELETED_TABLE + ", " +
+					CompactionColumns.COMPACTED_THROUGH + " FROM " + COMPACTIONS_TABLE,
+				(String[])null);
+			try {
+				while (set.next())
+					map.put(set.getString(1), set.getLong(2));
+			} finally {
+				set.close();
+			}
+
+			mCompactedThrough = map;
+		}
+
+		return mCompactedThrough;
+	}
+
+	/**
+	 * @return Latest sync time of any row purged from
+	 *         <code>deletedTable</code>, or 0 if none have been.
+	 */
+	public synchronized long getCompactedThrough(String deletedTable) throws SQLException
+	{
+		Long time = getCompactedThroughMap().get(deletedTable);
+		return (time != null) ? time : 0;
+	}
+
+	/**
+	 * @return True if a client which has all changes through
+	 *         <code>since</code> may have missed rows purged from
+	 *         <code>deletedTable</code>. Clients syncing from scratch never
+	 *         have.
+	 */
+	public boolean needsFullResync(String deletedTable, long since) throws SQLException
+	{
+		return since > 0 && since < getCompactedThrough(deletedTable);
+	}
+
+	/**
+	 * Purge rows from <code>deletedTable</code> with a sync time at or
+	 * before <code>through</code>. The new compaction time is published
+	 * before any rows are purged, so a reader which checks
+	 * {@link #needsFullResync} after reading the deleted table will notice
+	 * if it raced with this call.
+	 *
+	 * @return Number of rows purged.
+	 */
+	public synchronized int compact(String deletedTable, long through) throws SQLException
+	{
+		Connection conn = mProvider.getConnection().getWrappedConnection();
+
+		long purgedThrough = DatabaseUtils.longForQuery(conn, 0,
+			"SELECT MAX(" + BaseColumns._SYNC_TIME + ") FROM " + deletedTable +
+				" WHERE " + BaseColumns._SYNC_TIME + " <= ?", String.valueOf(through));
+
+		if (purgedThrough <= getCompactedThrough(deletedTable))
+			return 0;
+
+		DatabaseUtils.insertOrReplace(conn, COMPACTIONS_TABLE,
+			CompactionColumns.DELETED_TABLE, deletedTable,
+			CompactionColumns.COMPACTED_THROUGH, String.valueOf(purgedThrough));
+		getCompactedThroughMap().put(deletedTable, purgedThrough);
+
+		return DatabaseUtils.update(conn, "DELETE FROM " + deletedTable +
+			" WHERE " + BaseColumns._SYNC_TIME + " <= ?", String.valueOf(purgedThrough));
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.devtcg.five.content.AbstractTableMerger.SyncableColumns;
+import org.devtcg.five.util.CancelableThread;
+
+/**
+ * Tracks the latest _sync_time written to each table of a provider, and
+ * wakes up waiters once any of the tables they are interested in moves past
+ * the time they last saw. Times past the horizon of the provider's
+ * {@link SyncClock} aren't published, as earlier writes may still be in
+ * progress; waiters are instead woken once the horizon catches up.
+ * <p>
+ * Waiters are callbacks rather than blocked threads, so any number of
+ * clients can wait for changes at no cost beyond their entry in a list. A
+ * single thread delivers every wake up and timeout, and waits a short while
+ * after a change before doing so in order that a burst of writes (such as
+ * during a library scan) wakes each waiter only once.
+ */
+public class ChangeNotifier
+{
+	private static final Log LOG = LogFactory.getLog(ChangeNotifier.class);
+
+	/** Delay between the first of a burst of changes and waking waiters. */
+	private static final long COALESCE_DELAY = 500;
+
+	private final Provider mProvider;
+
+	/** Latest known sync time of each table, seeded from the table itself. */
+	private final HashMap<String, Long> mSyncTimes = new HashMap<String, Long>();
+
+	private final ArrayList<WaiterEntry> mWaiters = new ArrayList<WaiterEntry>();
+
+	/** Time at which waiters should be checked for changes, or 0 if not pending. */
+	private long mWakeUpTime;
+
+	private NotifierThread mThread;
+
+	/** Clock of the provider, once it has one. */
+	private SyncClock mClock;
+
+	/** Set by {@link #shutdown}, after which no more waiters are accepted. */
+	private boolean mShutdown;
+
+	public interface Waiter
+	{
+		/**
+		 * Called exactly once, from the notifier thread. Implementations must
+		 * not block.
+		 *
+		 * @param changed True if one of the tables changed, false if the wait
+		 *            timed out or the notifier was shut down.
+		 */
+		public void onWakeUp(boolean changed);
+	}
+
+	private static class WaiterEntry
+	{
+		final String[] tables;
+		final long since;
+		final long deadline;
+		final Waiter waiter;
+
+		/** Set once the entry is removed, for delivery outside of the lock. */
+		boolean changed;
+
+		public WaiterEntry(String[] tables, long since, long deadline, Waiter waiter)
+		{
+			this.tables = tables;
+			this.since = since;
+			this.deadline = deadline;
+			this.waiter = waiter;
+		}
+	}
+
+	public ChangeNotifier(Provider provider)
+	{
+		mProvider = provider;
+	}
+
+	/**
+	 * Hold back published times at the horizon of <code>clock</code>, and
+	 * check waiters again whenever it advances.
+	 */
+	public synchronized void setSyncClock(SyncClock clock)
+	{
+		mClock = clock;
+		clock.setListener(mHorizonListener);
+	}
+
+	private final SyncClock.Listener mHorizonListener = new SyncClock.Listener()
+	{
+		public void onHorizonAdvanced(long horizon)
+		{
+			synchronized(ChangeNotifier.this) {
+				scheduleWakeUpLocked();
+			}
+		}
+	};
+
+	/**
+	 * Record that rows of <code>table</code> were written with the given
+	 * sync time. Cheap enough to call on every write.
+	 */
+	public synchronized void notifyChange(String table, long syncTime)
+	{
+		Long current = mSyncTimes.get(table);
+		if (current != null && current.longValue() >= syncTime)
+			return;
+
+		mSyncTimes.put(table, syncTime);
+
+		scheduleWakeUpLocked();
+	}
+
+	private void scheduleWakeUpLocked()
+	{
+		if (mWaiters.isEmpty() == false && mWakeUpTime == 0)
+		{
+			mWakeUpTime = System.currentTimeMillis() + COALESCE_DELAY;
+			notify();
+		}
+	}
+
+	/**
+	 * @return The latest sync time of the table, or 0 if it is empty. The
+	 *         first call for each table reads it from the database.
+	 */
+	public long getSyncTime(String table) throws SQLException
+	{
+		synchronized(this) {
+			Long syncTime = mSyncTimes.get(table);
+			if (syncTime != null)
+				return syncTime.longValue();
+		}
+
+		/* Not held while querying, as writers call notifyChange. */
+		long syncTime = DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(), 0,
+			"SELECT MAX(" + SyncableColumns._SYNC_TIME + ") FROM " + table, (String[])null);
+
+		synchronized(this) {
+			Long current = mSyncTimes.get(table);
+			if (current == null || current.longValue() < syncTime)
+				mSyncTimes.put(table, syncTime);
+			else
+				syncTime = current.longValue();
+		}
+
+		return syncTime;
+	}
+
+	/**
+	 * @return The latest sync time of any of the tables.
+	 */
+	public long getSyncTime(String[] tables) throws SQLException
+	{
+		long syncTime = 0;
+
+		for (String table: tables)
+			syncTime = Math.max(syncTime, getSyncTime(table));
+
+		return syncTime;
+	}
+
+	/**
+	 * @return The latest sync time of any of the tables which is safe to
+	 *         give out to clients, that is no later than the clock's
+	 *         horizon. A client which has everything through this time has
+	 *         not skipped any write still in progress.
+	 */
+	public long getPublishedSyncTime(String[] tables) throws SQLException
+	{
+		/* Make sure every table has been seeded. */
+		getSyncTime(tables);
+
+		synchronized(this) {
+			return getPublishedSyncTimeLocked(tables);
+		}
+	}
+
+	private long getPublishedSyncTimeLocked(String[] tables)
+	{
+		long syncTime = 0;
+
+		for (String table: tables)
+		{
+			Long tableSyncTime = mSyncTimes.get(table);
+			if (tableSyncTime != null)
+				syncTime = Math.max(syncTime, tableSyncTime.longValue());
+		}
+
+		if (mClock != null)
+			syncTime = Math.min(syncTime, mClock.getHorizon());
+
+		return syncTime;
+	}
+
+	/**
+	 * Wait for any of the tables to change after <code>since</code>.
+	 *
+	 * @param timeout Milliseconds after which the waiter is woken up anyway.
+	 * @return False if a table has already changed or the notifier has been
+	 *         shut down, in which case the waiter is not registered.
+	 */
+	public boolean addWaiter(String[] tables, long since, long timeout, Waiter waiter)
+		throws SQLException
+	{
+		/* Make sure every table has been seeded before comparing. */
+		getSyncTime(tables);
+
+		synchronized(this) {
+			if (mShutdown == true || getPublishedSyncTimeLocked(tables) > since)
+				return false;
+
+			mWaiters.add(new WaiterEntry(tables, since,
+				System.currentTimeMillis() + timeout, waiter));
+
+			if (mThread == null)
+			{
+				mThread = new NotifierThread();
+				mThread.start();
+			}
+
+			notify();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Number of registered waiters.
+	 */
+	public synchronized int getWaiterCount()
+	{
+		return mWaiters.size();
+	}
+
+	/**
+	 * Wake up all waiters (as timed out) and stop the notifier thread. Any
+	 * waiter added afterwards is refused.
+	 */
+	public void shutdown()
+	{
+		NotifierThread thread;
+		WaiterEntry[] waiters;
+
+		synchronized(this) {
+			mShutdown = true;
+
+			thread = mThread;
+			mThread = null;
+
+			waiters = mWaiters.toArray(new WaiterEntry[mWaiters.size()]);
+			mWaiters.clear();
+			mWakeUpTime = 0;
+		}
+
+		if (thread != null)
+			thread.requestCancelAndWait();
+
+		for (WaiterEntry entry: waiters)
+			wakeUp(entry, false);
+	}
+
+	private static void wakeUp(WaiterEntry entry, boolean changed)
+	{
+		try {
+			entry.waiter.onWakeUp(changed);
+		} catch (RuntimeException e) {
+			if (LOG.isWarnEnabled())
+				LOG.warn("Change waiter failed", e);
+		}
+	}
+
+	private class NotifierThread extends CancelableThread
+	{
+		public NotifierThread()
+		{
+			super();
+
+			setName("ChangeNotifier");
+			setDaemon(true);
+		}
+
+		/**
+		 * Remove the waiters which are due to be woken up, or wait until some
+		 * might be.
+		 *
+		 * @return Waiters to wake up, or null if the thread should exit.
+		 */
+		private ArrayList<WaiterEntry> collectWaiters() throws InterruptedException
+		{
+			ArrayList<WaiterEntry> due = new ArrayList<WaiterEntry>();
+
+			synchronized(ChangeNotifier.this) {
+				while (hasCanceled() == false)
+				{
+					long now = System.currentTimeMillis();
+
+					boolean checkChanges = (mWakeUpTime != 0 && mWakeUpTime <= now);
+					if (checkChanges == true)
+						mWakeUpTime = 0;
+
+					long nextTime = mWakeUpTime;
+
+					Iterator<WaiterEntry> i = mWaiters.iterator();
+					while (i.hasNext())
+					{
+						WaiterEntry entry = i.next();
+
+						if (checkChanges == true &&
+								getPublishedSyncTimeLocked(entry.tables) > entry.since)
+						{
+							i.remove();
+							entry.changed = true;
+							due.add(entry);
+						}
+						else if (entry.deadline <= now)
+						{
+							i.remove();
+							due.add(entry);
+						}
+						else if (nextTime == 0 || entry.deadline < nextTime)
+							nextTime = entry.deadline;
+					}
+
+					if (due.isEmpty() == false)
+						return due;
+
+					if (nextTime == 0)
+						ChangeNotifier.this.wait();
+					else
+						ChangeNotifier.this.wait(nextTime - now);
+				}
+			}
+
+			return null;
+		}
+
+		public void run()
+		{
+			try {
+				ArrayList<WaiterEntry> due;
+				while ((due = collectWaiters()) != null)
+				{
+					for (WaiterEntry entry: due)
+						wakeUp(entry, entry.changed);
+				}
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+}
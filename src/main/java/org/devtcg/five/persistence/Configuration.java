@@ -17,9 +17,14 @@ package org.devtcg.five.persistence;
 import java.io.File;
 import java.security.MessageDigest;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,6 +48,7 @@ public class Configuration
 
 	private static final int DEFAULT_PORT = 5545;
 	private static final int DEFAULT_RESCAN_INTERVAL = 24 * 60 * 60 * 1000;
+	private static final long DEFAULT_TOMBSTONE_RETENTION = 30L * 24 * 60 * 60 * 1000;
 
 	private static final String DB_NAME = "prefs";
 	private static final int DB_VERSION = 4;
@@ -51,8 +57,16 @@ public class Configuration
 
 	private final DatabaseOpenHelper mDatabase;
 
-	private static final String VALUE_QUERY =
-		"SELECT " + Columns.VALUE + " FROM " + TABLE + " WHERE " + Columns.KEY + " = ?";
+	/**
+	 * Contents of the config table, loaded on first use and replaced as a
+	 * whole on every write so that readers never need a lock.
+	 */
+	private volatile Snapshot mSnapshot;
+
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+	private static final String ALL_QUERY =
+		"SELECT " + Columns.KEY + ", " + Columns.VALUE + " FROM " + TABLE;
 
 	static {
 		String home = System.getProperty("user.home");
@@ -103,6 +117,7 @@ public class Configuration
 		public static final String PASSWORD = "password";
 		public static final String USE_UPNP = "use_upnp";
 		public static final String RESCAN_INTERVAL = "rescan_interval";
+		public static final String TOMBSTONE_RETENTION = "tombstone_retention";
 	}
 
 	private static class OpenHelper extends DatabaseOpenHelper
@@ -172,25 +187,220 @@ public class Configuration
 		}
 	}
 
+	/**
+	 * Notified after each change to the stored configuration.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the thread which made the change, with the configuration
+		 * locked against other writers so that changes are seen in order.
+		 */
+		public void onConfigurationChanged(Snapshot oldConfig, Snapshot newConfig);
+	}
+
+	/**
+	 * Immutable view of every setting at one point in time. Values are
+	 * parsed once, when the snapshot is created.
+	 */
+	public static class Snapshot
+	{
+		private final Map<String, String> mValues;
+
+		private final boolean mFirstTime;
+		private final List<String> mLibraryPaths;
+		private final int mServerPort;
+		private final String mHashedPassword;
+		private final boolean mUseUPnP;
+		private final long mRescanInterval;
+		private final long mTombstoneRetention;
+
+		/* package */ Snapshot(Map<String, String> values)
+		{
+			mValues = values;
+
+			mFirstTime = getBoolean(Keys.FIRST_TIME, true);
+			mLibraryPaths = parseLibraryPaths(values.get(Keys.LIBRARY_PATH));
+			mServerPort = (int)getLong(Keys.PORT, DEFAULT_PORT);
+			mHashedPassword = values.get(Keys.PASSWORD);
+			mUseUPnP = getBoolean(Keys.USE_UPNP, true);
+			mRescanInterval = getLong(Keys.RESCAN_INTERVAL, DEFAULT_RESCAN_INTERVAL);
+			mTombstoneRetention = getLong(Keys.TOMBSTONE_RETENTION, DEFAULT_TOMBSTONE_RETENTION);
+		}
+
+		private boolean getBoolean(String key, boolean defaultValue)
+		{
+			String value = mValues.get(key);
+			return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+		}
+
+		private long getLong(String key, long defaultValue)
+		{
+			String value = mValues.get(key);
+			if (value == null)
+				return defaultValue;
+
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn("Ignoring bad value for " + key + ": " + value);
+				return defaultValue;
+			}
+		}
+
+		private static List<String> parseLibraryPaths(String pathsValue)
+		{
+			ArrayList<String> paths = new ArrayList<String>();
+
+			if (pathsValue != null)
+			{
+				for (String path: pathsValue.split(File.pathSeparator))
+					paths.add(path);
+			}
+
+			return Collections.unmodifiableList(paths);
+		}
+
+		/**
+		 * @return A copy of this snapshot with one value replaced.
+		 */
+		/* package */ Snapshot with(String key, String value)
+		{
+			HashMap<String, String> values = new HashMap<String, String>(mValues);
+			values.put(key, value);
+			return new Snapshot(values);
+		}
+
+		/**
+		 * @return True if <code>key</code> has a different value in
+		 *   <code>other</code>.
+		 */
+		public boolean hasChanged(Snapshot other, String key)
+		{
+			String value = mValues.get(key);
+			String otherValue = other.mValues.get(key);
+			return (value == null) ? otherValue != null : value.equals(otherValue) == false;
+		}
+
+		public boolean isFirstTime()
+		{
+			return mFirstTime;
+		}
+
+		public List<String> getLibraryPaths()
+		{
+			return mLibraryPaths;
+		}
+
+		public int getServerPort()
+		{
+			return mServerPort;
+		}
+
+		/**
+		 * @return SHA-1 hash of the password as a hex string, or null if no
+		 *   password has been set.
+		 */
+		public String getHashedPassword()
+		{
+			return mHashedPassword;
+		}
+
+		public boolean useUPnP()
+		{
+			return mUseUPnP;
+		}
+
+		/**
+		 * Gets the rescan interval in milliseconds.
+		 */
+		public long getRescanInterval()
+		{
+			return mRescanInterval;
+		}
+
+		/**
+		 * Gets how long, in milliseconds, records of deleted entries are kept
+		 * for clients which have not synced since the delete.
+		 */
+		public long getTombstoneRetention()
+		{
+			return mTombstoneRetention;
+		}
+	}
+
+	/**
+	 * Gets the current value of every setting. Only the first call touches
+	 * the database.
+	 */
+	public Snapshot getSnapshot() throws SQLException
+	{
+		Snapshot snapshot = mSnapshot;
+		if (snapshot != null)
+			return snapshot;
+
+		synchronized (this) {
+			if (mSnapshot == null)
+				mSnapshot = load(getConnection());
+
+			return mSnapshot;
+		}
+	}
+
+	private static Snapshot load(Connection conn) throws SQLException
+	{
+		HashMap<String, String> values = new HashMap<String, String>();
+
+		ResultSet set = DatabaseUtils.executeForResult(conn, ALL_QUERY);
+		try {
+			while (set.next())
+				values.put(set.getString(1), set.getString(2));
+		} finally {
+			set.close();
+		}
+
+		return new Snapshot(values);
+	}
+
+	public void addListener(Listener listener)
+	{
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener)
+	{
+		mListeners.remove(listener);
+	}
+
 	/**
 	 * Initializes configured settings after the setup wizard exists successfully.
 	 */
 	public synchronized void initFirstTime(String libraryPath, String plaintextPassword,
 			boolean useUPnP) throws SQLException
 	{
-		Connection conn = getConnection();
-
-		setValue(conn, Keys.FIRST_TIME, "FALSE");
-		setValue(conn, Keys.LIBRARY_PATH, libraryPath);
-		setValue(conn, Keys.PASSWORD, sha1Hash(plaintextPassword));
-		setValue(conn, Keys.USE_UPNP, useUPnP ? "TRUE" : "FALSE");
+		setValue(Keys.FIRST_TIME, "FALSE");
+		setValue(Keys.LIBRARY_PATH, libraryPath);
+		setValue(Keys.PASSWORD, sha1Hash(plaintextPassword));
+		setValue(Keys.USE_UPNP, useUPnP ? "TRUE" : "FALSE");
 
 		/* Let other options remain defaulted... */
 	}
 
-	private static void setValue(Connection conn, String key, String value) throws SQLException
+	private synchronized void setValue(String key, String value) throws SQLException
 	{
-		DatabaseUtils.insertOrReplace(conn, TABLE, Columns.KEY, key, Columns.VALUE, value);
+		Snapshot oldConfig = getSnapshot();
+
+		DatabaseUtils.insertOrReplace(getConnection(), TABLE, Columns.KEY, key,
+				Columns.VALUE, value);
+
+		Snapshot newConfig = mSnapshot = oldConfig.with(key, value);
+
+		if (oldConfig.hasChanged(newConfig, key) == true)
+		{
+			for (Listener listener: mListeners)
+				listener.onConfigurationChanged(oldConfig, newConfig);
+		}
 	}
 
 	private Connection getConnection() throws SQLException
@@ -198,81 +408,88 @@ public class Configuration
 		return mDatabase.getConnection().getWrappedConnection();
 	}
 
-	public synchronized String getHashedPassword() throws SQLException
+	/**
+	 * Write out any settings still held in memory by the database and close
+	 * it. It would be reopened should a setting be changed afterwards.
+	 */
+	public synchronized void close() throws SQLException
 	{
-		return DatabaseUtils.stringForQuery(getConnection(),
-				VALUE_QUERY, new String[] { Keys.PASSWORD });
+		mDatabase.close();
 	}
 
-	public synchronized void setPassword(String plaintextPassword) throws SQLException
+	public String getHashedPassword() throws SQLException
+	{
+		return getSnapshot().getHashedPassword();
+	}
+
+	public void setPassword(String plaintextPassword) throws SQLException
 	{
 		setHashedPassword(sha1Hash(plaintextPassword));
 	}
 
-	public synchronized void setHashedPassword(String hashedPassword) throws SQLException
+	public void setHashedPassword(String hashedPassword) throws SQLException
+	{
+		setValue(Keys.PASSWORD, hashedPassword);
+	}
+
+	public boolean useUPnP() throws SQLException
 	{
-		setValue(getConnection(), Keys.PASSWORD, hashedPassword);
+		return getSnapshot().useUPnP();
 	}
 
-	public synchronized boolean useUPnP() throws SQLException
+	public void setUseUPnP(boolean useUPnP) throws SQLException
 	{
-		return DatabaseUtils.booleanForQuery(getConnection(), true,
-				VALUE_QUERY, Keys.USE_UPNP);
+		setValue(Keys.USE_UPNP, useUPnP ? "TRUE" : "FALSE");
 	}
 
-	public synchronized void setUseUPnP(boolean useUPnP) throws SQLException
+	public boolean isFirstTime() throws SQLException
 	{
-		setValue(getConnection(), Keys.USE_UPNP, useUPnP ? "TRUE" : "FALSE");
+		return getSnapshot().isFirstTime();
 	}
 
-	public synchronized boolean isFirstTime() throws SQLException
+	public int getServerPort() throws SQLException
 	{
-		return DatabaseUtils.booleanForQuery(getConnection(), true,
-				VALUE_QUERY, Keys.FIRST_TIME);
+		return getSnapshot().getServerPort();
 	}
 
-	public synchronized int getServerPort() throws SQLException
+	public void setServerPort(int port) throws SQLException
 	{
-		return DatabaseUtils.integerForQuery(getConnection(), DEFAULT_PORT,
-				VALUE_QUERY, Keys.PORT);
+		setValue(Keys.PORT, String.valueOf(port));
 	}
 
 	/**
 	 * Gets the rescan interval in milliseconds.
 	 */
-	public synchronized long getRescanInterval() throws SQLException
+	public long getRescanInterval() throws SQLException
 	{
-		return DatabaseUtils.longForQuery(getConnection(), DEFAULT_RESCAN_INTERVAL,
-				VALUE_QUERY, Keys.RESCAN_INTERVAL);
+		return getSnapshot().getRescanInterval();
 	}
 
-	public synchronized void setRescanInterval(long rescanInterval) throws SQLException
+	public void setRescanInterval(long rescanInterval) throws SQLException
 	{
-		setValue(getConnection(), Keys.RESCAN_INTERVAL, String.valueOf(rescanInterval));
+		setValue(Keys.RESCAN_INTERVAL, String.valueOf(rescanInterval));
 	}
 
-	public synchronized void setServerPort(int port) throws SQLException
+	/**
+	 * Gets how long, in milliseconds, records of deleted entries are kept
+	 * for clients which have not synced since the delete.
+	 */
+	public long getTombstoneRetention() throws SQLException
 	{
-		setValue(getConnection(), Keys.PORT, String.valueOf(port));
+		return getSnapshot().getTombstoneRetention();
 	}
 
-	public synchronized List<String> getLibraryPaths() throws SQLException
+	public void setTombstoneRetention(long retention) throws SQLException
 	{
-		String pathsValue = DatabaseUtils.stringForQuery(getConnection(),
-			VALUE_QUERY, new String[] { Keys.LIBRARY_PATH });
-
-		ArrayList<String> paths = new ArrayList<String>();
-
-		if (pathsValue != null)
-		{
-			for (String path: pathsValue.split(File.pathSeparator))
-				paths.add(path);
-		}
+		setValue(Keys.TOMBSTONE_RETENTION, String.valueOf(retention));
+	}
 
-		return paths;
+	public List<String> getLibraryPaths() throws SQLException
+	{
+		return getSnapshot().getLibraryPaths();
 	}
 
-	public synchronized void setLibraryPaths(List<String> paths) throws SQLException
+	public void setLibraryPaths(List<String> paths) throws SQLException
 	{
 		if (paths == null || paths.size() == 0)
 			throw new IllegalArgumentException("paths must not be null or empty");
@@ -283,6 +500,6 @@ public class Configuration
 
 		string.setLength(string.length() - File.pathSeparator.length());
 
-		setValue(getConnection(), Keys.LIBRARY_PATH, string.toString());
+		setValue(Keys.LIBRARY_PATH, string.toString());
 	}
 }
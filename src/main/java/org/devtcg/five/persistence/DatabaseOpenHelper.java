@@ -19,6 +19,7 @@ import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +46,9 @@ public abstract class DatabaseOpenHelper
 	/* Used only to generate temporary database path names. */
 	private static SecureRandom mRandom;
 
+	/* Used only to generate in-memory database names. */
+	private static final AtomicLong sMemoryDatabaseCount = new AtomicLong();
+
 	/**
 	 * @param name Database filename, or null to allocate temporary storage.
 	 * @param version Expected version number of this database's schema.
@@ -66,20 +70,16 @@ public abstract class DatabaseOpenHelper
 		else
 		{
 			/**
-			 * System.currentTimeMillis() is used to work around particularly
-			 * stupid behaviour in HSQLDB where memory databases are tracked
-			 * within the engine and returned to the caller by name.
+			 * A unique name is used to work around particularly stupid
+			 * behaviour in HSQLDB where memory databases are tracked within
+			 * the engine and returned to the caller by name.
 			 *
 			 * We need semantics that allow us to reliably create a new
 			 * in-memory database instance on demand, not potentially re-use an
-			 * existing one we have open.
-			 *
-			 * There is little chance of contention in using
-			 * System.currentTimeMillis() based on our design, but in the future
-			 * we may need to look at a properly synchronized approach to ensure
-			 * we never pass the same alias twice.
+			 * existing one we have open. This used to be the current time,
+			 * which concurrent feed requests would sometimes share.
 			 */
-			return "mem:" + System.currentTimeMillis();
+			return "mem:" + sMemoryDatabaseCount.incrementAndGet();
 		}
 	}
 
@@ -179,6 +179,8 @@ public abstract class DatabaseOpenHelper
 			conn.setAutoCommit(true);
 		}
 
+		onOpen(conn);
+
 		mConnection = new LockableConnection(conn);
 
 		return mConnection;
@@ -214,4 +216,12 @@ public abstract class DatabaseOpenHelper
 
 	public abstract void onUpgrade(Connection conn, int oldVersion, int newVersion)
 		throws SQLException;
+
+	/**
+	 * Called once the database has been created or upgraded as needed, but
+	 * before the connection is handed out.
+	 */
+	public void onOpen(Connection conn) throws SQLException
+	{
+	}
 }
@@ -20,9 +20,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.devtcg.five.content.Cursor;
+import org.devtcg.five.util.Metrics;
 
 public class DatabaseUtils
 {
+	/**
+	 * Covers statements executed through this class only, which excludes
+	 * {@link InsertHelper} and {@link DeleteHelper}. Reading the results of a
+	 * query isn't included either, but HSQLDB produces the whole result set
+	 * up front anyway.
+	 */
+	private static final Metrics.Histogram QUERY_DURATION = Metrics.getInstance().histogram(
+		"db_query_duration_seconds", "Time taken to execute database statements");
+
 	/**
 	 * Starts a transaction.  The normal pattern for using this API is:
 	 * <p>
@@ -71,24 +81,36 @@ public class DatabaseUtils
 	public static void execute(Connection conn, String sql, String... args)
 		throws SQLException
 	{
-		if (args == null || args.length == 0)
-			conn.createStatement().execute(sql);
-		else
-		{
-			PreparedStatement stmt = createPreparedStatement(conn, sql, args);
-			stmt.execute();
+		long start = System.nanoTime();
+
+		try {
+			if (args == null || args.length == 0)
+				conn.createStatement().execute(sql);
+			else
+			{
+				PreparedStatement stmt = createPreparedStatement(conn, sql, args);
+				stmt.execute();
+			}
+		} finally {
+			QUERY_DURATION.recordSince(start);
 		}
 	}
 
 	public static int update(Connection conn, String sql, String... args)
 			throws SQLException
 	{
-		if (args == null || args.length == 0)
-			return conn.createStatement().executeUpdate(sql);
-		else
-		{
-			PreparedStatement stmt = createPreparedStatement(conn, sql, args);
-			return stmt.executeUpdate();
+		long start = System.nanoTime();
+
+		try {
+			if (args == null || args.length == 0)
+				return conn.createStatement().executeUpdate(sql);
+			else
+			{
+				PreparedStatement stmt = createPreparedStatement(conn, sql, args);
+				return stmt.executeUpdate();
+			}
+		} finally {
+			QUERY_DURATION.recordSince(start);
 		}
 	}
 
@@ -100,12 +122,18 @@ public class DatabaseUtils
 	public static ResultSet executeForResult(Connection conn,
 		String query, String... args) throws SQLException
 	{
-		if (args == null || args.length == 0)
-			return conn.createStatement().executeQuery(query);
-		else
-		{
-			PreparedStatement stmt = createPreparedStatement(conn, query, args);
-			return stmt.executeQuery();
+		long start = System.nanoTime();
+
+		try {
+			if (args == null || args.length == 0)
+				return conn.createStatement().executeQuery(query);
+			else
+			{
+				PreparedStatement stmt = createPreparedStatement(conn, query, args);
+				return stmt.executeQuery();
+			}
+		} finally {
+			QUERY_DURATION.recordSince(start);
 		}
 	}
 
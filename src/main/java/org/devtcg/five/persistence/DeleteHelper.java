@@ -38,6 +38,13 @@ public class DeleteHelper
 	private PreparedStatement mCheckLogStatement;
 	private InsertHelper mLogInserter;
 
+	/* Used only by the batched delete(long[], int, int). */
+	private PreparedStatement mUpdateLogStatement;
+	private PreparedStatement mInsertLogStatement;
+
+	private ChangeNotifier mNotifier;
+	private SyncClock mClock;
+
 	public DeleteHelper(Connection conn, String mainTable, String deletedTable)
 	{
 		this(conn, mainTable, deletedTable, Columns._ID);
@@ -51,6 +58,41 @@ public class DeleteHelper
 		mIdColumn = idColumn;
 	}
 
+	/**
+	 * Publish each delete to <code>notifier</code>, under the name of the
+	 * deleted table.
+	 */
+	public void setChangeNotifier(ChangeNotifier notifier)
+	{
+		mNotifier = notifier;
+	}
+
+	/**
+	 * Take sync times for the deleted log from <code>clock</code>, rather
+	 * than the system clock.
+	 */
+	public void setSyncClock(SyncClock clock)
+	{
+		mClock = clock;
+	}
+
+	private long beginWrite()
+	{
+		if (mClock != null)
+			return mClock.acquire();
+		else
+			return System.currentTimeMillis();
+	}
+
+	private void endWrite(long syncTime)
+	{
+		if (mClock != null)
+			mClock.release(syncTime);
+
+		if (mNotifier != null)
+			mNotifier.notifyChange(mDeletedTable, syncTime);
+	}
+
 	private PreparedStatement getDeleteStatement() throws SQLException
 	{
 		if (mDeleteStatement == null)
@@ -73,6 +115,30 @@ public class DeleteHelper
 		return mCheckLogStatement;
 	}
 
+	private PreparedStatement getUpdateLogStatement() throws SQLException
+	{
+		if (mUpdateLogStatement == null)
+		{
+			String sql = "UPDATE " + mDeletedTable + " SET " + Columns._SYNC_TIME + " = ?, " +
+				Columns._SYNC_ID + " = NULL WHERE " + mIdColumn + " = ?";
+			mUpdateLogStatement = mConnection.prepareStatement(sql);
+		}
+
+		return mUpdateLogStatement;
+	}
+
+	private PreparedStatement getInsertLogStatement() throws SQLException
+	{
+		if (mInsertLogStatement == null)
+		{
+			String sql = "INSERT INTO " + mDeletedTable + " (" + mIdColumn + ", " +
+				Columns._SYNC_TIME + ") VALUES (?, ?)";
+			mInsertLogStatement = mConnection.prepareStatement(sql);
+		}
+
+		return mInsertLogStatement;
+	}
+
 	private InsertHelper getLogInserter() throws SQLException
 	{
 		if (mLogInserter == null)
@@ -124,19 +190,102 @@ public class DeleteHelper
 		if (mId < 0)
 			throw new IllegalStateException("You must call setId with a non-negative id before delete.");
 
-		DatabaseUtils.beginTransaction(mConnection);
+		long now = beginWrite();
+		try {
+			/* Join the caller's transaction if there is one. */
+			if (mConnection.getAutoCommit() == false)
+			{
+				deleteLocked(now);
+				return;
+			}
+
+			DatabaseUtils.beginTransaction(mConnection);
+			try {
+				deleteLocked(now);
+				DatabaseUtils.setTransactionSuccessful(mConnection);
+			} finally {
+				DatabaseUtils.endTransaction(mConnection);
+			}
+		} finally {
+			endWrite(now);
+		}
+	}
+
+	/**
+	 * Delete several records at once, logging each with the same sync time.
+	 * As with {@link #delete()}, the caller's transaction is used if there is
+	 * one, otherwise all records are deleted in a single new transaction.
+	 * The deletes and the log entries are each sent as a JDBC batch.
+	 */
+	public void delete(long[] ids, int offset, int count) throws SQLException
+	{
+		if (count == 0)
+			return;
+
+		boolean ownTransaction = mConnection.getAutoCommit();
+
+		long now = beginWrite();
 		try {
-			deleteLocked();
-			DatabaseUtils.setTransactionSuccessful(mConnection);
+			if (ownTransaction)
+				DatabaseUtils.beginTransaction(mConnection);
+
+			try {
+				deleteBatchLocked(ids, offset, count, now);
+
+				if (ownTransaction)
+					DatabaseUtils.setTransactionSuccessful(mConnection);
+			} finally {
+				if (ownTransaction)
+					DatabaseUtils.endTransaction(mConnection);
+			}
 		} finally {
-			DatabaseUtils.endTransaction(mConnection);
+			endWrite(now);
 		}
 	}
 
-	private void deleteLocked() throws SQLException
+	private void deleteBatchLocked(long[] ids, int offset, int count, long now)
+		throws SQLException
 	{
-		long now = System.currentTimeMillis();
+		PreparedStatement delete = getDeleteStatement();
+		delete.clearParameters();
+		for (int i = offset; i < offset + count; i++)
+		{
+			delete.setLong(1, ids[i]);
+			delete.addBatch();
+		}
+		delete.executeBatch();
+
+		/* Refresh the log entries of ids deleted before... */
+		PreparedStatement updateLog = getUpdateLogStatement();
+		updateLog.clearParameters();
+		for (int i = offset; i < offset + count; i++)
+		{
+			updateLog.setLong(1, now);
+			updateLog.setLong(2, ids[i]);
+			updateLog.addBatch();
+		}
+		int[] updated = updateLog.executeBatch();
+
+		/* ...and add entries for the rest. */
+		PreparedStatement insertLog = getInsertLogStatement();
+		insertLog.clearParameters();
+		boolean inserting = false;
+		for (int i = 0; i < count; i++)
+		{
+			if (updated[i] != 0)
+				continue;
 
+			insertLog.setLong(1, ids[offset + i]);
+			insertLog.setLong(2, now);
+			insertLog.addBatch();
+			inserting = true;
+		}
+		if (inserting == true)
+			insertLog.executeBatch();
+	}
+
+	private void deleteLocked(long now) throws SQLException
+	{
 		mDeleteStatement.setLong(1, mId);
 		mDeleteStatement.execute();
 
@@ -18,6 +18,9 @@ import java.sql.SQLException;
 
 public abstract class Provider
 {
+	private ChangeNotifier mChangeNotifier;
+	private SyncClock mSyncClock;
+
 	public abstract LockableConnection getConnection() throws SQLException;
 
 	public void lock() throws SQLException
@@ -35,6 +38,43 @@ public abstract class Provider
 		getConnection().yieldIfContended();
 	}
 
+	/**
+	 * @return Notifier which the DAOs of this provider publish their writes
+	 *         to.
+	 */
+	public synchronized ChangeNotifier getChangeNotifier()
+	{
+		if (mChangeNotifier == null)
+			mChangeNotifier = new ChangeNotifier(this);
+
+		return mChangeNotifier;
+	}
+
+	/**
+	 * @return Clock which the DAOs of this provider take their sync times
+	 *         from.
+	 */
+	public synchronized SyncClock getSyncClock() throws SQLException
+	{
+		if (mSyncClock == null)
+		{
+			mSyncClock = new SyncClock(getLatestSyncTime());
+			getChangeNotifier().setSyncClock(mSyncClock);
+		}
+
+		return mSyncClock;
+	}
+
+	/**
+	 * @return Latest sync time already written to this provider, which the
+	 *         clock must not go back past should the system clock have been
+	 *         set back since.
+	 */
+	protected long getLatestSyncTime() throws SQLException
+	{
+		return 0;
+	}
+
 	public void close() throws SQLException
 	{
 		getConnection().close();
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import java.util.TreeSet;
+
+/**
+ * Source of _sync_time values. Every time handed out is strictly greater
+ * than the one before it, even if the system clock steps backwards, so that
+ * no two writes share a time and a later write always has a later time.
+ * <p>
+ * Each time is held as pending from {@link #acquire} until {@link #release},
+ * which callers do around the statements (or the whole transaction) which
+ * write it. {@link #getHorizon} is then the latest time at or before which
+ * no write is still in progress. Readers which ignore rows past the horizon
+ * can tell clients to resume from the horizon without skipping any rows,
+ * all without blocking writers.
+ */
+public class SyncClock
+{
+	private long mLastTime;
+
+	private final TreeSet<Long> mPending = new TreeSet<Long>();
+
+	private Listener mListener;
+
+	public interface Listener
+	{
+		/**
+		 * Called after a release moves the horizon forward, without the
+		 * clock's lock held.
+		 */
+		public void onHorizonAdvanced(long horizon);
+	}
+
+	/**
+	 * @param lastTime Latest time previously written, which the clock will
+	 *            not go back past.
+	 */
+	public SyncClock(long lastTime)
+	{
+		mLastTime = lastTime;
+	}
+
+	/**
+	 * @return A new time, pending until passed to {@link #release}.
+	 */
+	public synchronized long acquire()
+	{
+		long time = Math.max(System.currentTimeMillis(), mLastTime + 1);
+		mLastTime = time;
+		mPending.add(time);
+		return time;
+	}
+
+	public void release(long time)
+	{
+		long horizon;
+		Listener listener;
+
+		synchronized(this) {
+			long before = getHorizon();
+
+			if (mPending.remove(time) == false)
+				throw new IllegalStateException("Time " + time + " is not pending");
+
+			horizon = getHorizon();
+			if (horizon == before)
+				return;
+
+			listener = mListener;
+		}
+
+		if (listener != null)
+			listener.onHorizonAdvanced(horizon);
+	}
+
+	public synchronized void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * @return The latest time handed out.
+	 */
+	public synchronized long getLastTime()
+	{
+		return mLastTime;
+	}
+
+	/**
+	 * @return The latest time such that every write at or before it has
+	 *         been released.
+	 */
+	public synchronized long getHorizon()
+	{
+		if (mPending.isEmpty())
+			return mLastTime;
+
+		return mPending.first() - 1;
+	}
+}
@@ -15,15 +15,25 @@
 package org.devtcg.five.server;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpServerConnection;
+import org.apache.http.RequestLine;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.DefaultHttpServerConnection;
@@ -32,26 +42,60 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.protocol.HttpRequestHandlerRegistry;
 import org.apache.http.protocol.HttpService;
 import org.apache.http.protocol.ResponseConnControl;
 import org.apache.http.protocol.ResponseContent;
 import org.devtcg.five.util.CancelableThread;
+import org.devtcg.five.util.Metrics;
 
 public abstract class AbstractHttpServer extends CancelableThread
 {
 	/* package */ static final Log LOG = LogFactory.getLog(AbstractHttpServer.class);
 
+	private static final Metrics.Gauge CONNECTIONS = Metrics.getInstance().gauge(
+		"http_connections", "Open client connections, including suspended requests");
+	private static final Metrics.Gauge WORKERS = Metrics.getInstance().gauge(
+		"http_workers", "Threads currently serving a connection");
+	private static final Metrics.Counter SENT_BYTES = Metrics.getInstance().counter(
+		"http_sent_bytes_total", "Bytes sent to clients, including headers");
+	private static final Metrics.Gauge FIRST_RESPONSE = Metrics.getInstance().gauge(
+		"http_first_response_milliseconds", "Time from process start until the first response was sent");
+	private static final AtomicBoolean sFirstResponseSent = new AtomicBoolean();
+	/* package */ static final String REQUEST_DURATION = "http_request_duration_seconds";
+	private static final String REQUEST_DURATION_HELP =
+		"Time from reading a request until its response was sent";
+
 	protected final HashSet<WorkerThread> mWorkers =
 		new HashSet<WorkerThread>();
 
+	/** Requests which have been suspended and let go of by their worker. */
+	private final HashSet<SuspendedRequest> mSuspended =
+		new HashSet<SuspendedRequest>();
+
+	/** Context attribute marking a request as suspended by its handler. */
+	private static final String SUSPENDED_REQUEST_ATTRIBUTE = "five.suspended-request";
+
+	/** Context attribute holding the server handling the request. */
+	private static final String SERVER_ATTRIBUTE = "five.server";
+
 	private ServerSocket mSocket;
 
 	protected final HttpParams mParams;
 	private HttpRequestHandler mReqHandler;
 
+	private volatile AccessLog mAccessLog;
+
+	/** Set once the server has stopped accepting connections to shut down. */
+	private volatile boolean mDraining;
+
+	/** How often to look for connections to close while draining. */
+	private static final long DRAIN_POLL_INTERVAL = 100;
+
 	public AbstractHttpServer() throws IOException
 	{
 		mSocket = new ServerSocket();
@@ -83,6 +127,14 @@ public abstract class AbstractHttpServer extends CancelableThread
 		bind(port);
 	}
 
+	/**
+	 * @return The port the server is listening on, or -1 if it isn't bound.
+	 */
+	public int getLocalPort()
+	{
+		return getSocket().getLocalPort();
+	}
+
 	public void bind(int port) throws IOException
 	{
 		try {
@@ -97,6 +149,25 @@ public abstract class AbstractHttpServer extends CancelableThread
 		mReqHandler = handler;
 	}
 
+	/**
+	 * Log every response to <code>accessLog</code>, which the caller must
+	 * have started. It is closed when the server shuts down.
+	 */
+	public void setAccessLog(AccessLog accessLog)
+	{
+		mAccessLog = accessLog;
+	}
+
+	/**
+	 * Name the request for the purpose of collecting metrics. As each name
+	 * is tracked separately, subclasses should return one of a small, fixed
+	 * set of names.
+	 */
+	protected String getRouteName(HttpRequest request)
+	{
+		return "other";
+	}
+
 	private void reset()
 	{
 		WorkerThread[] workersCopy;
@@ -109,6 +180,21 @@ public abstract class AbstractHttpServer extends CancelableThread
 
 		for (WorkerThread t: workersCopy)
 			t.requestCancelAndWait();
+
+		SuspendedRequest[] suspendedCopy;
+
+		synchronized(mSuspended) {
+			suspendedCopy =
+				mSuspended.toArray(new SuspendedRequest[mSuspended.size()]);
+			mSuspended.clear();
+		}
+
+		for (SuspendedRequest r: suspendedCopy)
+		{
+			try {
+				r.mConn.shutdown();
+			} catch (IOException e) {}
+		}
 	}
 
 	@Override
@@ -123,6 +209,9 @@ public abstract class AbstractHttpServer extends CancelableThread
 			if (LOG.isErrorEnabled())
 				LOG.error("Error shutting down HTTP server", e);
 		}
+
+		if (mAccessLog != null)
+			mAccessLog.close();
 	}
 
 	public void shutdown()
@@ -130,6 +219,86 @@ public abstract class AbstractHttpServer extends CancelableThread
 		requestCancel();
 	}
 
+	/**
+	 * Stop accepting connections, and close each open connection once the
+	 * response it is sending is complete instead of keeping it alive. Idle
+	 * connections are closed by {@link #shutdown(long)}.
+	 */
+	public void startDraining()
+	{
+		if (mDraining == true)
+			return;
+
+		mDraining = true;
+
+		try {
+			getSocket().close();
+		} catch (IOException e) {
+			if (LOG.isErrorEnabled())
+				LOG.error("Error closing HTTP server socket", e);
+		}
+	}
+
+	/**
+	 * Shut down without cutting off responses in progress, such as a song
+	 * being streamed or a feed being synced, unless they take longer than
+	 * <code>timeout</code> milliseconds.
+	 *
+	 * @return True if every response finished in time.
+	 */
+	public boolean shutdown(long timeout)
+	{
+		startDraining();
+
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean drained;
+
+		while ((drained = closeIdleConnections()) == false)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+
+			try {
+				Thread.sleep(Math.min(remaining, DRAIN_POLL_INTERVAL));
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		if (drained == false && LOG.isWarnEnabled())
+			LOG.warn("Timed out waiting for responses in progress, closing them");
+
+		requestCancel();
+
+		return drained;
+	}
+
+	/**
+	 * Close every connection which is waiting for a request.
+	 *
+	 * @return True if no connections remain open.
+	 */
+	private boolean closeIdleConnections()
+	{
+		WorkerThread[] workersCopy;
+
+		synchronized(mWorkers) {
+			workersCopy =
+				mWorkers.toArray(new WorkerThread[mWorkers.size()]);
+		}
+
+		for (WorkerThread t: workersCopy)
+			t.mConn.shutdownIfIdle();
+
+		if (workersCopy.length > 0)
+			return false;
+
+		synchronized(mSuspended) {
+			return mSuspended.isEmpty();
+		}
+	}
+
 	public void run()
 	{
 		if (mReqHandler == null)
@@ -139,36 +308,29 @@ public abstract class AbstractHttpServer extends CancelableThread
 		{
 			try {
 				Socket sock = getSocket().accept();
-				DefaultHttpServerConnection conn =
-					new DefaultHttpServerConnection();
+				MeteredServerConnection conn = new MeteredServerConnection();
 
 				conn.bind(sock, mParams);
 
 				BasicHttpProcessor proc = new BasicHttpProcessor();
 				proc.addInterceptor(new ResponseContent());
 				proc.addInterceptor(new ResponseConnControl());
+				proc.addInterceptor(mDrainControl);
 
 				HttpRequestHandlerRegistry reg =
 					new HttpRequestHandlerRegistry();
 				reg.register("*", mReqHandler);
 
-				HttpService svc = new HttpService(proc,
+				SuspendableHttpService svc = new SuspendableHttpService(proc,
 					new DefaultConnectionReuseStrategy(),
 					new DefaultHttpResponseFactory());
 
 				svc.setParams(mParams);
 				svc.setHandlerResolver(reg);
 
-				WorkerThread t;
-
-				synchronized(mWorkers) {
-					t = new WorkerThread(svc, conn);
-					mWorkers.add(t);
-				}
-
-				t.start();
+				startWorker(svc, conn);
 			} catch (IOException e) {
-				if (!hasCanceled())
+				if (!hasCanceled() && !mDraining)
 				{
 					if (LOG.isErrorEnabled())
 						LOG.error("I/O error initializing connection thread", e);
@@ -178,12 +340,359 @@ public abstract class AbstractHttpServer extends CancelableThread
 		}
 	}
 
+	/**
+	 * Asks clients to close the connection after each response once the
+	 * server is draining, so that it is closed as soon as it's complete.
+	 */
+	private final HttpResponseInterceptor mDrainControl = new HttpResponseInterceptor()
+	{
+		public void process(HttpResponse response, HttpContext context)
+		{
+			if (mDraining == true)
+				response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+		}
+	};
+
+	private void startWorker(SuspendableHttpService svc, MeteredServerConnection conn)
+	{
+		startWorker(svc, conn, null);
+	}
+
+	/**
+	 * @param resumed Suspended request whose response the worker should send
+	 *   before reading any more requests, or null.
+	 */
+	private void startWorker(SuspendableHttpService svc, MeteredServerConnection conn,
+		SuspendedRequest resumed)
+	{
+		WorkerThread t;
+
+		synchronized(mWorkers) {
+			t = new WorkerThread(svc, conn, resumed);
+			mWorkers.add(t);
+		}
+
+		WORKERS.increment();
+
+		t.start();
+	}
+
+	/**
+	 * Suspend the request currently being handled, so that the worker thread
+	 * is released without sending a response. The handler must arrange for
+	 * {@link SuspendedRequest#resume} to be called later (from any thread),
+	 * once it has filled in the response. This allows clients to wait on the
+	 * server for long periods without tying up a thread each.
+	 */
+	public static SuspendedRequest suspend(HttpResponse response, HttpContext context)
+	{
+		SuspendedRequest request = new SuspendedRequest(response, context);
+		context.setAttribute(SUSPENDED_REQUEST_ATTRIBUTE, request);
+		return request;
+	}
+
+	/**
+	 * @return True if the server handling the request is shutting down, in
+	 *   which case handlers should respond right away rather than suspend.
+	 */
+	public static boolean isDraining(HttpContext context)
+	{
+		AbstractHttpServer server = (AbstractHttpServer)context.getAttribute(SERVER_ATTRIBUTE);
+		return server != null && server.mDraining == true;
+	}
+
+	/**
+	 * Hands a suspended request's connection to a new worker, which sends
+	 * the response and carries on serving the connection. Nothing is written
+	 * from the calling thread, which may be one that must not block (such as
+	 * ChangeNotifier's).
+	 */
+	private void complete(SuspendedRequest request)
+	{
+		/* Held until the worker is registered so that draining can't miss it. */
+		synchronized(mSuspended) {
+			if (mSuspended.remove(request) == false)
+				return;
+
+			startWorker(request.mService, request.mConn, request);
+		}
+	}
+
+	public static class SuspendedRequest
+	{
+		private final HttpResponse mResponse;
+		private final HttpContext mContext;
+
+		private AbstractHttpServer mServer;
+		private SuspendableHttpService mService;
+		private MeteredServerConnection mConn;
+
+		private boolean mDetached;
+		private boolean mResumed;
+
+		private SuspendedRequest(HttpResponse response, HttpContext context)
+		{
+			mResponse = response;
+			mContext = context;
+		}
+
+		public HttpResponse getResponse()
+		{
+			return mResponse;
+		}
+
+		/**
+		 * Send the response. If the worker thread has not yet let go of the
+		 * connection, the response is sent as soon as it has.
+		 */
+		public void resume()
+		{
+			synchronized(this) {
+				if (mResumed == true)
+					return;
+
+				mResumed = true;
+
+				if (mDetached == false)
+					return;
+			}
+
+			mServer.complete(this);
+		}
+
+		private void onDetached(AbstractHttpServer server, SuspendableHttpService svc,
+			MeteredServerConnection conn)
+		{
+			synchronized(server.mSuspended) {
+				server.mSuspended.add(this);
+			}
+
+			synchronized(this) {
+				mServer = server;
+				mService = svc;
+				mConn = conn;
+				mDetached = true;
+
+				if (mResumed == false)
+					return;
+			}
+
+			server.complete(this);
+		}
+	}
+
+	/**
+	 * Thrown through HttpService once the handler has suspended the request,
+	 * so that the response is not sent from the worker thread.
+	 */
+	private static class SuspendException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static class SuspendableHttpService extends HttpService
+	{
+		private final HttpProcessor mProcessor;
+		private final ConnectionReuseStrategy mReuseStrategy;
+
+		public SuspendableHttpService(HttpProcessor proc, ConnectionReuseStrategy reuseStrategy,
+			HttpResponseFactory responseFactory)
+		{
+			super(proc, reuseStrategy, responseFactory);
+			mProcessor = proc;
+			mReuseStrategy = reuseStrategy;
+		}
+
+		@Override
+		protected void doService(HttpRequest request, HttpResponse response,
+			HttpContext context) throws HttpException, IOException
+		{
+			super.doService(request, response, context);
+
+			if (context.getAttribute(SUSPENDED_REQUEST_ATTRIBUTE) != null)
+				throw new SuspendException();
+		}
+
+		/**
+		 * Finish a suspended request the way {@link HttpService#handleRequest}
+		 * would have.
+		 *
+		 * @return True if the connection should be kept alive.
+		 */
+		public boolean sendResponse(HttpServerConnection conn, HttpResponse response,
+			HttpContext context) throws HttpException, IOException
+		{
+			mProcessor.process(response, context);
+			conn.sendResponseHeader(response);
+			conn.sendResponseEntity(response);
+			conn.flush();
+
+			return mReuseStrategy.keepAlive(response, context);
+		}
+	}
+
+	/**
+	 * Records the latency and size of each response, and the number of open
+	 * connections, and writes the access log. Suspended requests are covered
+	 * too, as the response is still sent through the same connection.
+	 */
+	private class MeteredServerConnection extends DefaultHttpServerConnection
+	{
+		private final AtomicBoolean mCounted = new AtomicBoolean();
+
+		private String mClient;
+
+		private RequestLine mRequestLine;
+		private String mRoute;
+		private long mRequestStart;
+		private int mStatus = -1;
+		private long mSentBytes;
+
+		/** Set from reading a request until its response has been sent. */
+		private boolean mBusy;
+
+		/** Set once closed by {@link #shutdownIfIdle}. */
+		private boolean mClosedIdle;
+
+		@Override
+		public void bind(Socket socket, HttpParams params) throws IOException
+		{
+			super.bind(socket, params);
+
+			mClient = socket.getInetAddress().getHostAddress();
+
+			mCounted.set(true);
+			CONNECTIONS.increment();
+		}
+
+		@Override
+		public HttpRequest receiveRequestHeader() throws HttpException, IOException
+		{
+			mRequestLine = null;
+			mRoute = null;
+
+			try {
+				HttpRequest request = super.receiveRequestHeader();
+				mRequestLine = request.getRequestLine();
+				mRoute = getRouteName(request);
+
+				synchronized(this) {
+					if (mClosedIdle == true)
+						throw new ConnectionClosedException("Server shutting down");
+
+					mBusy = true;
+				}
+
+				return request;
+			} finally {
+				mRequestStart = System.nanoTime();
+			}
+		}
+
+		@Override
+		public void sendResponseEntity(HttpResponse response) throws HttpException, IOException
+		{
+			super.sendResponseEntity(response);
+			mStatus = response.getStatusLine().getStatusCode();
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			super.flush();
+
+			/* Interim responses (100 Continue) are flushed too; skip those. */
+			if (mStatus == -1)
+				return;
+
+			long duration = System.nanoTime() - mRequestStart;
+
+			if (sFirstResponseSent.get() == false && sFirstResponseSent.compareAndSet(false, true) == true)
+				onFirstResponse();
+
+			String route = (mRoute != null) ? mRoute : "other";
+			Metrics.getInstance().histogram(REQUEST_DURATION, REQUEST_DURATION_HELP,
+				"route", route).record(duration);
+
+			long sentBytes = getMetrics().getSentBytesCount();
+			long bytes = sentBytes - mSentBytes;
+			SENT_BYTES.add(bytes);
+			mSentBytes = sentBytes;
+
+			AccessLog accessLog = mAccessLog;
+			if (accessLog != null)
+			{
+				RequestLine line = mRequestLine;
+				accessLog.log(mClient, line != null ? line.getMethod() : null,
+					line != null ? line.getUri() : null, mStatus, bytes, duration);
+			}
+
+			mStatus = -1;
+
+			synchronized(this) {
+				mBusy = false;
+			}
+		}
+
+		/**
+		 * Close the connection unless it is handling a request.
+		 */
+		public synchronized void shutdownIfIdle()
+		{
+			if (mBusy == true || mClosedIdle == true)
+				return;
+
+			mClosedIdle = true;
+
+			try {
+				shutdown();
+			} catch (IOException e) {}
+		}
+
+		private void onFirstResponse()
+		{
+			long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+			FIRST_RESPONSE.set(uptime);
+
+			if (LOG.isInfoEnabled())
+				LOG.info("First response sent " + uptime + " msec after startup");
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try {
+				super.close();
+			} finally {
+				onClosed();
+			}
+		}
+
+		@Override
+		public void shutdown() throws IOException
+		{
+			try {
+				super.shutdown();
+			} finally {
+				onClosed();
+			}
+		}
+
+		private void onClosed()
+		{
+			if (mCounted.compareAndSet(true, false) == true)
+				CONNECTIONS.decrement();
+		}
+	}
+
 	private class WorkerThread extends CancelableThread
 	{
-		private HttpService mService;
-		private HttpServerConnection mConn;
+		private SuspendableHttpService mService;
+		private MeteredServerConnection mConn;
+		private SuspendedRequest mResumed;
 
-		public WorkerThread(HttpService svc, HttpServerConnection conn)
+		public WorkerThread(SuspendableHttpService svc, MeteredServerConnection conn,
+			SuspendedRequest resumed)
 		{
 			super();
 
@@ -193,20 +702,34 @@ public abstract class AbstractHttpServer extends CancelableThread
 
 			mService = svc;
 			mConn = conn;
+			mResumed = resumed;
 		}
 
 		public void run()
 		{
 			HttpContext ctx = new BasicHttpContext(null);
+			ctx.setAttribute(SERVER_ATTRIBUTE, AbstractHttpServer.this);
+			SuspendedRequest suspended = null;
 
 			try {
-				while (isInterrupted() == false && mConn.isOpen())
+				if (mResumed != null)
+				{
+					if (mService.sendResponse(mConn, mResumed.mResponse, mResumed.mContext) == false)
+						mConn.close();
+
+					mResumed = null;
+				}
+
+				while (isInterrupted() == false && mDraining == false && mConn.isOpen())
 					mService.handleRequest(mConn, ctx);
+			} catch (SuspendException e) {
+				suspended = (SuspendedRequest)ctx.getAttribute(SUSPENDED_REQUEST_ATTRIBUTE);
+				ctx.removeAttribute(SUSPENDED_REQUEST_ATTRIBUTE);
 			} catch (Exception e) {
 				if (LOG.isDebugEnabled())
 					LOG.debug("HTTP client worker disrupted", e);
 			} finally {
-				if (hasCanceled() == false)
+				if (suspended == null && hasCanceled() == false)
 				{
 					try {
 						mConn.shutdown();
@@ -216,7 +739,13 @@ public abstract class AbstractHttpServer extends CancelableThread
 				synchronized(mWorkers) {
 					mWorkers.remove(this);
 				}
+
+				WORKERS.decrement();
 			}
+
+			/* Canceled workers have already had their connection shut down. */
+			if (suspended != null && hasCanceled() == false)
+				suspended.onDetached(AbstractHttpServer.this, mService, mConn);
 		}
 
 		public void onRequestCancel()
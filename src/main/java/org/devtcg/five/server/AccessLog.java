@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.devtcg.five.util.CancelableThread;
+import org.devtcg.five.util.IOUtils;
+import org.devtcg.five.util.Metrics;
+
+/**
+ * Records one line per response in a log file, in logfmt style:
+ * <pre>
+ * time=2009-11-02T21:05:11.345Z client=192.168.1.4 method=GET uri="/feeds/songs" status=200 bytes=5123 duration_ms=4.211
+ * </pre>
+ * Request threads only place the entry in a ring buffer; formatting and
+ * writing happens on a single background thread. Should that thread fall
+ * behind by a whole buffer, entries are dropped rather than making the
+ * request wait. The file is rotated once it grows past a fixed size.
+ */
+public class AccessLog
+{
+	private static final Log LOG = LogFactory.getLog(AccessLog.class);
+
+	public static final String FILENAME = "access.log";
+
+	/* Must be a power of two. */
+	/* package */ static final int CAPACITY = 8192;
+
+	private static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+	private static final int DEFAULT_MAX_FILES = 5;
+
+	private static final Metrics.Counter DROPPED = Metrics.getInstance().counter(
+		"http_access_log_dropped_total", "Access log entries lost because the writer fell behind");
+
+	private final File mDirectory;
+	private final long mMaxFileSize;
+	private final int mMaxFiles;
+
+	private final AtomicReferenceArray<Entry> mEntries = new AtomicReferenceArray<Entry>(CAPACITY);
+
+	/** Next sequence number to be claimed by a request thread. */
+	private final AtomicLong mHead = new AtomicLong();
+
+	/** Next sequence number to be written; only advanced by the writer. */
+	private final AtomicLong mTail = new AtomicLong();
+
+	private final WriterThread mThread = new WriterThread();
+	private volatile boolean mWriterWaiting;
+
+	private static class Entry
+	{
+		final long time;
+		final String client;
+		final String method;
+		final String uri;
+		final int status;
+		final long bytes;
+		final long durationNanos;
+
+		public Entry(long time, String client, String method, String uri, int status,
+			long bytes, long durationNanos)
+		{
+			this.time = time;
+			this.client = client;
+			this.method = method;
+			this.uri = uri;
+			this.status = status;
+			this.bytes = bytes;
+			this.durationNanos = durationNanos;
+		}
+	}
+
+	public AccessLog(File directory)
+	{
+		this(directory, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * @param maxFiles Number of rotated files to keep, in addition to the
+	 *   one being written.
+	 */
+	public AccessLog(File directory, long maxFileSize, int maxFiles)
+	{
+		mDirectory = directory;
+		mMaxFileSize = maxFileSize;
+		mMaxFiles = maxFiles;
+	}
+
+	public void start()
+	{
+		mThread.start();
+	}
+
+	/**
+	 * Write out every entry logged so far, then stop the writer.
+	 */
+	public void close()
+	{
+		mThread.requestCancelAndWait();
+	}
+
+	/**
+	 * Queue an entry for the log. Never blocks.
+	 *
+	 * @param client Address of the client, or null if unknown.
+	 */
+	public void log(String client, String method, String uri, int status,
+		long bytes, long durationNanos)
+	{
+		Entry entry = new Entry(System.currentTimeMillis(), client, method, uri,
+			status, bytes, durationNanos);
+
+		long head;
+		do {
+			head = mHead.get();
+			if (head - mTail.get() >= CAPACITY)
+			{
+				DROPPED.increment();
+				return;
+			}
+		} while (mHead.compareAndSet(head, head + 1) == false);
+
+		/*
+		 * The slot was emptied by the writer before it advanced the tail
+		 * past it, so nobody else can be using it.
+		 */
+		mEntries.set((int)head & (CAPACITY - 1), entry);
+
+		if (mWriterWaiting == true)
+			LockSupport.unpark(mThread);
+	}
+
+	File getFile(int generation)
+	{
+		if (generation == 0)
+			return new File(mDirectory, FILENAME);
+		else
+			return new File(mDirectory, FILENAME + "." + generation);
+	}
+
+	private class WriterThread extends CancelableThread
+	{
+		private final SimpleDateFormat mDateFormat =
+			new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+		private final StringBuilder mLine = new StringBuilder(256);
+
+		private OutputStream mOut;
+
+		/** Size of the current file in bytes, as encoded on disk. */
+		private long mFileSize;
+
+		public WriterThread()
+		{
+			setName("AccessLog");
+			setDaemon(true);
+			setPriority(MIN_PRIORITY);
+
+			mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+
+		private void open() throws IOException
+		{
+			if (mDirectory.isDirectory() == false && mDirectory.mkdirs() == false)
+				throw new IOException("Cannot create " + mDirectory);
+
+			File file = getFile(0);
+			mFileSize = file.length();
+			mOut = new BufferedOutputStream(new FileOutputStream(file, true));
+		}
+
+		private void rotate() throws IOException
+		{
+			mOut.close();
+			mOut = null;
+
+			getFile(mMaxFiles).delete();
+
+			for (int i = mMaxFiles - 1; i >= 0; i--)
+			{
+				File file = getFile(i);
+				if (file.exists() == true)
+					file.renameTo(getFile(i + 1));
+			}
+
+			open();
+		}
+
+		private void appendQuoted(StringBuilder out, String value)
+		{
+			out.append('"');
+
+			for (int i = 0; i < value.length(); i++)
+			{
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\')
+					out.append('\\');
+
+				/* Keep a malicious request from forging log lines. */
+				if (c < 0x20)
+					out.append('?');
+				else
+					out.append(c);
+			}
+
+			out.append('"');
+		}
+
+		private void write(Entry entry) throws IOException
+		{
+			StringBuilder line = mLine;
+			line.setLength(0);
+
+			line.append("time=").append(mDateFormat.format(new Date(entry.time)));
+			line.append(" client=").append(entry.client != null ? entry.client : "-");
+			line.append(" method=").append(entry.method != null ? entry.method : "-");
+			line.append(" uri=");
+			appendQuoted(line, entry.uri != null ? entry.uri : "");
+			line.append(" status=").append(entry.status);
+			line.append(" bytes=").append(entry.bytes);
+			line.append(" duration_ms=").append(entry.durationNanos / 1000000)
+				.append('.').append(String.format("%03d", entry.durationNanos / 1000 % 1000));
+			line.append('\n');
+
+			/* Clients can put any character they like in the uri. */
+			byte[] bytes = line.toString().getBytes("UTF-8");
+
+			if (mFileSize > 0 && mFileSize + bytes.length > mMaxFileSize)
+				rotate();
+
+			mOut.write(bytes);
+			mFileSize += bytes.length;
+		}
+
+		/**
+		 * Write every entry published so far.
+		 *
+		 * @return Number of entries written.
+		 */
+		private int drain() throws IOException
+		{
+			int count = 0;
+
+			long tail = mTail.get();
+			while (tail < mHead.get())
+			{
+				int index = (int)tail & (CAPACITY - 1);
+
+				/* Claimed, but the request thread is still filling it in. */
+				Entry entry = mEntries.get(index);
+				if (entry == null)
+				{
+					Thread.yield();
+					continue;
+				}
+
+				mEntries.set(index, null);
+				mTail.set(++tail);
+
+				write(entry);
+				count++;
+			}
+
+			return count;
+		}
+
+		public void run()
+		{
+			try {
+				open();
+
+				while (hasCanceled() == false)
+				{
+					if (drain() > 0)
+						continue;
+
+					mOut.flush();
+
+					mWriterWaiting = true;
+					if (mTail.get() == mHead.get() && hasCanceled() == false)
+						LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+					mWriterWaiting = false;
+				}
+
+				drain();
+			} catch (IOException e) {
+				if (LOG.isErrorEnabled())
+					LOG.error("Access log stopped", e);
+			} finally {
+				IOUtils.closeQuietlyNullSafe(mOut);
+			}
+		}
+
+		@Override
+		protected void onRequestCancel()
+		{
+			LockSupport.unpark(this);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.devtcg.five.persistence.Configuration;
+
+/**
+ * Checks HTTP Basic credentials against the configured password hash.
+ * <p>
+ * Clients send the same Authorization header with every request, so headers
+ * which have been verified are remembered, and checking them again costs a
+ * map lookup rather than a decode and a SHA-1. Only successes are
+ * remembered, and all of them are forgotten once the password changes.
+ */
+class Authenticator
+{
+	private static final String SCHEME = "Basic ";
+
+	/* package */ static final int CACHE_SIZE = 16;
+
+	private static final int[] BASE64_VALUES = new int[128];
+
+	static {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+		for (int i = 0; i < BASE64_VALUES.length; i++)
+			BASE64_VALUES[i] = -1;
+		for (int i = 0; i < alphabet.length(); i++)
+			BASE64_VALUES[alphabet.charAt(i)] = i;
+	}
+
+	private final byte[] mUser;
+
+	/** Least recently used header first. */
+	private final LinkedHashMap<String, Boolean> mVerified =
+		new LinkedHashMap<String, Boolean>(CACHE_SIZE * 2, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Password hash the entries in mVerified were checked against. */
+	private String mVerifiedHash;
+
+	public Authenticator(String user)
+	{
+		mUser = getBytes(user);
+	}
+
+	private static byte[] getBytes(String string)
+	{
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param authorization Value of the request's Authorization header, or
+	 *   null if it had none.
+	 * @param hashedPassword Password hash as stored by {@link Configuration},
+	 *   or null if no password has been set, in which case nobody is let in.
+	 * @return True if the header carries the expected user and password.
+	 */
+	public boolean authenticate(String authorization, String hashedPassword)
+	{
+		if (authorization == null || hashedPassword == null)
+			return false;
+
+		synchronized (mVerified) {
+			if (hashedPassword.equals(mVerifiedHash) == false)
+			{
+				mVerified.clear();
+				mVerifiedHash = hashedPassword;
+			}
+			else if (mVerified.get(authorization) != null)
+			{
+				return true;
+			}
+		}
+
+		if (verify(authorization, hashedPassword) == false)
+			return false;
+
+		synchronized (mVerified) {
+			/* Don't let a check against an old password outlive the change. */
+			if (hashedPassword.equals(mVerifiedHash) == true)
+				mVerified.put(authorization, Boolean.TRUE);
+		}
+
+		return true;
+	}
+
+	private boolean verify(String authorization, String hashedPassword)
+	{
+		if (authorization.startsWith(SCHEME) == false)
+			return false;
+
+		byte[] userpass = decodeBase64(authorization.substring(SCHEME.length()).trim());
+		if (userpass == null)
+			return false;
+
+		int colon = -1;
+		for (int i = 0; i < userpass.length; i++)
+		{
+			if (userpass[i] == ':')
+			{
+				colon = i;
+				break;
+			}
+		}
+
+		if (colon < 0)
+			return false;
+
+		byte[] user = new byte[colon];
+		System.arraycopy(userpass, 0, user, 0, colon);
+
+		String password;
+		try {
+			password = new String(userpass, colon + 1, userpass.length - colon - 1, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		/*
+		 * MessageDigest.isEqual looks at every byte whatever the outcome, so
+		 * the time taken doesn't reveal how close a guess was. Both checks
+		 * are always made for the same reason.
+		 */
+		boolean userMatches = MessageDigest.isEqual(mUser, user);
+		boolean passwordMatches = MessageDigest.isEqual(getBytes(hashedPassword),
+			getBytes(Configuration.sha1Hash(password)));
+
+		return userMatches & passwordMatches;
+	}
+
+	/**
+	 * @return The decoded bytes, or null if <code>encoded</code> is not
+	 *   valid padded base64.
+	 */
+	/* package */ static byte[] decodeBase64(String encoded)
+	{
+		int length = encoded.length();
+		if (length % 4 != 0)
+			return null;
+
+		int padding = 0;
+		if (length > 0 && encoded.charAt(length - 1) == '=')
+			padding++;
+		if (length > 1 && encoded.charAt(length - 2) == '=')
+			padding++;
+
+		byte[] out = new byte[length / 4 * 3 - padding];
+		int pos = 0;
+
+		for (int i = 0; i < length; i += 4)
+		{
+			int b = 0;
+
+			for (int j = 0; j < 4; j++)
+			{
+				char c = encoded.charAt(i + j);
+				int value;
+
+				if (c == '=' && i + j >= length - padding)
+					value = 0;
+				else if (c < BASE64_VALUES.length && BASE64_VALUES[c] >= 0)
+					value = BASE64_VALUES[c];
+				else
+					return null;
+
+				b = (b << 6) | value;
+			}
+
+			out[pos++] = (byte)(b >>> 16);
+			if (pos < out.length)
+				out[pos++] = (byte)(b >>> 8);
+			if (pos < out.length)
+				out[pos++] = (byte)b;
+		}
+
+		return out;
+	}
+}
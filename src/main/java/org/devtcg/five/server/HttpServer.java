@@ -19,6 +19,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -33,21 +34,24 @@ import org.apache.http.RequestLine;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.devtcg.five.Build;
 import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.FeedQuery;
 import org.devtcg.five.content.SyncableEntryDAO;
 import org.devtcg.five.content.AbstractTableMerger.SyncableColumns;
 import org.devtcg.five.meta.MetaProvider;
 import org.devtcg.five.meta.MetaSyncAdapter;
 import org.devtcg.five.meta.dao.ImageDAO;
-import org.devtcg.five.meta.dao.SongDAO;
-import org.devtcg.five.meta.data.Protos;
+import org.devtcg.five.meta.dao.SongIndex;
+import org.devtcg.five.meta.dao.SyncClientDAO;
+import org.devtcg.five.persistence.ChangeNotifier;
+import org.devtcg.five.persistence.Configuration;
 import org.devtcg.five.persistence.DatabaseUtils;
 import org.devtcg.five.persistence.SyncableProvider;
-
-import sun.misc.BASE64Decoder;
+import org.devtcg.five.util.Metrics;
 
 import com.google.protobuf.CodedOutputStream;
 
@@ -55,11 +59,37 @@ public class HttpServer extends AbstractHttpServer
 {
 	private static final String STANDARD_USER = "fiveuser";
 
+	private static final Authenticator AUTHENTICATOR = new Authenticator(STANDARD_USER);
+
+	/** Feed body with no deletes and no entries: two zero counts. */
+	private static final byte[] EMPTY_FEED = new byte[8];
+
 	public HttpServer(int port) throws IOException {
 		super(port);
 		setRequestHandler(mHttpHandler);
 	}
 
+	@Override
+	protected String getRouteName(HttpRequest request)
+	{
+		String uri = request.getRequestLine().getUri();
+
+		if (uri.startsWith("/feeds/"))
+			return "feeds";
+		else if (uri.startsWith("/songs/"))
+			return "songs";
+		else if (uri.startsWith("/image/"))
+			return "image";
+		else if (uri.equals("/info"))
+			return "info";
+		else if (uri.equals("/changes"))
+			return "changes";
+		else if (uri.equals("/metrics") || uri.equals("/status"))
+			return "status";
+		else
+			return super.getRouteName(request);
+	}
+
 	private static final HttpRequestHandler mHttpHandler = new HttpRequestHandler()
 	{
 		private static final String RANGE_HEADER = "Range";
@@ -71,16 +101,73 @@ public class HttpServer extends AbstractHttpServer
 		private static final String INSERT_OR_UPDATE_COUNT_HEADER = "X-Records-Modified";
 		private static final String DELETE_COUNT_HEADER = "X-Records-Deleted";
 		private static final String FIVE_VERSION_HEADER = "X-Five-Version";
+		private static final String CLIENT_ID_HEADER = "X-Five-Client-Id";
+		private static final String FULL_RESYNC_HEADER = "X-Five-Full-Resync";
+
+		/** Feed type which requests every feed at once. */
+		private static final String ALL_FEEDS = "all";
+
+		/**
+		 * Longest time a /changes request is held open. Kept below the
+		 * socket timeout of typical clients.
+		 */
+		private static final long CHANGES_TIMEOUT = 50000;
+
+		private long parseModifiedSince(HttpRequest request)
+		{
+			Header modifiedSinceHeader = request.getLastHeader(MODIFIED_SINCE_HEADER);
+			if (modifiedSinceHeader == null)
+				return 0;
+
+			try {
+				return Long.parseLong(modifiedSinceHeader.getValue());
+			} catch (NumberFormatException e) {
+				if (LOG.isWarnEnabled())
+				{
+					LOG.warn("Can't parse " + MODIFIED_SINCE_HEADER + " value: " +
+						modifiedSinceHeader.getValue());
+				}
+				return -1;
+			}
+		}
+
+		/**
+		 * Remember that the client has all changes to <code>feed</code>
+		 * through <code>modifiedSince</code>, so that deletes it hasn't seen
+		 * yet are kept for it. Only clients which send an id are tracked.
+		 */
+		private void confirmClient(HttpRequest request, String feed, long modifiedSince)
+		{
+			Header clientId = request.getLastHeader(CLIENT_ID_HEADER);
+			if (clientId == null || modifiedSince <= 0)
+				return;
+
+			MetaProvider.getInstance().getSyncClientDAO().confirm(clientId.getValue(),
+				feed, modifiedSince, System.currentTimeMillis());
+		}
 
 		private boolean handleFeed(HttpRequest request, HttpResponse response,
 			HttpContext context) throws SQLException
 		{
-			String[] segments = request.getRequestLine().getUri().split("/");
+			String uri = request.getRequestLine().getUri();
+			String queryString = null;
+
+			int queryStart = uri.indexOf('?');
+			if (queryStart >= 0)
+			{
+				queryString = uri.substring(queryStart + 1);
+				uri = uri.substring(0, queryStart);
+			}
+
+			String[] segments = uri.split("/");
 			if (segments.length < 3)
 				return false;
 
 			String feedType = segments[2];
 
+			if (feedType.equals(ALL_FEEDS))
+				return handleAllFeeds(request, response, queryString);
+
 			MetaSyncAdapter adapter = (MetaSyncAdapter)MetaProvider.getInstance().getSyncAdapter();
 			AbstractTableMerger merger = null;
 
@@ -88,44 +175,106 @@ public class HttpServer extends AbstractHttpServer
 
 			if (merger != null)
 			{
-				Header modifiedSinceHeader = request.getLastHeader(MODIFIED_SINCE_HEADER);
-				long modifiedSince = 0;
-				if (modifiedSinceHeader != null)
+				long modifiedSince = parseModifiedSince(request);
+				if (modifiedSince < 0)
+					return false;
+
+				FeedQuery query;
+				try {
+					query = FeedQuery.parse(queryString);
+				} catch (IllegalArgumentException e) {
+					if (LOG.isWarnEnabled())
+						LOG.warn("Can't parse feed query: " + e.getMessage());
+					return false;
+				}
+
+				/*
+				 * A filtered feed can't tell the client about rows which have
+				 * left the filter (a song removed from the playlist or re-tagged
+				 * to another album), and a song added to a playlist keeps its
+				 * old sync time. Filtered feeds are therefore always sent from
+				 * scratch, and don't count as confirming the feed.
+				 */
+				boolean filtered = query.getPredicates().isEmpty() == false;
+				if (filtered == false)
+					confirmClient(request, feedType, modifiedSince);
+
+				/*
+				 * Deletes since the client last synced may have been purged,
+				 * in which case it has to start over. The response is then
+				 * the whole feed, and the client should drop any entries
+				 * not in it.
+				 */
+				SyncClientDAO clients = MetaProvider.getInstance().getSyncClientDAO();
+				String deletedTable = merger.getDeletesTableName();
+				long requestedSince = modifiedSince;
+				boolean fullResync = (filtered == true && modifiedSince > 0) ||
+					clients.needsFullResync(deletedTable, modifiedSince);
+				if (fullResync)
+					modifiedSince = 0;
+
+				/*
+				 * Most syncs find nothing new. Answer those from the in-memory
+				 * high-water mark, without building a temporary database.
+				 */
+				if (modifiedSince >= merger.getHighWaterMark())
 				{
 					try {
-						modifiedSince = Long.parseLong(modifiedSinceHeader.getValue());
-					} catch (NumberFormatException e) {
+						merger.checkQuery(query);
+					} catch (IllegalArgumentException e) {
 						if (LOG.isWarnEnabled())
-						{
-							LOG.warn("Can't parse " + MODIFIED_SINCE_HEADER + " value: " +
-								modifiedSinceHeader.getValue());
-						}
+							LOG.warn(e.getMessage());
 						return false;
 					}
+
+					ByteArrayEntity entity = new ByteArrayEntity(EMPTY_FEED);
+					entity.setContentType(merger.getContentType());
+
+					response.setHeader(INSERT_OR_UPDATE_COUNT_HEADER, "0");
+					response.setHeader(DELETE_COUNT_HEADER, "0");
+					response.setHeader(LAST_MODIFIED_HEADER, "0");
+					response.setEntity(entity);
+					response.setStatusCode(HttpStatus.SC_OK);
+
+					return true;
 				}
 
+				/* Rows past the horizon may have been written out of order. */
+				long horizon = MetaProvider.getInstance().getSyncClock().getHorizon();
+
 				SyncableProvider clientDiffs = MetaProvider.getTemporaryInstance();
-				merger.findLocalChanges(clientDiffs, modifiedSince);
+				try {
+					merger.findLocalChanges(clientDiffs, modifiedSince, horizon, query);
+				} catch (IllegalArgumentException e) {
+					if (LOG.isWarnEnabled())
+						LOG.warn(e.getMessage());
+					clientDiffs.close();
+					return false;
+				}
 
-				int insertOrUpdateCount = DatabaseUtils.integerForQuery(
-						clientDiffs.getConnection().getWrappedConnection(), 0,
-						"SELECT COUNT(*) FROM " + merger.getTableName(), (String[])null);
+				/* Purged while we were reading; try again, this time from scratch. */
+				if (fullResync == false && clients.needsFullResync(deletedTable, requestedSince))
+				{
+					clientDiffs.close();
+					return handleFeed(request, response, context);
+				}
 
-				int deleteCount = DatabaseUtils.integerForQuery(
-						clientDiffs.getConnection().getWrappedConnection(), 0,
-						"SELECT COUNT(*) FROM " + merger.getDeletesTableName(), (String[])null);
+				int insertOrUpdateCount = countRows(clientDiffs, merger.getTableName());
+				int deleteCount = countRows(clientDiffs, merger.getDeletesTableName());
 
 				long lastModified = DatabaseUtils.longForQuery(
 						clientDiffs.getConnection().getWrappedConnection(), 0,
 						"SELECT MAX(" + SyncableColumns._SYNC_TIME + ") FROM " +
 								merger.getTableName(), (String[])null);
 
-				SyncableEntryDAO entryDAO = merger.getEntryDAO(clientDiffs);
+				SyncableEntryDAO entryDAO = merger.getEntryDAO(clientDiffs, query);
 				SyncableEntryDAO deletedEntryDAO = merger.getDeletedEntryDAO(clientDiffs);
 
 				response.setHeader(INSERT_OR_UPDATE_COUNT_HEADER, String.valueOf(insertOrUpdateCount));
 				response.setHeader(DELETE_COUNT_HEADER, String.valueOf(deleteCount));
 				response.setHeader(LAST_MODIFIED_HEADER, String.valueOf(lastModified));
+				if (fullResync)
+					response.setHeader(FULL_RESYNC_HEADER, feedType);
 				response.setEntity(new EntryDAOEntity(clientDiffs, entryDAO, insertOrUpdateCount,
 						deletedEntryDAO, deleteCount));
 				response.setStatusCode(HttpStatus.SC_OK);
@@ -136,43 +285,246 @@ public class HttpServer extends AbstractHttpServer
 			return false;
 		}
 
-		private RangeHeader parseRangeRequest(HttpRequest request)
+		private int countRows(SyncableProvider provider, String table) throws SQLException
 		{
-			Header hdr = request.getLastHeader(RANGE_HEADER);
-
-			if (hdr == null)
-				return null;
+			return DatabaseUtils.integerForQuery(provider.getConnection().getWrappedConnection(), 0,
+				"SELECT COUNT(*) FROM " + table, (String[])null);
+		}
 
-			String rangeStr = hdr.getValue();
-			Pattern pattern = Pattern.compile("bytes=(\\d+)-(\\d+)?");
-			Matcher matcher = pattern.matcher(rangeStr);
+		/**
+		 * Every feed in one response, in dependency order (that of
+		 * {@link MetaSyncAdapter#FEED_NAMES}), collected into a single
+		 * temporary database. Rows written after the request arrived, or
+		 * still being written when it did, are left for the next sync. As
+		 * rows are updated in place, a row referred to by one that was sent
+		 * may have been skipped as too new; it is then sent at its current
+		 * version, or if deleted, the rows referring to it are held back
+		 * (see {@link MetaSyncAdapter#resolveReferences}). Only field masks
+		 * are supported, not predicates.
+		 * <p>
+		 * The body is the number of feeds, then for each feed its name, its
+		 * high-water mark (which the client should send as X-Modified-Since
+		 * for that feed next time), and the same deletes and entries as an
+		 * individual feed. X-Last-Modified holds the time the feeds were
+		 * read up to, and X-Five-Full-Resync lists (comma separated) any
+		 * feeds sent from scratch because deletes were purged.
+		 */
+		private boolean handleAllFeeds(HttpRequest request, HttpResponse response,
+			String queryString) throws SQLException
+		{
+			long modifiedSince = parseModifiedSince(request);
+			if (modifiedSince < 0)
+				return false;
 
+			FeedQuery query;
 			try {
-				if (matcher.matches() == false)
-					throw new IllegalArgumentException();
+				query = FeedQuery.parse(queryString);
+			} catch (IllegalArgumentException e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn("Can't parse feed query: " + e.getMessage());
+				return false;
+			}
+
+			if (query.getPredicates().isEmpty() == false)
+			{
+				if (LOG.isWarnEnabled())
+					LOG.warn("Predicates are not supported when requesting all feeds");
+				return false;
+			}
+
+			MetaSyncAdapter adapter = (MetaSyncAdapter)MetaProvider.getInstance().getSyncAdapter();
+
+			SyncClientDAO clients = MetaProvider.getInstance().getSyncClientDAO();
+
+			String[] names = MetaSyncAdapter.FEED_NAMES;
+			AbstractTableMerger[] mergers = new AbstractTableMerger[names.length];
+			long[] marks = new long[names.length];
+			long[] since = new long[names.length];
+			long horizon = MetaProvider.getInstance().getSyncClock().getHorizon();
 
-				long first;
-				long last;
+			StringBuilder fullResyncs = new StringBuilder();
 
-				first = Long.parseLong(matcher.group(1));
+			for (int i = 0; i < names.length; i++)
+			{
+				mergers[i] = adapter.getMerger(names[i]);
+				marks[i] = Math.min(mergers[i].getHighWaterMark(), horizon);
+
+				confirmClient(request, names[i], modifiedSince);
 
-				String lastString = matcher.group(2);
-				if (lastString != null)
-					last = Long.parseLong(lastString);
+				if (clients.needsFullResync(mergers[i].getDeletesTableName(), modifiedSince))
+				{
+					if (fullResyncs.length() > 0)
+						fullResyncs.append(',');
+					fullResyncs.append(names[i]);
+				}
 				else
-					last = -1;
+				{
+					since[i] = modifiedSince;
+				}
+			}
 
-				if (first < 0)
-					throw new IllegalArgumentException();
+			FeedSection[] sections = new FeedSection[names.length];
 
-				RangeHeader header = new RangeHeader();
-				header.firstBytePos = first;
-				header.lastBytePos = last;
+			SyncableProvider clientDiffs = MetaProvider.getTemporaryInstance();
+			try {
+				/* As with a single feed, skip those with nothing new. */
+				for (int i = 0; i < names.length; i++)
+				{
+					if (since[i] < marks[i])
+						mergers[i].findLocalChanges(clientDiffs, since[i], horizon, query);
+				}
 
-				return header;
-			} catch (Exception e) {
+				MetaSyncAdapter.resolveReferences(clientDiffs, mergers, since, horizon, query);
+
+				for (int i = 0; i < names.length; i++)
+				{
+					AbstractTableMerger merger = mergers[i];
+
+					sections[i] = new FeedSection(names[i], marks[i],
+						merger.getEntryDAO(clientDiffs, query),
+						countRows(clientDiffs, merger.getTableName()),
+						merger.getDeletedEntryDAO(clientDiffs),
+						countRows(clientDiffs, merger.getDeletesTableName()));
+				}
+			} catch (SQLException e) {
+				clientDiffs.close();
+				throw e;
+			}
+
+			/* Purged while we were reading; try again, this time from scratch. */
+			for (int i = 0; i < names.length; i++)
+			{
+				if (clients.needsFullResync(mergers[i].getDeletesTableName(), since[i]))
+				{
+					clientDiffs.close();
+					return handleAllFeeds(request, response, queryString);
+				}
+			}
+
+			response.setHeader(LAST_MODIFIED_HEADER, String.valueOf(horizon));
+			if (fullResyncs.length() > 0)
+				response.setHeader(FULL_RESYNC_HEADER, fullResyncs.toString());
+			response.setEntity(new FeedsEntity(clientDiffs, sections));
+			response.setStatusCode(HttpStatus.SC_OK);
+
+			return true;
+		}
+
+		/**
+		 * @return The main and deleted table of every feed.
+		 */
+		private String[] getFeedTables(MetaSyncAdapter adapter)
+		{
+			String[] tables = new String[MetaSyncAdapter.FEED_NAMES.length * 2];
+
+			for (int i = 0; i < MetaSyncAdapter.FEED_NAMES.length; i++)
+			{
+				AbstractTableMerger merger = adapter.getMerger(MetaSyncAdapter.FEED_NAMES[i]);
+				tables[i * 2] = merger.getTableName();
+				tables[i * 2 + 1] = merger.getDeletesTableName();
+			}
+
+			return tables;
+		}
+
+		/**
+		 * Fill in the response to /changes: one line per feed holding its name
+		 * and latest published sync time (including deletes), with the latest
+		 * of all in the X-Last-Modified header.
+		 */
+		private void setChangesResponse(HttpResponse response, ChangeNotifier notifier,
+			String[] tables) throws SQLException
+		{
+			StringBuilder body = new StringBuilder();
+			long lastModified = 0;
+
+			for (int i = 0; i < MetaSyncAdapter.FEED_NAMES.length; i++)
+			{
+				long syncTime = notifier.getPublishedSyncTime(
+					new String[] { tables[i * 2], tables[i * 2 + 1] });
+
+				body.append(MetaSyncAdapter.FEED_NAMES[i]).append(' ')
+					.append(syncTime).append('\n');
+
+				lastModified = Math.max(lastModified, syncTime);
+			}
+
+			setTextResponse(response, body.toString(), "text/plain; charset=UTF-8");
+			response.setHeader(LAST_MODIFIED_HEADER, String.valueOf(lastModified));
+		}
+
+		/**
+		 * Long-poll for changes to any feed after X-Modified-Since. Responds
+		 * immediately if there are any, otherwise the request is suspended
+		 * (without holding a thread) until there are, or until
+		 * {@link #CHANGES_TIMEOUT} elapses. Clients should pass back the
+		 * X-Last-Modified of the previous response, and sync the feeds whose
+		 * times have moved past what they have seen.
+		 */
+		private boolean handleChanges(HttpRequest request, final HttpResponse response,
+			HttpContext context) throws SQLException
+		{
+			long since = parseModifiedSince(request);
+			if (since < 0)
+				return false;
+
+			MetaProvider provider = MetaProvider.getInstance();
+			final ChangeNotifier notifier = provider.getChangeNotifier();
+			final String[] tables = getFeedTables((MetaSyncAdapter)provider.getSyncAdapter());
+
+			/* Nothing would wake the request up once shutting down. */
+			if (notifier.getPublishedSyncTime(tables) > since || isDraining(context) == true)
+			{
+				setChangesResponse(response, notifier, tables);
+				return true;
+			}
+
+			final SuspendedRequest suspended = suspend(response, context);
+
+			ChangeNotifier.Waiter waiter = new ChangeNotifier.Waiter() {
+				public void onWakeUp(boolean changed)
+				{
+					try {
+						setChangesResponse(response, notifier, tables);
+					} catch (SQLException e) {
+						if (LOG.isWarnEnabled())
+							LOG.warn("Failed to respond to change request", e);
+						response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+					}
+
+					suspended.resume();
+				}
+			};
+
+			/*
+			 * Once suspended, the response must be sent through resume no
+			 * matter what, including when a change raced with the check above.
+			 */
+			try {
+				if (notifier.addWaiter(tables, since, CHANGES_TIMEOUT, waiter) == false)
+					waiter.onWakeUp(true);
+			} catch (SQLException e) {
 				if (LOG.isWarnEnabled())
-					LOG.warn("Failed to parse range header: " + rangeStr);
+					LOG.warn("Failed to wait for changes", e);
+				response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+				suspended.resume();
+			}
+
+			return true;
+		}
+
+		private RangeHeader parseRangeRequest(HttpRequest request)
+		{
+			Header hdr = request.getLastHeader(RANGE_HEADER);
+
+			if (hdr == null)
+				return null;
+
+			try {
+				return RangeHeader.parse(hdr.getValue());
+			} catch (IllegalArgumentException e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn("Failed to parse range header: " + hdr.getValue());
 				return null;
 			}
 		}
@@ -192,7 +544,7 @@ public class HttpServer extends AbstractHttpServer
 				return false;
 			}
 
-			SongDAO.SongEntryDAO song = MetaProvider.getInstance().getSongDAO().getSong(songId);
+			SongIndex.Entry song = MetaProvider.getInstance().getSongDAO().getIndex().get(songId);
 
 			if (song == null)
 			{
@@ -202,16 +554,16 @@ public class HttpServer extends AbstractHttpServer
 				return false;
 			}
 
-			File file = new File(song.getFilename());
+			File file = new File(song.filename);
 			if (file.length() == 0)
 			{
 				if (LOG.isErrorEnabled())
-					LOG.error("Can't serve file " + song.getFilename() + ", 0 length content");
+					LOG.error("Can't serve file " + song.filename + ", 0 length content");
 
 				return false;
 			}
 
-			response.setHeader(LAST_MODIFIED_HEADER, String.valueOf(song.getMtime()));
+			response.setHeader(LAST_MODIFIED_HEADER, String.valueOf(song.mtime));
 
 			RangeHeader rangeHeader = parseRangeRequest(request);
 			if (rangeHeader != null)
@@ -220,13 +572,12 @@ public class HttpServer extends AbstractHttpServer
 
 				response.setHeader(CONTENT_RANGE_HEADER,
 					"bytes " + rangeHeader.firstBytePos + "-" + (length - 1) + "/" + length);
-				response.setEntity(new RangeFileEntity(new File(song.getFilename()),
-					song.getMimeType(), rangeHeader));
+				response.setEntity(new RangeFileEntity(file, song.mimeType, rangeHeader));
 				response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
 			}
 			else
 			{
-				response.setEntity(new FileEntity(new File(song.getFilename()), song.getMimeType()));
+				response.setEntity(new FileEntity(file, song.mimeType));
 				response.setStatusCode(HttpStatus.SC_OK);
 			}
 
@@ -261,7 +612,9 @@ public class HttpServer extends AbstractHttpServer
 			/* Either bogus URI or no photo to transmit, return 404 Not Found. */
 			if (entry == null)
 			{
-				System.out.println("No data available for: " + uri);
+				if (LOG.isDebugEnabled())
+					LOG.debug("No data available for: " + uri);
+
 				return false;
 			}
 
@@ -275,6 +628,39 @@ public class HttpServer extends AbstractHttpServer
 			return true;
 		}
 
+		private void setTextResponse(HttpResponse response, String body, String contentType)
+		{
+			try {
+				StringEntity entity = new StringEntity(body, "UTF-8");
+				entity.setContentType(contentType);
+				response.setEntity(entity);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			response.setStatusCode(HttpStatus.SC_OK);
+		}
+
+		/**
+		 * Every metric in the Prometheus text format, for scraping.
+		 */
+		private boolean handleMetrics(HttpRequest request, HttpResponse response, HttpContext context)
+		{
+			setTextResponse(response, new StatusReport(Metrics.getInstance()).toPrometheusText(),
+				"text/plain; version=0.0.4; charset=UTF-8");
+			return true;
+		}
+
+		/**
+		 * A summary of the server's state as JSON, for people and scripts.
+		 */
+		private boolean handleStatus(HttpRequest request, HttpResponse response, HttpContext context)
+		{
+			setTextResponse(response, new StatusReport(Metrics.getInstance()).toJson(),
+				"application/json; charset=UTF-8");
+			return true;
+		}
+
 		private boolean handleInfo(HttpRequest request, HttpResponse response, HttpContext context)
 		{
 			response.setHeader(FIVE_VERSION_HEADER, Build.VERSION);
@@ -286,7 +672,6 @@ public class HttpServer extends AbstractHttpServer
 			throws HttpException, IOException
 		{
 			RequestLine requestLine = request.getRequestLine();
-			System.out.println("requestLine=" + requestLine);
 
 			String method = requestLine.getMethod();
 			if (!method.equalsIgnoreCase("GET"))
@@ -304,6 +689,12 @@ public class HttpServer extends AbstractHttpServer
 					handled = handleImage(request, response, context);
 				else if (requestUriString.equals("/info"))
 					handled = handleInfo(request, response, context);
+				else if (requestUriString.equals("/changes"))
+					handled = handleChanges(request, response, context);
+				else if (requestUriString.equals("/metrics"))
+					handled = handleMetrics(request, response, context);
+				else if (requestUriString.equals("/status"))
+					handled = handleStatus(request, response, context);
 			} catch (Exception e) {
 				if (LOG.isWarnEnabled())
 					LOG.warn("Failed to process client sync request", e);
@@ -319,31 +710,16 @@ public class HttpServer extends AbstractHttpServer
 			if (authHead == null)
 				return false;
 
-			String value = authHead.getValue();
-
-			String requiredScheme = "Basic ";
-
-			if (!value.startsWith(requiredScheme))
-				return false;
-
-			String base64userpass = value.substring(requiredScheme.length());
-
-			String userpassString;
+			String hashedPassword;
 			try {
-				userpassString = new String(new BASE64Decoder()
-						.decodeBuffer(base64userpass), "UTF-8");
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
-
-			String[] userpass = userpassString.split(":", 2);
-			if (userpass.length < 2)
-				throw new RuntimeException("Failed to parse authorize header: " + value);
-
-			if (!STANDARD_USER.equals(userpass[0]))
+				hashedPassword = Configuration.getInstance().getHashedPassword();
+			} catch (SQLException e) {
+				if (LOG.isErrorEnabled())
+					LOG.error("Can't read password, refusing request", e);
 				return false;
+			}
 
-			return true;
+			return AUTHENTICATOR.authenticate(authHead.getValue(), hashedPassword);
 		}
 
 		public void handle(HttpRequest request, HttpResponse response, HttpContext context)
@@ -360,10 +736,36 @@ public class HttpServer extends AbstractHttpServer
 	};
 
 
-	private static class RangeHeader
+	static class RangeHeader
 	{
+		private static final Pattern PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)?");
+
 		public long firstBytePos;
 		public long lastBytePos;
+
+		/**
+		 * Parse a single byte range of the form "bytes=first-[last]". An
+		 * open-ended range has a lastBytePos of -1.
+		 *
+		 * @throws IllegalArgumentException If the value can't be parsed.
+		 */
+		public static RangeHeader parse(String value)
+		{
+			Matcher matcher = PATTERN.matcher(value);
+			if (matcher.matches() == false)
+				throw new IllegalArgumentException("Unsupported range: " + value);
+
+			RangeHeader header = new RangeHeader();
+			header.firstBytePos = Long.parseLong(matcher.group(1));
+
+			String lastString = matcher.group(2);
+			if (lastString != null)
+				header.lastBytePos = Long.parseLong(lastString);
+			else
+				header.lastBytePos = -1;
+
+			return header;
+		}
 	}
 
 	private static class RangeFileEntity extends FileEntity
@@ -428,24 +830,75 @@ public class HttpServer extends AbstractHttpServer
 		}
 	}
 
-	private static class EntryDAOEntity extends AbstractHttpEntity
+	/**
+	 * Deletes and changes of one feed, as collected into a temporary
+	 * provider.
+	 */
+	static class FeedSection
 	{
-		private final SyncableProvider mProvider;
+		private final String mName;
+		private final long mHighWaterMark;
 		private final SyncableEntryDAO mDAO;
 		private final int mCount;
 		private final SyncableEntryDAO mDeletedDAO;
 		private final int mDeletesCount;
 
-		public EntryDAOEntity(SyncableProvider provider, SyncableEntryDAO dao, int entityCount,
-				SyncableEntryDAO deletedDao, int deletesCount)
+		public FeedSection(String name, long highWaterMark, SyncableEntryDAO dao,
+				int entityCount, SyncableEntryDAO deletedDao, int deletesCount)
 		{
-			super();
-			mProvider = provider;
+			mName = name;
+			mHighWaterMark = highWaterMark;
 			mDAO = dao;
 			mCount = entityCount;
 			mDeletedDAO = deletedDao;
 			mDeletesCount = deletesCount;
-			setContentType(dao.getContentType());
+		}
+
+		private void exhaustEntries(CodedOutputStream stream, SyncableEntryDAO dao, int count,
+				boolean sendIdOnly) throws IOException, SQLException
+		{
+			try {
+				stream.writeRawLittleEndian32(count);
+				while (dao.moveToNext())
+				{
+					if (sendIdOnly)
+						stream.writeRawLittleEndian64(dao.getId());
+					else
+						dao.writeEntryTo(stream);
+				}
+			} finally {
+				dao.close();
+			}
+		}
+
+		public void writeTo(CodedOutputStream stream) throws IOException, SQLException
+		{
+			exhaustEntries(stream, mDeletedDAO, mDeletesCount, true);
+			exhaustEntries(stream, mDAO, mCount, false);
+		}
+
+		/**
+		 * Write the feed preceded by its name and high-water mark, as sent
+		 * when requesting all feeds.
+		 */
+		public void writeFramedTo(CodedOutputStream stream) throws IOException, SQLException
+		{
+			byte[] name = mName.getBytes("UTF-8");
+			stream.writeRawLittleEndian32(name.length);
+			stream.writeRawBytes(name);
+			stream.writeRawLittleEndian64(mHighWaterMark);
+			writeTo(stream);
+		}
+	}
+
+	static abstract class AbstractFeedEntity extends AbstractHttpEntity
+	{
+		private final SyncableProvider mProvider;
+
+		public AbstractFeedEntity(SyncableProvider provider)
+		{
+			super();
+			mProvider = provider;
 		}
 
 		public InputStream getContent() throws IOException, IllegalStateException
@@ -473,33 +926,14 @@ public class HttpServer extends AbstractHttpServer
 			return true;
 		}
 
-		private void exhaustEntries(CodedOutputStream stream, SyncableEntryDAO dao, int count,
-				boolean sendIdOnly) throws IOException, SQLException
-		{
-			try {
-				stream.writeRawLittleEndian32(count);
-				while (dao.moveToNext())
-				{
-					if (sendIdOnly)
-						stream.writeRawLittleEndian64(dao.getId());
-					else
-					{
-						Protos.Record entry = dao.getEntry();
-						stream.writeRawLittleEndian32(entry.getSerializedSize());
-						entry.writeTo(stream);
-					}
-				}
-			} finally {
-				dao.close();
-			}
-		}
+		protected abstract void writeFeedsTo(CodedOutputStream stream)
+			throws IOException, SQLException;
 
 		public void writeTo(OutputStream out) throws IOException
 		{
 			CodedOutputStream stream = CodedOutputStream.newInstance(out);
 			try {
-				exhaustEntries(stream, mDeletedDAO, mDeletesCount, true);
-				exhaustEntries(stream, mDAO, mCount, false);
+				writeFeedsTo(stream);
 			} catch (SQLException e) {
 				throw new RuntimeException(e);
 			} finally {
@@ -515,4 +949,46 @@ public class HttpServer extends AbstractHttpServer
 			}
 		}
 	}
+
+	static class EntryDAOEntity extends AbstractFeedEntity
+	{
+		private final FeedSection mSection;
+
+		public EntryDAOEntity(SyncableProvider provider, SyncableEntryDAO dao, int entityCount,
+				SyncableEntryDAO deletedDao, int deletesCount)
+		{
+			super(provider);
+			mSection = new FeedSection(null, 0, dao, entityCount, deletedDao, deletesCount);
+			setContentType(dao.getContentType());
+		}
+
+		@Override
+		protected void writeFeedsTo(CodedOutputStream stream) throws IOException, SQLException
+		{
+			mSection.writeTo(stream);
+		}
+	}
+
+	private static class FeedsEntity extends AbstractFeedEntity
+	{
+		private static final String CONTENT_TYPE = "application/vnd.five.feeds";
+
+		private final FeedSection[] mSections;
+
+		public FeedsEntity(SyncableProvider provider, FeedSection[] sections)
+		{
+			super(provider);
+			mSections = sections;
+			setContentType(CONTENT_TYPE);
+		}
+
+		@Override
+		protected void writeFeedsTo(CodedOutputStream stream) throws IOException, SQLException
+		{
+			stream.writeRawLittleEndian32(mSections.length);
+
+			for (FeedSection section: mSections)
+				section.writeFramedTo(stream);
+		}
+	}
 }
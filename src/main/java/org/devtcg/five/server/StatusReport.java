@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+
+import org.devtcg.five.Build;
+import org.devtcg.five.meta.FileCrawler;
+import org.devtcg.five.meta.MetaSyncAdapter;
+import org.devtcg.five.util.Metrics;
+
+/**
+ * Renders the contents of {@link Metrics}, along with the state of the JVM
+ * and the crawler, for the /metrics and /status requests. Everything is read
+ * from memory so that monitoring never waits on the database.
+ */
+class StatusReport
+{
+	/** Upper bounds of the buckets reported for each histogram, in seconds. */
+	private static final String[] LATENCY_BUCKETS = {
+		"0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+		"0.5", "1", "2.5", "5", "10",
+	};
+
+	private static final double NANOS_PER_SECOND = 1000000000.0;
+
+	private final Metrics mMetrics;
+
+	public StatusReport(Metrics metrics)
+	{
+		mMetrics = metrics;
+	}
+
+	private static String escapeLabelValue(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Histograms and gauges named in seconds hold nanoseconds, see
+	 * {@link Metrics}.
+	 */
+	private static boolean isInNanos(Metrics.Metric metric)
+	{
+		return metric.getName().endsWith("_seconds");
+	}
+
+	private static void writeHeader(StringBuilder out, String name, String help, String type)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void writeSample(StringBuilder out, String name, String label,
+		String labelValue, String extraLabel, String extraValue, Object value)
+	{
+		out.append(name);
+
+		if (label != null || extraLabel != null)
+		{
+			out.append('{');
+
+			if (label != null)
+			{
+				out.append(label).append("=\"").append(escapeLabelValue(labelValue)).append('"');
+				if (extraLabel != null)
+					out.append(',');
+			}
+
+			if (extraLabel != null)
+				out.append(extraLabel).append("=\"").append(extraValue).append('"');
+
+			out.append('}');
+		}
+
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static void writeHistogram(StringBuilder out, Metrics.Histogram histogram)
+	{
+		String name = histogram.getName();
+		String label = histogram.getLabel();
+		String labelValue = histogram.getLabelValue();
+		boolean nanos = isInNanos(histogram);
+
+		for (String bucket : LATENCY_BUCKETS)
+		{
+			double bound = Double.parseDouble(bucket);
+			long count = histogram.getCountAtOrBelow(nanos ?
+				(long)(bound * NANOS_PER_SECOND) : (long)bound);
+
+			writeSample(out, name + "_bucket", label, labelValue, "le", bucket, count);
+		}
+
+		/*
+		 * Counted from the buckets as well, so that it can't fall short of
+		 * the buckets above while values are being recorded.
+		 */
+		long count = histogram.getCountAtOrBelow(Long.MAX_VALUE);
+		writeSample(out, name + "_bucket", label, labelValue, "le", "+Inf", count);
+
+		Object sum = nanos ? (Object)(histogram.getSum() / NANOS_PER_SECOND) :
+			(Object)histogram.getSum();
+		writeSample(out, name + "_sum", label, labelValue, null, null, sum);
+		writeSample(out, name + "_count", label, labelValue, null, null, count);
+	}
+
+	private static void writeJvmMetrics(StringBuilder out)
+	{
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+		writeHeader(out, "jvm_heap_used_bytes", "Heap in use", "gauge");
+		writeSample(out, "jvm_heap_used_bytes", null, null, null, null, heap.getUsed());
+		writeHeader(out, "jvm_heap_committed_bytes", "Heap reserved from the OS", "gauge");
+		writeSample(out, "jvm_heap_committed_bytes", null, null, null, null, heap.getCommitted());
+		writeHeader(out, "jvm_heap_max_bytes", "Largest the heap may grow, or -1", "gauge");
+		writeSample(out, "jvm_heap_max_bytes", null, null, null, null, heap.getMax());
+
+		writeHeader(out, "jvm_gc_collections_total", "Garbage collections run", "counter");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			writeSample(out, "jvm_gc_collections_total", "gc", gc.getName(), null, null, gc.getCollectionCount());
+
+		writeHeader(out, "jvm_gc_collection_seconds_total", "Time spent collecting garbage", "counter");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			writeSample(out, "jvm_gc_collection_seconds_total", "gc", gc.getName(), null, null, gc.getCollectionTime() / 1000.0);
+
+		writeHeader(out, "jvm_threads", "Live threads", "gauge");
+		writeSample(out, "jvm_threads", null, null, null, null,
+			ManagementFactory.getThreadMXBean().getThreadCount());
+
+		writeHeader(out, "process_uptime_seconds", "Time since the server started", "gauge");
+		writeSample(out, "process_uptime_seconds", null, null, null, null,
+			ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format.
+	 */
+	public String toPrometheusText()
+	{
+		StringBuilder out = new StringBuilder(8192);
+
+		writeHeader(out, "crawler_active", "Whether a scan is in progress", "gauge");
+		writeSample(out, "crawler_active", null, null, null, null,
+			FileCrawler.getInstance().isActive() ? 1 : 0);
+
+		String lastName = null;
+
+		for (Metrics.Metric metric : mMetrics.getMetrics())
+		{
+			String name = metric.getName();
+
+			if (name.equals(lastName) == false)
+			{
+				String type;
+				if (metric instanceof Metrics.Counter)
+					type = "counter";
+				else if (metric instanceof Metrics.Gauge)
+					type = "gauge";
+				else
+					type = "histogram";
+
+				writeHeader(out, name, metric.getHelp(), type);
+				lastName = name;
+			}
+
+			if (metric instanceof Metrics.Counter)
+			{
+				writeSample(out, name, metric.getLabel(), metric.getLabelValue(), null, null,
+					((Metrics.Counter)metric).get());
+			}
+			else if (metric instanceof Metrics.Gauge)
+			{
+				long value = ((Metrics.Gauge)metric).get();
+
+				writeSample(out, name, metric.getLabel(), metric.getLabelValue(), null, null,
+					isInNanos(metric) ? (Object)(value / NANOS_PER_SECOND) : (Object)value);
+			}
+			else
+			{
+				writeHistogram(out, (Metrics.Histogram)metric);
+			}
+		}
+
+		writeJvmMetrics(out);
+
+		return out.toString();
+	}
+
+	/**
+	 * @return Current value of a counter or gauge, or 0 if it hasn't been
+	 *   registered yet.
+	 */
+	private long getValue(String name, String labelValue)
+	{
+		Metrics.Metric metric = mMetrics.get(name, labelValue);
+
+		if (metric instanceof Metrics.Counter)
+			return ((Metrics.Counter)metric).get();
+		else if (metric instanceof Metrics.Gauge)
+			return ((Metrics.Gauge)metric).get();
+		else
+			return 0;
+	}
+
+	private long getValue(String name)
+	{
+		return getValue(name, null);
+	}
+
+	private static String quote(String value)
+	{
+		StringBuilder out = new StringBuilder(value.length() + 2);
+		out.append('"');
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < 0x20)
+				out.append(String.format("\\u%04x", (int)c));
+			else
+				out.append(c);
+		}
+
+		return out.append('"').toString();
+	}
+
+	private static double toMillis(long nanos)
+	{
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	private void appendRoutes(StringBuilder out)
+	{
+		out.append('{');
+
+		boolean first = true;
+		for (Metrics.Metric metric : mMetrics.getMetrics())
+		{
+			if (metric.getName().equals(AbstractHttpServer.REQUEST_DURATION) == false)
+				continue;
+
+			Metrics.Histogram histogram = (Metrics.Histogram)metric;
+
+			if (first == false)
+				out.append(',');
+			first = false;
+
+			out.append(quote(histogram.getLabelValue())).append(":{")
+				.append("\"requests\":").append(histogram.getCount())
+				.append(",\"p50_ms\":").append(toMillis(histogram.getValueAtPercentile(50)))
+				.append(",\"p99_ms\":").append(toMillis(histogram.getValueAtPercentile(99)))
+				.append(",\"max_ms\":").append(toMillis(histogram.getMax()))
+				.append('}');
+		}
+
+		out.append('}');
+	}
+
+	/**
+	 * @return A summary of the server's state as a JSON object.
+	 */
+	public String toJson()
+	{
+		StringBuilder out = new StringBuilder(2048);
+
+		out.append("{\"version\":").append(quote(String.valueOf(Build.VERSION)));
+		out.append(",\"uptime_ms\":").append(ManagementFactory.getRuntimeMXBean().getUptime());
+
+		out.append(",\"crawler\":{")
+			.append("\"active\":").append(FileCrawler.getInstance().isActive())
+			.append(",\"files_scanned\":").append(getValue("crawler_scan_files"))
+			.append(",\"files_per_second\":").append(getValue("crawler_files_per_second"))
+			.append(",\"parse_failures\":").append(getValue("crawler_parse_failures_total"))
+			.append(",\"last_scan_duration_seconds\":")
+				.append(getValue("crawler_last_scan_duration_seconds") / NANOS_PER_SECOND)
+			.append('}');
+
+		out.append(",\"library\":{");
+		for (int i = 0; i < MetaSyncAdapter.FEED_NAMES.length; i++)
+		{
+			String feed = MetaSyncAdapter.FEED_NAMES[i];
+
+			if (i > 0)
+				out.append(',');
+
+			out.append(quote(feed)).append(':').append(getValue("library_rows", feed));
+		}
+		out.append('}');
+
+		out.append(",\"http\":{")
+			.append("\"workers\":").append(getValue("http_workers"))
+			.append(",\"connections\":").append(getValue("http_connections"))
+			.append(",\"sent_bytes\":").append(getValue("http_sent_bytes_total"))
+			.append(",\"routes\":");
+		appendRoutes(out);
+		out.append('}');
+
+		out.append(",\"meta_jobs_pending\":").append(getValue("meta_jobs_pending"));
+
+		out.append(",\"image_cache\":{")
+			.append("\"hits\":").append(getValue("image_cache_hits_total"))
+			.append(",\"misses\":").append(getValue("image_cache_misses_total"))
+			.append('}');
+
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+		out.append(",\"jvm\":{")
+			.append("\"heap_used\":").append(heap.getUsed())
+			.append(",\"heap_committed\":").append(heap.getCommitted())
+			.append(",\"heap_max\":").append(heap.getMax())
+			.append(",\"gc\":{");
+
+		boolean first = true;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			if (first == false)
+				out.append(',');
+			first = false;
+
+			out.append(quote(gc.getName())).append(":{")
+				.append("\"collections\":").append(gc.getCollectionCount())
+				.append(",\"time_ms\":").append(gc.getCollectionTime())
+				.append('}');
+		}
+
+		out.append("}}}");
+
+		return out.toString();
+	}
+}
@@ -14,7 +14,6 @@
 
 package org.devtcg.five.ui;
 
-import java.io.IOException;
 import java.sql.SQLException;
 import java.util.LinkedList;
 import java.util.List;
@@ -22,9 +21,7 @@ import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.devtcg.five.Main;
-import org.devtcg.five.meta.FileCrawler;
 import org.devtcg.five.persistence.Configuration;
-import org.devtcg.five.server.UPnPService;
 import org.devtcg.five.ui.util.FontUtil;
 import org.devtcg.five.ui.util.GridDataHelper;
 import org.eclipse.swt.SWT;
@@ -343,27 +340,19 @@ public class Preferences
 			if (plaintextPassword.length() > 0)
 			{
 				String hashedPassword = Configuration.sha1Hash(plaintextPassword);
-				if (!config.getHashedPassword().equals(hashedPassword))
+				if (!hashedPassword.equals(config.getHashedPassword()))
 					config.setHashedPassword(hashedPassword);
 			}
 
+			/* Main takes care of applying these to the running server. */
 			if (config.useUPnP() != useUPnP.getSelection())
-			{
 				config.setUseUPnP(useUPnP.getSelection());
-				if (useUPnP.getSelection())
-					UPnPService.getInstance().enableUPnP();
-				else
-					UPnPService.getInstance().disableUPnP();
-			}
 
 			if (config.getServerPort() != port.getSelection())
 			{
 				config.setServerPort(port.getSelection());
-				try {
-					Main.mServer.rebind(port.getSelection());
-				} catch (IOException e) {
-					if (LOG.isWarnEnabled())
-						LOG.warn("Failed to bind to port " + port.getSelection(), e);
+				if (Main.mServer.getLocalPort() != port.getSelection())
+				{
 					errors.add(new FieldError(Configuration.Keys.PORT,
 							"Failed to bind to port " + port.getSelection()));
 				}
@@ -454,10 +443,7 @@ public class Preferences
 			long refreshInterval = mRefreshIntervals[refresh.getSelectionIndex()];
 
 			if (config.getRescanInterval() != refreshInterval)
-			{
 				config.setRescanInterval(refreshInterval);
-				FileCrawler.getInstance().updateRescanInterval();
-			}
 
 			return null;
 		}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Identifies audio files by their leading bytes rather than their extension.
+ * Only the first few kilobytes of each file are read, into a buffer which is
+ * reused between calls; instances are therefore not thread-safe.
+ */
+public class AudioFormatSniffer
+{
+	public static final String MIME_MP3 = "audio/mpeg";
+	public static final String MIME_MP4 = "audio/mp4";
+	public static final String MIME_M4A = "audio/mp4a-latm";
+	public static final String MIME_OGG = "application/ogg";
+	public static final String MIME_FLAC = "audio/x-flac";
+	public static final String MIME_WMA = "audio/x-ms-wma";
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/** Header object GUID which begins every ASF (WMA) file. */
+	private static final byte[] ASF_HEADER_GUID = {
+		(byte)0x30, (byte)0x26, (byte)0xb2, (byte)0x75,
+		(byte)0x8e, (byte)0x66, (byte)0xcf, (byte)0x11,
+		(byte)0xa6, (byte)0xd9, (byte)0x00, (byte)0xaa,
+		(byte)0x00, (byte)0x62, (byte)0xce, (byte)0x6c,
+	};
+
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * @return The MIME type of the audio file, or null if the file could not
+	 *         be read or does not appear to be a supported audio format.
+	 */
+	public String sniff(File file)
+	{
+		InputStream in = null;
+
+		try {
+			in = new FileInputStream(file);
+
+			int length = 0;
+			int n;
+			while (length < mBuffer.length &&
+					(n = in.read(mBuffer, length, mBuffer.length - length)) >= 0)
+				length += n;
+
+			return sniff(mBuffer, length);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			IOUtils.closeQuietlyNullSafe(in);
+		}
+	}
+
+	/**
+	 * Identify the format from the leading <code>length</code> bytes of a
+	 * file.
+	 */
+	public static String sniff(byte[] b, int length)
+	{
+		if (startsWith(b, length, 0, "fLaC"))
+			return MIME_FLAC;
+
+		if (startsWith(b, length, 0, "OggS"))
+			return MIME_OGG;
+
+		if (startsWith(b, length, 0, ASF_HEADER_GUID))
+			return MIME_WMA;
+
+		if (startsWith(b, length, 4, "ftyp"))
+		{
+			if (startsWith(b, length, 8, "M4A ") ||
+					startsWith(b, length, 8, "M4B ") ||
+					startsWith(b, length, 8, "M4P "))
+				return MIME_M4A;
+
+			return MIME_MP4;
+		}
+
+		if (startsWith(b, length, 0, "ID3") && length >= 10)
+		{
+			/*
+			 * FLAC files are sometimes prefixed with an ID3v2 tag. If the tag
+			 * is small enough, look past it.
+			 */
+			int tagSize = ((b[6] & 0x7f) << 21) | ((b[7] & 0x7f) << 14) |
+				((b[8] & 0x7f) << 7) | (b[9] & 0x7f);
+
+			if (startsWith(b, length, 10 + tagSize, "fLaC"))
+				return MIME_FLAC;
+
+			return MIME_MP3;
+		}
+
+		if (isMpegAudioFrameHeader(b, length, 0))
+			return MIME_MP3;
+
+		return null;
+	}
+
+	private static boolean isMpegAudioFrameHeader(byte[] b, int length, int offset)
+	{
+		if (offset + 4 > length)
+			return false;
+
+		/* 11 bit frame sync. */
+		if ((b[offset] & 0xff) != 0xff || (b[offset + 1] & 0xe0) != 0xe0)
+			return false;
+
+		/* MPEG version 01 is reserved. */
+		if ((b[offset + 1] & 0x18) == 0x08)
+			return false;
+
+		/* Layer 00 is reserved (and used by AAC ADTS streams). */
+		if ((b[offset + 1] & 0x06) == 0x00)
+			return false;
+
+		/* Bitrate index 1111 is invalid. */
+		if ((b[offset + 2] & 0xf0) == 0xf0)
+			return false;
+
+		/* Sampling rate index 11 is reserved. */
+		if ((b[offset + 2] & 0x0c) == 0x0c)
+			return false;
+
+		return true;
+	}
+
+	private static boolean startsWith(byte[] b, int length, int offset, String magic)
+	{
+		if (offset < 0 || offset + magic.length() > length)
+			return false;
+
+		for (int i = 0; i < magic.length(); i++)
+		{
+			if (b[offset + i] != (byte)magic.charAt(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static boolean startsWith(byte[] b, int length, int offset, byte[] magic)
+	{
+		if (offset + magic.length > length)
+			return false;
+
+		for (int i = 0; i < magic.length; i++)
+		{
+			if (b[offset + i] != magic[i])
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -15,6 +15,9 @@
 package org.devtcg.five.util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 public class FileUtils
 {
@@ -52,27 +55,28 @@ public class FileUtils
 		return (fileExt != null && fileExt.equalsIgnoreCase(ext));
 	}
 
-	public static String getMimeType(String filename)
+	public static byte[] readFileToByteArray(File file) throws IOException
 	{
-		/* XXX: Do this right. */
-		String ext = getExtension(filename);
-		if (ext == null)
-			return null;
+		long length = file.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException(file + " is too large");
 
-		if (ext.equalsIgnoreCase("mp3"))
-			return "audio/mpeg";
-		else if (ext.equalsIgnoreCase("ogg"))
-			return "application/ogg";
-		else if (ext.equalsIgnoreCase("m4a") || ext.equalsIgnoreCase("m4p"))
-			return "audio/mp4a-latm";
-		else if (ext.equalsIgnoreCase("mp4"))
-			return "audio/mp4";
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int)length];
+			int offset = 0;
+			int n;
 
-		return null;
-	}
+			while (offset < data.length &&
+					(n = in.read(data, offset, data.length - offset)) >= 0)
+				offset += n;
 
-	public static String getMimeType(File file)
-	{
-		return getMimeType(file.getName());
+			if (offset < data.length)
+				throw new IOException(file + " was truncated while reading");
+
+			return data;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
 	}
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Simple on-disk cache of HTTP response bodies keyed by request URL. Each
+ * entry is stored in its own file along with the URL it belongs to and the
+ * time at which it expires. When the total size of the cache exceeds the
+ * configured maximum, the least recently used entries are evicted.
+ */
+public class HttpResponseCache
+{
+	private static final Log LOG = LogFactory.getLog(HttpResponseCache.class);
+
+	private static final int MAGIC = 0x46434831; /* FCH1 */
+
+	private static final String ENTRY_SUFFIX = ".entry";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File mDirectory;
+	private final long mMaxSize;
+
+	/** Running total of the size of all entries on disk. */
+	private long mSize;
+
+	public HttpResponseCache(File directory, long maxSize)
+	{
+		mDirectory = directory;
+		mMaxSize = maxSize;
+
+		if (mDirectory.isDirectory() == false && mDirectory.mkdirs() == false)
+		{
+			if (LOG.isWarnEnabled())
+				LOG.warn("Unable to create cache directory " + mDirectory);
+		}
+
+		for (File file : listFiles())
+		{
+			/* Left behind by an interrupted put. */
+			if (file.getName().endsWith(TEMP_SUFFIX))
+				file.delete();
+			else
+				mSize += file.length();
+		}
+	}
+
+	private File[] listFiles()
+	{
+		File[] files = mDirectory.listFiles();
+		return (files != null) ? files : new File[0];
+	}
+
+	private File getEntryFile(String url)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(url.getBytes("UTF-8"));
+			return new File(mDirectory, StringUtils.byteArrayToHexString(digest) + ENTRY_SUFFIX);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Look up a cached response body.
+	 *
+	 * @return The cached body, or null if there is no fresh entry for this URL.
+	 */
+	public byte[] get(String url)
+	{
+		File file = getEntryFile(url);
+
+		synchronized (this) {
+			if (file.exists() == false)
+				return null;
+
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+				if (in.readInt() != MAGIC || url.equals(in.readUTF()) == false)
+					return null;
+
+				long expires = in.readLong();
+				if (expires < System.currentTimeMillis())
+				{
+					in.close();
+					removeEntry(file);
+					return null;
+				}
+
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+
+				/* Used to approximate LRU eviction order. */
+				file.setLastModified(System.currentTimeMillis());
+
+				return data;
+			} catch (IOException e) {
+				if (LOG.isWarnEnabled())
+					LOG.warn("Discarding corrupt cache entry for " + url + ": " + e);
+				IOUtils.closeQuietlyNullSafe(in);
+				in = null;
+				removeEntry(file);
+				return null;
+			} finally {
+				IOUtils.closeQuietlyNullSafe(in);
+			}
+		}
+	}
+
+	/**
+	 * Store a response body, replacing any existing entry for this URL.
+	 *
+	 * @param ttl Time in milliseconds for which the entry is considered fresh.
+	 */
+	public void put(String url, byte[] data, long ttl) throws IOException
+	{
+		File file = getEntryFile(url);
+		File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+
+		synchronized (this) {
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+
+			try {
+				out.writeInt(MAGIC);
+				out.writeUTF(url);
+				out.writeLong(System.currentTimeMillis() + ttl);
+				out.writeInt(data.length);
+				out.write(data);
+			} catch (IOException e) {
+				IOUtils.closeQuietly(out);
+				temp.delete();
+				throw e;
+			}
+
+			out.close();
+
+			removeEntry(file);
+
+			if (temp.renameTo(file) == false)
+			{
+				temp.delete();
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+
+			mSize += file.length();
+
+			if (mSize > mMaxSize)
+				trimToSize(mMaxSize);
+		}
+	}
+
+	public synchronized void remove(String url)
+	{
+		removeEntry(getEntryFile(url));
+	}
+
+	private void removeEntry(File file)
+	{
+		long length = file.length();
+		if (file.delete() == true)
+			mSize -= length;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache occupies no
+	 * more than <code>maxSize</code> bytes.
+	 */
+	public synchronized void trimToSize(long maxSize)
+	{
+		File[] files = listFiles();
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b)
+			{
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < files.length && mSize > maxSize; i++)
+		{
+			if (files[i].getName().endsWith(ENTRY_SUFFIX))
+				removeEntry(files[i]);
+		}
+	}
+
+	public synchronized long getSize()
+	{
+		return mSize;
+	}
+
+	public synchronized void clear()
+	{
+		trimToSize(0);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+/**
+ * Growable list of primitive longs. Avoids the per-element node and boxed
+ * Long of a List&lt;Long&gt;, which matters for the large id collections
+ * built up during a scan.
+ */
+public class LongArrayList
+{
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] mValues;
+	private int mSize;
+
+	public LongArrayList()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LongArrayList(int initialCapacity)
+	{
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("Illegal capacity: " + initialCapacity);
+
+		mValues = new long[initialCapacity];
+	}
+
+	public void ensureCapacity(int minCapacity)
+	{
+		if (minCapacity <= mValues.length)
+			return;
+
+		int newCapacity = Math.max(minCapacity, mValues.length * 2);
+		if (newCapacity < DEFAULT_CAPACITY)
+			newCapacity = DEFAULT_CAPACITY;
+
+		long[] values = new long[newCapacity];
+		System.arraycopy(mValues, 0, values, 0, mSize);
+		mValues = values;
+	}
+
+	public void add(long value)
+	{
+		if (mSize == mValues.length)
+			ensureCapacity(mSize + 1);
+
+		mValues[mSize++] = value;
+	}
+
+	public long get(int index)
+	{
+		if (index >= mSize)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+
+		return mValues[index];
+	}
+
+	public void set(int index, long value)
+	{
+		if (index >= mSize)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+
+		mValues[index] = value;
+	}
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+	/**
+	 * Removes all values, but retains the allocated capacity for reuse.
+	 */
+	public void clear()
+	{
+		mSize = 0;
+	}
+
+	/**
+	 * Direct access to the backing array, which is valid only up to
+	 * {@link #size()} and only until the list is next modified.
+	 */
+	public long[] getArray()
+	{
+		return mValues;
+	}
+
+	public long[] toArray()
+	{
+		long[] values = new long[mSize];
+		System.arraycopy(mValues, 0, values, 0, mSize);
+		return values;
+	}
+
+	public String toString()
+	{
+		StringBuilder b = new StringBuilder(mSize * 4 + 2);
+		b.append('[');
+
+		for (int i = 0; i < mSize; i++)
+		{
+			if (i > 0)
+				b.append(", ");
+			b.append(mValues[i]);
+		}
+
+		return b.append(']').toString();
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+/**
+ * Hash map from primitive long keys to non-negative int values, using open
+ * addressing with linear probing. Slots take 12 bytes and the table grows
+ * once half full, so an entry typically costs 24 to 48 bytes rather than the
+ * ~80 of a HashMap&lt;Long, Integer&gt; entry with its boxed key and value.
+ * <p>
+ * Not thread safe.
+ */
+public class LongIntHashMap
+{
+	private static final int MIN_CAPACITY = 16;
+
+	/** Marks an unused slot in mValues. */
+	private static final int FREE = -1;
+
+	private long[] mKeys;
+	private int[] mValues;
+	private int mSize;
+
+	public LongIntHashMap()
+	{
+		this(MIN_CAPACITY / 2);
+	}
+
+	public LongIntHashMap(int expectedSize)
+	{
+		allocate(getCapacityFor(expectedSize));
+	}
+
+	private static int getCapacityFor(int size)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2)
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	private void allocate(int capacity)
+	{
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+
+		for (int i = 0; i < capacity; i++)
+			mValues[i] = FREE;
+	}
+
+	private static int hash(long key, int mask)
+	{
+		/* Ids are sequential, so spread them across the table. */
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private int indexOf(long key)
+	{
+		int mask = mKeys.length - 1;
+
+		for (int i = hash(key, mask); mValues[i] != FREE; i = (i + 1) & mask)
+		{
+			if (mKeys[i] == key)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return The value for <code>key</code>, or -1 if there is none.
+	 */
+	public int get(long key)
+	{
+		int index = indexOf(key);
+		return (index >= 0) ? mValues[index] : -1;
+	}
+
+	public boolean containsKey(long key)
+	{
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param value Must not be negative.
+	 * @return The previous value for <code>key</code>, or -1 if there was
+	 *   none.
+	 */
+	public int put(long key, int value)
+	{
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value: " + value);
+
+		int mask = mKeys.length - 1;
+		int i = hash(key, mask);
+
+		for (; mValues[i] != FREE; i = (i + 1) & mask)
+		{
+			if (mKeys[i] == key)
+			{
+				int previous = mValues[i];
+				mValues[i] = value;
+				return previous;
+			}
+		}
+
+		mKeys[i] = key;
+		mValues[i] = value;
+
+		if (++mSize * 2 > mKeys.length)
+			rehash(mKeys.length * 2);
+
+		return -1;
+	}
+
+	/**
+	 * @return The value removed, or -1 if <code>key</code> was not present.
+	 */
+	public int remove(long key)
+	{
+		int index = indexOf(key);
+		if (index < 0)
+			return -1;
+
+		int previous = mValues[index];
+		mSize--;
+
+		/*
+		 * Shift back any entries in the same run which would no longer be
+		 * reachable from their home slot across the gap, rather than leaving
+		 * a tombstone behind.
+		 */
+		int mask = mKeys.length - 1;
+		int gap = index;
+
+		for (int i = (gap + 1) & mask; mValues[i] != FREE; i = (i + 1) & mask)
+		{
+			int home = hash(mKeys[i], mask);
+
+			if (((i - home) & mask) >= ((i - gap) & mask))
+			{
+				mKeys[gap] = mKeys[i];
+				mValues[gap] = mValues[i];
+				gap = i;
+			}
+		}
+
+		mValues[gap] = FREE;
+
+		return previous;
+	}
+
+	private void rehash(int capacity)
+	{
+		long[] keys = mKeys;
+		int[] values = mValues;
+
+		allocate(capacity);
+		mSize = 0;
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (values[i] != FREE)
+				put(keys[i], values[i]);
+		}
+	}
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+	public void clear()
+	{
+		allocate(MIN_CAPACITY);
+		mSize = 0;
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of counters, gauges and histograms describing what
+ * the server is doing. Metrics are created on first use and live for the
+ * life of the process. Updating a metric never takes a lock, so they are
+ * safe to use from any hot path.
+ * <p>
+ * Metric names follow the Prometheus conventions (for example
+ * "http_sent_bytes_total"), and a metric may carry a single label to split
+ * it by, say, route. Histograms used for latencies and gauges named in
+ * seconds record nanoseconds.
+ */
+public class Metrics
+{
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final ConcurrentHashMap<String, Metric> mMetrics =
+		new ConcurrentHashMap<String, Metric>();
+
+	private static final Comparator<Metric> ORDER = new Comparator<Metric>()
+	{
+		public int compare(Metric a, Metric b)
+		{
+			int result = a.getName().compareTo(b.getName());
+			if (result != 0)
+				return result;
+
+			if (a.getLabelValue() == null)
+				return b.getLabelValue() == null ? 0 : -1;
+			else if (b.getLabelValue() == null)
+				return 1;
+
+			return a.getLabelValue().compareTo(b.getLabelValue());
+		}
+	};
+
+	/* package */ Metrics()
+	{
+	}
+
+	public static Metrics getInstance()
+	{
+		return INSTANCE;
+	}
+
+	private static String getKey(String name, String labelValue)
+	{
+		return (labelValue == null) ? name : name + '\u0000' + labelValue;
+	}
+
+	private Metric register(Metric metric)
+	{
+		String key = getKey(metric.getName(), metric.getLabelValue());
+
+		Metric existing = mMetrics.putIfAbsent(key, metric);
+		return (existing != null) ? existing : metric;
+	}
+
+	private Metric lookup(String name, String labelValue, Class<? extends Metric> type)
+	{
+		Metric metric = mMetrics.get(getKey(name, labelValue));
+		if (metric != null && type.isInstance(metric) == false)
+		{
+			throw new IllegalArgumentException(name + " is already registered as a " +
+				metric.getClass().getSimpleName());
+		}
+
+		return metric;
+	}
+
+	public Counter counter(String name, String help)
+	{
+		return counter(name, help, null, null);
+	}
+
+	public Counter counter(String name, String help, String label, String labelValue)
+	{
+		Metric metric = lookup(name, labelValue, Counter.class);
+		if (metric == null)
+			metric = register(new Counter(name, help, label, labelValue));
+
+		return (Counter)metric;
+	}
+
+	public Gauge gauge(String name, String help)
+	{
+		return gauge(name, help, null, null);
+	}
+
+	public Gauge gauge(String name, String help, String label, String labelValue)
+	{
+		Metric metric = lookup(name, labelValue, Gauge.class);
+		if (metric == null)
+			metric = register(new Gauge(name, help, label, labelValue));
+
+		return (Gauge)metric;
+	}
+
+	public Histogram histogram(String name, String help)
+	{
+		return histogram(name, help, null, null);
+	}
+
+	public Histogram histogram(String name, String help, String label, String labelValue)
+	{
+		Metric metric = lookup(name, labelValue, Histogram.class);
+		if (metric == null)
+			metric = register(new Histogram(name, help, label, labelValue));
+
+		return (Histogram)metric;
+	}
+
+	/**
+	 * @return The metric with the given name and label value (null if it
+	 *   has no label), or null if no such metric has been registered.
+	 */
+	public Metric get(String name, String labelValue)
+	{
+		return mMetrics.get(getKey(name, labelValue));
+	}
+
+	/**
+	 * @return All registered metrics, ordered by name and then label.
+	 */
+	public List<Metric> getMetrics()
+	{
+		List<Metric> metrics = new ArrayList<Metric>(mMetrics.values());
+		Collections.sort(metrics, ORDER);
+		return metrics;
+	}
+
+	public static abstract class Metric
+	{
+		private final String mName;
+		private final String mHelp;
+		private final String mLabel;
+		private final String mLabelValue;
+
+		private Metric(String name, String help, String label, String labelValue)
+		{
+			if ((label == null) != (labelValue == null))
+				throw new IllegalArgumentException("Label and value must be given together");
+
+			mName = name;
+			mHelp = help;
+			mLabel = label;
+			mLabelValue = labelValue;
+		}
+
+		public String getName()
+		{
+			return mName;
+		}
+
+		public String getHelp()
+		{
+			return mHelp;
+		}
+
+		/**
+		 * @return Name of the label splitting this metric, or null.
+		 */
+		public String getLabel()
+		{
+			return mLabel;
+		}
+
+		public String getLabelValue()
+		{
+			return mLabelValue;
+		}
+	}
+
+	/**
+	 * A count which only ever goes up, such as requests served.
+	 */
+	public static class Counter extends Metric
+	{
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter(String name, String help, String label, String labelValue)
+		{
+			super(name, help, label, labelValue);
+		}
+
+		public void increment()
+		{
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta)
+		{
+			mValue.addAndGet(delta);
+		}
+
+		public long get()
+		{
+			return mValue.get();
+		}
+	}
+
+	/**
+	 * A value which can go up and down, such as open connections.
+	 */
+	public static class Gauge extends Metric
+	{
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Gauge(String name, String help, String label, String labelValue)
+		{
+			super(name, help, label, labelValue);
+		}
+
+		public void set(long value)
+		{
+			mValue.set(value);
+		}
+
+		public void increment()
+		{
+			mValue.incrementAndGet();
+		}
+
+		public void decrement()
+		{
+			mValue.decrementAndGet();
+		}
+
+		public long get()
+		{
+			return mValue.get();
+		}
+	}
+
+	/**
+	 * Distribution of recorded values, in the style of HdrHistogram: each
+	 * power of two is divided into {@link #SUB_BUCKET_COUNT} equal buckets,
+	 * so any value is known to within 1/16th (about 6%) at a fixed cost of
+	 * under 8KB, whatever the range of values recorded.
+	 */
+	public static class Histogram extends Metric
+	{
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+		/* Enough buckets to hold Long.MAX_VALUE. */
+		private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+		private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		private Histogram(String name, String help, String label, String labelValue)
+		{
+			super(name, help, label, labelValue);
+		}
+
+		static int getBucketIndex(long value)
+		{
+			if (value < SUB_BUCKET_COUNT)
+				return (int)value;
+
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKET_COUNT + (int)(value >>> shift) - SUB_BUCKET_COUNT;
+		}
+
+		/**
+		 * @return The largest value which falls in the given bucket.
+		 */
+		static long getBucketUpperBound(int index)
+		{
+			if (index < SUB_BUCKET_COUNT)
+				return index;
+
+			int shift = index / SUB_BUCKET_COUNT - 1;
+			long lowerBound = (long)(SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+			return lowerBound + (1L << shift) - 1;
+		}
+
+		/**
+		 * Record a value. Negative values are recorded as zero.
+		 */
+		public void record(long value)
+		{
+			if (value < 0)
+				value = 0;
+
+			mCounts.incrementAndGet(getBucketIndex(value));
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+
+			long max;
+			while (value > (max = mMax.get()))
+			{
+				if (mMax.compareAndSet(max, value) == true)
+					break;
+			}
+		}
+
+		/**
+		 * Record the time elapsed since <code>startNanos</code>, as returned
+		 * by {@link System#nanoTime}.
+		 */
+		public void recordSince(long startNanos)
+		{
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount()
+		{
+			return mCount.get();
+		}
+
+		public long getSum()
+		{
+			return mSum.get();
+		}
+
+		public long getMax()
+		{
+			return mMax.get();
+		}
+
+		/**
+		 * @return Number of values recorded which were no greater than
+		 *   <code>value</code>, give or take the precision of the buckets.
+		 */
+		public long getCountAtOrBelow(long value)
+		{
+			if (value < 0)
+				return 0;
+
+			int last = getBucketIndex(value);
+
+			long count = 0;
+			for (int i = 0; i <= last; i++)
+				count += mCounts.get(i);
+
+			return count;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100.
+		 * @return A value at least as large as <code>percentile</code>
+		 *   percent of the values recorded, or 0 if none have been.
+		 */
+		public long getValueAtPercentile(double percentile)
+		{
+			/*
+			 * Counted from the buckets rather than taken from mCount, which
+			 * may already include values still being added to a bucket.
+			 */
+			long total = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++)
+				total += mCounts.get(i);
+
+			if (total == 0)
+				return 0;
+
+			long rank = Math.max(1, (long)Math.ceil(total * Math.min(percentile, 100) / 100));
+
+			long count = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++)
+			{
+				count += mCounts.get(i);
+				if (count >= rank)
+					return Math.min(getBucketUpperBound(i), getMax());
+			}
+
+			return getMax();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class HeadlessMainTest extends TestCase
+{
+	public void testParseOptions() throws Exception
+	{
+		File config = File.createTempFile("five", ".properties");
+		try {
+			FileWriter out = new FileWriter(config);
+			out.write("port = 8080\nlibrary_path = /music\n");
+			out.close();
+
+			Map<String, String> options = HeadlessMain.parseOptions(new String[] {
+				"--headless", "--config=" + config.getPath(), "--port=9090",
+				"--password=a=b" });
+
+			assertEquals(3, options.size());
+			assertEquals("9090", options.get("port"));
+			assertEquals("/music", options.get("library_path"));
+			assertEquals("a=b", options.get("password"));
+		} finally {
+			config.delete();
+		}
+	}
+
+	public void testPasswordFile() throws Exception
+	{
+		File password = File.createTempFile("five", ".password");
+		File config = File.createTempFile("five", ".properties");
+		try {
+			FileWriter out = new FileWriter(password);
+			out.write("a=b\n");
+			out.close();
+
+			out = new FileWriter(config);
+			out.write("password = fromconfig\n");
+			out.close();
+
+			Map<String, String> options = HeadlessMain.parseOptions(new String[] {
+				"--headless", "--config=" + config.getPath(),
+				"--password_file=" + password.getPath() });
+
+			assertEquals(1, options.size());
+			assertEquals("a=b", options.get("password"));
+
+			out = new FileWriter(config);
+			out.write("password_file = " + password.getPath() + "\n");
+			out.close();
+
+			options = HeadlessMain.parseOptions(new String[] {
+				"--headless", "--config=" + config.getPath() });
+
+			assertEquals("a=b", options.get("password"));
+		} finally {
+			password.delete();
+			config.delete();
+		}
+	}
+
+	public void testBadOptions()
+	{
+		String[][] bad = {
+			{ "--headless", "--no_such_option=1" },
+			{ "--headless", "--port" },
+			{ "--headless", "port=1" },
+			{ "--headless", "--config=/no/such/file" },
+			{ "--headless", "--password_file=/no/such/file" },
+		};
+
+		for (String[] args : bad)
+		{
+			try {
+				HeadlessMain.parseOptions(args);
+				fail(args[1]);
+			} catch (IllegalArgumentException e) {}
+		}
+	}
+}
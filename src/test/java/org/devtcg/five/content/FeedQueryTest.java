@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.content;
+
+import junit.framework.TestCase;
+
+public class FeedQueryTest extends TestCase
+{
+	public void testEmpty()
+	{
+		FeedQuery query = FeedQuery.parse(null);
+		assertTrue(query.isEmpty());
+		assertFalse(query.hasFieldMask());
+		assertTrue(query.includesField("mbid"));
+
+		assertTrue(FeedQuery.parse("").isEmpty());
+	}
+
+	public void testFieldsAndPredicates()
+	{
+		FeedQuery query = FeedQuery.parse("fields=length%2Ctrack&artist_id=12&fields=mbid&album_id=3");
+
+		assertTrue(query.hasFieldMask());
+		assertTrue(query.includesField("length"));
+		assertTrue(query.includesField("track"));
+		assertTrue(query.includesField("mbid"));
+		assertFalse(query.includesField("filesize"));
+
+		assertEquals(2, query.getPredicates().size());
+		assertEquals(Long.valueOf(12), query.getPredicates().get(FeedQuery.ARTIST_ID));
+		assertEquals(Long.valueOf(3), query.getPredicates().get(FeedQuery.ALBUM_ID));
+	}
+
+	public void testEmptyFieldMask()
+	{
+		FeedQuery query = FeedQuery.parse("fields=");
+		assertTrue(query.hasFieldMask());
+		assertFalse(query.includesField("mbid"));
+	}
+
+	public void testInvalidPredicate()
+	{
+		try {
+			FeedQuery.parse("artist_id=abc");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
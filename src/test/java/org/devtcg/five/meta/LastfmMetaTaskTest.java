@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.meta.dao.ArtistDAO;
+import org.devtcg.five.meta.dao.ImageDAO;
+import org.devtcg.five.util.HttpResponseCache;
+
+/**
+ * Exercises the Last.fm tasks against recorded responses seeded into the
+ * response cache, so that no network access is required.
+ */
+public class LastfmMetaTaskTest extends TestCase
+{
+	private static final String IMAGE_URL = "http://userserve-ak.last.fm/serve/126/123.png";
+
+	private static final String ARTIST_RESPONSE =
+		"<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+		"<lfm status=\"ok\">\n" +
+		"<artist>\n" +
+		"	<name>Boards of Canada</name>\n" +
+		"	<mbid>69158f97-4c07-4c4e-baf8-4e4ab1ed666e</mbid>\n" +
+		"	<url>http://www.last.fm/music/Boards+of+Canada</url>\n" +
+		"	<image size=\"small\">http://userserve-ak.last.fm/serve/34/123.png</image>\n" +
+		"	<image size=\"large\">" + IMAGE_URL + "</image>\n" +
+		"	<streamable>1</streamable>\n" +
+		"	<stats><listeners>1</listeners></stats>\n" +
+		"</artist>\n" +
+		"</lfm>\n";
+
+	private File mCacheDirectory;
+	private HttpResponseCache mCache;
+	private MetaProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mCacheDirectory = File.createTempFile("lastfm", null);
+		mCacheDirectory.delete();
+		mCache = new HttpResponseCache(mCacheDirectory, 1024 * 1024);
+		LastfmMetaTask.setResponseCache(mCache);
+
+		mProvider = MetaProvider.getTemporaryInstance();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		LastfmMetaTask.setResponseCache(null);
+		mCache.clear();
+		mCacheDirectory.delete();
+	}
+
+	private static byte[] newImage(int width, int height) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return out.toByteArray();
+	}
+
+	public void testArtistPhotoFromRecordedResponse() throws Exception
+	{
+		ArtistDAO artistDAO = mProvider.getArtistDAO();
+		long id = artistDAO.insert("Boards of Canada");
+
+		LastfmArtistPhotoTask task = new LastfmArtistPhotoTask(mProvider, id, "Boards of Canada");
+		mCache.put(task.getMethodUrl(), ARTIST_RESPONSE.getBytes("UTF-8"), 60000);
+		mCache.put(IMAGE_URL, newImage(126, 100), 60000);
+
+		task.run();
+
+		ArtistDAO.ArtistEntryDAO artist = artistDAO.getArtist(id);
+		try {
+			assertEquals("69158f97-4c07-4c4e-baf8-4e4ab1ed666e", artist.getMbid());
+		} finally {
+			artist.close();
+		}
+
+		ImageDAO.ImageEntryDAO image =
+			mProvider.getImageDAO().getLargestImage(artistDAO.getTable(), id);
+		try {
+			assertNotNull(image);
+			assertEquals(126, image.getWidth());
+		} finally {
+			image.close();
+		}
+	}
+}
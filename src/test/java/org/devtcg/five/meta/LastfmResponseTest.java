@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+
+public class LastfmResponseTest extends TestCase
+{
+	private static final String ALBUM_RESPONSE =
+		"<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+		"<lfm status=\"ok\">\n" +
+		"<album>\n" +
+		"	<name>Music Has the Right to Children</name>\n" +
+		"	<artist>Boards of Canada</artist>\n" +
+		"	<id>2041853</id>\n" +
+		"	<mbid>  e20a9b8f-fd5f-4ad2-a6a4-d5f5b4ab3dc4 </mbid>\n" +
+		"	<url>http://www.last.fm/music/Boards+of+Canada/Music+Has+the+Right+to+Children</url>\n" +
+		"	<releasedate>    6 Apr 1998, 00:00</releasedate>\n" +
+		"	<image size=\"small\">http://userserve-ak.last.fm/serve/34s/1.jpg</image>\n" +
+		"	<image size=\"medium\">http://userserve-ak.last.fm/serve/64s/1.jpg</image>\n" +
+		"	<image size=\"extralarge\">http://userserve-ak.last.fm/serve/300x300/1.jpg</image>\n" +
+		"	<image size=\"large\">http://userserve-ak.last.fm/serve/174s/1.jpg</image>\n" +
+		"	<image size=\"mega\">http://userserve-ak.last.fm/serve/_/1.jpg</image>\n" +
+		"	<listeners>1</listeners>\n";
+
+	private static InputStream stream(String data) throws Exception
+	{
+		return new ByteArrayInputStream(data.getBytes("UTF-8"));
+	}
+
+	public void testParseStopsAfterImages() throws Exception
+	{
+		/* Deliberately truncated; everything after the images is ignored. */
+		LastfmResponse response = LastfmResponse.parse(
+			stream(ALBUM_RESPONSE + "<wiki><summary>unterminated"), "album");
+
+		assertEquals("Music Has the Right to Children", response.name);
+		assertEquals("e20a9b8f-fd5f-4ad2-a6a4-d5f5b4ab3dc4", response.mbid);
+		assertEquals("http://userserve-ak.last.fm/serve/300x300/1.jpg", response.imageUrl);
+	}
+
+	public void testEmptyFields() throws Exception
+	{
+		LastfmResponse response = LastfmResponse.parse(stream(
+			"<lfm status=\"ok\"><artist><name>Foo</name><mbid></mbid>" +
+			"<image size=\"small\"></image><image size=\"medium\">http://x/m.jpg</image>" +
+			"<image size=\"large\"></image></artist></lfm>"), "artist");
+
+		assertEquals("Foo", response.name);
+		assertNull(response.mbid);
+		assertEquals("http://x/m.jpg", response.imageUrl);
+	}
+
+	public void testUnknownImageSize() throws Exception
+	{
+		LastfmResponse response = LastfmResponse.parse(stream(
+			"<lfm status=\"ok\"><artist><name>Foo</name>" +
+			"<image size=\"huge\">http://x/h.jpg</image>" +
+			"<image size=\"small\">http://x/s.jpg</image></artist></lfm>"), "artist");
+
+		assertEquals("http://x/s.jpg", response.imageUrl);
+
+		response = LastfmResponse.parse(stream(
+			"<lfm status=\"ok\"><artist><name>Foo</name>" +
+			"<image>http://x/u.jpg</image></artist></lfm>"), "artist");
+
+		assertEquals("http://x/u.jpg", response.imageUrl);
+	}
+
+	public void testFailedStatus() throws Exception
+	{
+		try {
+			LastfmResponse.parse(stream("<lfm status=\"failed\">" +
+				"<error code=\"6\">The artist you supplied could not be found</error>" +
+				"</lfm>"), "artist");
+			fail();
+		} catch (XMLStreamException e) {
+			assertTrue(e.getMessage().contains("could not be found"));
+		}
+	}
+
+	public void testTransientStatus() throws Exception
+	{
+		try {
+			LastfmResponse.parse(stream("<lfm status=\"failed\">" +
+				"<error code=\"29\">Rate limit exceeded</error>" +
+				"</lfm>"), "artist");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Rate limit"));
+		}
+	}
+
+	public void testReadFailure() throws Exception
+	{
+		final IOException reset = new IOException("Connection reset");
+
+		InputStream in = new InputStream() {
+			private final InputStream mHead = stream("<lfm status=\"ok\"><artist><name>Fo");
+
+			public int read() throws IOException
+			{
+				int b = mHead.read();
+				if (b == -1)
+					throw reset;
+				return b;
+			}
+		};
+
+		try {
+			LastfmResponse.parse(in, "artist");
+			fail();
+		} catch (IOException e) {
+			assertSame(reset, e);
+		}
+	}
+
+	public void testImageRank()
+	{
+		assertTrue(LastfmResponse.getImageRank("extralarge") > LastfmResponse.getImageRank("large"));
+		assertTrue(LastfmResponse.getImageRank("large") > LastfmResponse.getImageRank("mega"));
+		assertTrue(LastfmResponse.getImageRank("mega") > LastfmResponse.getImageRank("small"));
+		assertTrue(LastfmResponse.getImageRank("small") > LastfmResponse.getImageRank("huge"));
+		assertEquals(-1, LastfmResponse.getImageRank("huge"));
+		assertEquals(-1, LastfmResponse.getImageRank(null));
+	}
+}
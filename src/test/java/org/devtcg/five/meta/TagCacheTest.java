@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class TagCacheTest extends TestCase
+{
+	private File mCacheFile;
+	private File mSong;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mCacheFile = File.createTempFile("tagcache", null);
+		mCacheFile.delete();
+
+		mSong = File.createTempFile("song", ".mp3");
+		FileOutputStream out = new FileOutputStream(mSong);
+		out.write(new byte[128]);
+		out.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mCacheFile.delete();
+		mSong.delete();
+	}
+
+	private TagCache.Entry newEntry(File file, String title)
+	{
+		return new TagCache.Entry(file.length(), file.lastModified(), "audio/mpeg",
+			"Artist", "Album", title, 128000, 180, 3, true);
+	}
+
+	public void testPersists()
+	{
+		TagCache cache = new TagCache(mCacheFile);
+		cache.open();
+		assertNull(cache.get(mSong));
+		cache.put(mSong, newEntry(mSong, "Title"));
+		cache.close(true);
+
+		cache = new TagCache(mCacheFile);
+		cache.open();
+		TagCache.Entry entry = cache.get(mSong);
+		assertNotNull(entry);
+		assertEquals("Title", entry.title);
+		assertEquals(3, entry.track);
+		assertTrue(entry.hasArtwork);
+		cache.close(true);
+	}
+
+	public void testNotSongPersists()
+	{
+		TagCache cache = new TagCache(mCacheFile);
+		cache.open();
+		cache.put(mSong, TagCache.Entry.newNotSong(mSong.length(), mSong.lastModified()));
+		cache.close(true);
+
+		cache = new TagCache(mCacheFile);
+		cache.open();
+		TagCache.Entry entry = cache.get(mSong);
+		assertNotNull(entry);
+		assertFalse(entry.isSong());
+		assertNull(entry.mimeType);
+		cache.close(true);
+	}
+
+	public void testStaleEntry() throws Exception
+	{
+		TagCache cache = new TagCache(mCacheFile);
+		cache.open();
+		cache.put(mSong, newEntry(mSong, "Title"));
+
+		FileOutputStream out = new FileOutputStream(mSong, true);
+		out.write(1);
+		out.close();
+
+		assertNull(cache.get(mSong));
+		cache.close(true);
+	}
+
+	public void testSupersededRecordsCompacted()
+	{
+		TagCache cache = new TagCache(mCacheFile);
+		cache.open();
+		for (int i = 0; i < 10; i++)
+			cache.put(mSong, newEntry(mSong, "Title " + i));
+		cache.close(true);
+		long compactedLength = mCacheFile.length();
+
+		cache = new TagCache(mCacheFile);
+		cache.open();
+		assertEquals("Title 9", cache.get(mSong).title);
+		cache.put(mSong, newEntry(mSong, "Title 10"));
+		cache.close(true);
+
+		/* A single superseded record isn't enough to trigger compaction. */
+		assertTrue(mCacheFile.length() > compactedLength);
+	}
+
+	public void testUnseenEntriesDropped()
+	{
+		TagCache cache = new TagCache(mCacheFile);
+		cache.open();
+		cache.put(mSong, newEntry(mSong, "Title"));
+		cache.close(true);
+
+		cache = new TagCache(mCacheFile);
+		cache.open();
+		cache.close(true);
+
+		cache.open();
+		assertEquals(0, cache.size());
+		cache.close(false);
+	}
+
+	public void testDamagedTail() throws Exception
+	{
+		File other = File.createTempFile("song", ".mp3");
+		try {
+			TagCache cache = new TagCache(mCacheFile);
+			cache.open();
+			cache.put(mSong, newEntry(mSong, "Title"));
+			cache.put(other, newEntry(other, "Other"));
+			cache.close(true);
+
+			RandomAccessFile file = new RandomAccessFile(mCacheFile, "rw");
+			file.setLength(file.length() - 5);
+			file.close();
+
+			cache.open();
+			assertEquals(1, cache.size());
+			assertEquals("Title", cache.get(mSong).title);
+			cache.close(false);
+		} finally {
+			other.delete();
+		}
+	}
+}
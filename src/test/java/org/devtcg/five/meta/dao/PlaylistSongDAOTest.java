@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package org.devtcg.five.meta.dao;
+
+import java.sql.Connection;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.persistence.DatabaseUtils;
+import org.devtcg.five.util.LongArrayList;
+
+public class PlaylistSongDAOTest extends TestCase
+{
+	private MetaProvider mProvider;
+	private Connection mConn;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		mConn = mProvider.getConnection().getWrappedConnection();
+	}
+
+	private int count(String table, String where) throws Exception
+	{
+		return DatabaseUtils.integerForQuery(mConn,
+			"SELECT COUNT(*) FROM " + table + " WHERE " + where);
+	}
+
+	public void testReplaceSongsDeletesTail() throws Exception
+	{
+		PlaylistSongDAO dao = mProvider.getPlaylistSongDAO();
+		long playlist = mProvider.getPlaylistDAO().insert("/nonexistent/p.m3u", "p", 0);
+
+		long[] rows = new long[4];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = dao.insert(playlist, i, 100 + i);
+
+		LongArrayList songs = new LongArrayList();
+		songs.add(100);
+		songs.add(105);
+		assertTrue(dao.replaceSongs(playlist, songs));
+
+		assertEquals(2, count(dao.getTable(), "1 = 1"));
+		assertEquals(1, count(dao.getTable(), "song_id = 105"));
+		assertEquals(2, count(dao.getDeletedTable(), "_id IN (" + rows[2] + ", " + rows[3] + ")"));
+	}
+
+	public void testReplaceSongsAppends() throws Exception
+	{
+		PlaylistSongDAO dao = mProvider.getPlaylistSongDAO();
+		long playlist = mProvider.getPlaylistDAO().insert("/nonexistent/p.m3u", "p", 0);
+
+		dao.insert(playlist, 0, 100);
+
+		LongArrayList songs = new LongArrayList();
+		for (int i = 0; i < 1000; i++)
+			songs.add(100 + i);
+		assertTrue(dao.replaceSongs(playlist, songs));
+
+		assertEquals(1000, count(dao.getTable(), "1 = 1"));
+		assertEquals(1000, count(dao.getTable(), "song_id = pos + 100"));
+
+		/* Every appended row carries the time of the one write. */
+		assertEquals(1, DatabaseUtils.integerForQuery(mConn,
+			"SELECT COUNT(DISTINCT _sync_time) FROM " + dao.getTable() + " WHERE pos > 0"));
+	}
+
+	/**
+	 * Ids already in the deleted log have their entry refreshed rather than
+	 * a second one added.
+	 */
+	public void testBatchDeleteRefreshesLog() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		long a = dao.insert("A");
+		long b = dao.insert("B");
+
+		DatabaseUtils.execute(mConn, "INSERT INTO " + dao.getDeletedTable() +
+			" (_id, _sync_time, _sync_id) VALUES (" + a + ", 1, 'x')");
+
+		LongArrayList ids = new LongArrayList();
+		ids.add(a);
+		ids.add(b);
+		dao.delete(ids);
+
+		assertEquals(0, count(dao.getTable(), "1 = 1"));
+		assertEquals(2, count(dao.getDeletedTable(), "_sync_time > 1 AND _sync_id IS NULL"));
+		assertEquals(2, count(dao.getDeletedTable(), "1 = 1"));
+	}
+}
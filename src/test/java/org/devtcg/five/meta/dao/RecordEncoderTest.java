@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.content.FeedQuery;
+import org.devtcg.five.content.SyncableEntryDAO;
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.data.Protos;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Checks that the direct encoders produce exactly the bytes the generated
+ * message classes would.
+ */
+public class RecordEncoderTest extends TestCase
+{
+	private MetaProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+	}
+
+	private static byte[] encodeDirect(SyncableEntryDAO dao) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CodedOutputStream stream = CodedOutputStream.newInstance(out);
+		dao.writeEntryTo(stream);
+		stream.flush();
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeWithBuilders(SyncableEntryDAO dao) throws Exception
+	{
+		Protos.Record entry = dao.getEntry();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CodedOutputStream stream = CodedOutputStream.newInstance(out);
+		stream.writeRawLittleEndian32(entry.getSerializedSize());
+		entry.writeTo(stream);
+		stream.flush();
+		return out.toByteArray();
+	}
+
+	private static void assertEncodersAgree(SyncableEntryDAO dao) throws Exception
+	{
+		int rows = 0;
+		try {
+			while (dao.moveToNext())
+			{
+				assertTrue(Arrays.equals(encodeWithBuilders(dao), encodeDirect(dao)));
+				rows++;
+			}
+		} finally {
+			dao.close();
+		}
+		assertTrue(rows > 0);
+	}
+
+	public void testAllRecordTypes() throws Exception
+	{
+		ArtistDAO artistDAO = mProvider.getArtistDAO();
+		long artistId = artistDAO.insert("Sigur R\u00f3s");
+		artistDAO.insert("\u5742\u672c\u9f8d\u4e00");
+
+		AlbumDAO albumDAO = mProvider.getAlbumDAO();
+		long albumId = albumDAO.insert(artistId, "( )");
+		albumDAO.insert(artistId, "Takk...");
+
+		SongDAO songDAO = mProvider.getSongDAO();
+		SongDAO.Song song = songDAO.newSong(new File("/nonexistent/1.mp3"),
+			"audio/mpeg", artistId, albumId, "Untitled \ud83c\udfb5", 192, 400, -1);
+		song.filesize = 5L * 1024 * 1024 * 1024;
+		long songId = songDAO.insert(song);
+		song = songDAO.newSong(new File("/nonexistent/2.mp3"), null, artistId,
+			albumId, "Lone \ud800 surrogate", 0, 0, 2);
+		songDAO.insert(song);
+
+		PlaylistDAO playlistDAO = mProvider.getPlaylistDAO();
+		long playlistId = playlistDAO.insert("/nonexistent/list.m3u", "list", 1234567890123L);
+
+		mProvider.getPlaylistSongDAO().insert(playlistId, 0, songId);
+		mProvider.getPlaylistSongDAO().insert(playlistId, 300, songId);
+
+		assertEncodersAgree(artistDAO.new TableMerger().getEntryDAO(mProvider));
+		assertEncodersAgree(albumDAO.new TableMerger().getEntryDAO(mProvider));
+		assertEncodersAgree(songDAO.new TableMerger().getEntryDAO(mProvider));
+		assertEncodersAgree(playlistDAO.new TableMerger().getEntryDAO(mProvider));
+		assertEncodersAgree(mProvider.getPlaylistSongDAO().new TableMerger().getEntryDAO(mProvider));
+
+		FeedQuery query = FeedQuery.parse("fields=length,track");
+		assertEncodersAgree(artistDAO.new TableMerger().getEntryDAO(mProvider, query));
+		assertEncodersAgree(songDAO.new TableMerger().getEntryDAO(mProvider, query));
+		assertEncodersAgree(playlistDAO.new TableMerger().getEntryDAO(mProvider, query));
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package org.devtcg.five.meta.dao;
+
+import junit.framework.TestCase;
+
+public class SongIndexTest extends TestCase
+{
+	public void testPutAndGet()
+	{
+		SongIndex index = new SongIndex();
+		index.put(1, "/music/a.mp3", "audio/mpeg", 100, 1000);
+		index.put(2, "/music/été.ogg", "application/ogg", 200, 2000);
+
+		assertEquals(2, index.size());
+
+		SongIndex.Entry entry = index.get(2);
+		assertEquals(2, entry.id);
+		assertEquals("/music/été.ogg", entry.filename);
+		assertEquals("application/ogg", entry.mimeType);
+		assertEquals(200, entry.mtime);
+		assertEquals(2000, entry.filesize);
+
+		assertEquals(1, index.getId("/music/a.mp3"));
+		assertEquals(2, index.getId("/music/été.ogg"));
+		assertEquals(-1, index.getId("/music/b.mp3"));
+		assertEquals(100, index.getMtime(1));
+
+		assertNull(index.get(3));
+		assertEquals(-1, index.getMtime(3));
+	}
+
+	public void testReplace()
+	{
+		SongIndex index = new SongIndex();
+		index.put(1, "/music/a.mp3", "audio/mpeg", 100, 1000);
+
+		/* Updated in place. */
+		index.put(1, "/music/a.mp3", "audio/mpeg", 150, 1500);
+		assertEquals(1, index.size());
+		assertEquals(150, index.getMtime(1));
+
+		/* Renamed. */
+		index.put(1, "/music/b.mp3", "audio/mpeg", 150, 1500);
+		assertEquals(-1, index.getId("/music/a.mp3"));
+		assertEquals(1, index.getId("/music/b.mp3"));
+
+		/* Another id claims the same file. */
+		index.put(2, "/music/b.mp3", "audio/mpeg", 200, 2000);
+		assertEquals(1, index.size());
+		assertNull(index.get(1));
+		assertEquals(2, index.getId("/music/b.mp3"));
+	}
+
+	public void testRemove()
+	{
+		SongIndex index = new SongIndex();
+		index.put(1, "/music/a.mp3", "audio/mpeg", 100, 1000);
+		index.remove(1);
+		index.remove(1);
+
+		assertEquals(0, index.size());
+		assertNull(index.get(1));
+		assertEquals(-1, index.getId("/music/a.mp3"));
+	}
+
+	/**
+	 * Rescans rewrite every song many times over, which should leave every
+	 * lookup intact as dead records are compacted away.
+	 */
+	public void testChurn()
+	{
+		SongIndex index = new SongIndex();
+
+		for (int pass = 0; pass < 5; pass++)
+		{
+			for (int i = 0; i < 1000; i++)
+			{
+				if (i % 7 == pass)
+					index.remove(i);
+				else
+					index.put(i, "/music/" + i + ".mp3", "audio/mpeg", pass, i);
+			}
+		}
+
+		for (int i = 0; i < 1000; i++)
+		{
+			if (i % 7 == 4)
+			{
+				assertNull(index.get(i));
+				assertEquals(-1, index.getId("/music/" + i + ".mp3"));
+			}
+			else
+			{
+				assertEquals("/music/" + i + ".mp3", index.get(i).filename);
+				assertEquals(i, index.getId("/music/" + i + ".mp3"));
+				assertEquals(4, index.getMtime(i));
+			}
+		}
+	}
+}
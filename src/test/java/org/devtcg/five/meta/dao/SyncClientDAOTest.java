@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.persistence.DatabaseUtils;
+
+public class SyncClientDAOTest extends TestCase
+{
+	private MetaProvider mProvider;
+	private SyncClientDAO mClients;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		mClients = mProvider.getSyncClientDAO();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mProvider.close();
+	}
+
+	private int countRows(String table) throws Exception
+	{
+		return DatabaseUtils.integerForQuery(mProvider.getConnection().getWrappedConnection(),
+			0, "SELECT COUNT(*) FROM " + table, (String[])null);
+	}
+
+	public void testOldestConfirmed() throws Exception
+	{
+		assertEquals(Long.MAX_VALUE, mClients.getOldestConfirmed("songs", 0));
+
+		mClients.confirm("phone", "songs", 300, 1000);
+		mClients.confirm("laptop", "songs", 200, 500);
+		mClients.confirm("laptop", "albums", 100, 500);
+		assertEquals(200, mClients.getOldestConfirmed("songs", 0));
+
+		/* Clients not seen recently don't hold back compaction. */
+		assertEquals(300, mClients.getOldestConfirmed("songs", 600));
+
+		mClients.confirm("laptop", "songs", 400, 2000);
+		assertEquals(300, mClients.getOldestConfirmed("songs", 600));
+	}
+
+	public void testConfirmIsDeferred() throws Exception
+	{
+		mClients.confirm("phone", "songs", 300, 1000);
+		mClients.confirm("phone", "songs", 400, 2000);
+		assertEquals(0, countRows("sync_clients"));
+
+		mClients.flush();
+		assertEquals(1, countRows("sync_clients"));
+		assertEquals(400, mClients.getOldestConfirmed("songs", 0));
+
+		/* Nothing left to write. */
+		mClients.flush();
+		assertEquals(1, countRows("sync_clients"));
+	}
+
+	public void testCompact() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		String deletedTable = dao.getDeletedTable();
+
+		long first = dao.insert("Boards of Canada");
+		long second = dao.insert("Aphex Twin");
+		dao.delete(first);
+		dao.delete(second);
+
+		long firstDeleted = DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			"SELECT _sync_time FROM " + deletedTable + " WHERE _id = ?", String.valueOf(first));
+		long secondDeleted = DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(),
+			"SELECT _sync_time FROM " + deletedTable + " WHERE _id = ?", String.valueOf(second));
+
+		assertEquals(0, mClients.compact(deletedTable, firstDeleted - 1));
+		assertEquals(0, mClients.getCompactedThrough(deletedTable));
+
+		assertEquals(1, mClients.compact(deletedTable, secondDeleted - 1));
+		assertEquals(firstDeleted, mClients.getCompactedThrough(deletedTable));
+		assertEquals(1, countRows(deletedTable));
+
+		/* Everything after the compaction is still there. */
+		assertFalse(mClients.needsFullResync(deletedTable, firstDeleted));
+
+		/* Missed a purged delete. */
+		assertTrue(mClients.needsFullResync(deletedTable, firstDeleted - 1));
+
+		/* Syncing from scratch never misses anything. */
+		assertFalse(mClients.needsFullResync(deletedTable, 0));
+	}
+}
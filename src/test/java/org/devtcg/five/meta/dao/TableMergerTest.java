@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.meta.dao;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.content.AbstractTableMerger;
+import org.devtcg.five.content.FeedQuery;
+import org.devtcg.five.content.SyncableEntryDAO;
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.MetaSyncAdapter;
+import org.devtcg.five.meta.data.Protos;
+import org.devtcg.five.persistence.DatabaseUtils;
+
+/**
+ * Checks that feed predicates and field masks are applied when collecting
+ * local changes.
+ */
+public class TableMergerTest extends TestCase
+{
+	private MetaProvider mProvider;
+
+	private long mArtistA;
+	private long mArtistB;
+	private long mAlbumA;
+	private long mAlbumB;
+	private long mSongA1;
+	private long mSongA2;
+	private long mSongB;
+	private long mPlaylist;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+
+		mArtistA = mProvider.getArtistDAO().insert("A");
+		mArtistB = mProvider.getArtistDAO().insert("B");
+		mAlbumA = mProvider.getAlbumDAO().insert(mArtistA, "A");
+		mAlbumB = mProvider.getAlbumDAO().insert(mArtistB, "B");
+
+		mSongA1 = insertSong("a1", mArtistA, mAlbumA);
+		mSongA2 = insertSong("a2", mArtistA, mAlbumA);
+		mSongB = insertSong("b", mArtistB, mAlbumB);
+
+		mPlaylist = mProvider.getPlaylistDAO().insert("/nonexistent/p.m3u", "p", 0);
+		mProvider.getPlaylistSongDAO().insert(mPlaylist, 0, mSongB);
+		mProvider.getPlaylistSongDAO().insert(mPlaylist, 1, mSongA2);
+	}
+
+	private long insertSong(String title, long artistId, long albumId) throws Exception
+	{
+		SongDAO.Song song = mProvider.getSongDAO().newSong(
+			new File("/nonexistent/" + title + ".mp3"), "audio/mpeg", artistId,
+			albumId, title, 128, 200, 1);
+		song.filesize = 1000;
+		return mProvider.getSongDAO().insert(song);
+	}
+
+	private Protos.Song[] getSongs(String queryString) throws Exception
+	{
+		FeedQuery query = FeedQuery.parse(queryString);
+		AbstractTableMerger merger = mProvider.getSongDAO().new TableMerger();
+
+		MetaProvider clientDiffs = MetaProvider.getTemporaryInstance();
+		merger.findLocalChanges(clientDiffs, 0, query);
+
+		SyncableEntryDAO dao = merger.getEntryDAO(clientDiffs, query);
+		try {
+			ArrayList<Protos.Song> songs = new ArrayList<Protos.Song>();
+			while (dao.moveToNext())
+				songs.add(dao.getEntry().getSong());
+			return songs.toArray(new Protos.Song[songs.size()]);
+		} finally {
+			dao.close();
+			clientDiffs.close();
+		}
+	}
+
+	public void testNoQuery() throws Exception
+	{
+		Protos.Song[] songs = getSongs(null);
+		assertEquals(3, songs.length);
+		assertTrue(songs[0].hasFilesize());
+		assertEquals(1000, songs[0].getFilesize());
+	}
+
+	public void testPredicates() throws Exception
+	{
+		Protos.Song[] songs = getSongs("artist_id=" + mArtistA);
+		assertEquals(2, songs.length);
+		assertEquals(mSongA1, songs[0].getId());
+		assertEquals(mSongA2, songs[1].getId());
+
+		songs = getSongs("artist_id=" + mArtistB);
+		assertEquals(1, songs.length);
+		assertEquals(mSongB, songs[0].getId());
+
+		songs = getSongs("playlist_id=" + mPlaylist + "&artist_id=" + mArtistA);
+		assertEquals(1, songs.length);
+		assertEquals(mSongA2, songs[0].getId());
+	}
+
+	public void testFieldMask() throws Exception
+	{
+		Protos.Song[] songs = getSongs("fields=length");
+		assertEquals(3, songs.length);
+
+		for (Protos.Song song : songs)
+		{
+			assertTrue(song.hasTitle());
+			assertTrue(song.hasLength());
+			assertEquals(200, song.getLength());
+			assertFalse(song.hasFilesize());
+			assertFalse(song.hasBitrate());
+			assertFalse(song.hasMimeType());
+			assertFalse(song.hasTrack());
+		}
+	}
+
+	public void testUnsupportedPredicate() throws Exception
+	{
+		AbstractTableMerger merger = mProvider.getArtistDAO().new TableMerger();
+		MetaProvider clientDiffs = MetaProvider.getTemporaryInstance();
+		try {
+			merger.findLocalChanges(clientDiffs, 0, FeedQuery.parse("playlist_id=1"));
+			fail();
+		} catch (IllegalArgumentException e) {
+		} finally {
+			clientDiffs.close();
+		}
+
+		try {
+			merger.checkQuery(FeedQuery.parse("playlist_id=1"));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		merger.checkQuery(FeedQuery.parse("artist_id=1&fields=mbid"));
+	}
+
+	private long getMaxSyncTime(String table) throws Exception
+	{
+		return DatabaseUtils.longForQuery(mProvider.getConnection().getWrappedConnection(), 0,
+			"SELECT MAX(" + AbstractDAO.BaseColumns._SYNC_TIME + ") FROM " + table,
+			(String[])null);
+	}
+
+	public void testHorizon() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		AbstractTableMerger merger = dao.new TableMerger();
+		long horizon = merger.getHighWaterMark();
+
+		Thread.sleep(5);
+		dao.insert("C");
+
+		MetaProvider clientDiffs = MetaProvider.getTemporaryInstance();
+		try {
+			merger.findLocalChanges(clientDiffs, 0, horizon, FeedQuery.parse(null));
+			SyncableEntryDAO entries = merger.getEntryDAO(clientDiffs);
+			try {
+				int count = 0;
+				while (entries.moveToNext())
+				{
+					assertTrue(entries.getId() == mArtistA || entries.getId() == mArtistB);
+					count++;
+				}
+				assertEquals(2, count);
+			} finally {
+				entries.close();
+			}
+		} finally {
+			clientDiffs.close();
+		}
+	}
+
+	private boolean hasRow(MetaProvider clientDiffs, String table, long id) throws Exception
+	{
+		return DatabaseUtils.integerForQuery(clientDiffs.getConnection().getWrappedConnection(), 0,
+			"SELECT COUNT(*) FROM " + table + " WHERE " + AbstractDAO.BaseColumns._ID + " = ?",
+			String.valueOf(id)) > 0;
+	}
+
+	public void testResolveReferences() throws Exception
+	{
+		String[] names = MetaSyncAdapter.FEED_NAMES;
+		MetaSyncAdapter adapter = (MetaSyncAdapter)mProvider.getSyncAdapter();
+		long horizon = mProvider.getSyncClock().getHorizon();
+
+		/* Both albums are skipped as too new, but their songs are not. */
+		Thread.sleep(5);
+		mProvider.getAlbumDAO().updateMbid(mAlbumA, "mbid");
+		mProvider.getAlbumDAO().delete(mAlbumB);
+
+		AbstractTableMerger[] mergers = new AbstractTableMerger[names.length];
+		long[] since = new long[names.length];
+
+		FeedQuery query = FeedQuery.parse(null);
+		MetaProvider clientDiffs = MetaProvider.getTemporaryInstance();
+		try {
+			for (int i = 0; i < names.length; i++)
+			{
+				mergers[i] = adapter.getMerger(names[i]);
+				mergers[i].findLocalChanges(clientDiffs, since[i], horizon, query);
+			}
+
+			assertFalse(hasRow(clientDiffs, AlbumDAO.TABLE, mAlbumA));
+			assertTrue(hasRow(clientDiffs, SongDAO.TABLE, mSongB));
+
+			MetaSyncAdapter.resolveReferences(clientDiffs, mergers, since, horizon, query);
+
+			assertTrue(hasRow(clientDiffs, AlbumDAO.TABLE, mAlbumA));
+			assertTrue(hasRow(clientDiffs, SongDAO.TABLE, mSongA1));
+			assertTrue(hasRow(clientDiffs, SongDAO.TABLE, mSongA2));
+
+			/* Song B is held back, and with it its place in the playlist. */
+			assertFalse(hasRow(clientDiffs, AlbumDAO.TABLE, mAlbumB));
+			assertFalse(hasRow(clientDiffs, SongDAO.TABLE, mSongB));
+			assertEquals(1, DatabaseUtils.integerForQuery(
+				clientDiffs.getConnection().getWrappedConnection(), 0,
+				"SELECT COUNT(*) FROM " + PlaylistSongDAO.TABLE, (String[])null));
+		} finally {
+			clientDiffs.close();
+		}
+	}
+
+	public void testHighWaterMark() throws Exception
+	{
+		PlaylistSongDAO dao = mProvider.getPlaylistSongDAO();
+		AbstractTableMerger merger = dao.new TableMerger();
+
+		long mark = merger.getHighWaterMark();
+		assertEquals(getMaxSyncTime(dao.getTable()), mark);
+
+		Thread.sleep(5);
+		dao.deleteByPlaylist(mPlaylist);
+
+		long deleteTime = getMaxSyncTime(dao.getDeletedTable());
+		assertTrue(deleteTime > mark);
+		assertEquals(deleteTime, merger.getHighWaterMark());
+
+		Thread.sleep(5);
+		dao.insert(mPlaylist, 0, mSongA1);
+		assertEquals(getMaxSyncTime(dao.getTable()), merger.getHighWaterMark());
+		assertTrue(merger.getHighWaterMark() > deleteTime);
+
+		/* Nothing is found at or after the mark. */
+		MetaProvider clientDiffs = MetaProvider.getTemporaryInstance();
+		try {
+			merger.findLocalChanges(clientDiffs, merger.getHighWaterMark(), FeedQuery.parse(null));
+			SyncableEntryDAO entries = merger.getEntryDAO(clientDiffs);
+			try {
+				assertFalse(entries.moveToNext());
+			} finally {
+				entries.close();
+			}
+		} finally {
+			clientDiffs.close();
+		}
+	}
+}
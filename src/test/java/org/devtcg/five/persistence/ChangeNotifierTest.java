@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.dao.ArtistDAO;
+
+public class ChangeNotifierTest extends TestCase
+{
+	private MetaProvider mProvider;
+	private ChangeNotifier mNotifier;
+
+	private static class TestWaiter implements ChangeNotifier.Waiter
+	{
+		private int mWakeUps;
+		private boolean mChanged;
+
+		public synchronized void onWakeUp(boolean changed)
+		{
+			mWakeUps++;
+			mChanged = changed;
+			notifyAll();
+		}
+
+		public synchronized boolean await(long timeout) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			long now;
+			while (mWakeUps == 0 && (now = System.currentTimeMillis()) < deadline)
+				wait(deadline - now);
+
+			assertEquals(1, mWakeUps);
+			return mChanged;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mProvider = MetaProvider.getTemporaryInstance();
+		mNotifier = mProvider.getChangeNotifier();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mNotifier.shutdown();
+		mProvider.close();
+	}
+
+	public void testSeedsFromTable() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		assertEquals(0, mNotifier.getSyncTime(dao.getTable()));
+
+		dao.insert("Boards of Canada");
+		long syncTime = dao.getArtist("Boards of Canada").getSyncTime();
+
+		assertEquals(syncTime, mNotifier.getSyncTime(dao.getTable()));
+	}
+
+	public void testAlreadyChanged() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		dao.insert("Boards of Canada");
+
+		String[] tables = new String[] { dao.getTable() };
+		long syncTime = mNotifier.getSyncTime(tables);
+
+		assertFalse(mNotifier.addWaiter(tables, syncTime - 1, 10000, new TestWaiter()));
+		assertEquals(0, mNotifier.getWaiterCount());
+	}
+
+	public void testWakesOnInsert() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		String[] tables = new String[] { dao.getTable(), dao.getDeletedTable() };
+
+		TestWaiter waiter = new TestWaiter();
+		assertTrue(mNotifier.addWaiter(tables, mNotifier.getSyncTime(tables), 10000, waiter));
+
+		dao.insert("Boards of Canada");
+
+		assertTrue(waiter.await(5000));
+		assertEquals(0, mNotifier.getWaiterCount());
+	}
+
+	public void testWakesOnDelete() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		long id = dao.insert("Boards of Canada");
+
+		String[] tables = new String[] { dao.getDeletedTable() };
+
+		TestWaiter waiter = new TestWaiter();
+		assertTrue(mNotifier.addWaiter(tables, mNotifier.getSyncTime(tables), 10000, waiter));
+
+		dao.delete(id);
+
+		assertTrue(waiter.await(5000));
+	}
+
+	public void testIgnoresOtherTables() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		String[] tables = new String[] { mProvider.getAlbumDAO().getTable() };
+
+		TestWaiter waiter = new TestWaiter();
+		assertTrue(mNotifier.addWaiter(tables, mNotifier.getSyncTime(tables), 1000, waiter));
+
+		dao.insert("Boards of Canada");
+
+		assertFalse(waiter.await(5000));
+	}
+
+	public void testTimeout() throws Exception
+	{
+		String[] tables = new String[] { mProvider.getArtistDAO().getTable() };
+
+		TestWaiter waiter = new TestWaiter();
+		long start = System.currentTimeMillis();
+		assertTrue(mNotifier.addWaiter(tables, mNotifier.getSyncTime(tables), 200, waiter));
+
+		assertFalse(waiter.await(5000));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	public void testHeldBackByHorizon() throws Exception
+	{
+		ArtistDAO dao = mProvider.getArtistDAO();
+		String[] tables = new String[] { dao.getTable() };
+		SyncClock clock = mProvider.getSyncClock();
+
+		/* An earlier write, still in progress. */
+		long pending = clock.acquire();
+
+		dao.insert("Boards of Canada");
+		long syncTime = dao.getArtist("Boards of Canada").getSyncTime();
+
+		long published = mNotifier.getPublishedSyncTime(tables);
+		assertEquals(pending - 1, published);
+		assertTrue(published < syncTime);
+
+		TestWaiter waiter = new TestWaiter();
+		assertTrue(mNotifier.addWaiter(tables, published, 10000, waiter));
+
+		clock.release(pending);
+
+		assertTrue(waiter.await(5000));
+		assertEquals(syncTime, mNotifier.getPublishedSyncTime(tables));
+	}
+
+	public void testRefusesAfterShutdown() throws Exception
+	{
+		String[] tables = new String[] { mProvider.getArtistDAO().getTable() };
+		long since = mNotifier.getSyncTime(tables);
+
+		mNotifier.shutdown();
+
+		assertFalse(mNotifier.addWaiter(tables, since, 10000, new TestWaiter()));
+		assertEquals(0, mNotifier.getWaiterCount());
+	}
+}
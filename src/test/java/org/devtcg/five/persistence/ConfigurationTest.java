@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import java.io.File;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.persistence.Configuration.Keys;
+import org.devtcg.five.persistence.Configuration.Snapshot;
+
+public class ConfigurationTest extends TestCase
+{
+	public void testDefaults()
+	{
+		Snapshot config = new Snapshot(new HashMap<String, String>());
+
+		assertTrue(config.isFirstTime());
+		assertTrue(config.useUPnP());
+		assertEquals(5545, config.getServerPort());
+		assertNull(config.getHashedPassword());
+		assertEquals(0, config.getLibraryPaths().size());
+		assertEquals(24 * 60 * 60 * 1000, config.getRescanInterval());
+	}
+
+	public void testParse()
+	{
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put(Keys.FIRST_TIME, "FALSE");
+		values.put(Keys.USE_UPNP, "TRUE");
+		values.put(Keys.PORT, "8080");
+		values.put(Keys.RESCAN_INTERVAL, "not a number");
+		values.put(Keys.LIBRARY_PATH, "/a" + File.pathSeparator + "/b");
+
+		Snapshot config = new Snapshot(values);
+
+		assertFalse(config.isFirstTime());
+		assertTrue(config.useUPnP());
+		assertEquals(8080, config.getServerPort());
+		assertEquals(24 * 60 * 60 * 1000, config.getRescanInterval());
+		assertEquals(2, config.getLibraryPaths().size());
+		assertEquals("/b", config.getLibraryPaths().get(1));
+
+		try {
+			config.getLibraryPaths().clear();
+			fail();
+		} catch (UnsupportedOperationException e) {}
+	}
+
+	public void testWith()
+	{
+		Snapshot oldConfig = new Snapshot(new HashMap<String, String>());
+		Snapshot newConfig = oldConfig.with(Keys.PORT, "8080");
+
+		assertEquals(5545, oldConfig.getServerPort());
+		assertEquals(8080, newConfig.getServerPort());
+
+		assertTrue(oldConfig.hasChanged(newConfig, Keys.PORT));
+		assertFalse(oldConfig.hasChanged(newConfig, Keys.USE_UPNP));
+		assertFalse(newConfig.hasChanged(newConfig.with(Keys.PORT, "8080"), Keys.PORT));
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.persistence;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.meta.MetaProvider;
+import org.devtcg.five.meta.dao.ArtistDAO;
+
+public class SyncClockTest extends TestCase
+{
+	public void testStrictlyIncreasing()
+	{
+		SyncClock clock = new SyncClock(0);
+
+		long last = 0;
+		for (int i = 0; i < 1000; i++)
+		{
+			long time = clock.acquire();
+			assertTrue(time > last);
+			clock.release(time);
+			last = time;
+		}
+	}
+
+	public void testNeverGoesBack()
+	{
+		long future = System.currentTimeMillis() + 60 * 60 * 1000;
+		SyncClock clock = new SyncClock(future);
+
+		long time = clock.acquire();
+		assertEquals(future + 1, time);
+		clock.release(time);
+	}
+
+	public void testHorizon()
+	{
+		SyncClock clock = new SyncClock(0);
+
+		long first = clock.acquire();
+		long second = clock.acquire();
+		long third = clock.acquire();
+
+		assertEquals(first - 1, clock.getHorizon());
+
+		/* Later writes finishing first don't move the horizon past earlier ones. */
+		clock.release(third);
+		clock.release(second);
+		assertEquals(first - 1, clock.getHorizon());
+
+		clock.release(first);
+		assertEquals(third, clock.getHorizon());
+	}
+
+	public void testListener()
+	{
+		SyncClock clock = new SyncClock(0);
+
+		final ArrayList<Long> horizons = new ArrayList<Long>();
+		clock.setListener(new SyncClock.Listener() {
+			public void onHorizonAdvanced(long horizon)
+			{
+				horizons.add(horizon);
+			}
+		});
+
+		long first = clock.acquire();
+		long second = clock.acquire();
+
+		/* Releasing a later time alone doesn't move the horizon. */
+		clock.release(second);
+		assertTrue(horizons.isEmpty());
+
+		clock.release(first);
+		assertEquals(1, horizons.size());
+		assertEquals(second, horizons.get(0).longValue());
+	}
+
+	public void testReleaseTwice()
+	{
+		SyncClock clock = new SyncClock(0);
+
+		long time = clock.acquire();
+		clock.release(time);
+
+		try {
+			clock.release(time);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testSeededFromDatabase() throws Exception
+	{
+		MetaProvider provider = MetaProvider.getTemporaryInstance();
+		try {
+			ArtistDAO dao = provider.getArtistDAO();
+
+			/* Written before the system clock was set back. */
+			long future = System.currentTimeMillis() + 60 * 60 * 1000;
+			DatabaseUtils.execute(provider.getConnection().getWrappedConnection(),
+				"INSERT INTO " + dao.getDeletedTable() + " (_id, _sync_time) VALUES (1, ?)",
+				String.valueOf(future));
+
+			assertEquals(future, provider.getSyncClock().getLastTime());
+
+			dao.insert("Boards of Canada");
+			assertTrue(dao.getArtist("Boards of Canada").getSyncTime() > future);
+		} finally {
+			provider.close();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+public class AbstractHttpServerTest extends TestCase
+{
+	private static final int BODY_SIZE = 256 * 1024;
+
+	private AbstractHttpServer mServer;
+
+	/** Counted down once a request has reached the handler. */
+	private final CountDownLatch mHandling = new CountDownLatch(1);
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mServer = new AbstractHttpServer(0) {};
+		mServer.setRequestHandler(new HttpRequestHandler() {
+			public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+			{
+				mHandling.countDown();
+
+				/* Long enough for shutdown to begin while the request is in progress. */
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				response.setEntity(new ByteArrayEntity(new byte[BODY_SIZE]));
+				response.setStatusCode(HttpStatus.SC_OK);
+			}
+		});
+		mServer.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mServer.shutdown();
+	}
+
+	private static int readFully(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+		in.close();
+		return out.size();
+	}
+
+	public void testShutdownFinishesResponses() throws Exception
+	{
+		final URL url = new URL("http://localhost:" + mServer.getLocalPort() + "/");
+		final int[] received = { -1 };
+		final String[] connection = new String[1];
+
+		Thread client = new Thread() {
+			public void run() {
+				try {
+					HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+					received[0] = readFully(conn.getInputStream());
+					connection[0] = conn.getHeaderField("Connection");
+				} catch (IOException e) {}
+			}
+		};
+		client.start();
+
+		assertTrue(mHandling.await(5, TimeUnit.SECONDS));
+
+		assertTrue(mServer.shutdown(5000));
+		client.join();
+
+		assertEquals(BODY_SIZE, received[0]);
+		assertEquals("Close", connection[0]);
+
+		try {
+			url.openConnection().getInputStream();
+			fail();
+		} catch (IOException e) {}
+	}
+
+	public void testShutdownTimesOut() throws Exception
+	{
+		URL url = new URL("http://localhost:" + mServer.getLocalPort() + "/");
+		final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+
+		Thread client = new Thread() {
+			public void run() {
+				try {
+					readFully(conn.getInputStream());
+				} catch (IOException e) {}
+			}
+		};
+		client.start();
+
+		assertTrue(mHandling.await(5, TimeUnit.SECONDS));
+
+		assertFalse(mServer.shutdown(50));
+		client.join();
+	}
+
+	/**
+	 * Resuming a request must not write to the client from the resuming
+	 * thread, which would stall it for as long as the client isn't reading.
+	 */
+	public void testResumeDoesNotBlock() throws Exception
+	{
+		final BlockingQueue<AbstractHttpServer.SuspendedRequest> suspended =
+			new ArrayBlockingQueue<AbstractHttpServer.SuspendedRequest>(1);
+
+		AbstractHttpServer server = new AbstractHttpServer(0) {};
+		server.setRequestHandler(new HttpRequestHandler() {
+			public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+			{
+				suspended.add(AbstractHttpServer.suspend(response, context));
+			}
+		});
+		server.start();
+
+		Socket client = new Socket("localhost", server.getLocalPort());
+		try {
+			OutputStream out = client.getOutputStream();
+			out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+			out.flush();
+
+			AbstractHttpServer.SuspendedRequest request = suspended.poll(5, TimeUnit.SECONDS);
+			assertNotNull(request);
+
+			/* Far more than the socket buffers hold, with nobody reading yet. */
+			int size = 32 * 1024 * 1024;
+			request.getResponse().setEntity(new ByteArrayEntity(new byte[size]));
+			request.getResponse().setStatusCode(HttpStatus.SC_OK);
+
+			long start = System.nanoTime();
+			request.resume();
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+			assertTrue(readFully(client.getInputStream()) > size);
+		} finally {
+			client.close();
+			server.shutdown();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AccessLogTest extends TestCase
+{
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("logs", null);
+		mDirectory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		File[] files = mDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+				file.delete();
+		}
+
+		mDirectory.delete();
+	}
+
+	private static List<String> readLines(File file) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+
+		return lines;
+	}
+
+	public void testFormat() throws IOException
+	{
+		AccessLog log = new AccessLog(mDirectory);
+		log.start();
+		log.log("10.0.0.2", "GET", "/feeds/songs?since=\"1\"\n", 200, 1234, 4211000);
+		log.log(null, null, null, 400, 0, 0);
+		log.close();
+
+		List<String> lines = readLines(log.getFile(0));
+		assertEquals(2, lines.size());
+
+		String line = lines.get(0);
+		assertTrue(line, line.startsWith("time="));
+		assertTrue(line, line.endsWith(" client=10.0.0.2 method=GET " +
+			"uri=\"/feeds/songs?since=\\\"1\\\"?\" status=200 bytes=1234 duration_ms=4.211"));
+
+		assertTrue(lines.get(1), lines.get(1).endsWith(" client=- method=- uri=\"\" " +
+			"status=400 bytes=0 duration_ms=0.000"));
+	}
+
+	public void testDropsWhenFull() throws IOException
+	{
+		AccessLog log = new AccessLog(mDirectory);
+
+		/* Nothing is written until the writer starts, so this overflows. */
+		for (int i = 0; i < AccessLog.CAPACITY + 10; i++)
+			log.log("10.0.0.2", "GET", "/info", 200, 0, 0);
+
+		log.start();
+		log.close();
+
+		assertEquals(AccessLog.CAPACITY, readLines(log.getFile(0)).size());
+	}
+
+	public void testRotate() throws IOException
+	{
+		AccessLog log = new AccessLog(mDirectory, 1000, 2);
+		log.start();
+
+		for (int i = 0; i < 100; i++)
+			log.log("10.0.0.2", "GET", "/songs/" + i, 200, 0, 0);
+
+		log.close();
+
+		assertTrue(log.getFile(0).length() <= 1000);
+		assertTrue(log.getFile(1).length() <= 1000);
+		assertTrue(log.getFile(2).exists());
+		assertFalse(log.getFile(3).exists());
+
+		List<String> lines = readLines(log.getFile(0));
+		assertTrue(lines.get(lines.size() - 1).contains("/songs/99"));
+	}
+
+	public void testRotateCountsBytes() throws IOException
+	{
+		/* Two bytes per char once encoded, so each line is far longer on disk. */
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			name.append('\u00e9');
+
+		AccessLog log = new AccessLog(mDirectory, 1000, 2);
+		log.start();
+
+		for (int i = 0; i < 20; i++)
+			log.log("10.0.0.2", "GET", "/songs/" + name + i, 200, 0, 0);
+
+		log.close();
+
+		assertTrue(log.getFile(0).length() <= 1000);
+		assertTrue(log.getFile(1).length() <= 1000);
+		assertTrue(log.getFile(2).length() <= 1000);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.server;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.persistence.Configuration;
+
+public class AuthenticatorTest extends TestCase
+{
+	/* fiveuser:secret */
+	private static final String GOOD = "Basic Zml2ZXVzZXI6c2VjcmV0";
+
+	/* fiveuser:wrong */
+	private static final String WRONG_PASSWORD = "Basic Zml2ZXVzZXI6d3Jvbmc=";
+
+	/* someone:secret */
+	private static final String WRONG_USER = "Basic c29tZW9uZTpzZWNyZXQ=";
+
+	public void testDecodeBase64() throws Exception
+	{
+		assertTrue(Arrays.equals(new byte[0], Authenticator.decodeBase64("")));
+		assertEquals("f", new String(Authenticator.decodeBase64("Zg=="), "UTF-8"));
+		assertEquals("fo", new String(Authenticator.decodeBase64("Zm8="), "UTF-8"));
+		assertEquals("foo", new String(Authenticator.decodeBase64("Zm9v"), "UTF-8"));
+
+		assertNull(Authenticator.decodeBase64("Zm9"));
+		assertNull(Authenticator.decodeBase64("Zm=v"));
+		assertNull(Authenticator.decodeBase64("Zm9é"));
+	}
+
+	public void testAuthenticate()
+	{
+		Authenticator auth = new Authenticator("fiveuser");
+		String hash = Configuration.sha1Hash("secret");
+
+		assertTrue(auth.authenticate(GOOD, hash));
+		assertTrue(auth.authenticate(GOOD, hash));
+
+		assertFalse(auth.authenticate(WRONG_PASSWORD, hash));
+		assertFalse(auth.authenticate(WRONG_USER, hash));
+		assertFalse(auth.authenticate(null, hash));
+		assertFalse(auth.authenticate(GOOD, null));
+
+		/* Malformed headers are refused rather than thrown on. */
+		assertFalse(auth.authenticate("Digest username=\"fiveuser\"", hash));
+		assertFalse(auth.authenticate("Basic !!!!", hash));
+		assertFalse(auth.authenticate("Basic Zml2ZXVzZXI=", hash));
+	}
+
+	public void testPasswordChange()
+	{
+		Authenticator auth = new Authenticator("fiveuser");
+
+		assertTrue(auth.authenticate(GOOD, Configuration.sha1Hash("secret")));
+		assertFalse(auth.authenticate(GOOD, Configuration.sha1Hash("wrong")));
+		assertTrue(auth.authenticate(WRONG_PASSWORD, Configuration.sha1Hash("wrong")));
+		assertTrue(auth.authenticate(GOOD, Configuration.sha1Hash("secret")));
+	}
+}
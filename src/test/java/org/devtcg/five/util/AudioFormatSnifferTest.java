@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import junit.framework.TestCase;
+
+public class AudioFormatSnifferTest extends TestCase
+{
+	private static byte[] bytes(int... values)
+	{
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			b[i] = (byte)values[i];
+		return b;
+	}
+
+	private static String sniff(byte[] b)
+	{
+		return AudioFormatSniffer.sniff(b, b.length);
+	}
+
+	private static String sniff(String s)
+	{
+		return sniff(s.getBytes());
+	}
+
+	public void testMp3()
+	{
+		assertEquals(AudioFormatSniffer.MIME_MP3, sniff(bytes('I', 'D', '3', 3, 0, 0, 0, 0, 0, 0)));
+
+		/* MPEG-1 Layer III, 128kbps, 44.1kHz. */
+		assertEquals(AudioFormatSniffer.MIME_MP3, sniff(bytes(0xff, 0xfb, 0x90, 0x64)));
+	}
+
+	public void testFlacWithId3()
+	{
+		byte[] b = bytes('I', 'D', '3', 3, 0, 0, 0, 0, 0, 2, 0, 0, 'f', 'L', 'a', 'C');
+		assertEquals(AudioFormatSniffer.MIME_FLAC, sniff(b));
+		assertEquals(AudioFormatSniffer.MIME_FLAC, sniff("fLaC\0\0\0\""));
+	}
+
+	public void testContainers()
+	{
+		assertEquals(AudioFormatSniffer.MIME_OGG, sniff("OggS\0\2"));
+		assertEquals(AudioFormatSniffer.MIME_M4A, sniff("\0\0\0\40ftypM4A \0\0\0\0"));
+		assertEquals(AudioFormatSniffer.MIME_MP4, sniff("\0\0\0\40ftypmp42\0\0\0\0"));
+		assertEquals(AudioFormatSniffer.MIME_WMA, sniff(bytes(0x30, 0x26, 0xb2, 0x75,
+			0x8e, 0x66, 0xcf, 0x11, 0xa6, 0xd9, 0x00, 0xaa, 0x00, 0x62, 0xce, 0x6c)));
+	}
+
+	public void testNotAudio()
+	{
+		/* JPEG. */
+		assertNull(sniff(bytes(0xff, 0xd8, 0xff, 0xe0, 0, 0x10, 'J', 'F', 'I', 'F')));
+		/* AAC ADTS, which jaudiotagger can't read. */
+		assertNull(sniff(bytes(0xff, 0xf1, 0x50, 0x80)));
+		assertNull(sniff("FILE \"foo.flac\" WAVE"));
+		assertNull(sniff(new byte[0]));
+	}
+}
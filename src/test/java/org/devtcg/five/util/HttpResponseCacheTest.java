@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class HttpResponseCacheTest extends TestCase
+{
+	private static final long TTL = 60 * 1000;
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("cache", null);
+		mDirectory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		new HttpResponseCache(mDirectory, 0).clear();
+		mDirectory.delete();
+	}
+
+	public void testPutAndGet() throws IOException
+	{
+		HttpResponseCache cache = new HttpResponseCache(mDirectory, 1024);
+		byte[] data = "hello".getBytes();
+
+		assertNull(cache.get("http://example.com/a"));
+		cache.put("http://example.com/a", data, TTL);
+		assertTrue(Arrays.equals(data, cache.get("http://example.com/a")));
+		assertNull(cache.get("http://example.com/b"));
+
+		/* Entries must survive across instances. */
+		HttpResponseCache reopened = new HttpResponseCache(mDirectory, 1024);
+		assertEquals(cache.getSize(), reopened.getSize());
+		assertTrue(Arrays.equals(data, reopened.get("http://example.com/a")));
+	}
+
+	public void testExpiry() throws IOException
+	{
+		HttpResponseCache cache = new HttpResponseCache(mDirectory, 1024);
+
+		cache.put("http://example.com/a", new byte[] { 1, 2, 3 }, -1);
+		assertNull(cache.get("http://example.com/a"));
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testEviction() throws IOException
+	{
+		HttpResponseCache cache = new HttpResponseCache(mDirectory, 1024);
+		byte[] data = new byte[400];
+
+		cache.put("http://example.com/a", data, TTL);
+		new File(mDirectory, mDirectory.list()[0]).setLastModified(System.currentTimeMillis() - 10000);
+		cache.put("http://example.com/b", data, TTL);
+		cache.put("http://example.com/c", data, TTL);
+
+		assertTrue(cache.getSize() <= 1024);
+		assertNull(cache.get("http://example.com/a"));
+		assertNotNull(cache.get("http://example.com/c"));
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class LongArrayListTest extends TestCase
+{
+	public void testAddAndGrow()
+	{
+		LongArrayList list = new LongArrayList(0);
+		assertTrue(list.isEmpty());
+
+		for (long i = 0; i < 1000; i++)
+			list.add(i * 3);
+
+		assertEquals(1000, list.size());
+		assertEquals(0, list.get(0));
+		assertEquals(2997, list.get(999));
+		assertTrue(list.getArray().length >= 1000);
+	}
+
+	public void testSetAndToArray()
+	{
+		LongArrayList list = new LongArrayList();
+		list.add(1);
+		list.add(2);
+		list.set(1, 5);
+
+		assertTrue(Arrays.equals(new long[] { 1, 5 }, list.toArray()));
+		assertEquals("[1, 5]", list.toString());
+	}
+
+	public void testBounds()
+	{
+		LongArrayList list = new LongArrayList();
+		list.add(1);
+
+		try {
+			list.get(1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+	}
+
+	public void testClearRetainsCapacity()
+	{
+		LongArrayList list = new LongArrayList(4);
+		for (int i = 0; i < 100; i++)
+			list.add(i);
+
+		long[] array = list.getArray();
+		list.clear();
+		assertEquals(0, list.size());
+
+		list.add(7);
+		assertSame(array, list.getArray());
+		assertEquals(7, list.get(0));
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package org.devtcg.five.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongIntHashMapTest extends TestCase
+{
+	public void testPutGetRemove()
+	{
+		LongIntHashMap map = new LongIntHashMap();
+		assertTrue(map.isEmpty());
+		assertEquals(-1, map.get(1));
+
+		assertEquals(-1, map.put(1, 10));
+		assertEquals(-1, map.put(-5, 0));
+		assertEquals(10, map.put(1, 11));
+		assertEquals(2, map.size());
+
+		assertEquals(11, map.get(1));
+		assertEquals(0, map.get(-5));
+		assertTrue(map.containsKey(-5));
+
+		assertEquals(11, map.remove(1));
+		assertEquals(-1, map.remove(1));
+		assertFalse(map.containsKey(1));
+		assertEquals(1, map.size());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(-1, map.get(-5));
+	}
+
+	public void testNegativeValue()
+	{
+		try {
+			new LongIntHashMap().put(1, -1);
+			fail();
+		} catch (IllegalArgumentException e) {}
+	}
+
+	/**
+	 * Mixes puts and removes against a HashMap so that removals land in the
+	 * middle of collision runs as the table grows.
+	 */
+	public void testAgainstHashMap()
+	{
+		LongIntHashMap map = new LongIntHashMap(0);
+		HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+		Random random = new Random(1);
+
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = random.nextInt(2000);
+			if (random.nextInt(3) == 0)
+			{
+				Integer previous = expected.remove(key);
+				assertEquals(previous == null ? -1 : previous, map.remove(key));
+			}
+			else
+			{
+				Integer previous = expected.put(key, i);
+				assertEquals(previous == null ? -1 : previous, map.put(key, i));
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+
+		for (long key = 0; key < 2000; key++)
+		{
+			Integer value = expected.get(key);
+			assertEquals(value == null ? -1 : value, map.get(key));
+		}
+
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			assertEquals((int)entry.getValue(), map.remove(entry.getKey()));
+
+		assertTrue(map.isEmpty());
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase
+{
+	public void testRegistry()
+	{
+		Metrics metrics = new Metrics();
+
+		Metrics.Counter counter = metrics.counter("test_total", "Test");
+		assertSame(counter, metrics.counter("test_total", "Test"));
+
+		Metrics.Counter labeled = metrics.counter("test_total", "Test", "route", "a");
+		assertNotSame(counter, labeled);
+
+		metrics.gauge("test_gauge", "Test");
+
+		try {
+			metrics.histogram("test_gauge", "Test");
+			fail();
+		} catch (IllegalArgumentException e) {}
+
+		List<Metrics.Metric> all = metrics.getMetrics();
+		assertEquals(3, all.size());
+		assertEquals("test_gauge", all.get(0).getName());
+		assertNull(all.get(1).getLabelValue());
+		assertEquals("a", all.get(2).getLabelValue());
+	}
+
+	public void testBuckets()
+	{
+		long last = -1;
+
+		for (int i = 0; i < 960; i++)
+		{
+			long upper = Metrics.Histogram.getBucketUpperBound(i);
+			assertTrue(upper > last);
+			assertEquals(i, Metrics.Histogram.getBucketIndex(last + 1));
+			assertEquals(i, Metrics.Histogram.getBucketIndex(upper));
+			last = upper;
+		}
+
+		assertEquals(Long.MAX_VALUE, last);
+	}
+
+	public void testPercentiles()
+	{
+		Metrics.Histogram histogram = new Metrics().histogram("test_seconds", "Test");
+		assertEquals(0, histogram.getValueAtPercentile(50));
+
+		for (long i = 1; i <= 10000; i++)
+			histogram.record(i * 1000);
+
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(50005000000L, histogram.getSum());
+
+		assertWithin(5000000, histogram.getValueAtPercentile(50));
+		assertWithin(9900000, histogram.getValueAtPercentile(99));
+		assertEquals(10000000, histogram.getValueAtPercentile(100));
+
+		assertEquals(0, histogram.getCountAtOrBelow(500));
+		assertEquals(1, histogram.getCountAtOrBelow(1000));
+		assertEquals(10000, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+	}
+
+	private static void assertWithin(long expected, long actual)
+	{
+		assertTrue(actual + " not near " + expected,
+			actual >= expected && actual <= expected + expected / 16);
+	}
+}